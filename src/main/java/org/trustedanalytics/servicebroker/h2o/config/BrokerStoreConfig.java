@@ -14,59 +14,108 @@
 
 package org.trustedanalytics.servicebroker.h2o.config;
 
+import org.apache.curator.framework.CuratorFramework;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceBindingRequest;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.trustedanalytics.cfbroker.store.api.BrokerStore;
-import org.trustedanalytics.cfbroker.store.serialization.JSONSerDeFactory;
 import org.trustedanalytics.cfbroker.store.serialization.RepositoryDeserializer;
 import org.trustedanalytics.cfbroker.store.serialization.RepositorySerializer;
-import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
-import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperStore;
-
-import java.io.IOException;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2o.store.CompactSerDeFactory;
+import org.trustedanalytics.servicebroker.h2o.store.InstrumentedBrokerStore;
+import org.trustedanalytics.servicebroker.h2o.store.ZnodeLayout;
+import org.trustedanalytics.servicebroker.h2o.store.ZookeeperBrokerStore;
+import org.trustedanalytics.servicebroker.h2o.store.ZookeeperWriteBatcher;
 
 @Configuration
 public class BrokerStoreConfig {
 
   @Autowired
-  private ZookeeperClient brokerZKClient;
+  private CuratorFramework curatorClient;
+
+  @Autowired
+  private MetricsRegistry metricsRegistry;
+
+  @Autowired
+  private ExternalConfiguration config;
 
   @Bean
   public BrokerStore<ServiceInstance> serviceInstanceStore(
       RepositorySerializer<ServiceInstance> instanceSerializer,
-      RepositoryDeserializer<ServiceInstance> instanceDeserializer) throws IOException {
-    return new ZookeeperStore<>(brokerZKClient, instanceSerializer, instanceDeserializer);
+      RepositoryDeserializer<ServiceInstance> instanceDeserializer,
+      ZookeeperWriteBatcher zookeeperWriteBatcher,
+      @Qualifier("metadataZnodeLayout") ZnodeLayout metadataZnodeLayout) {
+    return new InstrumentedBrokerStore<>(
+        new ZookeeperBrokerStore<>(curatorClient, config.getZookeeperMetadataNode(),
+            metadataZnodeLayout, instanceSerializer, instanceDeserializer, zookeeperWriteBatcher),
+        metricsRegistry, "serviceInstanceStore");
   }
 
   @Bean
   public BrokerStore<CreateServiceInstanceBindingRequest> serviceBindingStore(
       RepositorySerializer<CreateServiceInstanceBindingRequest> bindingSerializer,
-      RepositoryDeserializer<CreateServiceInstanceBindingRequest> bindingDeserializer)
-      throws IOException {
-    return new ZookeeperStore<>(brokerZKClient, bindingSerializer, bindingDeserializer);
+      RepositoryDeserializer<CreateServiceInstanceBindingRequest> bindingDeserializer,
+      ZookeeperWriteBatcher zookeeperWriteBatcher,
+      @Qualifier("metadataZnodeLayout") ZnodeLayout metadataZnodeLayout) {
+    return new InstrumentedBrokerStore<>(
+        new ZookeeperBrokerStore<>(curatorClient, config.getZookeeperMetadataNode(),
+            metadataZnodeLayout, bindingSerializer, bindingDeserializer, zookeeperWriteBatcher),
+        metricsRegistry, "serviceBindingStore");
+  }
+
+  @Bean(initMethod = "start", destroyMethod = "close")
+  public ZookeeperWriteBatcher zookeeperWriteBatcher() {
+    ZookeeperWriteBatcher batcher = new ZookeeperWriteBatcher(curatorClient,
+        config.getZookeeperWriteBatchLinger(), config.getZookeeperWriteBatchMaxOps(),
+        ZookeeperWriteBatcher.Ack.valueOf(config.getZookeeperWriteBatchAck().toUpperCase()));
+
+    String writes = "h2o_broker_zookeeper_writes_total";
+    metricsRegistry.counter(writes, "Znode writes by outcome", batcher::getCommittedWrites,
+        "result", "committed");
+    metricsRegistry.counter(writes, "Znode writes by outcome", batcher::getCoalescedWrites,
+        "result", "coalesced");
+    metricsRegistry.counter(writes, "Znode writes by outcome", batcher::getFailedWrites,
+        "result", "failed");
+    metricsRegistry.counter("h2o_broker_zookeeper_write_batches_total",
+        "Batches of znode writes committed together", batcher::getCommittedBatches);
+    metricsRegistry.counter("h2o_broker_zookeeper_write_batch_fallbacks_total",
+        "Batches rejected by zookeeper and written one by one", batcher::getFallbacks);
+    metricsRegistry.gauge("h2o_broker_zookeeper_queued_writes",
+        "Znode writes waiting for the next batch", batcher::getQueuedWrites);
+    return batcher;
+  }
+
+  @Bean
+  public CompactSerDeFactory serDeFactory() {
+    return new CompactSerDeFactory("compact".equals(config.getZookeeperSerializationFormat()),
+        config.getZookeeperSerializationCompressionThreshold());
   }
 
   @Bean
-  public RepositorySerializer<ServiceInstance> instanceSerializer() {
-    return JSONSerDeFactory.getInstance().getSerializer();
+  public RepositorySerializer<ServiceInstance> instanceSerializer(
+      CompactSerDeFactory serDeFactory) {
+    return serDeFactory.getSerializer();
   }
 
   @Bean
-  public RepositorySerializer<CreateServiceInstanceBindingRequest> bindingSerializer() {
-    return JSONSerDeFactory.getInstance().getSerializer();
+  public RepositorySerializer<CreateServiceInstanceBindingRequest> bindingSerializer(
+      CompactSerDeFactory serDeFactory) {
+    return serDeFactory.getSerializer();
   }
 
   @Bean
-  public RepositoryDeserializer<ServiceInstance> instanceDeserializer() {
-    return JSONSerDeFactory.getInstance().getDeserializer(ServiceInstance.class);
+  public RepositoryDeserializer<ServiceInstance> instanceDeserializer(
+      CompactSerDeFactory serDeFactory) {
+    return serDeFactory.getDeserializer(ServiceInstance.class);
   }
 
   @Bean
-  public RepositoryDeserializer<CreateServiceInstanceBindingRequest> bindingDeserializer() {
-    return JSONSerDeFactory.getInstance()
-        .getDeserializer(CreateServiceInstanceBindingRequest.class);
+  public RepositoryDeserializer<CreateServiceInstanceBindingRequest> bindingDeserializer(
+      CompactSerDeFactory serDeFactory) {
+    return serDeFactory.getDeserializer(CreateServiceInstanceBindingRequest.class);
   }
 }
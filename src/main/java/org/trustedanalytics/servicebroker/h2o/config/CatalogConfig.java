@@ -15,7 +15,7 @@
 package org.trustedanalytics.servicebroker.h2o.config;
 
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableSet;
 import org.cloudfoundry.community.servicebroker.model.Catalog;
 import org.cloudfoundry.community.servicebroker.model.DashboardClient;
 import org.cloudfoundry.community.servicebroker.model.Plan;
@@ -23,10 +23,15 @@ import org.cloudfoundry.community.servicebroker.model.ServiceDefinition;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.trustedanalytics.servicebroker.h2o.service.H2oPlan;
+import org.trustedanalytics.servicebroker.h2o.service.H2oPlans;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 @Configuration
 public class CatalogConfig {
@@ -34,8 +39,17 @@ public class CatalogConfig {
   @Autowired
   private ExternalConfiguration configuration;
 
+  @Autowired
+  private PlansConfiguration plansConfiguration;
+
+  @Bean
+  public H2oPlans h2oPlans() {
+    return new H2oPlans(plansConfiguration.getPlans().stream().map(this::toH2oPlan)
+        .collect(Collectors.toList()));
+  }
+
   @Bean
-  public Catalog catalog() {
+  public Catalog catalog(H2oPlans h2oPlans) {
     final String SERVICE_ID = configuration.getCfServiceId();
     final String SERVICE_NAME = configuration.getCfServiceName();
     final String DESCRIPTION = "A simple h2o broker";
@@ -46,18 +60,52 @@ public class CatalogConfig {
     final DashboardClient NO_DASHBOARD = null;
 
     return new Catalog(Arrays.asList(new ServiceDefinition(SERVICE_ID, SERVICE_NAME, DESCRIPTION,
-        BINDABLE, UPDATEABLE, getSharedPlans(), TAGS, getServiceDefinitionMetadata(),
+        BINDABLE, UPDATEABLE, getPlans(h2oPlans), TAGS, getServiceDefinitionMetadata(),
         Arrays.asList(SYSLOG_DRAIN), NO_DASHBOARD)));
   }
 
-  private List<Plan> getSharedPlans() {
-    final String ID = configuration.getCfBaseId() + "-shared-plan";
-    final String NAME = "shared";
-    final String DESCRIPTION = "This is a default h2o plan.";
-    final Map<String, Object> NO_METADATA = null;
-    final boolean FREE_PLAN = true;
+  private List<Plan> getPlans(H2oPlans h2oPlans) {
+    return plansConfiguration.getPlans().stream().map(plan -> {
+      H2oPlan h2oPlan = h2oPlans.get(getPlanId(plan));
+      return new Plan(h2oPlan.getId(), h2oPlan.getName(), h2oPlan.getDescription(),
+          getPlanMetadata(h2oPlan), plan.isFree());
+    }).collect(Collectors.toList());
+  }
+
+  private Map<String, Object> getPlanMetadata(H2oPlan plan) {
+    final String BULLETS_KEY = "bullets";
+    List<String> bullets = new ArrayList<>();
+    bullets.add(plan.getNodes() + " x " + plan.getMemory() + " h2o nodes");
+    if (!plan.getMaxNodes().equals(plan.getNodes())
+        || !plan.getMaxMemory().equals(plan.getMemory())) {
+      bullets.add("Up to " + plan.getMaxNodes() + " x " + plan.getMaxMemory()
+          + " h2o nodes with 'nodes' and 'memory' parameters");
+    }
+    if (plan.getIdleTimeout() > 0) {
+      bullets.add("Stopped after " + plan.getIdleTimeout() + " minutes without h2o jobs");
+    }
+    return ImmutableMap.of(BULLETS_KEY, bullets);
+  }
+
+  private String getPlanId(PlansConfiguration.Plan plan) {
+    // the shared plan keeps the id it had before plans were configurable
+    return configuration.getCfBaseId() + "-" + plan.getName() + "-plan";
+  }
 
-    return Lists.newArrayList(new Plan(ID, NAME, DESCRIPTION, NO_METADATA, FREE_PLAN));
+  private H2oPlan toH2oPlan(PlansConfiguration.Plan plan) {
+    String memory =
+        Optional.ofNullable(plan.getMemory()).orElse(configuration.getH2oMapperMemory());
+    String nodes =
+        Optional.ofNullable(plan.getNodes()).orElse(configuration.getH2oMapperNodes());
+    return new H2oPlan(getPlanId(plan), plan.getName(),
+        Optional.ofNullable(plan.getDescription()).orElse("H2o plan " + plan.getName() + "."),
+        memory, nodes,
+        Optional.ofNullable(plan.getQueue()).orElse(configuration.getH2oYarnQueue()),
+        Optional.ofNullable(plan.getPoolSize()).orElse(configuration.getWarmPoolSize()),
+        Optional.ofNullable(plan.getMaxMemory()).orElse(memory),
+        Optional.ofNullable(plan.getMaxNodes()).orElse(nodes),
+        ImmutableSet.copyOf(plan.getQueues()),
+        Optional.ofNullable(plan.getIdleTimeout()).orElse(configuration.getIdleTimeout()));
   }
 
   private Map<String, Object> getServiceDefinitionMetadata() {
@@ -14,39 +14,77 @@
 
 package org.trustedanalytics.servicebroker.h2o.config;
 
+import org.apache.curator.framework.CuratorFramework;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.trustedanalytics.cfbroker.store.api.BrokerStore;
-import org.trustedanalytics.cfbroker.store.serialization.JSONSerDeFactory;
 import org.trustedanalytics.cfbroker.store.serialization.RepositoryDeserializer;
 import org.trustedanalytics.cfbroker.store.serialization.RepositorySerializer;
-import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
-import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperStore;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperConnectionManager;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2o.store.CachingBrokerStore;
+import org.trustedanalytics.servicebroker.h2o.store.CompactSerDeFactory;
+import org.trustedanalytics.servicebroker.h2o.store.InstrumentedBrokerStore;
+import org.trustedanalytics.servicebroker.h2o.store.ZnodeLayout;
+import org.trustedanalytics.servicebroker.h2o.store.ZookeeperBrokerStore;
+import org.trustedanalytics.servicebroker.h2o.store.ZookeeperWriteBatcher;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 
-import java.io.IOException;
-
 @Configuration
 public class CredentialsStoreConfig {
 
   @Autowired
-  private ZookeeperClient credentialsZKClient;
+  private CuratorFramework curatorClient;
+
+  @Autowired
+  private ZookeeperConnectionManager zookeeperConnectionManager;
+
+  @Autowired
+  private MetricsRegistry metricsRegistry;
+
+  @Autowired
+  private ExternalConfiguration config;
 
   @Bean
   public BrokerStore<H2oCredentials> credentialsStore(
       RepositorySerializer<H2oCredentials> h2oSerializer,
-      RepositoryDeserializer<H2oCredentials> h2oDeserializer) throws IOException {
-    return new ZookeeperStore<>(credentialsZKClient, h2oSerializer, h2oDeserializer);
+      RepositoryDeserializer<H2oCredentials> h2oDeserializer,
+      ZookeeperWriteBatcher zookeeperWriteBatcher,
+      @Qualifier("credentialsZnodeLayout") ZnodeLayout credentialsZnodeLayout) {
+    BrokerStore<H2oCredentials> zookeeperStore = new InstrumentedBrokerStore<>(
+        new ZookeeperBrokerStore<>(curatorClient, config.getZookeeperCredentialsNode(),
+            credentialsZnodeLayout, h2oSerializer, h2oDeserializer, zookeeperWriteBatcher),
+        metricsRegistry, "credentialsStore");
+    CachingBrokerStore<H2oCredentials> store = new CachingBrokerStore<>(zookeeperStore,
+        curatorClient, config.getZookeeperCredentialsNode(), credentialsZnodeLayout,
+        config.getCredentialsCacheMaxSize(), config.getCredentialsCacheTtl());
+    zookeeperConnectionManager.addListener(store);
+
+    String[] labels = {"cache", "credentials"};
+    metricsRegistry.counter("h2o_broker_cache_hits_total", "Reads served from cache",
+        () -> store.getStats().hitCount(), labels);
+    metricsRegistry.counter("h2o_broker_cache_misses_total", "Reads not served from cache",
+        () -> store.getStats().missCount(), labels);
+    metricsRegistry.gauge("h2o_broker_cache_hit_ratio", "Ratio of reads served from cache",
+        () -> store.getStats().hitRate(), labels);
+    metricsRegistry.counter("h2o_broker_cache_invalidations_total",
+        "Cache entries invalidated by zookeeper watches or writes", store::getInvalidations,
+        labels);
+    metricsRegistry.gauge("h2o_broker_cache_size", "Entries in cache", store::getSize, labels);
+    return store;
   }
 
   @Bean
-  public RepositorySerializer<H2oCredentials> credentialsSerializer() {
-    return JSONSerDeFactory.getInstance().getSerializer();
+  public RepositorySerializer<H2oCredentials> credentialsSerializer(
+      CompactSerDeFactory serDeFactory) {
+    return serDeFactory.getSerializer();
   }
 
   @Bean
-  public RepositoryDeserializer<H2oCredentials> credentialsDeserializer() {
-    return JSONSerDeFactory.getInstance().getDeserializer(H2oCredentials.class);
+  public RepositoryDeserializer<H2oCredentials> credentialsDeserializer(
+      CompactSerDeFactory serDeFactory) {
+    return serDeFactory.getDeserializer(H2oCredentials.class);
   }
 }
@@ -39,6 +39,26 @@ public class ExternalConfiguration {
   @NotNull
   private String cfBaseId;
 
+  @Value("${replica.id}")
+  @NotNull
+  private String replicaId;
+
+  @Value("${locks.distributed}")
+  @NotNull
+  private boolean lockDistributed;
+
+  @Value("${locks.stripes}")
+  @NotNull
+  private int lockStripes;
+
+  @Value("${locks.timeout}")
+  @NotNull
+  private long lockTimeout;
+
+  @Value("${startup.deadline}")
+  @NotNull
+  private long startupDeadline;
+
   @Value("${zookeeper.metadataNode}")
   @NotNull
   private String zookeeperMetadataNode;
@@ -47,6 +67,74 @@ public class ExternalConfiguration {
   @NotNull
   private String zookeeperCredentialsNode;
 
+  @Value("${zookeeper.jobsNode}")
+  @NotNull
+  private String zookeeperJobsNode;
+
+  @Value("${zookeeper.leaderNode}")
+  @NotNull
+  private String zookeeperLeaderNode;
+
+  @Value("${zookeeper.claimsNode}")
+  @NotNull
+  private String zookeeperClaimsNode;
+
+  @Value("${zookeeper.locksNode}")
+  @NotNull
+  private String zookeeperLocksNode;
+
+  @Value("${zookeeper.poolNode}")
+  @NotNull
+  private String zookeeperPoolNode;
+
+  @Value("${zookeeper.retry.baseSleepTime}")
+  @NotNull
+  private int zookeeperRetryBaseSleepTime;
+
+  @Value("${zookeeper.retry.maxRetries}")
+  @NotNull
+  private int zookeeperRetryMaxRetries;
+
+  @Value("${zookeeper.connectionTimeout}")
+  @NotNull
+  private int zookeeperConnectionTimeout;
+
+  @Value("${zookeeper.serialization.format}")
+  @NotNull
+  private String zookeeperSerializationFormat;
+
+  @Value("${zookeeper.serialization.compressionThreshold}")
+  @NotNull
+  private int zookeeperSerializationCompressionThreshold;
+
+  @Value("${zookeeper.writeBatch.linger}")
+  @NotNull
+  private long zookeeperWriteBatchLinger;
+
+  @Value("${zookeeper.writeBatch.maxOps}")
+  @NotNull
+  private int zookeeperWriteBatchMaxOps;
+
+  @Value("${zookeeper.writeBatch.ack}")
+  @NotNull
+  private String zookeeperWriteBatchAck;
+
+  @Value("${zookeeper.layout.sharded}")
+  @NotNull
+  private boolean zookeeperShardedLayout;
+
+  @Value("${zookeeper.layout.migrationRetry}")
+  @NotNull
+  private long zookeeperLayoutMigrationRetry;
+
+  @Value("${zookeeper.credentialsCache.maxSize}")
+  @NotNull
+  private long credentialsCacheMaxSize;
+
+  @Value("${zookeeper.credentialsCache.ttl}")
+  @NotNull
+  private long credentialsCacheTtl;
+
   @Value("${h2o.provisioner.url}")
   @NotNull
   private String h2oProvisionerUrl;
@@ -59,6 +147,122 @@ public class ExternalConfiguration {
   @NotNull
   private String h2oMapperNodes;
 
+  @Value("${h2o.provisioner.queue}")
+  @NotNull
+  private String h2oYarnQueue;
+
+  @Value("${h2o.provisioner.workers}")
+  @NotNull
+  private int provisioningWorkers;
+
+  @Value("${h2o.provisioner.queueCapacity}")
+  @NotNull
+  private int provisioningQueueCapacity;
+
+  @Value("${h2o.provisioner.shutdownTimeout}")
+  @NotNull
+  private long provisioningShutdownTimeout;
+
+  @Value("${h2o.provisioner.batch.linger}")
+  @NotNull
+  private long provisioningBatchLinger;
+
+  @Value("${h2o.provisioner.batch.maxSize}")
+  @NotNull
+  private int provisioningBatchMaxSize;
+
+  @Value("${h2o.provisioner.pool.size}")
+  @NotNull
+  private int warmPoolSize;
+
+  @Value("${h2o.provisioner.pool.refillInterval}")
+  @NotNull
+  private long warmPoolRefillInterval;
+
+  @Value("${h2o.provisioner.retry.maxAttempts}")
+  @NotNull
+  private int provisioningRetryMaxAttempts;
+
+  @Value("${h2o.provisioner.retry.baseDelay}")
+  @NotNull
+  private long provisioningRetryBaseDelay;
+
+  @Value("${h2o.provisioner.retry.maxDelay}")
+  @NotNull
+  private long provisioningRetryMaxDelay;
+
+  @Value("${h2o.provisioner.reconciler.parallelism}")
+  @NotNull
+  private int reconcilerParallelism;
+
+  @Value("${h2o.provisioner.reconciler.interval}")
+  @NotNull
+  private long reconcilerInterval;
+
+  @Value("${h2o.provisioner.reaper.idleTimeout}")
+  @NotNull
+  private long idleTimeout;
+
+  @Value("${h2o.provisioner.reaper.interval}")
+  @NotNull
+  private long reaperInterval;
+
+  @Value("${h2o.provisioner.reaper.parallelism}")
+  @NotNull
+  private int reaperParallelism;
+
+  @Value("${h2o.provisioner.reaper.probeTimeout}")
+  @NotNull
+  private int reaperProbeTimeout;
+
+  @Value("${h2o.provisioner.http.maxConnections}")
+  @NotNull
+  private int provisionerHttpMaxConnections;
+
+  @Value("${h2o.provisioner.http.maxConnectionsPerRoute}")
+  @NotNull
+  private int provisionerHttpMaxConnectionsPerRoute;
+
+  @Value("${h2o.provisioner.http.connectTimeout}")
+  @NotNull
+  private int provisionerHttpConnectTimeout;
+
+  @Value("${h2o.provisioner.http.readTimeout}")
+  @NotNull
+  private int provisionerHttpReadTimeout;
+
+  @Value("${h2o.provisioner.http.poolTimeout}")
+  @NotNull
+  private int provisionerHttpPoolTimeout;
+
+  @Value("${h2o.provisioner.http.deadline}")
+  @NotNull
+  private long provisionerHttpDeadline;
+
+  @Value("${h2o.provisioner.circuit.failureThreshold}")
+  @NotNull
+  private int provisionerCircuitFailureThreshold;
+
+  @Value("${h2o.provisioner.circuit.openTime}")
+  @NotNull
+  private long provisionerCircuitOpenTime;
+
+  @Value("${h2o.provisioner.limit.initial}")
+  @NotNull
+  private int provisionerLimitInitial;
+
+  @Value("${h2o.provisioner.limit.min}")
+  @NotNull
+  private int provisionerLimitMin;
+
+  @Value("${h2o.provisioner.limit.max}")
+  @NotNull
+  private int provisionerLimitMax;
+
+  @Value("${h2o.provisioner.limit.latencyThreshold}")
+  @NotNull
+  private long provisionerLimitLatencyThreshold;
+
   @Value("${metadata.imageUrl}")
   @NotNull
   private String imageUrl;
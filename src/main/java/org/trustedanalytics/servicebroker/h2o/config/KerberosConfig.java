@@ -17,18 +17,22 @@ package org.trustedanalytics.servicebroker.h2o.config;
 import org.trustedanalytics.hadoop.config.ConfigurationHelper;
 import org.trustedanalytics.hadoop.config.ConfigurationHelperImpl;
 import org.trustedanalytics.hadoop.config.PropertyLocator;
+import org.trustedanalytics.servicebroker.h2o.helper.StartupPipeline;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 
+import javax.annotation.PostConstruct;
+
 @Configuration
-@Profile({"cloud", "default"})
+@Profile({"cloud", "default", "benchmark"})
 public class KerberosConfig {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(KerberosConfig.class);
@@ -36,17 +40,32 @@ public class KerberosConfig {
   
   private final ConfigurationHelper confHelper;
 
+  private StartupPipeline.Step<Boolean> kerberosDetectionStep;
+
+  @Autowired
+  private StartupPipeline startupPipeline;
+
   public KerberosConfig() {
     confHelper = ConfigurationHelperImpl.getInstance();
   }
 
   @VisibleForTesting
-  KerberosConfig(ConfigurationHelper confHelper) {
+  KerberosConfig(ConfigurationHelper confHelper, StartupPipeline startupPipeline) {
     this.confHelper = confHelper;
+    this.startupPipeline = startupPipeline;
+  }
+
+  @PostConstruct
+  public void postConstruct() {
+    kerberosDetectionStep = startupPipeline.submit("kerberos detection", this::detectKerberos);
   }
 
   @Bean
   public boolean isKerberosEnabled() {
+    return kerberosDetectionStep.get();
+  }
+
+  boolean detectKerberos() {
     String kdc = getProperty(PropertyLocator.KRB_KDC);
     String realm = getProperty(PropertyLocator.KRB_REALM);
     String user = getProperty(PropertyLocator.USER);
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.validation.constraints.NotNull;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Plans of the catalog, bound from the {@code h2o.plans} list. Sizes not given by a plan default
+ * to the ones of {@link ExternalConfiguration}.
+ */
+@Configuration
+@ConfigurationProperties(prefix = "h2o")
+@Getter
+@Setter
+public class PlansConfiguration {
+
+  @NotNull
+  private List<Plan> plans = new ArrayList<>();
+
+  @Getter
+  @Setter
+  public static class Plan {
+
+    @NotNull
+    private String name;
+
+    private String description;
+
+    private String memory;
+
+    private String nodes;
+
+    private String queue;
+
+    private Integer poolSize;
+
+    /**
+     * Limits of the memory and nodes instances of the plan can ask for in parameters, the plan's
+     * own size if not set.
+     */
+    private String maxMemory;
+
+    private String maxNodes;
+
+    /**
+     * YARN queues instances of the plan can ask for besides the plan's queue.
+     */
+    private List<String> queues = new ArrayList<>();
+
+    /**
+     * Minutes without h2o jobs after which clusters of the plan are stopped.
+     */
+    private Long idleTimeout;
+
+    private boolean free = true;
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.config;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.trustedanalytics.servicebroker.h2o.helper.LeaderElection;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperConnectionManager;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2o.service.InstanceLocks;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningClaims;
+
+@Configuration
+public class ReplicaConfig {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaConfig.class);
+
+  @Autowired
+  private CuratorFramework curatorClient;
+
+  @Autowired
+  private ZookeeperConnectionManager zookeeperConnectionManager;
+
+  @Autowired
+  private MetricsRegistry metricsRegistry;
+
+  @Autowired
+  private ExternalConfiguration config;
+
+  @Bean(initMethod = "start", destroyMethod = "close")
+  public LeaderElection leaderElection() {
+    LeaderElection election = new LeaderElection(curatorClient, config.getZookeeperLeaderNode(),
+        config.getReplicaId());
+    zookeeperConnectionManager.addListener(election);
+
+    metricsRegistry.gauge("h2o_broker_leader", "1 if this replica runs background work",
+        () -> election.isLeader() ? 1 : 0);
+    metricsRegistry.gauge("h2o_broker_replicas", "Broker replicas seen by the last election",
+        election::getParticipants);
+
+    if (!config.isLockDistributed()) {
+      election.addListener(new LeaderElection.Listener() {
+        @Override
+        public void onElected(int participants) {
+          if (participants > 1) {
+            LOGGER.warn(participants + " broker replicas run without distributed locks, set "
+                + "DISTRIBUTED_LOCKS=true so they never work on the same instance at once");
+          }
+        }
+
+        @Override
+        public void onRevoked() {
+        }
+      });
+    }
+    return election;
+  }
+
+  @Bean(initMethod = "start")
+  public ProvisioningClaims provisioningClaims() {
+    ProvisioningClaims claims = new ProvisioningClaims(curatorClient,
+        config.getZookeeperClaimsNode(), config.getReplicaId());
+    zookeeperConnectionManager.addListener(claims);
+
+    metricsRegistry.gauge("h2o_broker_provisioning_claims",
+        "Provisioning jobs claimed by this replica", claims::getHeld);
+    return claims;
+  }
+
+  @Bean(initMethod = "start")
+  public InstanceLocks instanceLocks() {
+    return new InstanceLocks(config.getLockStripes(), curatorClient,
+        config.getZookeeperLocksNode(), config.getReplicaId(), config.isLockDistributed(),
+        config.getLockTimeout(), metricsRegistry);
+  }
+}
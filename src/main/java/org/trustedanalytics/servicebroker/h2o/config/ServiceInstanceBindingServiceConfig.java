@@ -20,7 +20,10 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.trustedanalytics.cfbroker.store.api.BrokerStore;
 import org.trustedanalytics.cfbroker.store.impl.ServiceInstanceBindingServiceStore;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
 import org.trustedanalytics.servicebroker.h2o.service.H2oServiceInstanceBindingService;
+import org.trustedanalytics.servicebroker.h2o.service.InstanceLocks;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningStateStore;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 
 @Configuration
@@ -29,9 +32,11 @@ public class ServiceInstanceBindingServiceConfig {
   @Bean
   public ServiceInstanceBindingService getServiceInstanceBindingService(
       BrokerStore<CreateServiceInstanceBindingRequest> serviceBindingStore,
-      BrokerStore<H2oCredentials> credentialsStore) {
+      BrokerStore<H2oCredentials> credentialsStore, ProvisioningStateStore provisioningStateStore,
+      InstanceLocks instanceLocks, MetricsRegistry metricsRegistry) {
 
     return new H2oServiceInstanceBindingService(
-        new ServiceInstanceBindingServiceStore(serviceBindingStore), credentialsStore);
+        new ServiceInstanceBindingServiceStore(serviceBindingStore), credentialsStore,
+        provisioningStateStore, instanceLocks, metricsRegistry);
   }
 }
@@ -14,8 +14,12 @@
 
 package org.trustedanalytics.servicebroker.h2o.config;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
@@ -25,43 +29,269 @@ import org.trustedanalytics.cfbroker.store.impl.ServiceInstanceServiceStore;
 import org.trustedanalytics.hadoop.config.ConfigurationHelper;
 import org.trustedanalytics.hadoop.config.ConfigurationHelperImpl;
 import org.trustedanalytics.hadoop.config.ConfigurationLocator;
+import org.trustedanalytics.servicebroker.h2o.helper.LeaderElection;
+import org.trustedanalytics.servicebroker.h2o.helper.PooledHttpRequestFactory;
+import org.trustedanalytics.servicebroker.h2o.helper.StartupPipeline;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperConnectionManager;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2o.service.AdaptiveConcurrencyLimiter;
+import org.trustedanalytics.servicebroker.h2o.service.BatchingH2oProvisioner;
+import org.trustedanalytics.servicebroker.h2o.service.CircuitBreaker;
+import org.trustedanalytics.servicebroker.h2o.service.GuardedH2oProvisioner;
+import org.trustedanalytics.servicebroker.h2o.service.H2oActivityProbe;
+import org.trustedanalytics.servicebroker.h2o.service.H2oPlans;
 import org.trustedanalytics.servicebroker.h2o.service.H2oProvisioner;
 import org.trustedanalytics.servicebroker.h2o.service.H2oProvisionerClient;
 import org.trustedanalytics.servicebroker.h2o.service.H2oServiceInstanceService;
+import org.trustedanalytics.servicebroker.h2o.service.IdleClusterReaper;
+import org.trustedanalytics.servicebroker.h2o.service.InstanceLocks;
+import org.trustedanalytics.servicebroker.h2o.service.PooledH2oProvisioner;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningClaims;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningExecutor;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningReconciler;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningScheduler;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningStateStore;
+import org.trustedanalytics.servicebroker.h2o.service.RetryPolicy;
+import org.trustedanalytics.servicebroker.h2o.store.ZnodeLayout;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oProvisionerRestApi;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oProvisionerRestClient;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Configuration
 public class ServiceInstanceServiceConfig {
 
+  private StartupPipeline.Step<Map<String, String>> yarnConfStep;
+
+  @Autowired
+  private ExternalConfiguration config;
+
+  @Autowired
+  private StartupPipeline startupPipeline;
+
+  @PostConstruct
+  public void postConstruct() {
+    yarnConfStep = startupPipeline.submit("yarn configuration", this::getYarnConf);
+  }
+
   @Bean
   public ServiceInstanceService getServiceInstanceService(
-      BrokerStore<ServiceInstance> serviceInstanceStore, H2oProvisioner h2oProvisioner,
-      BrokerStore<H2oCredentials> credentialsStore) {
+      BrokerStore<ServiceInstance> serviceInstanceStore, PooledH2oProvisioner h2oProvisioner,
+      H2oPlans h2oPlans, BrokerStore<H2oCredentials> credentialsStore,
+      ProvisioningScheduler provisioningScheduler, ProvisioningStateStore provisioningStateStore,
+      InstanceLocks instanceLocks) {
     return new H2oServiceInstanceService(new ServiceInstanceServiceStore(serviceInstanceStore),
-        h2oProvisioner, credentialsStore);
+        h2oProvisioner, h2oPlans, credentialsStore, provisioningScheduler, provisioningStateStore,
+        instanceLocks);
   }
 
-  @Bean
-  public H2oProvisioner h2oProvisioner(ExternalConfiguration config,
-      H2oProvisionerRestApi h2oProvisionerRestApi, boolean isKerberosEnabled) throws IOException {
+  @Bean(initMethod = "start", destroyMethod = "shutdown")
+  public ProvisioningScheduler provisioningScheduler(PooledH2oProvisioner h2oProvisioner,
+      H2oPlans h2oPlans, BrokerStore<H2oCredentials> credentialsStore,
+      ProvisioningExecutor provisioningExecutor, ProvisioningStateStore provisioningStateStore,
+      ProvisioningClaims provisioningClaims, InstanceLocks instanceLocks,
+      MetricsRegistry metricsRegistry) {
+    ProvisioningScheduler scheduler = new ProvisioningScheduler(h2oProvisioner, h2oPlans,
+        credentialsStore, provisioningExecutor, provisioningStateStore, provisioningClaims,
+        instanceLocks,
+        new RetryPolicy(config.getProvisioningRetryMaxAttempts(),
+            config.getProvisioningRetryBaseDelay(), config.getProvisioningRetryMaxDelay()));
+
+    metricsRegistry.gauge("h2o_broker_provisioning_retries_scheduled",
+        "Provisioning jobs waiting for their next attempt", scheduler::getScheduledRetries);
+    metricsRegistry.counter("h2o_broker_provisioning_retries_total",
+        "Provisioning jobs resubmitted after a failed attempt", scheduler::getRetriedJobs);
+    metricsRegistry.counter("h2o_broker_provisioning_abandoned_total",
+        "Running provisioning jobs of deleted instances left to clean up after themselves",
+        scheduler::getAbandonedJobs);
+    return scheduler;
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public ProvisioningReconciler provisioningReconciler(CuratorFramework curatorClient,
+      H2oProvisioner h2oProvisioner, BrokerStore<H2oCredentials> credentialsStore,
+      ProvisioningScheduler provisioningScheduler, ProvisioningStateStore provisioningStateStore,
+      MetricsRegistry metricsRegistry,
+      @Qualifier("metadataZnodeLayout") ZnodeLayout metadataZnodeLayout,
+      @Qualifier("credentialsZnodeLayout") ZnodeLayout credentialsZnodeLayout,
+      LeaderElection leaderElection) {
+    ProvisioningReconciler reconciler = new ProvisioningReconciler(curatorClient,
+        config.getZookeeperMetadataNode(), metadataZnodeLayout,
+        config.getZookeeperCredentialsNode(), credentialsZnodeLayout, h2oProvisioner,
+        credentialsStore, provisioningScheduler, provisioningStateStore,
+        config.getReconcilerParallelism(), config.getReconcilerInterval());
+    // runs only while this replica leads
+    leaderElection.addListener(reconciler);
+
+    for (ProvisioningReconciler.Action action : ProvisioningReconciler.Action.values()) {
+      metricsRegistry.counter("h2o_broker_reconciler_repairs_total",
+          "H2o instances repaired after interrupted creation or removal",
+          () -> reconciler.getRepairs(action), "action", action.name().toLowerCase());
+    }
+    metricsRegistry.counter("h2o_broker_reconciler_runs_total", "Reconciliation runs",
+        reconciler::getRuns);
+    metricsRegistry.gauge("h2o_broker_reconciler_last_run_seconds",
+        "Time spent on repairs by the last reconciliation run",
+        () -> reconciler.getLastRunMillis() / 1000.0);
+    return reconciler;
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public IdleClusterReaper idleClusterReaper(H2oPlans h2oPlans,
+      ProvisioningStateStore provisioningStateStore, BrokerStore<H2oCredentials> credentialsStore,
+      H2oProvisioner h2oProvisioner, InstanceLocks instanceLocks,
+      @Qualifier("probeRequestFactory") PooledHttpRequestFactory probeRequestFactory,
+      MetricsRegistry metricsRegistry, LeaderElection leaderElection) {
+    IdleClusterReaper reaper = new IdleClusterReaper(h2oPlans, provisioningStateStore,
+        credentialsStore, h2oProvisioner, instanceLocks,
+        new H2oActivityProbe(new RestTemplate(probeRequestFactory)),
+        config.getReaperParallelism(), config.getReaperInterval());
+    // probes only while this replica leads
+    leaderElection.addListener(reaper);
+
+    for (IdleClusterReaper.Result result : IdleClusterReaper.Result.values()) {
+      metricsRegistry.counter("h2o_broker_idle_probes_total",
+          "Activity probes of h2o clusters by their outcome", () -> reaper.getProbes(result),
+          "result", result.name().toLowerCase());
+    }
+    metricsRegistry.counter("h2o_broker_idle_clusters_stopped_total",
+        "H2o clusters stopped after being idle for longer than the timeout of their plan",
+        reaper::getStoppedClusters);
+    return reaper;
+  }
+
+  @Bean(destroyMethod = "destroy")
+  public PooledHttpRequestFactory probeRequestFactory() {
+    // h2o clusters answer their job lists at once, so every timeout is the probe timeout
+    int timeout = config.getReaperProbeTimeout();
+    return new PooledHttpRequestFactory(config.getReaperParallelism(),
+        config.getReaperParallelism(), timeout, timeout, timeout, timeout);
+  }
+
+  @Bean(initMethod = "start")
+  public ProvisioningStateStore provisioningStateStore(CuratorFramework curatorClient,
+      ZookeeperConnectionManager zookeeperConnectionManager, ExternalConfiguration config) {
+    ProvisioningStateStore store =
+        new ProvisioningStateStore(curatorClient, config.getZookeeperJobsNode());
+    zookeeperConnectionManager.addListener(store);
+    return store;
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public ProvisioningExecutor provisioningExecutor(ExternalConfiguration config,
+      MetricsRegistry metricsRegistry) {
+    ProvisioningExecutor executor = new ProvisioningExecutor(config.getProvisioningWorkers(),
+        config.getProvisioningQueueCapacity(), config.getProvisioningShutdownTimeout());
 
-    return new H2oProvisionerClient(config.getH2oMapperMemory(), config.getH2oMapperNodes(),
-        isKerberosEnabled, getYarnConf(config), h2oProvisionerRestApi);
+    String jobs = "h2o_broker_provisioning_jobs";
+    String jobsTotal = "h2o_broker_provisioning_jobs_total";
+    metricsRegistry.gauge(jobs, "Provisioning jobs in flight", executor::getQueuedJobs,
+        "state", "queued");
+    metricsRegistry.gauge(jobs, "Provisioning jobs in flight", executor::getRunningJobs,
+        "state", "running");
+    metricsRegistry.counter(jobsTotal, "Provisioning jobs by outcome of submission",
+        executor::getCompletedJobs, "result", "completed");
+    metricsRegistry.counter(jobsTotal, "Provisioning jobs by outcome of submission",
+        executor::getRejectedJobs, "result", "rejected");
+    metricsRegistry.counter(jobsTotal, "Provisioning jobs by outcome of submission",
+        executor::getCancelledJobs, "result", "cancelled");
+    metricsRegistry.counter("h2o_broker_provisioning_queue_wait_seconds_total",
+        "Time provisioning jobs spent waiting for a worker",
+        () -> executor.getTotalQueueWaitMillis() / 1000.0);
+    return executor;
   }
 
-  private Map<String, String> getYarnConf(ExternalConfiguration config) throws IOException {
+  /**
+   * Runs members of provisioning batches. Batch members are callers of provisioning workers, so
+   * they never outnumber the workers; threads are started only once batching is used.
+   */
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService provisioningBatchExecutor() {
+    return Executors.newFixedThreadPool(config.getProvisioningWorkers(), new ThreadFactoryBuilder()
+        .setNameFormat("h2o-provisioning-batch-%d").setDaemon(true).build());
+  }
+
+  @Bean(initMethod = "start", destroyMethod = "shutdown")
+  public PooledH2oProvisioner h2oProvisioner(H2oProvisionerRestApi h2oProvisionerRestApi,
+      boolean isKerberosEnabled, MetricsRegistry metricsRegistry, CuratorFramework curatorClient,
+      LeaderElection leaderElection, H2oPlans h2oPlans,
+      ExecutorService provisioningBatchExecutor, ProvisioningClaims provisioningClaims) {
+    PooledH2oProvisioner provisioner = new PooledH2oProvisioner(
+        createProvisioner(h2oProvisionerRestApi, isKerberosEnabled, metricsRegistry,
+            provisioningBatchExecutor),
+        curatorClient, provisioningClaims, config.getZookeeperPoolNode(), h2oPlans,
+        config.getWarmPoolRefillInterval());
+    // refilled only while this replica leads
+    leaderElection.addListener(provisioner);
+
+    String clusters = "h2o_broker_warm_pool_clusters";
+    metricsRegistry.gauge(clusters, "H2o clusters in the warm pool",
+        provisioner::getIdleClusters, "state", "idle");
+    metricsRegistry.gauge(clusters, "H2o clusters in the warm pool",
+        provisioner::getSpawningClusters, "state", "starting");
+    String requests = "h2o_broker_warm_pool_requests_total";
+    metricsRegistry.counter(requests, "Service instances served from the warm pool",
+        provisioner::getHits, "result", "hit");
+    metricsRegistry.counter(requests, "Service instances served from the warm pool",
+        provisioner::getMisses, "result", "miss");
+    metricsRegistry.counter("h2o_broker_warm_pool_spawn_failures_total",
+        "H2o clusters which failed to start for the warm pool", provisioner::getSpawnFailures);
+    return provisioner;
+  }
+
+  private H2oProvisioner createProvisioner(H2oProvisionerRestApi h2oProvisionerRestApi,
+      boolean isKerberosEnabled, MetricsRegistry metricsRegistry, Executor batchExecutor) {
+    H2oProvisioner provisioner = new GuardedH2oProvisioner(
+        new H2oProvisionerClient(isKerberosEnabled, yarnConfStep.get(), h2oProvisionerRestApi,
+            metricsRegistry),
+        new CircuitBreaker("h2o-provisioner", config.getProvisionerCircuitFailureThreshold(),
+            config.getProvisionerCircuitOpenTime()),
+        new AdaptiveConcurrencyLimiter(config.getProvisionerLimitInitial(),
+            config.getProvisionerLimitMin(), config.getProvisionerLimitMax(),
+            config.getProvisionerLimitLatencyThreshold()),
+        metricsRegistry);
+    if (config.getProvisioningBatchLinger() > 0) {
+      return new BatchingH2oProvisioner(provisioner, config.getProvisioningBatchLinger(),
+          config.getProvisioningBatchMaxSize(), batchExecutor);
+    }
+    return provisioner;
+  }
+
+  private Map<String, String> getYarnConf() throws IOException {
     ConfigurationHelper confHelper = ConfigurationHelperImpl.getInstance();
     return confHelper.getConfigurationFromJson(config.getYarnConfig(), ConfigurationLocator.HADOOP);
   }
 
   @Bean
   @Profile({"cloud", "default"})
-  public H2oProvisionerRestApi h2oProvisionerRestApi(ExternalConfiguration config) {
-    return new H2oProvisionerRestClient(config.getH2oProvisionerUrl(), new RestTemplate());
+  public H2oProvisionerRestApi h2oProvisionerRestApi(
+      @Qualifier("provisionerRequestFactory") PooledHttpRequestFactory provisionerRequestFactory) {
+    return new H2oProvisionerRestClient(config.getH2oProvisionerUrl(),
+        new RestTemplate(provisionerRequestFactory));
+  }
+
+  @Bean(destroyMethod = "destroy")
+  @Profile({"cloud", "default"})
+  public PooledHttpRequestFactory provisionerRequestFactory(MetricsRegistry metricsRegistry) {
+    PooledHttpRequestFactory requestFactory =
+        new PooledHttpRequestFactory(config.getProvisionerHttpMaxConnections(),
+            config.getProvisionerHttpMaxConnectionsPerRoute(),
+            config.getProvisionerHttpConnectTimeout(), config.getProvisionerHttpReadTimeout(),
+            config.getProvisionerHttpPoolTimeout(), config.getProvisionerHttpDeadline());
+
+    String connections = "h2o_broker_provisioner_http_connections";
+    metricsRegistry.gauge(connections, "Connections to h2o-provisioner",
+        () -> requestFactory.getPoolStats().getLeased(), "state", "leased");
+    metricsRegistry.gauge(connections, "Connections to h2o-provisioner",
+        () -> requestFactory.getPoolStats().getAvailable(), "state", "idle");
+    metricsRegistry.gauge(connections, "Connections to h2o-provisioner",
+        () -> requestFactory.getPoolStats().getPending(), "state", "pending");
+    return requestFactory;
   }
 }
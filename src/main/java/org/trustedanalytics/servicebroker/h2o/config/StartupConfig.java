@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.trustedanalytics.servicebroker.h2o.helper.StartupPipeline;
+
+@Configuration
+public class StartupConfig {
+
+  private StartupPipeline startupPipeline;
+
+  @Bean(destroyMethod = "close")
+  public StartupPipeline startupPipeline(ExternalConfiguration config) {
+    startupPipeline = new StartupPipeline(config.getStartupDeadline());
+    return startupPipeline;
+  }
+
+  @EventListener(ContextRefreshedEvent.class)
+  public void onContextRefreshed() {
+    startupPipeline.finish();
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.config;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.trustedanalytics.servicebroker.h2o.helper.LeaderElection;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2o.store.FlatZnodeLayout;
+import org.trustedanalytics.servicebroker.h2o.store.ShardedZnodeLayout;
+import org.trustedanalytics.servicebroker.h2o.store.ZnodeLayout;
+import org.trustedanalytics.servicebroker.h2o.store.ZnodeLayoutMigration;
+
+@Configuration
+public class ZnodeLayoutConfig {
+
+  @Autowired
+  private CuratorFramework curatorClient;
+
+  @Autowired
+  private MetricsRegistry metricsRegistry;
+
+  @Autowired
+  private ExternalConfiguration config;
+
+  @Bean
+  public ZnodeLayout metadataZnodeLayout() {
+    return createLayout();
+  }
+
+  @Bean
+  public ZnodeLayout credentialsZnodeLayout() {
+    return createLayout();
+  }
+
+  @Bean(initMethod = "start", destroyMethod = "close")
+  @ConditionalOnProperty(name = "zookeeper.layout.sharded", havingValue = "true")
+  public ZnodeLayoutMigration metadataLayoutMigration(
+      @Qualifier("metadataZnodeLayout") ZnodeLayout layout, LeaderElection leaderElection) {
+    return createMigration(config.getZookeeperMetadataNode(), layout, "metadata",
+        leaderElection);
+  }
+
+  @Bean(initMethod = "start", destroyMethod = "close")
+  @ConditionalOnProperty(name = "zookeeper.layout.sharded", havingValue = "true")
+  public ZnodeLayoutMigration credentialsLayoutMigration(
+      @Qualifier("credentialsZnodeLayout") ZnodeLayout layout, LeaderElection leaderElection) {
+    return createMigration(config.getZookeeperCredentialsNode(), layout, "credentials",
+        leaderElection);
+  }
+
+  private ZnodeLayout createLayout() {
+    return config.isZookeeperShardedLayout() ? new ShardedZnodeLayout() : new FlatZnodeLayout();
+  }
+
+  private ZnodeLayoutMigration createMigration(String rootNode, ZnodeLayout layout,
+      String node, LeaderElection leaderElection) {
+    ZnodeLayoutMigration migration = new ZnodeLayoutMigration(curatorClient, rootNode,
+        (ShardedZnodeLayout) layout, config.getZookeeperLayoutMigrationRetry());
+    // only the leader moves entries, other replicas wait for it to finish
+    leaderElection.addListener(migration);
+    metricsRegistry.counter("h2o_broker_znode_layout_migrated_total",
+        "Entries moved from the flat to the sharded znode layout", migration::getMoved,
+        "node", node);
+    return migration;
+  }
+}
@@ -14,17 +14,18 @@
 
 package org.trustedanalytics.servicebroker.h2o.config;
 
+import org.apache.curator.framework.CuratorFramework;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
-import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
-import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClientBuilder;
 import org.trustedanalytics.hadoop.config.ConfigurationHelper;
 import org.trustedanalytics.hadoop.config.ConfigurationHelperImpl;
 import org.trustedanalytics.hadoop.config.PropertyLocator;
+import org.trustedanalytics.servicebroker.h2o.helper.StartupPipeline;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperConnectionManager;
 import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperNodeOperations;
 
 import javax.annotation.PostConstruct;
@@ -32,7 +33,7 @@ import java.io.IOException;
 import java.util.NoSuchElementException;
 
 @Configuration
-@Profile({"cloud", "default"})
+@Profile({"cloud", "default", "benchmark"})
 public class ZookeeperConfig {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ZookeeperConfig.class);
@@ -44,11 +45,20 @@ public class ZookeeperConfig {
   private String zkBrokerNode;
   private String zkCredentialsNode;
 
+  // replaced only by the benchmark profile, which has no VCAP_SERVICES to read from
+  @Autowired(required = false)
   private ConfigurationHelper confHelper = ConfigurationHelperImpl.getInstance();
 
+  private StartupPipeline.Step<ZookeeperConnectionManager> connectionStep;
+  private StartupPipeline.Step<String> brokerNodeStep;
+  private StartupPipeline.Step<String> credentialsNodeStep;
+
   @Autowired
   private ExternalConfiguration config;
 
+  @Autowired
+  private StartupPipeline startupPipeline;
+
   @PostConstruct
   public void postConstruct() throws IOException {
     zkUri = getPropertyFromCredentials(PropertyLocator.ZOOKEPER_URI);
@@ -57,33 +67,43 @@ public class ZookeeperConfig {
     zkBaseNode = getPropertyFromCredentials(PropertyLocator.ZOOKEPER_ZNODE);
     zkBrokerNode = config.getZookeeperMetadataNode();
     zkCredentialsNode = config.getZookeeperCredentialsNode();
+
+    // sessions are opened in background, beans below only wait for them
+    connectionStep = startupPipeline.submit("zookeeper connection", this::connect);
+    brokerNodeStep = startupPipeline.submit("zookeeper metadata node",
+        () -> createNode(connectionStep.get(), zkBrokerNode));
+    credentialsNodeStep = startupPipeline.submit("zookeeper credentials node",
+        () -> createNode(connectionStep.get(), zkCredentialsNode));
   }
 
-  @Bean
-  public ZookeeperClient brokerZKClient() throws Exception {
-    LOGGER.info("Creating zkClient with zkUri='{}' zkNode='{}'", zkUri, zkBrokerNode);
-    return getZookeeperClient(zkBrokerNode);
+  @Bean(destroyMethod = "close")
+  public ZookeeperConnectionManager zookeeperConnectionManager() {
+    return connectionStep.get();
   }
 
   @Bean
-  public ZookeeperClient credentialsZKClient() throws Exception {
-    LOGGER.info("Creating zkClient with zkUri='{}' zkNode='{}'", zkUri, zkCredentialsNode);
-    return getZookeeperClient(zkCredentialsNode);
+  public CuratorFramework curatorClient(ZookeeperConnectionManager zookeeperConnectionManager) {
+    // stores and the reconciler expect their root nodes to exist
+    brokerNodeStep.get();
+    credentialsNodeStep.get();
+    return zookeeperConnectionManager.getClient(zkBaseNode);
   }
 
-  private ZookeeperClient getZookeeperClient(String node) throws Exception {
-    String absoluteNode = zkBaseNode + node;
-    createIfNotExist(zkUri, absoluteNode);
-    ZookeeperClient zkClient =
-        new ZookeeperClientBuilder(zkUri, zkUser, zkPass, absoluteNode).build();
-    zkClient.init();
-    return zkClient;
+  private ZookeeperConnectionManager connect() throws InterruptedException {
+    LOGGER.info("Creating shared zookeeper session with zkUri='{}'", zkUri);
+    ZookeeperConnectionManager connectionManager = new ZookeeperConnectionManager(zkUri, zkUser,
+        zkPass, config.getZookeeperRetryBaseSleepTime(), config.getZookeeperRetryMaxRetries(),
+        config.getZookeeperConnectionTimeout());
+    connectionManager.start();
+    return connectionManager;
   }
 
-  private void createIfNotExist(String zkUri, String absoluteNode) throws Exception {
-    if (!ZookeeperNodeOperations.checkExists(zkUri, absoluteNode)) {
-      ZookeeperNodeOperations.createNode(zkUri, absoluteNode);
-    }
+  private String createNode(ZookeeperConnectionManager connectionManager, String node)
+      throws Exception {
+    String absoluteNode = zkBaseNode + node;
+    LOGGER.info("Creating zkNode='{}' if it does not exist", absoluteNode);
+    ZookeeperNodeOperations.createIfNotExists(connectionManager.getClient(), absoluteNode);
+    return absoluteNode;
   }
 
   private String getPropertyFromCredentials(PropertyLocator property) throws IOException {
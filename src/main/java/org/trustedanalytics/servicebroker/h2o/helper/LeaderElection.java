@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.helper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Elects one broker replica to run background work. Every replica registers an ephemeral
+ * sequential znode below the election node and the one with the lowest sequence number leads;
+ * the others watch their predecessor only, so a leader change wakes up a single replica.
+ *
+ * <p>Leadership is given up as soon as the session is suspended, because the znode of this
+ * replica may expire meanwhile. Election and listeners run on a single dedicated thread, so
+ * listeners are notified one at a time and in order.
+ */
+public class LeaderElection implements ConnectionStateListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LeaderElection.class);
+
+  private static final String PREFIX = "replica-";
+  private static final int SEQUENCE_LENGTH = 10;
+
+  public interface Listener {
+
+    /**
+     * Called with the number of replicas taking part in the election, this one included.
+     */
+    void onElected(int participants);
+
+    void onRevoked();
+  }
+
+  private final CuratorFramework zkClient;
+  private final String electionNode;
+  private final String replicaId;
+  private final List<Listener> listeners = new ArrayList<>();
+  private final ExecutorService executor;
+  private final CuratorWatcher predecessorWatcher = event -> {
+    if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+      elect();
+    }
+  };
+
+  private volatile String ownNode;
+  private volatile boolean leader;
+  private volatile int participants;
+  private volatile boolean closed;
+
+  public LeaderElection(CuratorFramework zkClient, String electionNode, String replicaId) {
+    this.zkClient = zkClient;
+    this.electionNode = electionNode;
+    this.replicaId = replicaId;
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("leader-election-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Registers listener, which is notified at once if this replica already leads.
+   */
+  public void addListener(Listener listener) {
+    executor.execute(() -> {
+      listeners.add(listener);
+      if (leader) {
+        listener.onElected(participants);
+      }
+    });
+  }
+
+  public void start() {
+    elect();
+  }
+
+  public void close() {
+    closed = true;
+    executor.execute(() -> {
+      setLeader(false);
+      String node = ownNode;
+      ownNode = null;
+      if (node != null) {
+        try {
+          zkClient.delete().forPath(node);
+        } catch (Exception e) {
+          LOGGER.debug("Unable to remove election znode '" + node + "', left to expire", e);
+        }
+      }
+    });
+    executor.shutdown();
+  }
+
+  public boolean isLeader() {
+    return leader;
+  }
+
+  /**
+   * Returns the number of replicas seen by the last election, this one included.
+   */
+  public int getParticipants() {
+    return participants;
+  }
+
+  public String getReplicaId() {
+    return replicaId;
+  }
+
+  @Override
+  public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    if (closed) {
+      return;
+    }
+    if (newState == ConnectionState.SUSPENDED || newState == ConnectionState.LOST) {
+      executor.execute(() -> setLeader(false));
+    } else if (newState == ConnectionState.RECONNECTED) {
+      elect();
+    }
+  }
+
+  private void elect() {
+    if (!closed) {
+      executor.execute(this::electSafely);
+    }
+  }
+
+  private void electSafely() {
+    try {
+      if (ownNode == null || zkClient.checkExists().forPath(ownNode) == null) {
+        ZookeeperNodeOperations.createIfNotExists(zkClient, electionNode);
+        // protection lets a create retried after connection loss find the znode it made
+        ownNode = zkClient.create().withProtection().withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+            .forPath(ZKPaths.makePath(electionNode, PREFIX),
+                replicaId.getBytes(StandardCharsets.UTF_8));
+      }
+      List<String> children = zkClient.getChildren().forPath(electionNode);
+      children.sort(Comparator.comparing(LeaderElection::getSequence));
+      participants = children.size();
+      int position = children.indexOf(ZKPaths.getNodeFromPath(ownNode));
+      if (position == 0) {
+        setLeader(true);
+        return;
+      }
+      setLeader(false);
+      if (position < 0) {
+        ownNode = null;
+        elect();
+        return;
+      }
+      String predecessor = ZKPaths.makePath(electionNode, children.get(position - 1));
+      if (zkClient.checkExists().usingWatcher(predecessorWatcher).forPath(predecessor) == null) {
+        elect();
+      }
+    } catch (KeeperException.NoNodeException e) {
+      elect();
+    } catch (Exception e) {
+      // retried on reconnection
+      LOGGER.error("Leader election of replica '" + replicaId + "' failed", e);
+      setLeader(false);
+    }
+  }
+
+  private void setLeader(boolean newLeader) {
+    if (leader == newLeader) {
+      return;
+    }
+    leader = newLeader;
+    LOGGER.info("Replica '" + replicaId + "' " + (newLeader ? "elected" : "no longer")
+        + " leader of " + participants + " replicas");
+    for (Listener listener : listeners) {
+      try {
+        if (newLeader) {
+          listener.onElected(participants);
+        } else {
+          listener.onRevoked();
+        }
+      } catch (RuntimeException e) {
+        LOGGER.error("Leadership listener failed", e);
+      }
+    }
+  }
+
+  private static String getSequence(String node) {
+    return node.substring(Math.max(0, node.length() - SEQUENCE_LENGTH));
+  }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.helper;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request factory backed by a pool of keep-alive connections. Besides connect, read and pool
+ * wait timeouts every request has an overall deadline, after which it is aborted even if the
+ * server keeps sending data. The deadline is cancelled as soon as the response is closed, so
+ * finished requests do not stay queued until it passes.
+ */
+public class PooledHttpRequestFactory extends HttpComponentsClientHttpRequestFactory {
+
+  private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 30;
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final long deadlineMillis;
+  private final ScheduledThreadPoolExecutor aborter = new ScheduledThreadPoolExecutor(1,
+      new ThreadFactoryBuilder().setNameFormat("http-deadline-%d").setDaemon(true).build());
+  // request built by the current thread, handed from postProcessHttpRequest to createRequest
+  private final ThreadLocal<HttpUriRequest> createdRequest = new ThreadLocal<>();
+
+  public PooledHttpRequestFactory(int maxConnections, int maxConnectionsPerRoute,
+      int connectTimeoutMillis, int readTimeoutMillis, int poolTimeoutMillis,
+      long deadlineMillis) {
+    this(createConnectionManager(maxConnections, maxConnectionsPerRoute), connectTimeoutMillis,
+        readTimeoutMillis, poolTimeoutMillis, deadlineMillis);
+  }
+
+  private PooledHttpRequestFactory(PoolingHttpClientConnectionManager connectionManager,
+      int connectTimeoutMillis, int readTimeoutMillis, int poolTimeoutMillis,
+      long deadlineMillis) {
+    super(HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(connectTimeoutMillis)
+            .setSocketTimeout(readTimeoutMillis)
+            .setConnectionRequestTimeout(poolTimeoutMillis)
+            .build())
+        .evictExpiredConnections()
+        .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        .build());
+    this.connectionManager = connectionManager;
+    this.deadlineMillis = deadlineMillis;
+    aborter.setRemoveOnCancelPolicy(true);
+  }
+
+  public PoolStats getPoolStats() {
+    return connectionManager.getTotalStats();
+  }
+
+  /**
+   * Returns the number of requests whose deadline is still pending.
+   */
+  @VisibleForTesting
+  int getPendingDeadlines() {
+    return aborter.getQueue().size();
+  }
+
+  @Override
+  public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+    try {
+      ClientHttpRequest request = super.createRequest(uri, httpMethod);
+      return new DeadlineRequest(request, createdRequest.get());
+    } finally {
+      createdRequest.remove();
+    }
+  }
+
+  @Override
+  protected void postProcessHttpRequest(HttpUriRequest request) {
+    createdRequest.set(request);
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    aborter.shutdownNow();
+    super.destroy();
+  }
+
+  private static PoolingHttpClientConnectionManager createConnectionManager(int maxConnections,
+      int maxConnectionsPerRoute) {
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    return connectionManager;
+  }
+
+  private final class DeadlineRequest implements ClientHttpRequest {
+
+    private final ClientHttpRequest delegate;
+    private final HttpUriRequest httpRequest;
+
+    private DeadlineRequest(ClientHttpRequest delegate, HttpUriRequest httpRequest) {
+      this.delegate = delegate;
+      this.httpRequest = httpRequest;
+    }
+
+    @Override
+    public ClientHttpResponse execute() throws IOException {
+      ScheduledFuture<?> deadline =
+          aborter.schedule(httpRequest::abort, deadlineMillis, TimeUnit.MILLISECONDS);
+      try {
+        return new DeadlineResponse(delegate.execute(), deadline);
+      } catch (IOException | RuntimeException e) {
+        deadline.cancel(false);
+        throw e;
+      }
+    }
+
+    @Override
+    public OutputStream getBody() throws IOException {
+      return delegate.getBody();
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+      return delegate.getHeaders();
+    }
+
+    @Override
+    public HttpMethod getMethod() {
+      return delegate.getMethod();
+    }
+
+    @Override
+    public URI getURI() {
+      return delegate.getURI();
+    }
+  }
+
+  private static final class DeadlineResponse implements ClientHttpResponse {
+
+    private final ClientHttpResponse delegate;
+    private final ScheduledFuture<?> deadline;
+
+    private DeadlineResponse(ClientHttpResponse delegate, ScheduledFuture<?> deadline) {
+      this.delegate = delegate;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public HttpStatus getStatusCode() throws IOException {
+      return delegate.getStatusCode();
+    }
+
+    @Override
+    public int getRawStatusCode() throws IOException {
+      return delegate.getRawStatusCode();
+    }
+
+    @Override
+    public String getStatusText() throws IOException {
+      return delegate.getStatusText();
+    }
+
+    @Override
+    public InputStream getBody() throws IOException {
+      return delegate.getBody();
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+      return delegate.getHeaders();
+    }
+
+    @Override
+    public void close() {
+      deadline.cancel(false);
+      delegate.close();
+    }
+  }
+}
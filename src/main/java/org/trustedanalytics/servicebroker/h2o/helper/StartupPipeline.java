@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.helper;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs independent startup steps (connecting to zookeeper, parsing configuration, ...)
+ * concurrently. Step results are awaited within one overall deadline counted from the creation
+ * of the pipeline. The first failing step aborts all the others, so broken configuration is
+ * reported immediately instead of after the deadline.
+ */
+public class StartupPipeline {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StartupPipeline.class);
+
+  private final long deadlineSeconds;
+  private final long startNanos;
+  private final long deadlineNanos;
+  private final ExecutorService executor;
+  private final List<Step<?>> steps = new CopyOnWriteArrayList<>();
+  private final Map<String, Long> stepMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+
+  public StartupPipeline(long deadlineSeconds) {
+    this.deadlineSeconds = deadlineSeconds;
+    this.startNanos = System.nanoTime();
+    this.deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(deadlineSeconds);
+    this.executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("startup-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Starts given step in background. Steps may wait for results of other steps.
+   */
+  public <T> Step<T> submit(String name, Callable<T> task) {
+    Step<T> step = new Step<>(name);
+    steps.add(step);
+    executor.execute(() -> step.run(task));
+    return step;
+  }
+
+  /**
+   * Waits for all submitted steps and releases the pipeline threads.
+   */
+  public void finish() {
+    steps.forEach(Step::get);
+    executor.shutdown();
+    LOGGER.info("Startup steps finished in " + elapsedMillis(startNanos) + " ms: " + stepMillis);
+  }
+
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns execution times of finished steps in milliseconds.
+   */
+  public Map<String, Long> getStepMillis() {
+    synchronized (stepMillis) {
+      return new LinkedHashMap<>(stepMillis);
+    }
+  }
+
+  private void abort(String failedStep) {
+    steps.forEach(step -> step.future.completeExceptionally(
+        new CancellationException("Startup aborted, because step '" + failedStep + "' failed")));
+    executor.shutdownNow();
+  }
+
+  private static long elapsedMillis(long sinceNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sinceNanos);
+  }
+
+  public final class Step<T> {
+
+    private final String name;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    private Step(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Blocks until the step is finished, at most until the pipeline deadline.
+     *
+     * @throws IllegalStateException when the step failed, was aborted or missed the deadline
+     */
+    public T get() {
+      try {
+        return future.get(Math.max(deadlineNanos - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Startup step '" + name + "' failed", e.getCause());
+      } catch (TimeoutException e) {
+        abort(name);
+        throw new IllegalStateException(
+            "Startup step '" + name + "' not finished within " + deadlineSeconds + "s", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted waiting for startup step '" + name + "'", e);
+      }
+    }
+
+    private void run(Callable<T> task) {
+      long stepStartNanos = System.nanoTime();
+      try {
+        T result = task.call();
+        long millis = elapsedMillis(stepStartNanos);
+        stepMillis.put(name, millis);
+        LOGGER.info("Startup step '" + name + "' finished in " + millis + " ms");
+        future.complete(result);
+      } catch (Exception e) {
+        LOGGER.error("Startup step '" + name + "' failed after " + elapsedMillis(stepStartNanos)
+            + " ms", e);
+        future.completeExceptionally(e);
+        abort(name);
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.helper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.ACLProvider;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the single, long-lived zookeeper session of the broker. Node operations, job states and
+ * cache watches share it (optionally through a namespaced view) instead of opening sessions of
+ * their own.
+ */
+public class ZookeeperConnectionManager {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ZookeeperConnectionManager.class);
+
+  private final CuratorFramework client;
+  private final int connectionTimeoutSeconds;
+
+  public ZookeeperConnectionManager(String connectionString, String user, String password,
+      int baseSleepTimeMs, int maxRetries, int connectionTimeoutSeconds) {
+    CuratorFrameworkFactory.Builder builder = CuratorFrameworkFactory.builder()
+        .connectString(connectionString)
+        .retryPolicy(new ExponentialBackoffRetry(baseSleepTimeMs, maxRetries));
+    if (user != null && password != null) {
+      // nodes hold h2o passwords, so only the broker's identity may access what it creates
+      builder.authorization("digest", (user + ":" + password).getBytes(StandardCharsets.UTF_8))
+          .aclProvider(new CreatorAclProvider());
+    }
+    this.client = builder.build();
+    this.connectionTimeoutSeconds = connectionTimeoutSeconds;
+    this.client.getConnectionStateListenable().addListener(
+        (c, state) -> LOGGER.info("Zookeeper connection state changed to " + state));
+  }
+
+  public void start() throws InterruptedException {
+    client.start();
+    if (!client.blockUntilConnected(connectionTimeoutSeconds, TimeUnit.SECONDS)) {
+      client.close();
+      throw new IllegalStateException(
+          "Unable to connect to zookeeper within " + connectionTimeoutSeconds + "s");
+    }
+  }
+
+  public void close() {
+    client.close();
+  }
+
+  public CuratorFramework getClient() {
+    return client;
+  }
+
+  /**
+   * Returns a view of the shared client with all paths relative to given node.
+   */
+  public CuratorFramework getClient(String baseNode) {
+    String namespace = baseNode.replaceAll("^/+|/+$", "");
+    return client.usingNamespace(namespace.isEmpty() ? null : namespace);
+  }
+
+  /**
+   * Registers listener notified when the session is suspended, lost or reconnected. Listeners
+   * relying on watches should re-register them after {@link ConnectionState#RECONNECTED}.
+   */
+  public void addListener(ConnectionStateListener listener) {
+    client.getConnectionStateListenable().addListener(listener);
+  }
+
+  private static class CreatorAclProvider implements ACLProvider {
+
+    @Override
+    public List<ACL> getDefaultAcl() {
+      return ZooDefs.Ids.CREATOR_ALL_ACL;
+    }
+
+    @Override
+    public List<ACL> getAclForPath(String path) {
+      return ZooDefs.Ids.CREATOR_ALL_ACL;
+    }
+  }
+}
@@ -14,41 +14,30 @@
 
 package org.trustedanalytics.servicebroker.h2o.helper;
 
-import com.google.common.annotations.VisibleForTesting;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
-import org.apache.curator.retry.RetryOneTime;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 
 public class ZookeeperNodeOperations {
 
   private ZookeeperNodeOperations() {}
 
-  @VisibleForTesting
-  static CuratorFramework getNewTempClient(String connectionString) {
-    CuratorFramework tempClient = CuratorFrameworkFactory.builder().connectString(connectionString)
-        .retryPolicy(new RetryOneTime(100)).build();
-    tempClient.start();
-    return tempClient;
+  public static void createNode(CuratorFramework client, String path) throws Exception {
+    client.create().creatingParentsIfNeeded().forPath(path);
   }
 
-  public static void createNode(String connectionString, String path) throws Exception {
-
-    CuratorFramework tempClient = getNewTempClient(connectionString);
-
-    tempClient.create().creatingParentsIfNeeded().forPath(path);
-
-    tempClient.close();
+  public static boolean checkExists(CuratorFramework client, String path) throws Exception {
+    Stat stat = client.checkExists().forPath(path);
+    return stat != null;
   }
 
-  public static boolean checkExists(String connectionString, String path) throws Exception {
-
-    CuratorFramework tempClient = getNewTempClient(connectionString);
-
-    Stat stat = tempClient.checkExists().forPath(path);
-
-    tempClient.close();
-
-    return stat != null;
+  public static void createIfNotExists(CuratorFramework client, String path) throws Exception {
+    if (!checkExists(client, path)) {
+      try {
+        createNode(client, path);
+      } catch (KeeperException.NodeExistsException e) {
+        // created in the meantime by another broker instance
+      }
+    }
   }
 }
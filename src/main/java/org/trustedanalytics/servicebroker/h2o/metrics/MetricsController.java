@@ -0,0 +1,43 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+@RestController
+public class MetricsController {
+
+  static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final MetricsRegistry metricsRegistry;
+
+  @Autowired
+  public MetricsController(MetricsRegistry metricsRegistry) {
+    this.metricsRegistry = metricsRegistry;
+  }
+
+  @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = PROMETHEUS_TEXT)
+  public String metrics() throws IOException {
+    StringWriter writer = new StringWriter();
+    metricsRegistry.write(writer);
+    return writer.toString();
+  }
+}
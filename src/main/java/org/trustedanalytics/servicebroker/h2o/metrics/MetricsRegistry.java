@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Counters, timers and gauges of the broker, exposed in Prometheus text format. Labels are given
+ * as name, value pairs. Asking twice for the same name and labels returns the same metric.
+ */
+public class MetricsRegistry {
+
+  private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+  public Counter counter(String name, String help, String... labels) {
+    return family(name, help, "counter").get(labels, Counter::new, Counter.class);
+  }
+
+  public Timer timer(String name, String help, String... labels) {
+    return family(name, help, "histogram").get(labels, Timer::new, Timer.class);
+  }
+
+  /**
+   * Registers counter maintained elsewhere, e.g. by an executor.
+   */
+  public void counter(String name, String help, Supplier<Number> value, String... labels) {
+    family(name, help, "counter").get(labels, () -> new Gauge(value), Gauge.class);
+  }
+
+  public void gauge(String name, String help, Supplier<Number> value, String... labels) {
+    family(name, help, "gauge").get(labels, () -> new Gauge(value), Gauge.class);
+  }
+
+  public void write(Writer writer) throws IOException {
+    for (Map.Entry<String, Family> family : families.entrySet()) {
+      family.getValue().write(writer, family.getKey());
+    }
+  }
+
+  static String braces(String labels) {
+    return labels.isEmpty() ? "" : "{" + labels + "}";
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(
+          "Metric '" + name + "' already registered as " + family.type);
+    }
+    return family;
+  }
+
+  private static String render(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels have to be given as name, value pairs");
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\")
+          .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return sb.toString();
+  }
+
+  private static final class Family {
+
+    private final String help;
+    private final String type;
+    private final ConcurrentMap<String, Metric> series = new ConcurrentHashMap<>();
+
+    private Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+
+    private <T extends Metric> T get(String[] labels, Supplier<T> factory, Class<T> clazz) {
+      return clazz.cast(series.computeIfAbsent(render(labels), l -> factory.get()));
+    }
+
+    private void write(Writer writer, String name) throws IOException {
+      writer.write("# HELP " + name + " " + help + "\n");
+      writer.write("# TYPE " + name + " " + type + "\n");
+      for (Map.Entry<String, Metric> metric : new ConcurrentSkipListMap<>(series).entrySet()) {
+        metric.getValue().write(writer, name, metric.getKey());
+      }
+    }
+  }
+
+  private static final class Gauge implements Metric {
+
+    private final Supplier<Number> value;
+
+    private Gauge(Supplier<Number> value) {
+      this.value = value;
+    }
+
+    @Override
+    public void write(Writer writer, String name, String labels) throws IOException {
+      writer.write(name + braces(labels) + " " + value.get() + "\n");
+    }
+  }
+}
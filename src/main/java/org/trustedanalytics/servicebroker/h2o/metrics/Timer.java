@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, from 1 ms (in-memory and zookeeper reads) up to
+ * 5 minutes (provisioning of h2o on yarn).
+ */
+public class Timer implements Metric {
+
+  private static final double[] BUCKET_SECONDS =
+      {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 120, 300};
+
+  private final LongAdder[] buckets = new LongAdder[BUCKET_SECONDS.length];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+
+  Timer() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    double seconds = nanos / 1e9;
+    for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+      if (seconds <= BUCKET_SECONDS[i]) {
+        buckets[i].increment();
+        break;
+      }
+    }
+    count.increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Records time elapsed since given {@link System#nanoTime()}.
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getTotalMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(sumNanos.sum());
+  }
+
+  @Override
+  public void write(Writer writer, String name, String labels) throws IOException {
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    long cumulative = 0;
+    for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+      cumulative += buckets[i].sum();
+      writer.write(name + "_bucket{" + prefix + "le=\"" + BUCKET_SECONDS[i] + "\"} "
+          + cumulative + "\n");
+    }
+    long total = count.sum();
+    writer.write(name + "_bucket{" + prefix + "le=\"+Inf\"} " + total + "\n");
+    writer.write(name + "_sum" + MetricsRegistry.braces(labels) + " " + sumNanos.sum() / 1e9
+        + "\n");
+    writer.write(name + "_count" + MetricsRegistry.braces(labels) + " " + total + "\n");
+  }
+}
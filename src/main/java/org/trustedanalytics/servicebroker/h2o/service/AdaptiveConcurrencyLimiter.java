@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits concurrent calls to a dependency with additive increase, multiplicative decrease. The
+ * limit grows by one after a fast, successful call made while the limit was being used, and is cut
+ * after a failed call or a call slower than the latency threshold, so a degrading dependency gets
+ * less concurrent work instead of more waiting callers.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+  private static final double BACKOFF_RATIO = 0.9;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long latencyThresholdNanos;
+
+  private double limit;
+  private int inFlight;
+
+  public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+      long latencyThresholdMillis) {
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+  }
+
+  /**
+   * Returns true if a call may be issued. Every permitted call has to be followed by
+   * {@link #release(long, boolean)}.
+   */
+  public synchronized boolean tryAcquire() {
+    if (inFlight >= (int) limit) {
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  public synchronized void release(long latencyNanos, boolean success) {
+    if (!success || latencyNanos > latencyThresholdNanos) {
+      limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+    } else if (inFlight * 2 >= limit) {
+      limit = Math.min(maxLimit, limit + 1);
+    }
+    inFlight--;
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+}
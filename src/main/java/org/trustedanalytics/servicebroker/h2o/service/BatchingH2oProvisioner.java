@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces provisioning requests issued within a short window into a single
+ * {@link H2oProvisioner#provisionInstances} call. The first caller of a window becomes its leader:
+ * it waits until the linger time passes or the batch is full, submits the whole batch and fans the
+ * results back to the waiting callers. Members of a batch are provisioned concurrently on the
+ * given executor, so a batch takes as long as its slowest member.
+ *
+ * <p>The h2o-provisioner has no batch endpoint yet, so a batch still issues one request per
+ * instance and saves no round trips; it only bounds the bursts reaching the provisioner, at the
+ * cost of the linger time. It is enabled by a positive linger only.
+ */
+public class BatchingH2oProvisioner implements H2oProvisioner {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchingH2oProvisioner.class);
+
+  private final H2oProvisioner delegate;
+  private final long lingerMillis;
+  private final int maxBatchSize;
+  private final Executor executor;
+
+  private Batch openBatch;
+
+  public BatchingH2oProvisioner(H2oProvisioner delegate, long lingerMillis, int maxBatchSize,
+      Executor executor) {
+    this.delegate = delegate;
+    this.lingerMillis = lingerMillis;
+    this.maxBatchSize = maxBatchSize;
+    this.executor = executor;
+  }
+
+  @Override
+  public H2oCredentials provisionInstance(String serviceInstanceId, H2oPlan plan)
+      throws ServiceBrokerException {
+    Batch batch;
+    CompletableFuture<H2oCredentials> result;
+    boolean leader = false;
+    synchronized (this) {
+      if (openBatch == null) {
+        openBatch = new Batch();
+        leader = true;
+      }
+      batch = openBatch;
+      result = batch.add(serviceInstanceId, plan);
+      if (batch.size() >= maxBatchSize) {
+        openBatch = null;
+        notifyAll();
+      }
+    }
+
+    if (leader) {
+      if (awaitClosing(batch)) {
+        submit(batch);
+      } else {
+        ServiceBrokerException interrupted = new ServiceBrokerException(
+            "Interrupted while collecting provisioning batch of " + serviceInstanceId);
+        batch.requests.forEach(request -> request.result.completeExceptionally(interrupted));
+      }
+    }
+    return await(serviceInstanceId, result);
+  }
+
+  @Override
+  public String deprovisionInstance(String serviceInstanceId) throws ServiceBrokerException {
+    return delegate.deprovisionInstance(serviceInstanceId);
+  }
+
+  /**
+   * Returns false if the leader was interrupted, the batch is closed either way.
+   */
+  private synchronized boolean awaitClosing(Batch batch) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    long remaining;
+    try {
+      while (openBatch == batch && (remaining = deadline - System.nanoTime()) > 0) {
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      if (openBatch == batch) {
+        openBatch = null;
+      }
+    }
+  }
+
+  private void submit(Batch batch) {
+    Map<String, H2oPlan> instances = new LinkedHashMap<>();
+    batch.requests.forEach(r -> instances.putIfAbsent(r.serviceInstanceId, r.plan));
+    LOGGER.info("Submitting batch of " + instances.size() + " h2o instances");
+    try {
+      Map<String, CompletableFuture<H2oCredentials>> results =
+          delegate.provisionInstances(instances, executor);
+      for (PendingRequest request : batch.requests) {
+        CompletableFuture<H2oCredentials> result = results.get(request.serviceInstanceId);
+        if (result == null) {
+          request.result.completeExceptionally(new ServiceBrokerException(
+              "No result for '" + request.serviceInstanceId + "' in provisioning batch"));
+        } else {
+          result.whenComplete((credentials, error) -> {
+            if (error != null) {
+              request.result.completeExceptionally(error);
+            } else {
+              request.result.complete(credentials);
+            }
+          });
+        }
+      }
+    } catch (RuntimeException e) {
+      batch.requests.forEach(request -> request.result.completeExceptionally(e));
+    }
+  }
+
+  private static H2oCredentials await(String serviceInstanceId,
+      CompletableFuture<H2oCredentials> result) throws ServiceBrokerException {
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServiceBrokerException("Interrupted while provisioning " + serviceInstanceId, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ServiceBrokerException) {
+        throw (ServiceBrokerException) e.getCause();
+      }
+      throw new ServiceBrokerException("Unable to provision h2o for: " + serviceInstanceId,
+          e.getCause());
+    }
+  }
+
+  private static class Batch {
+
+    private final List<PendingRequest> requests = new ArrayList<>();
+
+    private CompletableFuture<H2oCredentials> add(String serviceInstanceId, H2oPlan plan) {
+      PendingRequest request = new PendingRequest(serviceInstanceId, plan);
+      requests.add(request);
+      return request.result;
+    }
+
+    private int size() {
+      return requests.size();
+    }
+  }
+
+  private static class PendingRequest {
+
+    private final String serviceInstanceId;
+    private final H2oPlan plan;
+    private final CompletableFuture<H2oCredentials> result = new CompletableFuture<>();
+
+    private PendingRequest(String serviceInstanceId, H2oPlan plan) {
+      this.serviceInstanceId = serviceInstanceId;
+      this.plan = plan;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to a failing dependency after a number of consecutive failures. After the open
+ * period a single probe call is let through: its success closes the circuit, its failure opens it
+ * again.
+ */
+public class CircuitBreaker {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openNanos;
+  private final LongSupplier clock;
+  private final Map<State, LongAdder> transitions = new EnumMap<>(State.class);
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean probeInFlight;
+
+  public CircuitBreaker(String name, int failureThreshold, long openSeconds) {
+    this(name, failureThreshold, openSeconds, System::nanoTime);
+  }
+
+  @VisibleForTesting
+  CircuitBreaker(String name, int failureThreshold, long openSeconds, LongSupplier clock) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+    this.clock = clock;
+    for (State s : State.values()) {
+      transitions.put(s, new LongAdder());
+    }
+  }
+
+  /**
+   * Returns true if a call may be issued. Every permitted call has to be followed by
+   * {@link #onSuccess()}, {@link #onFailure()} or {@link #onCancelled()}.
+   */
+  public synchronized boolean tryAcquire() {
+    if (state == State.OPEN && clock.getAsLong() - openedAt >= openNanos) {
+      transitionTo(State.HALF_OPEN);
+    }
+    switch (state) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (probeInFlight) {
+          return false;
+        }
+        probeInFlight = true;
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public synchronized void onSuccess() {
+    consecutiveFailures = 0;
+    if (state == State.HALF_OPEN) {
+      probeInFlight = false;
+      transitionTo(State.CLOSED);
+    }
+  }
+
+  public synchronized void onFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN
+        || state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+      probeInFlight = false;
+      openedAt = clock.getAsLong();
+      transitionTo(State.OPEN);
+    }
+  }
+
+  /**
+   * Reports that a permitted call was not issued after all.
+   */
+  public synchronized void onCancelled() {
+    probeInFlight = false;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public long getTransitions(State to) {
+    return transitions.get(to).sum();
+  }
+
+  private void transitionTo(State newState) {
+    if (state != newState) {
+      LOGGER.warn("Circuit breaker '" + name + "' " + state + " -> " + newState + " after "
+          + consecutiveFailures + " consecutive failures");
+      state = newState;
+      transitions.get(newState).increment();
+    }
+  }
+}
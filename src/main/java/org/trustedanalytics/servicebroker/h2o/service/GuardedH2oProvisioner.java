@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.trustedanalytics.servicebroker.h2o.metrics.Counter;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+/**
+ * Guards h2o-provisioner with a circuit breaker and an adaptive concurrency limit. Calls that are
+ * not let through fail immediately with a retryable error instead of waiting for a provisioner
+ * that is down or overloaded.
+ */
+public class GuardedH2oProvisioner implements H2oProvisioner {
+
+  private static final String REJECTIONS = "h2o_broker_provisioner_rejections_total";
+
+  private final H2oProvisioner delegate;
+  private final CircuitBreaker circuitBreaker;
+  private final AdaptiveConcurrencyLimiter limiter;
+  private final Counter circuitOpenRejections;
+  private final Counter limitRejections;
+
+  public GuardedH2oProvisioner(H2oProvisioner delegate, CircuitBreaker circuitBreaker,
+      AdaptiveConcurrencyLimiter limiter, MetricsRegistry metricsRegistry) {
+    this.delegate = delegate;
+    this.circuitBreaker = circuitBreaker;
+    this.limiter = limiter;
+    this.circuitOpenRejections = metricsRegistry.counter(REJECTIONS,
+        "h2o-provisioner calls rejected without being issued", "reason", "circuit_open");
+    this.limitRejections = metricsRegistry.counter(REJECTIONS,
+        "h2o-provisioner calls rejected without being issued", "reason", "concurrency_limit");
+
+    for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+      String label = state.name().toLowerCase();
+      metricsRegistry.gauge("h2o_broker_provisioner_circuit_state",
+          "1 for current state of h2o-provisioner circuit breaker",
+          () -> circuitBreaker.getState() == state ? 1 : 0, "state", label);
+      metricsRegistry.counter("h2o_broker_provisioner_circuit_transitions_total",
+          "Transitions of h2o-provisioner circuit breaker",
+          () -> circuitBreaker.getTransitions(state), "to", label);
+    }
+    metricsRegistry.gauge("h2o_broker_provisioner_concurrency_limit",
+        "Current adaptive limit of concurrent h2o-provisioner calls", limiter::getLimit);
+    metricsRegistry.gauge("h2o_broker_provisioner_in_flight",
+        "h2o-provisioner calls in flight", limiter::getInFlight);
+  }
+
+  @Override
+  public H2oCredentials provisionInstance(String serviceInstanceId, H2oPlan plan)
+      throws ServiceBrokerException {
+    return call(() -> delegate.provisionInstance(serviceInstanceId, plan));
+  }
+
+  @Override
+  public String deprovisionInstance(String serviceInstanceId) throws ServiceBrokerException {
+    return call(() -> delegate.deprovisionInstance(serviceInstanceId));
+  }
+
+  private <T> T call(ProvisionerCall<T> provisionerCall) throws ServiceBrokerException {
+    if (!circuitBreaker.tryAcquire()) {
+      circuitOpenRejections.increment();
+      throw new ServiceBrokerException(
+          "h2o-provisioner is failing, calls are suspended for a while, please retry later");
+    }
+    if (!limiter.tryAcquire()) {
+      circuitBreaker.onCancelled();
+      limitRejections.increment();
+      throw new ServiceBrokerException("h2o-provisioner is overloaded, please retry later");
+    }
+
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      T result = provisionerCall.call();
+      success = true;
+      return result;
+    } finally {
+      limiter.release(System.nanoTime() - start, success);
+      if (success) {
+        circuitBreaker.onSuccess();
+      } else {
+        circuitBreaker.onFailure();
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface ProvisionerCall<T> {
+    T call() throws ServiceBrokerException;
+  }
+}
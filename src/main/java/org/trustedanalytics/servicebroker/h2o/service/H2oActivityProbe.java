@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds out when an h2o cluster was last used from the jobs listed by its REST api. Calls are
+ * blocking, their deadline is the read timeout of the given rest template.
+ */
+public class H2oActivityProbe {
+
+  private static final String JOBS_PATH = "/3/Jobs";
+  private static final String RUNNING = "RUNNING";
+
+  private final RestTemplate restTemplate;
+
+  public H2oActivityProbe(RestTemplate restTemplate) {
+    this.restTemplate = restTemplate;
+  }
+
+  /**
+   * Returns time in milliseconds when the last job of the cluster finished, the current time if
+   * a job is running and 0 if the cluster has not run any job yet.
+   *
+   * @throws RestClientException if the cluster can not be reached or does not answer in time
+   */
+  public long getLastActivity(H2oCredentials credentials) throws RestClientException {
+    HttpHeaders headers = new HttpHeaders();
+    if (!Strings.isNullOrEmpty(credentials.getUsername())) {
+      String userPass = credentials.getUsername() + ":" + credentials.getPassword();
+      headers.set(HttpHeaders.AUTHORIZATION,
+          "Basic " + BaseEncoding.base64().encode(userPass.getBytes(StandardCharsets.UTF_8)));
+    }
+    JsonNode body = restTemplate.exchange(getJobsUrl(credentials), HttpMethod.GET,
+        new HttpEntity<>(headers), JsonNode.class).getBody();
+    if (body == null) {
+      return 0;
+    }
+
+    long lastActivity = 0;
+    for (JsonNode job : body.path("jobs")) {
+      if (RUNNING.equals(job.path("status").asText())) {
+        return System.currentTimeMillis();
+      }
+      lastActivity =
+          Math.max(lastActivity, job.path("start_time").asLong() + job.path("msec").asLong());
+    }
+    return lastActivity;
+  }
+
+  private static String getJobsUrl(H2oCredentials credentials) {
+    return "http://" + credentials.getHostname() + ":" + credentials.getPort() + JOBS_PATH;
+  }
+}
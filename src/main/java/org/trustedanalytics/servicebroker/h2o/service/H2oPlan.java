@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Catalog plan together with the size of h2o clusters spawned for its instances.
+ */
+public class H2oPlan {
+
+  private final String id;
+  private final String name;
+  private final String description;
+  private final String memory;
+  private final String nodes;
+  private final String queue;
+  private final int poolSize;
+  private final String maxMemory;
+  private final String maxNodes;
+  private final Set<String> queues;
+  private final long idleTimeout;
+
+  /**
+   * Creates a plan whose instances can not be sized by parameters beyond the plan's own size.
+   */
+  public H2oPlan(String id, String name, String description, String memory, String nodes,
+      String queue, int poolSize) {
+    this(id, name, description, memory, nodes, queue, poolSize, memory, nodes,
+        ImmutableSet.of(queue != null ? queue : ""));
+  }
+
+  /**
+   * Creates a plan whose clusters are never stopped for being idle.
+   */
+  public H2oPlan(String id, String name, String description, String memory, String nodes,
+      String queue, int poolSize, String maxMemory, String maxNodes, Set<String> queues) {
+    this(id, name, description, memory, nodes, queue, poolSize, maxMemory, maxNodes, queues, 0);
+  }
+
+  public H2oPlan(String id, String name, String description, String memory, String nodes,
+      String queue, int poolSize, String maxMemory, String maxNodes, Set<String> queues,
+      long idleTimeout) {
+    this.id = id;
+    this.name = name;
+    this.description = description;
+    this.memory = memory;
+    this.nodes = nodes;
+    this.queue = queue != null ? queue : "";
+    this.poolSize = poolSize;
+    this.maxMemory = maxMemory;
+    this.maxNodes = maxNodes;
+    this.queues = ImmutableSet.<String>builder().add(this.queue).addAll(queues).build();
+    this.idleTimeout = idleTimeout;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * Memory of every h2o node, e.g. 512m or 4g.
+   */
+  public String getMemory() {
+    return memory;
+  }
+
+  public String getNodes() {
+    return nodes;
+  }
+
+  /**
+   * YARN queue of the h2o job, empty for the default queue.
+   */
+  public String getQueue() {
+    return queue;
+  }
+
+  /**
+   * Idle clusters of this size kept in the warm pool.
+   */
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * Largest memory of h2o node an instance can ask for in its parameters.
+   */
+  public String getMaxMemory() {
+    return maxMemory;
+  }
+
+  /**
+   * Largest number of h2o nodes an instance can ask for in its parameters.
+   */
+  public String getMaxNodes() {
+    return maxNodes;
+  }
+
+  /**
+   * YARN queues an instance can ask for in its parameters, including the plan's own one.
+   */
+  public Set<String> getQueues() {
+    return queues;
+  }
+
+  /**
+   * Minutes without h2o jobs after which clusters of the plan are stopped, 0 keeps them running.
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Returns this plan with memory, nodes and queue replaced by the ones given in already
+   * validated instance parameters.
+   *
+   * @see InstanceParameters#validate
+   */
+  public H2oPlan withParameters(Map<String, String> parameters) {
+    if (parameters == null || parameters.isEmpty()) {
+      return this;
+    }
+    return new H2oPlan(id, name, description,
+        parameters.getOrDefault(InstanceParameters.MEMORY, memory),
+        parameters.getOrDefault(InstanceParameters.NODES, nodes),
+        parameters.getOrDefault(InstanceParameters.QUEUE, queue), poolSize, maxMemory, maxNodes,
+        queues, idleTimeout);
+  }
+
+  /**
+   * Identifies clusters interchangeable between plans, e.g. {@code 3x4g} or {@code 3x4g@batch}.
+   */
+  public String getProfile() {
+    return nodes + "x" + memory + (queue.isEmpty() ? "" : "@" + queue);
+  }
+
+  @Override
+  public String toString() {
+    return name + " (" + getProfile() + ")";
+  }
+}
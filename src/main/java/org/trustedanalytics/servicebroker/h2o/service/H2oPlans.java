@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans offered in the catalog. The first one is the default plan, which sizes instances of plans
+ * unknown to this broker, e.g. created before plans were configured or of a plan removed since.
+ * Sizes of all plans are validated once here, so a misconfigured plan fails the broker start.
+ */
+public class H2oPlans {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(H2oPlans.class);
+
+  private final List<H2oPlan> plans;
+  private final Map<String, H2oPlan> plansById = new LinkedHashMap<>();
+
+  public H2oPlans(List<H2oPlan> plans) {
+    if (plans.isEmpty()) {
+      throw new IllegalArgumentException("At least one h2o plan has to be configured");
+    }
+    this.plans = ImmutableList.copyOf(plans);
+    for (H2oPlan plan : plans) {
+      InstanceParameters.validatePlan(plan);
+      if (plansById.put(plan.getId(), plan) != null) {
+        throw new IllegalArgumentException("Duplicated h2o plan '" + plan.getName() + "'");
+      }
+    }
+  }
+
+  public List<H2oPlan> getAll() {
+    return plans;
+  }
+
+  public H2oPlan getDefault() {
+    return plans.get(0);
+  }
+
+  /**
+   * Returns plan of given id, or the default plan if there is no such plan.
+   */
+  public H2oPlan get(String planId) {
+    H2oPlan plan = plansById.get(planId);
+    if (plan != null) {
+      return plan;
+    }
+    if (planId != null) {
+      LOGGER.warn("Unknown plan '" + planId + "', using default plan " + getDefault());
+    }
+    return getDefault();
+  }
+}
@@ -17,8 +17,40 @@ package org.trustedanalytics.servicebroker.h2o.service;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
 public interface H2oProvisioner {
-  H2oCredentials provisionInstance(String serviceInstanceId) throws ServiceBrokerException;
+  H2oCredentials provisionInstance(String serviceInstanceId, H2oPlan plan)
+      throws ServiceBrokerException;
   String deprovisionInstance(String serviceInstanceId) throws ServiceBrokerException;
-}
 
+  /**
+   * Provisions several instances, given with their plans, at once. Every instance gets its own
+   * result, so a failure of one of them does not affect the others. By default instances are
+   * provisioned concurrently on given executor, one provisioner call per instance.
+   */
+  default Map<String, CompletableFuture<H2oCredentials>> provisionInstances(
+      Map<String, H2oPlan> instances, Executor executor) {
+    Map<String, CompletableFuture<H2oCredentials>> results = new LinkedHashMap<>();
+    for (Map.Entry<String, H2oPlan> instance : instances.entrySet()) {
+      CompletableFuture<H2oCredentials> result = new CompletableFuture<>();
+      try {
+        executor.execute(() -> {
+          try {
+            result.complete(provisionInstance(instance.getKey(), instance.getValue()));
+          } catch (ServiceBrokerException | RuntimeException e) {
+            result.completeExceptionally(e);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        result.completeExceptionally(e);
+      }
+      results.put(instance.getKey(), result);
+    }
+    return results;
+  }
+}
@@ -20,42 +20,51 @@ import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestClientException;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oProvisionerRestApi;
 
+import java.util.HashMap;
 import java.util.Map;
 
 public class H2oProvisionerClient implements H2oProvisioner {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(H2oProvisionerClient.class);
 
-  private final String memory;
-  private final String nodesCount;
+  /**
+   * Hadoop property selecting YARN queue of the h2o job.
+   */
+  static final String QUEUE_PROPERTY = "mapreduce.job.queuename";
+
   private final boolean kerberos;
   private final Map<String, String> yarnConf;
   private final H2oProvisionerRestApi h2oRest;
+  private final MetricsRegistry metricsRegistry;
 
-  public H2oProvisionerClient(String memory, String nodesCount, boolean kerberos,
-      Map<String, String> yarnConf, H2oProvisionerRestApi h2oRest) {
-    this.memory = memory;
-    this.nodesCount = nodesCount;
+  public H2oProvisionerClient(boolean kerberos, Map<String, String> yarnConf,
+      H2oProvisionerRestApi h2oRest, MetricsRegistry metricsRegistry) {
     this.kerberos = kerberos;
     this.yarnConf = yarnConf;
     this.h2oRest = h2oRest;
+    this.metricsRegistry = metricsRegistry;
 
     LOGGER.info("YARN CONFIG");
     yarnConf.forEach((k, v) -> LOGGER.info(k + ": " + v));
   }
 
   @Override
-  public H2oCredentials provisionInstance(String serviceInstanceId) throws ServiceBrokerException {
+  public H2oCredentials provisionInstance(String serviceInstanceId, H2oPlan plan)
+      throws ServiceBrokerException {
 
     ResponseEntity<H2oCredentials> h2oCredentialsResponseEntity;
+    long start = System.nanoTime();
     try {
-      h2oCredentialsResponseEntity =
-          h2oRest.createH2oInstance(serviceInstanceId, nodesCount, memory, kerberos, yarnConf);
+      h2oCredentialsResponseEntity = h2oRest.createH2oInstance(serviceInstanceId,
+          plan.getNodes(), plan.getMemory(), kerberos, yarnConf(plan));
       LOGGER.info("response: '" + h2oCredentialsResponseEntity.getStatusCode() + "'");
+      record("create", h2oCredentialsResponseEntity.getStatusCode().toString(), start);
     } catch (RestClientException e) {
+      record("create", "error", start);
       throw new ServiceBrokerException(errorMsg(serviceInstanceId), e);
     }
 
@@ -69,10 +78,13 @@ public class H2oProvisionerClient implements H2oProvisioner {
   @Override
   public String deprovisionInstance(String serviceInstanceId) throws ServiceBrokerException {
     ResponseEntity<String> deleteH2oInstanceResponse;
+    long start = System.nanoTime();
     try {
       deleteH2oInstanceResponse = h2oRest.deleteH2oInstance(serviceInstanceId, yarnConf);
       LOGGER.info("response: '" + deleteH2oInstanceResponse.getStatusCode() + "'");
+      record("delete", deleteH2oInstanceResponse.getStatusCode().toString(), start);
     } catch (RestClientException e) {
+      record("delete", "error", start);
       throw new ServiceBrokerException("Unable to deprovision h2o for: " + serviceInstanceId, e);
     }
 
@@ -83,6 +95,23 @@ public class H2oProvisionerClient implements H2oProvisioner {
     }
   }
 
+  private Map<String, String> yarnConf(H2oPlan plan) {
+    if (plan.getQueue().isEmpty()) {
+      return yarnConf;
+    }
+    Map<String, String> conf = new HashMap<>(yarnConf);
+    conf.put(QUEUE_PROPERTY, plan.getQueue());
+    return conf;
+  }
+
+  private void record(String operation, String status, long startNanos) {
+    metricsRegistry.timer("h2o_broker_provisioner_request_seconds",
+        "Latency of h2o-provisioner requests", "operation", operation).recordSince(startNanos);
+    metricsRegistry.counter("h2o_broker_provisioner_responses_total",
+        "Responses of h2o-provisioner by status code", "operation", operation, "status", status)
+        .increment();
+  }
+
   private String errorMsg(String serviceInstanceId) {
     return "Unable to provision h2o for: " + serviceInstanceId;
   }
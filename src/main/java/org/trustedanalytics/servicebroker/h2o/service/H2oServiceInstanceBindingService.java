@@ -22,6 +22,9 @@ import org.cloudfoundry.community.servicebroker.service.ServiceInstanceBindingSe
 import org.trustedanalytics.cfbroker.store.api.BrokerStore;
 import org.trustedanalytics.cfbroker.store.api.Location;
 import org.trustedanalytics.cfbroker.store.impl.ForwardingServiceInstanceBindingServiceStore;
+import org.trustedanalytics.servicebroker.h2o.metrics.Counter;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2o.metrics.Timer;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 
 import java.io.IOException;
@@ -31,11 +34,22 @@ import java.util.Optional;
 public class H2oServiceInstanceBindingService extends ForwardingServiceInstanceBindingServiceStore {
 
   private final BrokerStore<H2oCredentials> credentialsStore;
+  private final ProvisioningStateStore provisioningStateStore;
+  private final InstanceLocks instanceLocks;
+  private final Timer bindingTimer;
+  private final Counter bindingErrors;
 
   public H2oServiceInstanceBindingService(ServiceInstanceBindingService delegate,
-      BrokerStore<H2oCredentials> credentialsStore) {
+      BrokerStore<H2oCredentials> credentialsStore, ProvisioningStateStore provisioningStateStore,
+      InstanceLocks instanceLocks, MetricsRegistry metricsRegistry) {
     super(delegate);
     this.credentialsStore = credentialsStore;
+    this.provisioningStateStore = provisioningStateStore;
+    this.instanceLocks = instanceLocks;
+    this.bindingTimer = metricsRegistry.timer("h2o_broker_binding_seconds",
+        "Latency of service bindings creation");
+    this.bindingErrors = metricsRegistry.counter("h2o_broker_binding_errors_total",
+        "Failed service bindings creations");
   }
 
   @Override
@@ -43,27 +57,46 @@ public class H2oServiceInstanceBindingService extends ForwardingServiceInstanceB
       CreateServiceInstanceBindingRequest request)
       throws ServiceInstanceBindingExistsException, ServiceBrokerException {
 
-    try {
-      return withCredentials(super.createServiceInstanceBinding(request));
+    long start = System.nanoTime();
+    // keeps the instance from being deleted between reading credentials and storing the binding
+    try (InstanceLocks.Handle lock = instanceLocks.lock(request.getServiceInstanceId(), "bind")) {
+      // read first, so no binding is stored for an instance without a running cluster
+      Map<String, Object> credentials = getCredentialsFor(request.getServiceInstanceId());
+      return withCredentials(super.createServiceInstanceBinding(request), credentials);
+    } catch (ServiceBrokerException e) {
+      bindingErrors.increment();
+      throw e;
     } catch (IOException e) {
+      bindingErrors.increment();
       throw new ServiceBrokerException(e);
+    } finally {
+      bindingTimer.recordSince(start);
     }
   }
 
-  private ServiceInstanceBinding withCredentials(ServiceInstanceBinding serviceInstanceBinding)
-      throws IOException {
+  private static ServiceInstanceBinding withCredentials(
+      ServiceInstanceBinding serviceInstanceBinding, Map<String, Object> credentials) {
     return new ServiceInstanceBinding(serviceInstanceBinding.getId(),
-        serviceInstanceBinding.getServiceInstanceId(),
-        getCredentialsFor(serviceInstanceBinding.getServiceInstanceId()),
+        serviceInstanceBinding.getServiceInstanceId(), credentials,
         serviceInstanceBinding.getSyslogDrainUrl(), serviceInstanceBinding.getAppGuid());
   }
 
-  private Map<String, Object> getCredentialsFor(String serviceInstanceId) throws IOException {
+  private Map<String, Object> getCredentialsFor(String serviceInstanceId)
+      throws IOException, ServiceBrokerException {
     Optional<H2oCredentials> credentials =
         credentialsStore.getById(Location.newInstance(serviceInstanceId));
+    if (!credentials.isPresent() && isSuspended(serviceInstanceId)) {
+      throw new ServiceBrokerException("H2o cluster of service instance '" + serviceInstanceId
+          + "' was stopped for being idle, run cf update-service to start a new one");
+    }
     return credentials
         .orElseThrow(() -> new IOException(
             "There are no stored credentials for service instance '" + serviceInstanceId + "'"))
         .toMap();
   }
+
+  private boolean isSuspended(String serviceInstanceId) {
+    Optional<ProvisioningState> state = provisioningStateStore.get(serviceInstanceId);
+    return state.isPresent() && state.get().getStatus() == ProvisioningState.Status.SUSPENDED;
+  }
 }
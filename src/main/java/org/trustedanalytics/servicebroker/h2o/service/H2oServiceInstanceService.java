@@ -15,10 +15,13 @@
 package org.trustedanalytics.servicebroker.h2o.service;
 
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceDoesNotExistException;
 import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceExistsException;
+import org.cloudfoundry.community.servicebroker.exception.ServiceInstanceUpdateNotSupportedException;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.model.DeleteServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.UpdateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,87 +31,261 @@ import org.trustedanalytics.cfbroker.store.impl.ForwardingServiceInstanceService
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 
 public class H2oServiceInstanceService extends ForwardingServiceInstanceServiceStore {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(H2oServiceInstanceService.class);
-  private final H2oProvisioner h2oProvisioner;
+  private final PooledH2oProvisioner h2oProvisioner;
+  private final H2oPlans h2oPlans;
   private final BrokerStore<H2oCredentials> credentialsStore;
+  private final ProvisioningScheduler provisioningScheduler;
+  private final ProvisioningStateStore provisioningStateStore;
+  private final InstanceLocks instanceLocks;
+  private final Function<String, ServiceInstance> instanceLoader = super::getServiceInstance;
 
-  public H2oServiceInstanceService(ServiceInstanceService delegate, H2oProvisioner h2oProvisioner,
-      BrokerStore<H2oCredentials> credentialsStore) {
+  public H2oServiceInstanceService(ServiceInstanceService delegate,
+      PooledH2oProvisioner h2oProvisioner, H2oPlans h2oPlans,
+      BrokerStore<H2oCredentials> credentialsStore, ProvisioningScheduler provisioningScheduler,
+      ProvisioningStateStore provisioningStateStore, InstanceLocks instanceLocks) {
     super(delegate);
     this.h2oProvisioner = h2oProvisioner;
+    this.h2oPlans = h2oPlans;
     this.credentialsStore = credentialsStore;
+    this.provisioningScheduler = provisioningScheduler;
+    this.provisioningStateStore = provisioningStateStore;
+    this.instanceLocks = instanceLocks;
   }
 
   @Override
   public ServiceInstance createServiceInstance(CreateServiceInstanceRequest request)
       throws ServiceInstanceExistsException, ServiceBrokerException {
 
-    ServiceInstance serviceInstance = super.createServiceInstance(request);
-    String instanceId = serviceInstance.getServiceInstanceId();
+    H2oPlan plan = h2oPlans.get(request.getPlanId());
+    // rejected before anything is stored, so there is nothing to roll back
+    Map<String, String> parameters = InstanceParameters.validate(request.getParameters(), plan);
+
+    try (InstanceLocks.Handle lock =
+        instanceLocks.lock(request.getServiceInstanceId(), "create")) {
+      ServiceInstance serviceInstance = super.createServiceInstance(request);
+      String instanceId = serviceInstance.getServiceInstanceId();
 
-    new Thread(new ProvisioningJob(h2oProvisioner, credentialsStore, instanceId)).start();
+      Optional<H2oCredentials> pooled =
+          h2oProvisioner.provisionFromPool(instanceId, plan.withParameters(parameters));
+      try {
+        ProvisioningState state =
+            ProvisioningState.queued(serviceInstance.getPlanId(), parameters);
+        if (pooled.isPresent()) {
+          credentialsStore.save(Location.newInstance(instanceId), pooled.get());
+          state = state.inProgress().succeeded();
+        }
+        provisioningStateStore.save(instanceId, state);
+        provisioningStateStore.rememberServiceInstance(instanceId, serviceInstance);
+        if (!pooled.isPresent()) {
+          provisioningScheduler.submit(instanceId, state);
+        }
+      } catch (IOException | ServiceBrokerException e) {
+        if (pooled.isPresent()) {
+          releasePooledCluster(instanceId);
+        }
+        rollback(serviceInstance);
+        throw e instanceof ServiceBrokerException ? (ServiceBrokerException) e
+            : new ServiceBrokerException(e);
+      }
 
-    return serviceInstance;
+      // a pooled cluster is ready, so the platform does not have to poll
+      return serviceInstance.withAsync(request.hasAsyncClient() && !pooled.isPresent());
+    }
   }
 
+  /**
+   * Resizes h2o of the instance to the plan and parameters of the request. A cluster of the new
+   * size is started asynchronously, the instance keeps its current cluster until then. Instances
+   * whose idle cluster was stopped get a cluster started again, even if nothing changed.
+   */
   @Override
-  public ServiceInstance deleteServiceInstance(DeleteServiceInstanceRequest request)
-      throws ServiceBrokerException {
-    ServiceInstance serviceInstance = super.deleteServiceInstance(request);
-    String serviceInstanceId = serviceInstance.getServiceInstanceId();
+  public ServiceInstance updateServiceInstance(UpdateServiceInstanceRequest request)
+      throws ServiceInstanceUpdateNotSupportedException, ServiceBrokerException,
+      ServiceInstanceDoesNotExistException {
+    H2oPlan plan = h2oPlans.get(request.getPlanId());
+    Map<String, String> parameters = InstanceParameters.validate(request.getParameters(), plan);
+    String instanceId = request.getServiceInstanceId();
+
+    try (InstanceLocks.Handle lock = instanceLocks.lock(instanceId, "update")) {
+      if (super.getServiceInstance(instanceId) == null) {
+        throw new ServiceInstanceDoesNotExistException(instanceId);
+      }
+      Optional<ProvisioningState> current = provisioningStateStore.get(instanceId);
+      if (current.isPresent() && !isResizable(current.get())) {
+        throw new ServiceBrokerException("H2o instance '" + instanceId + "' can not be resized"
+            + " until it is created, its provisioning is " + current.get().getStatus());
+      }
+      boolean suspended = current.isPresent() && isSuspended(current.get());
+      if (!suspended && current.isPresent()
+          && request.getPlanId().equals(current.get().getPlanId())
+          && parameters.equals(current.get().getParameters())) {
+        return super.updateServiceInstance(request);
+      }
 
-    String killedJob = h2oProvisioner.deprovisionInstance(serviceInstanceId);
-    LOGGER.info("Killed YARN job: " + killedJob + " for H2O instance " + serviceInstanceId
-        + ". H2O deleted.");
-    return serviceInstance;
+      // a suspended instance has no cluster to replace, it gets a new one as if just created
+      ProvisioningState state = suspended
+          ? ProvisioningState.queued(request.getPlanId(), parameters)
+          : ProvisioningState.resizing(request.getPlanId(), parameters);
+      Optional<H2oCredentials> pooled = suspended
+          ? h2oProvisioner.provisionFromPool(instanceId, plan.withParameters(parameters))
+          : Optional.empty();
+      try {
+        if (pooled.isPresent()) {
+          credentialsStore.save(Location.newInstance(instanceId), pooled.get());
+          state = state.inProgress().succeeded();
+        }
+        provisioningStateStore.save(instanceId, state);
+        if (!pooled.isPresent()) {
+          provisioningScheduler.submit(instanceId, state);
+        }
+      } catch (IOException | ServiceBrokerException e) {
+        if (pooled.isPresent()) {
+          releasePooledCluster(instanceId);
+        }
+        restoreState(instanceId, current);
+        throw e instanceof ServiceBrokerException ? (ServiceBrokerException) e
+            : new ServiceBrokerException(e);
+      }
+
+      ServiceInstance serviceInstance = null;
+      try {
+        serviceInstance = super.updateServiceInstance(request);
+      } finally {
+        if (serviceInstance == null) {
+          if (pooled.isPresent()) {
+            releasePooledCluster(instanceId);
+          } else {
+            // the job can not have switched clusters yet, it needs the lock held here
+            provisioningScheduler.cancel(instanceId);
+          }
+          restoreState(instanceId, current);
+        }
+      }
+      provisioningStateStore.rememberServiceInstance(instanceId, serviceInstance);
+      return serviceInstance.withAsync(request.hasAsyncClient() && !pooled.isPresent());
+    }
   }
 
-  private static class ProvisioningJob implements Runnable {
+  @Override
+  public ServiceInstance getServiceInstance(String serviceInstanceId) {
+    ServiceInstance serviceInstance =
+        provisioningStateStore.getServiceInstance(serviceInstanceId, instanceLoader);
+    return serviceInstance != null ? serviceInstance : super.getServiceInstance(serviceInstanceId);
+  }
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningJob.class);
-    private final H2oProvisioner h2oProvisioner;
-    private final BrokerStore<H2oCredentials> credentialsStore;
-    private final String instanceId;
+  @Override
+  public ServiceInstance deleteServiceInstance(DeleteServiceInstanceRequest request)
+      throws ServiceBrokerException {
+    try (InstanceLocks.Handle lock =
+        instanceLocks.lock(request.getServiceInstanceId(), "delete")) {
+      ServiceInstance serviceInstance = super.deleteServiceInstance(request);
+      String serviceInstanceId = serviceInstance.getServiceInstanceId();
 
-    private ProvisioningJob(H2oProvisioner h2oProvisioner,
-        BrokerStore<H2oCredentials> credentialsStore, String instanceId) {
-      this.h2oProvisioner = h2oProvisioner;
-      this.credentialsStore = credentialsStore;
-      this.instanceId = instanceId;
+      provisioningScheduler.cancelRetry(serviceInstanceId);
+      // a cancelled resize kills only the cluster it started, the current one is killed here
+      Optional<ProvisioningState> state = provisioningStateStore.get(serviceInstanceId);
+      boolean resizing = state
+          .map(current -> current.getOperation() == ProvisioningState.Operation.RESIZE)
+          .orElse(false);
+      if (provisioningScheduler.cancel(serviceInstanceId) && !resizing) {
+        LOGGER.info("Cancelled provisioning of H2O instance " + serviceInstanceId
+            + ". H2O deleted.");
+      } else if (!resizing && isClaimedByOtherReplica(serviceInstanceId)) {
+        // the owning replica kills what it spawns once it sees the removed provisioning state
+        LOGGER.info("Provisioning of H2O instance " + serviceInstanceId
+            + " runs on another broker replica. H2O deleted.");
+      } else if (state.isPresent() && hasNoCluster(state.get())) {
+        LOGGER.info("H2O instance " + serviceInstanceId + " had no running cluster. H2O deleted.");
+      } else {
+        String killedJob = h2oProvisioner.deprovisionInstance(serviceInstanceId);
+        LOGGER.info("Killed YARN job: " + killedJob + " for H2O instance " + serviceInstanceId
+            + ". H2O deleted.");
+      }
+      removeCredentials(serviceInstanceId);
+      removeProvisioningState(serviceInstanceId);
+      return serviceInstance;
     }
+  }
 
-    @Override
-    public void run() {
-      try {
-        H2oCredentials credentials = h2oProvisioner.provisionInstance(instanceId);
-        saveCredentials(credentials);
-        LOGGER.info("Created h2o instance with address '" + credentials.getHostname() + ":"
-            + credentials.getPort() + "'");
+  private boolean isClaimedByOtherReplica(String instanceId) throws ServiceBrokerException {
+    try {
+      return provisioningScheduler.isClaimedByOtherReplica(instanceId);
+    } catch (IOException e) {
+      throw new ServiceBrokerException("Unable to check provisioning of '" + instanceId + "'", e);
+    }
+  }
+
+  /**
+   * Instances are resized once created, also after a failed resize which left them with their
+   * previous cluster or after their idle cluster was stopped.
+   */
+  private static boolean isResizable(ProvisioningState state) {
+    return state.getStatus() == ProvisioningState.Status.SUCCEEDED || isSuspended(state)
+        || state.getStatus() == ProvisioningState.Status.FAILED
+            && state.getOperation() == ProvisioningState.Operation.RESIZE;
+  }
+
+  /**
+   * Suspended instances had their cluster stopped, failed creates never got one.
+   */
+  private static boolean hasNoCluster(ProvisioningState state) {
+    return isSuspended(state) || state.getStatus() == ProvisioningState.Status.FAILED
+        && state.getOperation() == ProvisioningState.Operation.CREATE;
+  }
 
-      } catch (ServiceBrokerException e) {
-        logError(e);
+  private static boolean isSuspended(ProvisioningState state) {
+    return state.getStatus() == ProvisioningState.Status.SUSPENDED;
+  }
 
-        // TODO: this (exception muting) will change after upgrading
-        // to 2.7 Broker API which can deal with creating instances asynchronously
+  private void restoreState(String instanceId, Optional<ProvisioningState> state) {
+    try {
+      if (state.isPresent()) {
+        provisioningStateStore.save(instanceId, state.get());
+      } else {
+        provisioningStateStore.delete(instanceId);
       }
+    } catch (IOException e) {
+      LOGGER.warn("Unable to restore provisioning state of '" + instanceId + "'", e);
     }
+  }
 
-    private void saveCredentials(H2oCredentials credentials) {
-      try {
-        credentialsStore.save(Location.newInstance(instanceId), credentials);
-      } catch (IOException e) {
-        logError(e);
+  private void rollback(ServiceInstance serviceInstance) throws ServiceBrokerException {
+    String instanceId = serviceInstance.getServiceInstanceId();
+    super.deleteServiceInstance(new DeleteServiceInstanceRequest(instanceId,
+        serviceInstance.getServiceDefinitionId(), serviceInstance.getPlanId()));
+    removeProvisioningState(instanceId);
+  }
 
-        // TODO: this (exception muting) will change after upgrading
-        // to 2.7 Broker API which can deal with creating instances asynchronously
-      }
+  private void releasePooledCluster(String instanceId) {
+    try {
+      h2oProvisioner.deprovisionInstance(instanceId);
+    } catch (ServiceBrokerException e) {
+      LOGGER.error("Unable to kill pooled h2o cluster assigned to '" + instanceId + "'", e);
     }
+    removeCredentials(instanceId);
+  }
+
+  private void removeCredentials(String instanceId) {
+    try {
+      credentialsStore.deleteById(Location.newInstance(instanceId));
+    } catch (IOException e) {
+      // left for the reconciler, which finishes interrupted removals
+      LOGGER.warn("Unable to remove credentials of '" + instanceId + "'", e);
+    }
+  }
 
-    private void logError(Exception e) {
-      LOGGER.error("Unable to create h2o instance for '" + instanceId + "'", e);
+  private void removeProvisioningState(String instanceId) {
+    try {
+      provisioningStateStore.delete(instanceId);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to remove provisioning state of '" + instanceId + "'", e);
     }
   }
 }
@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.RestClientException;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2o.helper.LeaderElection;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops h2o clusters which have not run any job for longer than the idle timeout of their plan.
+ * Clusters are probed on a bounded pool and every probe has a deadline, so unresponsive clusters
+ * hold up neither the other probes nor the broker. Probes are blocking REST calls, so the pool size
+ * bounds the clusters probed at the same time. Instances of stopped clusters are kept suspended,
+ * without credentials, until an update starts a new cluster for them; new bindings are refused
+ * meanwhile and existing ones keep the credentials of the stopped cluster until recreated.
+ *
+ * <p>Last activity is remembered in memory only and an instance counts as active when it is seen
+ * for the first time, so a newly elected leader watches clusters for a whole timeout before
+ * stopping any of them. Clusters which can not be probed are never stopped.
+ */
+public class IdleClusterReaper implements LeaderElection.Listener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IdleClusterReaper.class);
+
+  public enum Result {
+    ACTIVE, IDLE, FAILED
+  }
+
+  private final H2oPlans h2oPlans;
+  private final ProvisioningStateStore provisioningStateStore;
+  private final BrokerStore<H2oCredentials> credentialsStore;
+  private final H2oProvisioner h2oProvisioner;
+  private final InstanceLocks instanceLocks;
+  private final H2oActivityProbe activityProbe;
+  private final long intervalSeconds;
+  private final ExecutorService probePool;
+  private final ScheduledExecutorService timer;
+  private final ConcurrentMap<String, Long> lastActivity = new ConcurrentHashMap<>();
+  private final Map<Result, LongAdder> probes = new EnumMap<>(Result.class);
+  private final LongAdder stoppedClusters = new LongAdder();
+
+  private ScheduledFuture<?> periodicSweeps;
+
+  public IdleClusterReaper(H2oPlans h2oPlans, ProvisioningStateStore provisioningStateStore,
+      BrokerStore<H2oCredentials> credentialsStore, H2oProvisioner h2oProvisioner,
+      InstanceLocks instanceLocks, H2oActivityProbe activityProbe, int parallelism,
+      long intervalSeconds) {
+    this.h2oPlans = h2oPlans;
+    this.provisioningStateStore = provisioningStateStore;
+    this.credentialsStore = credentialsStore;
+    this.h2oProvisioner = h2oProvisioner;
+    this.instanceLocks = instanceLocks;
+    this.activityProbe = activityProbe;
+    this.intervalSeconds = intervalSeconds;
+    this.probePool = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setNameFormat("h2o-reaper-%d").setDaemon(true).build());
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("h2o-reaper-timer-%d").setDaemon(true).build());
+    for (Result result : Result.values()) {
+      probes.put(result, new LongAdder());
+    }
+  }
+
+  @Override
+  public synchronized void onElected(int participants) {
+    boolean enabled = h2oPlans.getAll().stream().anyMatch(plan -> plan.getIdleTimeout() > 0);
+    if (enabled && intervalSeconds > 0) {
+      periodicSweeps = timer.scheduleWithFixedDelay(this::sweepSafely, intervalSeconds,
+          intervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public synchronized void onRevoked() {
+    if (periodicSweeps != null) {
+      periodicSweeps.cancel(false);
+      periodicSweeps = null;
+    }
+    lastActivity.clear();
+  }
+
+  public void shutdown() {
+    timer.shutdownNow();
+    probePool.shutdownNow();
+  }
+
+  /**
+   * Probes clusters of all created instances and stops the ones idle at given time.
+   *
+   * @return number of stopped clusters
+   */
+  @VisibleForTesting
+  int sweep(long now) {
+    long start = System.currentTimeMillis();
+    Map<String, ProvisioningState> states = provisioningStateStore.getAll();
+    lastActivity.keySet().retainAll(states.keySet());
+
+    List<CompletableFuture<Boolean>> results = new ArrayList<>();
+    states.forEach((instanceId, state) -> {
+      H2oPlan plan = h2oPlans.get(state.getPlanId());
+      if (state.getStatus() != ProvisioningState.Status.SUCCEEDED || plan.getIdleTimeout() <= 0) {
+        // a cluster started by a resize or a wake-up is watched from scratch
+        lastActivity.remove(instanceId);
+        return;
+      }
+      lastActivity.putIfAbsent(instanceId, now);
+      results.add(CompletableFuture.supplyAsync(() -> probe(instanceId, plan, now), probePool));
+    });
+
+    int stopped = 0;
+    for (CompletableFuture<Boolean> result : results) {
+      try {
+        stopped += result.join() ? 1 : 0;
+      } catch (CompletionException e) {
+        LOGGER.error("Unexpected failure of h2o cluster probe", e.getCause());
+      }
+    }
+    if (stopped > 0) {
+      LOGGER.info("Probed " + results.size() + " h2o clusters in "
+          + (System.currentTimeMillis() - start) + " ms, stopped " + stopped + " idle ones");
+    }
+    return stopped;
+  }
+
+  public long getProbes(Result result) {
+    return probes.get(result).sum();
+  }
+
+  public long getStoppedClusters() {
+    return stoppedClusters.sum();
+  }
+
+  private void sweepSafely() {
+    try {
+      sweep(System.currentTimeMillis());
+    } catch (Exception e) {
+      LOGGER.error("Probing h2o clusters for activity failed", e);
+    }
+  }
+
+  private boolean probe(String instanceId, H2oPlan plan, long now) {
+    long activity;
+    try {
+      Optional<H2oCredentials> credentials =
+          credentialsStore.getById(Location.newInstance(instanceId));
+      if (!credentials.isPresent()) {
+        return false;
+      }
+      activity = activityProbe.getLastActivity(credentials.get());
+    } catch (IOException | RestClientException e) {
+      probes.get(Result.FAILED).increment();
+      LOGGER.warn("Unable to probe h2o cluster of '" + instanceId + "': " + e.getMessage());
+      return false;
+    }
+
+    long idleMillis = now - lastActivity.merge(instanceId, activity, Math::max);
+    if (idleMillis < TimeUnit.MINUTES.toMillis(plan.getIdleTimeout())) {
+      probes.get(Result.ACTIVE).increment();
+      return false;
+    }
+    probes.get(Result.IDLE).increment();
+    return stop(instanceId, idleMillis);
+  }
+
+  private boolean stop(String instanceId, long idleMillis) {
+    try (InstanceLocks.Handle lock = instanceLocks.lock(instanceId, "reap")) {
+      // the instance might have been updated or deleted since its cluster was probed
+      Optional<ProvisioningState> state = provisioningStateStore.get(instanceId);
+      if (!state.isPresent() || state.get().getStatus() != ProvisioningState.Status.SUCCEEDED) {
+        return false;
+      }
+      String killedJob = h2oProvisioner.deprovisionInstance(instanceId);
+      provisioningStateStore.save(instanceId, state.get().suspended());
+      credentialsStore.deleteById(Location.newInstance(instanceId));
+      lastActivity.remove(instanceId);
+      stoppedClusters.increment();
+      LOGGER.info("Killed YARN job: " + killedJob + " of h2o instance '" + instanceId
+          + "' idle for " + TimeUnit.MILLISECONDS.toMinutes(idleMillis) + " minutes");
+      return true;
+    } catch (ServiceBrokerException | IOException e) {
+      // probed and stopped by the next sweep
+      LOGGER.warn("Unable to stop idle h2o cluster of '" + instanceId + "'", e);
+      return false;
+    }
+  }
+}
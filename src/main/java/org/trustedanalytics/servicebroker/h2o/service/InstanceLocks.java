@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.util.concurrent.Striped;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperNodeOperations;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Serializes operations on the same service instance, while operations on different instances
+ * run in parallel. Threads of this broker contend on a fixed number of striped in-process locks;
+ * when several replicas run, the holder of the in-process lock also creates an ephemeral znode
+ * named after the instance, so at most one thread of all replicas holds the lock. Locks are held
+ * for zookeeper writes and provisioner calls only, never while h2o is being spawned.
+ */
+public class InstanceLocks {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InstanceLocks.class);
+
+  /**
+   * Held lock, released by {@link #close()}.
+   */
+  public interface Handle extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  private final Striped<Lock> localLocks;
+  private final CuratorFramework zkClient;
+  private final String rootNode;
+  private final byte[] replicaId;
+  private final boolean distributed;
+  private final long timeoutNanos;
+  private final MetricsRegistry metricsRegistry;
+
+  public InstanceLocks(int stripes, CuratorFramework zkClient, String rootNode, String replicaId,
+      boolean distributed, long timeoutSeconds, MetricsRegistry metricsRegistry) {
+    this.localLocks = Striped.lock(stripes);
+    this.zkClient = zkClient;
+    this.rootNode = rootNode;
+    this.replicaId = replicaId.getBytes(StandardCharsets.UTF_8);
+    this.distributed = distributed;
+    this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+    this.metricsRegistry = metricsRegistry;
+  }
+
+  public void start() throws Exception {
+    if (distributed) {
+      ZookeeperNodeOperations.createIfNotExists(zkClient, rootNode);
+    }
+  }
+
+  /**
+   * Waits for the lock of given instance. The operation labels wait time metrics.
+   *
+   * @throws ServiceBrokerException if the lock is not acquired in time
+   */
+  public Handle lock(String instanceId, String operation) throws ServiceBrokerException {
+    long start = System.nanoTime();
+    long deadline = start + timeoutNanos;
+    Lock localLock = localLocks.get(instanceId);
+    try {
+      if (!localLock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS)) {
+        throw timeout(instanceId, operation);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServiceBrokerException("Interrupted while locking '" + instanceId + "'", e);
+    }
+
+    String path = ZKPaths.makePath(rootNode, instanceId);
+    if (distributed) {
+      boolean acquired;
+      try {
+        acquired = acquire(path, deadline);
+      } catch (ServiceBrokerException e) {
+        localLock.unlock();
+        throw e;
+      }
+      if (!acquired) {
+        localLock.unlock();
+        throw timeout(instanceId, operation);
+      }
+    }
+    metricsRegistry.timer("h2o_broker_instance_lock_wait_seconds",
+        "Time spent waiting for service instance locks", "operation", operation)
+        .recordSince(start);
+    return () -> {
+      if (distributed) {
+        release(path);
+      }
+      localLock.unlock();
+    };
+  }
+
+  private boolean acquire(String path, long deadline) throws ServiceBrokerException {
+    try {
+      while (true) {
+        try {
+          zkClient.create().withMode(CreateMode.EPHEMERAL).forPath(path, replicaId);
+          return true;
+        } catch (KeeperException.NodeExistsException e) {
+          CountDownLatch released = new CountDownLatch(1);
+          CuratorWatcher watcher = event -> released.countDown();
+          if (zkClient.checkExists().usingWatcher(watcher).forPath(path) == null) {
+            continue;
+          }
+          long left = deadline - System.nanoTime();
+          if (left <= 0 || !released.await(left, TimeUnit.NANOSECONDS)) {
+            return false;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServiceBrokerException("Interrupted while locking '" + path + "'", e);
+    } catch (Exception e) {
+      throw new ServiceBrokerException("Unable to lock '" + path + "'", e);
+    }
+  }
+
+  private void release(String path) {
+    try {
+      // the znode may belong to another replica if ours expired with the session
+      Stat stat = new Stat();
+      zkClient.getData().storingStatIn(stat).forPath(path);
+      if (stat.getEphemeralOwner() == zkClient.getZookeeperClient().getZooKeeper().getSessionId()) {
+        zkClient.delete().withVersion(stat.getVersion()).forPath(path);
+      }
+    } catch (KeeperException.NoNodeException e) {
+      LOGGER.warn("Lock '" + path + "' expired while held");
+    } catch (Exception e) {
+      LOGGER.error("Unable to release lock '" + path + "'", e);
+    }
+  }
+
+  private ServiceBrokerException timeout(String instanceId, String operation) {
+    metricsRegistry.counter("h2o_broker_instance_lock_timeouts_total",
+        "Operations given up waiting for service instance locks", "operation", operation)
+        .increment();
+    return new ServiceBrokerException("Service instance '" + instanceId
+        + "' is busy with another operation, please retry later");
+  }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parameters of a create request (cf create-service ... -c '{"memory":"8g","nodes":4}') sizing
+ * the h2o cluster of a single instance. Only memory, nodes and queue are accepted, each within
+ * the limits of the instance's plan.
+ */
+public final class InstanceParameters {
+
+  public static final String MEMORY = "memory";
+  public static final String NODES = "nodes";
+  public static final String QUEUE = "queue";
+
+  private static final Set<String> NAMES = ImmutableSet.of(MEMORY, NODES, QUEUE);
+  private static final Pattern MEMORY_PATTERN = Pattern.compile("([1-9][0-9]{0,6})([mMgG])");
+  private static final Pattern NODES_PATTERN = Pattern.compile("[1-9][0-9]{0,5}");
+
+  private InstanceParameters() {
+  }
+
+  /**
+   * Checks the parameters against the plan and returns them as strings, the way they are passed
+   * to h2o-provisioner and kept in the provisioning state.
+   *
+   * @throws ServiceBrokerException if there is an unknown parameter, a malformed value or a
+   *         value above the limit of the plan
+   */
+  public static Map<String, String> validate(Map<String, Object> parameters, H2oPlan plan)
+      throws ServiceBrokerException {
+    if (parameters == null || parameters.isEmpty()) {
+      return ImmutableMap.of();
+    }
+    ImmutableMap.Builder<String, String> validated = ImmutableMap.builder();
+    for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+      if (!NAMES.contains(parameter.getKey())) {
+        throw new ServiceBrokerException("Unknown parameter '" + parameter.getKey()
+            + "', supported parameters are " + NAMES);
+      }
+      if (parameter.getValue() == null) {
+        continue;
+      }
+      String value = String.valueOf(parameter.getValue()).trim();
+      switch (parameter.getKey()) {
+        case MEMORY:
+          validateMemory(value, plan);
+          break;
+        case NODES:
+          validateNodes(value, plan);
+          break;
+        default:
+          validateQueue(value, plan);
+      }
+      validated.put(parameter.getKey(), value);
+    }
+    return validated.build();
+  }
+
+  /**
+   * Checks the sizes of a configured plan, so a malformed one fails the broker start instead of
+   * every request sizing an instance of the plan.
+   *
+   * @throws IllegalArgumentException if a size is malformed or below the plan's own size
+   */
+  public static void validatePlan(H2oPlan plan) {
+    checkPlanSize(plan, "memory", plan.getMemory(), MEMORY_PATTERN);
+    checkPlanSize(plan, "maxMemory", plan.getMaxMemory(), MEMORY_PATTERN);
+    checkPlanSize(plan, "nodes", plan.getNodes(), NODES_PATTERN);
+    checkPlanSize(plan, "maxNodes", plan.getMaxNodes(), NODES_PATTERN);
+    if (megabytes(plan.getMaxMemory()) < megabytes(plan.getMemory())) {
+      throw new IllegalArgumentException("Plan " + plan.getName() + " has maxMemory "
+          + plan.getMaxMemory() + " below its memory " + plan.getMemory());
+    }
+    if (Long.parseLong(plan.getMaxNodes()) < Long.parseLong(plan.getNodes())) {
+      throw new IllegalArgumentException("Plan " + plan.getName() + " has maxNodes "
+          + plan.getMaxNodes() + " below its nodes " + plan.getNodes());
+    }
+  }
+
+  private static void checkPlanSize(H2oPlan plan, String name, String value, Pattern pattern) {
+    if (value == null || !pattern.matcher(value).matches()) {
+      throw new IllegalArgumentException("Plan " + plan.getName() + " has malformed " + name
+          + " '" + value + "', memory is a size like 512m or 4g and nodes a positive number");
+    }
+  }
+
+  private static void validateMemory(String memory, H2oPlan plan)
+      throws ServiceBrokerException {
+    if (!MEMORY_PATTERN.matcher(memory).matches()) {
+      throw new ServiceBrokerException("Parameter 'memory' has to be a size in megabytes or"
+          + " gigabytes, e.g. 512m or 4g, not '" + memory + "'");
+    }
+    if (megabytes(memory) > megabytes(plan.getMaxMemory())) {
+      throw new ServiceBrokerException("Plan " + plan.getName() + " allows at most "
+          + plan.getMaxMemory() + " of memory per node, not " + memory);
+    }
+  }
+
+  private static void validateNodes(String nodes, H2oPlan plan) throws ServiceBrokerException {
+    if (!NODES_PATTERN.matcher(nodes).matches()) {
+      throw new ServiceBrokerException(
+          "Parameter 'nodes' has to be a positive number, not '" + nodes + "'");
+    }
+    if (Long.parseLong(nodes) > Long.parseLong(plan.getMaxNodes())) {
+      throw new ServiceBrokerException("Plan " + plan.getName() + " allows at most "
+          + plan.getMaxNodes() + " nodes, not " + nodes);
+    }
+  }
+
+  private static void validateQueue(String queue, H2oPlan plan) throws ServiceBrokerException {
+    if (!plan.getQueues().contains(queue)) {
+      throw new ServiceBrokerException("Plan " + plan.getName() + " allows only YARN queues "
+          + plan.getQueues() + ", not '" + queue + "'");
+    }
+  }
+
+  private static long megabytes(String memory) {
+    Matcher matcher = MEMORY_PATTERN.matcher(memory);
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("Invalid memory size '" + memory + "'");
+    }
+    long size = Long.parseLong(matcher.group(1));
+    return Character.toLowerCase(matcher.group(2).charAt(0)) == 'g' ? size * 1024 : size;
+  }
+}
@@ -0,0 +1,498 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.h2o.helper.LeaderElection;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperNodeOperations;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps pools of idle h2o clusters started in advance, so a new service instance gets one in
+ * milliseconds instead of waiting minutes for YARN. There is a pool for every cluster profile
+ * (nodes, memory and queue) of the plans; idle clusters are znodes below
+ * {@code <root>/idle/<profile>} holding their credentials. Handing a cluster out moves its znode
+ * to {@code <root>/assigned/<instance id>} in one transaction, so every cluster goes to exactly
+ * one instance even with several broker replicas. The YARN job keeps its pool name, which
+ * {@link #deprovisionInstance} looks up.
+ *
+ * <p>The same indirection lets an instance be resized: a cluster of the new size is started
+ * beside the current one and recorded in {@code <root>/replacing/<instance id>}, and
+ * {@link #commitReplacement} switches the instance over to it and kills the old cluster.
+ *
+ * <p>Pools are refilled by the elected leader only. Clusters being started are marked below
+ * {@code <root>/spawning/<profile>} and claimed in {@link ProvisioningClaims} by the replica
+ * starting them. Markers whose claim expired with the replica which left them behind are killed
+ * by the next leader, as are idle clusters of profiles no plan uses any more; clusters a previous
+ * leader still starts are left to it.
+ */
+public class PooledH2oProvisioner implements H2oProvisioner, LeaderElection.Listener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PooledH2oProvisioner.class);
+
+  private static final String CLUSTER_PREFIX = "pool-";
+
+  private final H2oProvisioner delegate;
+  private final CuratorFramework zkClient;
+  private final ProvisioningClaims provisioningClaims;
+  private final String idleNode;
+  private final String spawningNode;
+  private final String assignedNode;
+  private final String replacingNode;
+  private final Map<String, H2oPlan> profiles = new LinkedHashMap<>();
+  private final long refillIntervalSeconds;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final ScheduledExecutorService timer;
+  private final ExecutorService spawner;
+  private final Set<String> spawning = ConcurrentHashMap.newKeySet();
+  private final CuratorWatcher idleWatcher = event -> {
+    if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged) {
+      scheduleRefill();
+    }
+  };
+
+  private final ConcurrentMap<String, Integer> idleClusters = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder spawnFailures = new LongAdder();
+
+  private volatile boolean leader;
+  private volatile ScheduledFuture<?> refills;
+
+  public PooledH2oProvisioner(H2oProvisioner delegate, CuratorFramework zkClient,
+      ProvisioningClaims provisioningClaims, String rootNode, H2oPlans plans,
+      long refillIntervalSeconds) {
+    this.delegate = delegate;
+    this.zkClient = zkClient;
+    this.provisioningClaims = provisioningClaims;
+    this.idleNode = ZKPaths.makePath(rootNode, "idle");
+    this.spawningNode = ZKPaths.makePath(rootNode, "spawning");
+    this.assignedNode = ZKPaths.makePath(rootNode, "assigned");
+    this.replacingNode = ZKPaths.makePath(rootNode, "replacing");
+    // plans of the same profile share their pool, which is as large as the largest one wants
+    for (H2oPlan plan : plans.getAll()) {
+      profiles.merge(plan.getProfile(), plan,
+          (current, other) -> other.getPoolSize() > current.getPoolSize() ? other : current);
+    }
+    this.refillIntervalSeconds = refillIntervalSeconds;
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("h2o-pool-%d").setDaemon(true).build());
+    this.spawner = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat("h2o-pool-spawn-%d").setDaemon(true).build());
+  }
+
+  public void start() throws Exception {
+    for (String profile : profiles.keySet()) {
+      ZookeeperNodeOperations.createIfNotExists(zkClient, ZKPaths.makePath(idleNode, profile));
+      ZookeeperNodeOperations.createIfNotExists(zkClient,
+          ZKPaths.makePath(spawningNode, profile));
+    }
+    ZookeeperNodeOperations.createIfNotExists(zkClient, assignedNode);
+    ZookeeperNodeOperations.createIfNotExists(zkClient, replacingNode);
+  }
+
+  /**
+   * Stops refilling. Idle clusters stay in the pools for the next leader, clusters still being
+   * started are killed by it.
+   */
+  public void shutdown() {
+    leader = false;
+    timer.shutdownNow();
+    spawner.shutdownNow();
+  }
+
+  /**
+   * Hands an idle cluster of the plan's profile out to the instance. Returns empty if the pool is
+   * disabled, empty or unavailable, in which case the instance has to be provisioned the usual
+   * way.
+   */
+  public Optional<H2oCredentials> provisionFromPool(String serviceInstanceId, H2oPlan plan) {
+    return takeFromPool(serviceInstanceId, plan,
+        ZKPaths.makePath(assignedNode, serviceInstanceId));
+  }
+
+  /**
+   * Starts a cluster of the plan to replace the current one of the instance, taking it from the
+   * pool if possible. Both clusters run until {@link #commitReplacement} or
+   * {@link #abortReplacement}; a replacement left behind by an interrupted attempt is killed
+   * first.
+   */
+  public H2oCredentials provisionReplacement(String serviceInstanceId, H2oPlan plan)
+      throws ServiceBrokerException {
+    abortReplacement(serviceInstanceId);
+    String replacingPath = ZKPaths.makePath(replacingNode, serviceInstanceId);
+    Optional<H2oCredentials> pooled = takeFromPool(serviceInstanceId, plan, replacingPath);
+    if (pooled.isPresent()) {
+      return pooled.get();
+    }
+
+    String cluster = CLUSTER_PREFIX + UUID.randomUUID();
+    try {
+      // recorded before the cluster is started, so it is not lost if this broker dies
+      zkClient.create().forPath(replacingPath, cluster.getBytes(StandardCharsets.UTF_8));
+    } catch (Exception e) {
+      throw new ServiceBrokerException(
+          "Unable to record new h2o cluster of '" + serviceInstanceId + "'", e);
+    }
+    try {
+      return delegate.provisionInstance(cluster, plan);
+    } catch (ServiceBrokerException e) {
+      deleteQuietly(replacingPath);
+      throw e;
+    }
+  }
+
+  /**
+   * Switches the instance over to the cluster started by {@link #provisionReplacement} and kills
+   * the cluster it had before.
+   */
+  public void commitReplacement(String serviceInstanceId) throws ServiceBrokerException {
+    String replacingPath = ZKPaths.makePath(replacingNode, serviceInstanceId);
+    String assignedPath = ZKPaths.makePath(assignedNode, serviceInstanceId);
+    String previous;
+    try {
+      Stat replacing = new Stat();
+      byte[] cluster = zkClient.getData().storingStatIn(replacing).forPath(replacingPath);
+      Stat assigned = zkClient.checkExists().forPath(assignedPath);
+      if (assigned == null) {
+        // the instance has still its own cluster, named after it
+        previous = serviceInstanceId;
+        zkClient.inTransaction()
+            .delete().withVersion(replacing.getVersion()).forPath(replacingPath).and()
+            .create().forPath(assignedPath, cluster).and()
+            .commit();
+      } else {
+        previous = new String(zkClient.getData().storingStatIn(assigned).forPath(assignedPath),
+            StandardCharsets.UTF_8);
+        zkClient.inTransaction()
+            .delete().withVersion(replacing.getVersion()).forPath(replacingPath).and()
+            .setData().withVersion(assigned.getVersion()).forPath(assignedPath, cluster).and()
+            .commit();
+      }
+    } catch (Exception e) {
+      throw new ServiceBrokerException(
+          "Unable to switch '" + serviceInstanceId + "' to its new h2o cluster", e);
+    }
+    LOGGER.info("Switched '" + serviceInstanceId + "' to new h2o cluster, killing '" + previous
+        + "'");
+    kill(previous);
+  }
+
+  /**
+   * Kills the cluster started by {@link #provisionReplacement}, if there is any. The instance
+   * keeps its current cluster.
+   */
+  public void abortReplacement(String serviceInstanceId) {
+    String replacingPath = ZKPaths.makePath(replacingNode, serviceInstanceId);
+    String cluster;
+    try {
+      cluster = new String(zkClient.getData().forPath(replacingPath), StandardCharsets.UTF_8);
+    } catch (KeeperException.NoNodeException e) {
+      return;
+    } catch (Exception e) {
+      LOGGER.warn("Unable to look up new h2o cluster of '" + serviceInstanceId + "'", e);
+      return;
+    }
+    LOGGER.info("Killing h2o cluster '" + cluster + "' started to replace the one of '"
+        + serviceInstanceId + "'");
+    kill(cluster);
+    deleteQuietly(replacingPath);
+  }
+
+  /**
+   * Starts a new cluster named after the instance. The pool is not looked up again, callers
+   * queue provisioning jobs only after {@link #provisionFromPool} missed.
+   */
+  @Override
+  public H2oCredentials provisionInstance(String serviceInstanceId, H2oPlan plan)
+      throws ServiceBrokerException {
+    return delegate.provisionInstance(serviceInstanceId, plan);
+  }
+
+  @Override
+  public String deprovisionInstance(String serviceInstanceId) throws ServiceBrokerException {
+    abortReplacement(serviceInstanceId);
+    String assignedPath = ZKPaths.makePath(assignedNode, serviceInstanceId);
+    String cluster;
+    try {
+      cluster = new String(zkClient.getData().forPath(assignedPath), StandardCharsets.UTF_8);
+    } catch (KeeperException.NoNodeException e) {
+      return delegate.deprovisionInstance(serviceInstanceId);
+    } catch (Exception e) {
+      throw new ServiceBrokerException(
+          "Unable to look up h2o cluster of '" + serviceInstanceId + "'", e);
+    }
+
+    String killedJob = delegate.deprovisionInstance(cluster);
+    try {
+      zkClient.delete().forPath(assignedPath);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to remove assignment of pooled h2o cluster '" + cluster + "'", e);
+    }
+    return killedJob;
+  }
+
+  @Override
+  public void onElected(int participants) {
+    leader = true;
+    timer.execute(this::killAbandonedClusters);
+    refills = timer.scheduleWithFixedDelay(this::refill, 0, refillIntervalSeconds,
+        TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void onRevoked() {
+    leader = false;
+    ScheduledFuture<?> scheduled = refills;
+    if (scheduled != null) {
+      scheduled.cancel(false);
+    }
+  }
+
+  public int getIdleClusters() {
+    return idleClusters.values().stream().mapToInt(Integer::intValue).sum();
+  }
+
+  public int getSpawningClusters() {
+    return spawning.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getSpawnFailures() {
+    return spawnFailures.sum();
+  }
+
+  /**
+   * Moves an idle cluster of the plan's profile to the target znode, which gets its name.
+   */
+  private Optional<H2oCredentials> takeFromPool(String serviceInstanceId, H2oPlan plan,
+      String targetPath) {
+    H2oPlan pooled = profiles.get(plan.getProfile());
+    if (pooled == null || pooled.getPoolSize() == 0) {
+      return Optional.empty();
+    }
+    try {
+      String profileNode = ZKPaths.makePath(idleNode, plan.getProfile());
+      List<String> clusters = zkClient.getChildren().forPath(profileNode);
+      // replicas taking clusters at the same time rarely pick the same one
+      Collections.shuffle(clusters);
+      for (String cluster : clusters) {
+        Optional<H2oCredentials> credentials =
+            assign(ZKPaths.makePath(profileNode, cluster), cluster, targetPath);
+        if (credentials.isPresent()) {
+          hits.increment();
+          LOGGER.info("Assigned pooled h2o cluster '" + cluster + "' to '" + serviceInstanceId
+              + "'");
+          return credentials;
+        }
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Unable to take h2o cluster from pool for '" + serviceInstanceId + "'", e);
+    }
+    misses.increment();
+    return Optional.empty();
+  }
+
+  private Optional<H2oCredentials> assign(String idlePath, String cluster, String targetPath)
+      throws Exception {
+    Stat stat = new Stat();
+    byte[] data;
+    try {
+      data = zkClient.getData().storingStatIn(stat).forPath(idlePath);
+      zkClient.inTransaction()
+          .delete().withVersion(stat.getVersion()).forPath(idlePath).and()
+          .create().forPath(targetPath, cluster.getBytes(StandardCharsets.UTF_8)).and()
+          .commit();
+    } catch (KeeperException.NoNodeException | KeeperException.BadVersionException e) {
+      // taken by another replica
+      return Optional.empty();
+    }
+    return Optional.of(mapper.readValue(data, H2oCredentials.class));
+  }
+
+  private void scheduleRefill() {
+    if (leader && !timer.isShutdown()) {
+      timer.execute(this::refill);
+    }
+  }
+
+  private void refill() {
+    for (Map.Entry<String, H2oPlan> profile : profiles.entrySet()) {
+      if (!leader) {
+        return;
+      }
+      try {
+        refill(profile.getKey(), profile.getValue());
+      } catch (Exception e) {
+        LOGGER.warn("Unable to refill pool of h2o clusters " + profile.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * Starts clusters missing in the pool and kills the ones above its size.
+   */
+  private void refill(String profile, H2oPlan plan) throws Exception {
+    String profileNode = ZKPaths.makePath(idleNode, profile);
+    List<String> idle = zkClient.getChildren().usingWatcher(idleWatcher).forPath(profileNode);
+    idleClusters.put(profile, idle.size());
+    String markers = ZKPaths.makePath(spawningNode, profile);
+    int starting = zkClient.getChildren().forPath(markers).size();
+    for (int i = idle.size() + starting; i < plan.getPoolSize() && leader; i++) {
+      spawn(markers, profileNode, plan);
+    }
+    for (String cluster : idle.subList(0, Math.max(0, idle.size() - plan.getPoolSize()))) {
+      remove(ZKPaths.makePath(profileNode, cluster), cluster);
+    }
+  }
+
+  private void spawn(String markers, String profileNode, H2oPlan plan) throws Exception {
+    String cluster = CLUSTER_PREFIX + UUID.randomUUID();
+    String marker = ZKPaths.makePath(markers, cluster);
+    // claimed first, so a new leader never takes the marker for abandoned while this replica lives
+    if (!provisioningClaims.claim(cluster)) {
+      return;
+    }
+    try {
+      zkClient.create().forPath(marker);
+    } catch (Exception e) {
+      provisioningClaims.release(cluster);
+      throw e;
+    }
+    spawning.add(cluster);
+    spawner.execute(() -> {
+      try {
+        H2oCredentials credentials = delegate.provisionInstance(cluster, plan);
+        publish(cluster, marker, ZKPaths.makePath(profileNode, cluster), credentials);
+      } catch (ServiceBrokerException e) {
+        spawnFailures.increment();
+        LOGGER.warn("Unable to start pooled h2o cluster '" + cluster + "'", e);
+        deleteQuietly(marker);
+      } finally {
+        spawning.remove(cluster);
+        provisioningClaims.release(cluster);
+      }
+    });
+  }
+
+  private void publish(String cluster, String marker, String idlePath,
+      H2oCredentials credentials) {
+    try {
+      // fails if a new leader took the marker for abandoned and killed the cluster
+      zkClient.inTransaction()
+          .delete().forPath(marker).and()
+          .create().forPath(idlePath, mapper.writeValueAsBytes(credentials)).and()
+          .commit();
+      LOGGER.info("Started pooled h2o cluster '" + cluster + "'");
+    } catch (Exception e) {
+      LOGGER.warn("Unable to add h2o cluster '" + cluster + "' to pool, killing it", e);
+      kill(cluster);
+      deleteQuietly(marker);
+    }
+  }
+
+  private void remove(String idlePath, String cluster) throws Exception {
+    try {
+      zkClient.delete().forPath(idlePath);
+    } catch (KeeperException.NoNodeException e) {
+      // assigned meanwhile
+      return;
+    }
+    LOGGER.info("Killing idle h2o cluster '" + cluster + "' not needed in pool");
+    spawner.execute(() -> kill(cluster));
+  }
+
+  /**
+   * Kills clusters whose start was interrupted, and idle clusters of profiles no plan uses.
+   */
+  private void killAbandonedClusters() {
+    try {
+      Set<String> claimed = provisioningClaims.getClaimed();
+      for (String profile : zkClient.getChildren().forPath(spawningNode)) {
+        String markers = ZKPaths.makePath(spawningNode, profile);
+        for (String cluster : zkClient.getChildren().forPath(markers)) {
+          if (!spawning.contains(cluster) && !claimed.contains(cluster)) {
+            LOGGER.info("Killing h2o cluster '" + cluster + "' abandoned while starting");
+            kill(cluster);
+            deleteQuietly(ZKPaths.makePath(markers, cluster));
+          }
+        }
+      }
+      for (String profile : zkClient.getChildren().forPath(idleNode)) {
+        if (!profiles.containsKey(profile)) {
+          String profileNode = ZKPaths.makePath(idleNode, profile);
+          for (String cluster : zkClient.getChildren().forPath(profileNode)) {
+            remove(ZKPaths.makePath(profileNode, cluster), cluster);
+          }
+        }
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Unable to look for abandoned h2o clusters", e);
+    }
+  }
+
+  private void kill(String cluster) {
+    try {
+      delegate.deprovisionInstance(cluster);
+    } catch (ServiceBrokerException e) {
+      LOGGER.error("Unable to kill pooled h2o cluster '" + cluster + "', its YARN job has to be"
+          + " killed manually", e);
+    }
+  }
+
+  private void deleteQuietly(String path) {
+    try {
+      zkClient.delete().forPath(path);
+    } catch (KeeperException.NoNodeException e) {
+      // already removed
+    } catch (Exception e) {
+      LOGGER.warn("Unable to remove '" + path + "'", e);
+    }
+  }
+}
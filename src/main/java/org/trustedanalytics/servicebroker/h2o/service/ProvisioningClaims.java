@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperNodeOperations;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes sure a provisioning job runs on one broker replica only. A replica claims the job by
+ * creating an ephemeral znode named after the service instance and holds the claim while the job
+ * is queued, running or waiting for a retry. Claims of a crashed replica expire with its session,
+ * so the job can be taken over by another one.
+ */
+public class ProvisioningClaims implements ConnectionStateListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningClaims.class);
+
+  private final CuratorFramework zkClient;
+  private final String rootNode;
+  private final byte[] replicaId;
+  private final Set<String> held = ConcurrentHashMap.newKeySet();
+
+  public ProvisioningClaims(CuratorFramework zkClient, String rootNode, String replicaId) {
+    this.zkClient = zkClient;
+    this.rootNode = rootNode;
+    this.replicaId = replicaId.getBytes(StandardCharsets.UTF_8);
+  }
+
+  public void start() throws Exception {
+    ZookeeperNodeOperations.createIfNotExists(zkClient, rootNode);
+  }
+
+  /**
+   * Returns true if the job is claimed by this replica now or was claimed by it before, false if
+   * another replica holds it.
+   */
+  public boolean claim(String instanceId) throws IOException {
+    try {
+      create(instanceId);
+    } catch (KeeperException.NodeExistsException e) {
+      if (!isOwn(instanceId)) {
+        return false;
+      }
+    } catch (Exception e) {
+      throw new IOException("Unable to claim provisioning of '" + instanceId + "'", e);
+    }
+    held.add(instanceId);
+    return true;
+  }
+
+  /**
+   * Gives up the claim if held by this replica. Failures are only logged, the claim expires with
+   * the session at the latest.
+   */
+  public void release(String instanceId) {
+    if (!held.remove(instanceId)) {
+      return;
+    }
+    String path = ZKPaths.makePath(rootNode, instanceId);
+    try {
+      Stat stat = new Stat();
+      byte[] owner = zkClient.getData().storingStatIn(stat).forPath(path);
+      if (Arrays.equals(owner, replicaId)) {
+        zkClient.delete().withVersion(stat.getVersion()).forPath(path);
+      }
+    } catch (KeeperException.NoNodeException e) {
+      LOGGER.debug("Claim of '" + instanceId + "' already expired");
+    } catch (Exception e) {
+      LOGGER.warn("Unable to release claim of '" + instanceId + "'", e);
+    }
+  }
+
+  /**
+   * Returns ids of all instances with jobs claimed by any replica, in a single read.
+   */
+  public Set<String> getClaimed() throws IOException {
+    try {
+      return new HashSet<>(zkClient.getChildren().forPath(rootNode));
+    } catch (Exception e) {
+      throw new IOException("Unable to list provisioning claims", e);
+    }
+  }
+
+  /**
+   * Returns true if another replica holds the claim of the instance's job.
+   */
+  public boolean isClaimedByOther(String instanceId) throws IOException {
+    try {
+      byte[] owner = zkClient.getData().forPath(ZKPaths.makePath(rootNode, instanceId));
+      return !Arrays.equals(owner, replicaId);
+    } catch (KeeperException.NoNodeException e) {
+      return false;
+    } catch (Exception e) {
+      throw new IOException("Unable to read provisioning claim of '" + instanceId + "'", e);
+    }
+  }
+
+  public int getHeld() {
+    return held.size();
+  }
+
+  @Override
+  public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    if (newState != ConnectionState.RECONNECTED) {
+      return;
+    }
+    // claims are gone if the session expired, take them again unless another replica was faster
+    for (String instanceId : held) {
+      try {
+        create(instanceId);
+        LOGGER.info("Restored expired claim of '" + instanceId + "'");
+      } catch (KeeperException.NodeExistsException e) {
+        if (!isOwn(instanceId)) {
+          LOGGER.warn("Provisioning of '" + instanceId + "' was taken over by another replica");
+          held.remove(instanceId);
+        }
+      } catch (Exception e) {
+        LOGGER.error("Unable to restore claim of '" + instanceId + "'", e);
+      }
+    }
+  }
+
+  private void create(String instanceId) throws Exception {
+    zkClient.create().withMode(CreateMode.EPHEMERAL)
+        .forPath(ZKPaths.makePath(rootNode, instanceId), replicaId);
+  }
+
+  private boolean isOwn(String instanceId) {
+    try {
+      byte[] owner = zkClient.getData().forPath(ZKPaths.makePath(rootNode, instanceId));
+      return Arrays.equals(owner, replicaId);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
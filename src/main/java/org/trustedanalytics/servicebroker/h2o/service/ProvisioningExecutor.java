@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs provisioning jobs on a bounded pool of workers fed by a bounded queue. Jobs that do not fit
+ * into the queue are rejected up front, so a burst of create requests cannot exhaust broker memory
+ * or flood the h2o-provisioner.
+ */
+public class ProvisioningExecutor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningExecutor.class);
+
+  private final ThreadPoolExecutor executor;
+  private final long shutdownTimeoutSeconds;
+  private final ConcurrentMap<String, TimedJob> queuedJobs = new ConcurrentHashMap<>();
+
+  private final LongAdder submittedJobs = new LongAdder();
+  private final LongAdder rejectedJobs = new LongAdder();
+  private final LongAdder completedJobs = new LongAdder();
+  private final LongAdder cancelledJobs = new LongAdder();
+  private final LongAdder totalQueueWaitMillis = new LongAdder();
+  private final LongAdder totalRunMillis = new LongAdder();
+
+  public ProvisioningExecutor(int workers, int queueCapacity, long shutdownTimeoutSeconds) {
+    this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        new ThreadFactoryBuilder().setNameFormat("h2o-provisioning-%d").build(),
+        new ThreadPoolExecutor.AbortPolicy());
+    this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+  }
+
+  public void submit(String instanceId, Runnable job) throws ServiceBrokerException {
+    TimedJob timedJob = new TimedJob(instanceId, job);
+    queuedJobs.put(instanceId, timedJob);
+    try {
+      executor.execute(timedJob);
+      submittedJobs.increment();
+    } catch (RejectedExecutionException e) {
+      queuedJobs.remove(instanceId, timedJob);
+      rejectedJobs.increment();
+      LOGGER.warn("Provisioning queue is full, rejecting job for '" + instanceId + "'");
+      throw new ServiceBrokerException(
+          "Broker is busy provisioning other h2o instances, please retry later", e);
+    }
+  }
+
+  /**
+   * Removes a job of given instance from the queue. Returns false if there is no such job or a
+   * worker already took it.
+   */
+  public boolean cancel(String instanceId) {
+    TimedJob job = queuedJobs.remove(instanceId);
+    if (job == null || !executor.remove(job)) {
+      return false;
+    }
+    cancelledJobs.increment();
+    LOGGER.info("Removed provisioning job for '" + instanceId + "' from queue");
+    return true;
+  }
+
+  public void shutdown() throws InterruptedException {
+    LOGGER.info("Draining provisioning queue: " + executor.getQueue().size() + " queued, "
+        + executor.getActiveCount() + " running");
+    executor.shutdown();
+    if (!executor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+      LOGGER.warn("Provisioning jobs not finished after " + shutdownTimeoutSeconds
+          + "s, abandoning " + executor.shutdownNow().size() + " queued jobs");
+    }
+  }
+
+  public int getQueuedJobs() {
+    return executor.getQueue().size();
+  }
+
+  public int getRunningJobs() {
+    return executor.getActiveCount();
+  }
+
+  public long getSubmittedJobs() {
+    return submittedJobs.sum();
+  }
+
+  public long getRejectedJobs() {
+    return rejectedJobs.sum();
+  }
+
+  public long getCompletedJobs() {
+    return completedJobs.sum();
+  }
+
+  public long getCancelledJobs() {
+    return cancelledJobs.sum();
+  }
+
+  public long getTotalQueueWaitMillis() {
+    return totalQueueWaitMillis.sum();
+  }
+
+  public long getTotalRunMillis() {
+    return totalRunMillis.sum();
+  }
+
+  private class TimedJob implements Runnable {
+
+    private final String instanceId;
+    private final Runnable job;
+    private final long enqueuedAt = System.nanoTime();
+
+    private TimedJob(String instanceId, Runnable job) {
+      this.instanceId = instanceId;
+      this.job = job;
+    }
+
+    @Override
+    public void run() {
+      queuedJobs.remove(instanceId, this);
+      long startedAt = System.nanoTime();
+      long queueWait = TimeUnit.NANOSECONDS.toMillis(startedAt - enqueuedAt);
+      try {
+        job.run();
+      } finally {
+        long runTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        totalQueueWaitMillis.add(queueWait);
+        totalRunMillis.add(runTime);
+        completedJobs.increment();
+        LOGGER.info("Provisioning job for '" + instanceId + "' waited " + queueWait
+            + " ms in queue and ran " + runTime + " ms");
+      }
+    }
+  }
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2o.helper.LeaderElection;
+import org.trustedanalytics.servicebroker.h2o.store.ZnodeLayout;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Repairs instances left half-created or half-deleted by a broker crash. Instances are diffed
+ * using whole child listings of the metadata and credentials znodes (or of their buckets) plus the
+ * in-memory mirror of provisioning states, so instances are never read one by one. Repairs are
+ * executed on a bounded pool.
+ *
+ * <p>Periodic runs repair only instances found inconsistent by the previous run as well, so
+ * requests being handled while the znodes are listed are not mistaken for leftovers. The first
+ * run repairs right away if this broker is the only replica, because no request has been accepted
+ * yet. With several replicas, runs happen only on the elected leader, and jobs claimed by any
+ * replica are never taken for abandoned.
+ */
+public class ProvisioningReconciler implements LeaderElection.Listener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningReconciler.class);
+
+  public enum Action {
+    PROVISION, DEPROVISION, REMOVE_STATE
+  }
+
+  private final CuratorFramework zkClient;
+  private final String metadataNode;
+  private final ZnodeLayout metadataLayout;
+  private final String credentialsNode;
+  private final ZnodeLayout credentialsLayout;
+  private final H2oProvisioner h2oProvisioner;
+  private final BrokerStore<H2oCredentials> credentialsStore;
+  private final ProvisioningScheduler provisioningScheduler;
+  private final ProvisioningStateStore provisioningStateStore;
+  private final long intervalSeconds;
+  private final ExecutorService repairPool;
+  private final ScheduledExecutorService timer;
+  private final Map<Action, LongAdder> repairs = new EnumMap<>(Action.class);
+  private final LongAdder runs = new LongAdder();
+
+  private Set<String> suspects = new HashSet<>();
+  private volatile long lastRunMillis;
+  private ScheduledFuture<?> periodicRuns;
+
+  public ProvisioningReconciler(CuratorFramework zkClient, String metadataNode,
+      ZnodeLayout metadataLayout, String credentialsNode, ZnodeLayout credentialsLayout,
+      H2oProvisioner h2oProvisioner,
+      BrokerStore<H2oCredentials> credentialsStore, ProvisioningScheduler provisioningScheduler,
+      ProvisioningStateStore provisioningStateStore, int parallelism, long intervalSeconds) {
+    this.zkClient = zkClient;
+    this.metadataNode = metadataNode;
+    this.metadataLayout = metadataLayout;
+    this.credentialsNode = credentialsNode;
+    this.credentialsLayout = credentialsLayout;
+    this.h2oProvisioner = h2oProvisioner;
+    this.credentialsStore = credentialsStore;
+    this.provisioningScheduler = provisioningScheduler;
+    this.provisioningStateStore = provisioningStateStore;
+    this.intervalSeconds = intervalSeconds;
+    this.repairPool = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setNameFormat("h2o-reconciler-%d").setDaemon(true).build());
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("h2o-reconciler-timer-%d").setDaemon(true)
+            .build());
+    for (Action action : Action.values()) {
+      repairs.put(action, new LongAdder());
+    }
+  }
+
+  /**
+   * Starts reconciling in background, so slow provisioner calls do not delay the broker startup.
+   */
+  @Override
+  public synchronized void onElected(int participants) {
+    boolean alone = participants <= 1;
+    timer.execute(() -> {
+      try {
+        repair(diff(alone));
+      } catch (Exception e) {
+        LOGGER.error("Reconciliation of h2o instances failed", e);
+      }
+    });
+    if (intervalSeconds > 0) {
+      periodicRuns = timer.scheduleWithFixedDelay(this::reconcileSafely, intervalSeconds,
+          intervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  @Override
+  public synchronized void onRevoked() {
+    if (periodicRuns != null) {
+      periodicRuns.cancel(false);
+      periodicRuns = null;
+    }
+    clearSuspects();
+  }
+
+  public void shutdown() {
+    timer.shutdownNow();
+    repairPool.shutdownNow();
+  }
+
+  @VisibleForTesting
+  int reconcile() throws Exception {
+    return repair(diff(false));
+  }
+
+  public long getRepairs(Action action) {
+    return repairs.get(action).sum();
+  }
+
+  public long getRuns() {
+    return runs.sum();
+  }
+
+  public long getLastRunMillis() {
+    return lastRunMillis;
+  }
+
+  private void reconcileSafely() {
+    try {
+      reconcile();
+    } catch (Exception e) {
+      LOGGER.error("Reconciliation of h2o instances failed", e);
+    }
+  }
+
+  private synchronized void clearSuspects() {
+    suspects = new HashSet<>();
+  }
+
+  private synchronized List<Repair> diff(boolean startup) throws Exception {
+    long start = System.currentTimeMillis();
+    Set<String> instances = metadataLayout.listIds(zkClient, metadataNode);
+    Set<String> withCredentials = credentialsLayout.listIds(zkClient, credentialsNode);
+    Set<String> claimed = provisioningScheduler.getClaimedJobs();
+    Map<String, ProvisioningState> states = provisioningStateStore.getAll();
+
+    Map<String, Repair> found = new HashMap<>();
+    for (String instanceId : instances) {
+      ProvisioningState state = states.get(instanceId);
+      // a resized instance keeps the credentials of its old cluster until the resize is done
+      if ((!withCredentials.contains(instanceId) || isUnfinishedResize(state))
+          && !claimed.contains(instanceId) && isAbandoned(instanceId, state)) {
+        found.put(instanceId, new Repair(instanceId, Action.PROVISION, state));
+      }
+    }
+    for (String instanceId : withCredentials) {
+      if (!instances.contains(instanceId)) {
+        found.put(instanceId, new Repair(instanceId, Action.DEPROVISION, null));
+      }
+    }
+    for (String instanceId : states.keySet()) {
+      if (!instances.contains(instanceId) && !withCredentials.contains(instanceId)) {
+        found.put(instanceId, new Repair(instanceId, Action.REMOVE_STATE, null));
+      }
+    }
+
+    List<Repair> confirmed = found.values().stream()
+        .filter(repair -> startup || suspects.contains(repair.instanceId))
+        .collect(Collectors.toList());
+    suspects = new HashSet<>(found.keySet());
+    confirmed.forEach(repair -> suspects.remove(repair.instanceId));
+
+    LOGGER.info("Compared " + instances.size() + " instances with " + withCredentials.size()
+        + " credentials in " + (System.currentTimeMillis() - start) + " ms: "
+        + confirmed.size() + " to repair, " + suspects.size() + " to recheck");
+    return confirmed;
+  }
+
+  private boolean isUnfinishedResize(ProvisioningState state) {
+    return state != null && state.getOperation() == ProvisioningState.Operation.RESIZE
+        && state.getStatus() != ProvisioningState.Status.SUCCEEDED
+        && state.getStatus() != ProvisioningState.Status.FAILED;
+  }
+
+  private boolean isAbandoned(String instanceId, ProvisioningState state) {
+    if (state == null) {
+      return true;
+    }
+    switch (state.getStatus()) {
+      case QUEUED:
+      case IN_PROGRESS:
+      case RETRY_SCHEDULED:
+        return !provisioningScheduler.isPending(instanceId);
+      case SUCCEEDED:
+        LOGGER.warn("H2o instance '" + instanceId + "' was provisioned but has no credentials");
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  private int repair(List<Repair> found) {
+    long start = System.currentTimeMillis();
+    List<Callable<Boolean>> tasks = new ArrayList<>();
+    found.forEach(repair -> tasks.add(() -> apply(repair)));
+    int repaired = 0;
+    try {
+      for (Future<Boolean> result : repairPool.invokeAll(tasks)) {
+        try {
+          repaired += result.get() ? 1 : 0;
+        } catch (ExecutionException e) {
+          LOGGER.error("Unexpected failure of h2o instance repair", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    lastRunMillis = System.currentTimeMillis() - start;
+    runs.increment();
+    if (!found.isEmpty()) {
+      LOGGER.info("Repaired " + repaired + " of " + found.size() + " h2o instances in "
+          + lastRunMillis + " ms");
+    }
+    return repaired;
+  }
+
+  private boolean apply(Repair repair) {
+    String instanceId = repair.instanceId;
+    try {
+      switch (repair.action) {
+        case PROVISION:
+          ProvisioningState state =
+              repair.state != null ? repair.state : ProvisioningState.queued();
+          if (state.getStatus() == ProvisioningState.Status.RETRY_SCHEDULED) {
+            if (!provisioningScheduler.resume(instanceId, state)) {
+              return false;
+            }
+            LOGGER.info("Took over abandoned provisioning retry of '" + instanceId + "'");
+            break;
+          }
+          provisioningStateStore.save(instanceId, state);
+          provisioningScheduler.submit(instanceId, state);
+          LOGGER.info("Resubmitted abandoned provisioning of '" + instanceId + "'");
+          break;
+        case DEPROVISION:
+          h2oProvisioner.deprovisionInstance(instanceId);
+          credentialsStore.deleteById(Location.newInstance(instanceId));
+          provisioningStateStore.delete(instanceId);
+          LOGGER.info("Finished interrupted removal of '" + instanceId + "'");
+          break;
+        default:
+          provisioningStateStore.delete(instanceId);
+          LOGGER.info("Removed stale provisioning state of '" + instanceId + "'");
+      }
+      repairs.get(repair.action).increment();
+      return true;
+    } catch (ServiceBrokerException | IOException e) {
+      // found again by the next runs
+      LOGGER.warn("Unable to " + repair.action + " '" + instanceId + "'", e);
+      return false;
+    }
+  }
+
+  private static class Repair {
+
+    private final String instanceId;
+    private final Action action;
+    private final ProvisioningState state;
+
+    private Repair(String instanceId, Action action, ProvisioningState state) {
+      this.instanceId = instanceId;
+      this.action = action;
+      this.state = state;
+    }
+  }
+}
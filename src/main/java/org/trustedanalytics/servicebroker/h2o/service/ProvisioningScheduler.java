@@ -0,0 +1,452 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Submits provisioning jobs to the {@link ProvisioningExecutor} and retries the ones that failed
+ * on h2o-provisioner errors, with backoff given by the {@link RetryPolicy}. A pending retry is
+ * persisted as {@link ProvisioningState.Status#RETRY_SCHEDULED} state, so a restarted broker
+ * resumes it instead of leaving the instance without credentials.
+ *
+ * <p>Each job is claimed through {@link ProvisioningClaims} before it is queued and stays claimed
+ * until it succeeds or fails for good, so with several broker replicas every job runs on exactly
+ * one of them. Retries of a replica which went away are resumed by another one.
+ *
+ * <p>Jobs of deleted instances are cancelled: a queued job is dropped before it reaches the
+ * h2o-provisioner, a running one is abandoned and kills the h2o it spawns.
+ *
+ * <p>Resize jobs start a cluster of the new size beside the current one, swap the credentials of
+ * the instance and kill the old cluster only then, so bindings always get a running cluster. A
+ * resize which fails for good leaves the instance with its old cluster.
+ */
+public class ProvisioningScheduler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningScheduler.class);
+
+  private final PooledH2oProvisioner h2oProvisioner;
+  private final H2oPlans h2oPlans;
+  private final BrokerStore<H2oCredentials> credentialsStore;
+  private final ProvisioningExecutor provisioningExecutor;
+  private final ProvisioningStateStore provisioningStateStore;
+  private final ProvisioningClaims provisioningClaims;
+  private final InstanceLocks instanceLocks;
+  private final RetryPolicy retryPolicy;
+  private final ScheduledExecutorService timer;
+  private final ConcurrentMap<String, ScheduledFuture<?>> retries = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, ProvisioningJob> activeJobs = new ConcurrentHashMap<>();
+  private final LongAdder retriedJobs = new LongAdder();
+  private final LongAdder abandonedJobs = new LongAdder();
+
+  public ProvisioningScheduler(PooledH2oProvisioner h2oProvisioner, H2oPlans h2oPlans,
+      BrokerStore<H2oCredentials> credentialsStore, ProvisioningExecutor provisioningExecutor,
+      ProvisioningStateStore provisioningStateStore, ProvisioningClaims provisioningClaims,
+      InstanceLocks instanceLocks, RetryPolicy retryPolicy) {
+    this.h2oProvisioner = h2oProvisioner;
+    this.h2oPlans = h2oPlans;
+    this.credentialsStore = credentialsStore;
+    this.provisioningExecutor = provisioningExecutor;
+    this.provisioningStateStore = provisioningStateStore;
+    this.provisioningClaims = provisioningClaims;
+    this.instanceLocks = instanceLocks;
+    this.retryPolicy = retryPolicy;
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("h2o-provisioning-retry-%d").setDaemon(true)
+            .build());
+  }
+
+  /**
+   * Schedules retries persisted by previous broker runs and not claimed by other replicas.
+   * Overdue ones are submitted right away.
+   */
+  public void start() {
+    provisioningStateStore.getAll().forEach((instanceId, state) -> {
+      if (state.getStatus() == ProvisioningState.Status.RETRY_SCHEDULED) {
+        resume(instanceId, state);
+      }
+    });
+    LOGGER.info("Resumed " + retries.size() + " scheduled provisioning retries");
+  }
+
+  public void submit(String instanceId, ProvisioningState state) throws ServiceBrokerException {
+    claim(instanceId);
+    ProvisioningJob job = new ProvisioningJob(instanceId, state);
+    activeJobs.put(instanceId, job);
+    try {
+      provisioningExecutor.submit(instanceId, job);
+    } catch (ServiceBrokerException e) {
+      activeJobs.remove(instanceId, job);
+      provisioningClaims.release(instanceId);
+      throw e;
+    }
+  }
+
+  /**
+   * Takes over a retry scheduled by a replica which no longer holds its claim. Returns false if
+   * another replica claimed it meanwhile.
+   */
+  public boolean resume(String instanceId, ProvisioningState state) {
+    try {
+      if (!provisioningClaims.claim(instanceId)) {
+        return false;
+      }
+    } catch (IOException e) {
+      LOGGER.error("Unable to resume provisioning retry of '" + instanceId + "'", e);
+      return false;
+    }
+    scheduleRetry(instanceId, state);
+    return true;
+  }
+
+  /**
+   * Returns true if this broker has a queued, running or scheduled provisioning job for the
+   * instance.
+   */
+  public boolean isPending(String instanceId) {
+    return activeJobs.containsKey(instanceId) || retries.containsKey(instanceId);
+  }
+
+  /**
+   * Returns ids of instances with provisioning jobs claimed by any broker replica.
+   */
+  public Set<String> getClaimedJobs() throws IOException {
+    return provisioningClaims.getClaimed();
+  }
+
+  /**
+   * Returns true if another broker replica runs or schedules the provisioning job of the
+   * instance. Such a job drops or kills whatever it provisions once it notices the instance was
+   * deleted.
+   */
+  public boolean isClaimedByOtherReplica(String instanceId) throws IOException {
+    return provisioningClaims.isClaimedByOther(instanceId);
+  }
+
+  /**
+   * Cancels a retry scheduled by this broker. A retry scheduled by another replica notices the
+   * removed provisioning state when it is due and gives up its claim.
+   */
+  public void cancelRetry(String instanceId) {
+    ScheduledFuture<?> retry = retries.remove(instanceId);
+    if (retry != null) {
+      retry.cancel(false);
+      provisioningClaims.release(instanceId);
+      LOGGER.info("Cancelled scheduled provisioning retry of '" + instanceId + "'");
+    }
+  }
+
+  /**
+   * Cancels the queued or running provisioning job of an instance being deleted. A queued job is
+   * dropped without calling the h2o-provisioner. A running one is abandoned rather than
+   * interrupted, because a batched provisioner call spawns h2o regardless of its caller; the job
+   * kills whatever it spawns once the call returns. Must be called under the instance lock.
+   *
+   * @return true if the job takes care of h2o, false if there is no job or it already created h2o
+   *     which has to be deprovisioned by the caller
+   */
+  public boolean cancel(String instanceId) {
+    ProvisioningJob job = activeJobs.get(instanceId);
+    if (job == null || !job.cancel()) {
+      return false;
+    }
+    if (provisioningExecutor.cancel(instanceId)) {
+      activeJobs.remove(instanceId, job);
+      provisioningClaims.release(instanceId);
+    } else {
+      abandonedJobs.increment();
+      LOGGER.info("Abandoned running provisioning job of '" + instanceId + "'");
+    }
+    return true;
+  }
+
+  /**
+   * Stops the timer. Pending retries stay persisted and are resumed by the next {@link #start()}.
+   */
+  public void shutdown() {
+    LOGGER.info("Leaving " + retries.size() + " provisioning retries for the next broker start");
+    timer.shutdownNow();
+  }
+
+  public int getScheduledRetries() {
+    return retries.size();
+  }
+
+  public long getRetriedJobs() {
+    return retriedJobs.sum();
+  }
+
+  public long getAbandonedJobs() {
+    return abandonedJobs.sum();
+  }
+
+  private void scheduleRetry(String instanceId, ProvisioningState state) {
+    long delay = Math.max(0, state.getNextAttemptAt() - System.currentTimeMillis());
+    // compute holds the key until the future is stored, so a retry due immediately cannot
+    // remove its entry before it is put
+    retries.compute(instanceId,
+        (id, old) -> timer.schedule(() -> retry(id), delay, TimeUnit.MILLISECONDS));
+  }
+
+  private void retry(String instanceId) {
+    retries.remove(instanceId);
+    Optional<ProvisioningState> state = provisioningStateStore.get(instanceId);
+    if (!state.isPresent()
+        || state.get().getStatus() != ProvisioningState.Status.RETRY_SCHEDULED) {
+      LOGGER.info("Provisioning of '" + instanceId + "' no longer awaits retry, skipping it");
+      provisioningClaims.release(instanceId);
+      return;
+    }
+    try {
+      submit(instanceId, state.get());
+      retriedJobs.increment();
+    } catch (ServiceBrokerException e) {
+      long delay = retryPolicy.getDelayMillis(state.get().getAttempts());
+      ProvisioningState postponed = state.get().retryScheduled(state.get().getError(),
+          System.currentTimeMillis() + delay);
+      if (e.getCause() instanceof RejectedExecutionException) {
+        // queue is full, postpone without spending an attempt
+        LOGGER.warn("Provisioning queue is full, postponing retry of '" + instanceId + "' by "
+            + delay + " ms");
+        // the rejected submit gave up the claim
+        if (updateState(instanceId, postponed)) {
+          resume(instanceId, postponed);
+        }
+      } else if (e.getCause() instanceof IOException) {
+        // the claim could not be checked, the persisted state stays as it is
+        LOGGER.warn("Unable to claim provisioning retry of '" + instanceId + "', trying again in "
+            + delay + " ms", e);
+        scheduleRetry(instanceId, postponed);
+      } else {
+        LOGGER.info("Provisioning retry of '" + instanceId + "' was claimed by another broker"
+            + " replica, leaving it to that replica");
+      }
+    }
+  }
+
+  private void claim(String instanceId) throws ServiceBrokerException {
+    try {
+      if (!provisioningClaims.claim(instanceId)) {
+        throw new ServiceBrokerException(
+            "Provisioning of '" + instanceId + "' is handled by another broker replica");
+      }
+    } catch (IOException e) {
+      throw new ServiceBrokerException(e);
+    }
+  }
+
+  /**
+   * Returns false if the instance was deleted meanwhile, so its job must not go on.
+   */
+  private boolean updateState(String instanceId, ProvisioningState state) {
+    try {
+      if (provisioningStateStore.update(instanceId, state)) {
+        return true;
+      }
+      LOGGER.info("Service instance '" + instanceId + "' was deleted, dropping its provisioning");
+      return false;
+    } catch (IOException e) {
+      LOGGER.error("Unable to save provisioning state " + state.getStatus() + " of '"
+          + instanceId + "'", e);
+      return true;
+    }
+  }
+
+  private class ProvisioningJob implements Runnable {
+
+    private final String instanceId;
+    private ProvisioningState state;
+    // both change under the instance lock only
+    private volatile boolean cancelled;
+    private volatile boolean provisioned;
+
+    private ProvisioningJob(String instanceId, ProvisioningState state) {
+      this.instanceId = instanceId;
+      this.state = state;
+    }
+
+    @Override
+    public void run() {
+      try {
+        provision();
+      } finally {
+        activeJobs.remove(instanceId, this);
+        if (state.getStatus() != ProvisioningState.Status.RETRY_SCHEDULED) {
+          provisioningClaims.release(instanceId);
+        }
+      }
+    }
+
+    /**
+     * Spawns h2o without holding the instance lock, so a delete is never blocked for minutes.
+     * Removal of the instance is checked under the lock before and after, and h2o spawned for
+     * an instance deleted meanwhile is killed again.
+     */
+    private void provision() {
+      try (InstanceLocks.Handle lock = instanceLocks.lock(instanceId, "provision")) {
+        if (cancelled || isRemoved() || !updateState(state.inProgress())) {
+          return;
+        }
+      } catch (ServiceBrokerException e) {
+        state = state.inProgress();
+        onProvisioningFailure(e);
+        return;
+      }
+
+      boolean resize = state.getOperation() == ProvisioningState.Operation.RESIZE;
+      H2oCredentials credentials;
+      try {
+        H2oPlan plan = h2oPlans.get(state.getPlanId()).withParameters(state.getParameters());
+        credentials = resize ? h2oProvisioner.provisionReplacement(instanceId, plan)
+            : h2oProvisioner.provisionInstance(instanceId, plan);
+      } catch (ServiceBrokerException e) {
+        onProvisioningFailure(e);
+        return;
+      }
+
+      try (InstanceLocks.Handle lock = instanceLocks.lock(instanceId, "provision")) {
+        if (cancelled || isRemoved()) {
+          deprovision(resize);
+          return;
+        }
+        provisioned = true;
+        if (resize) {
+          replace(credentials);
+        } else {
+          credentialsStore.save(Location.newInstance(instanceId), credentials);
+        }
+        LOGGER.info((resize ? "Resized" : "Created") + " h2o instance with address '"
+            + credentials.getHostname() + ":" + credentials.getPort() + "'");
+        updateState(state.succeeded());
+      } catch (ServiceBrokerException e) {
+        deprovision(resize);
+        onProvisioningFailure(e);
+      } catch (IOException e) {
+        LOGGER.error("Unable to save credentials of h2o instance '" + instanceId + "'", e);
+        if (resize) {
+          // the instance keeps its old cluster
+          deprovision(true);
+        }
+        updateState(state.failed(e.getMessage()));
+      }
+    }
+
+    /**
+     * Swaps the credentials of the instance for the ones of its new cluster in a single write and
+     * then switches the instance over, which kills the old cluster. Bindings read either the old
+     * or the new credentials, both of a running cluster.
+     */
+    private void replace(H2oCredentials credentials) throws IOException, ServiceBrokerException {
+      Location location = Location.newInstance(instanceId);
+      Optional<H2oCredentials> previous = credentialsStore.getById(location);
+      credentialsStore.save(location, credentials);
+      try {
+        h2oProvisioner.commitReplacement(instanceId);
+      } catch (ServiceBrokerException e) {
+        if (previous.isPresent()) {
+          credentialsStore.save(location, previous.get());
+        }
+        throw e;
+      }
+    }
+
+    private boolean cancel() {
+      if (provisioned) {
+        return false;
+      }
+      cancelled = true;
+      return true;
+    }
+
+    private boolean isRemoved() {
+      try {
+        if (provisioningStateStore.exists(instanceId)) {
+          return false;
+        }
+        LOGGER.info("Service instance '" + instanceId + "' was deleted, dropping its provisioning");
+        return true;
+      } catch (IOException e) {
+        LOGGER.warn("Unable to check if '" + instanceId + "' was deleted, assuming it was not", e);
+        return false;
+      }
+    }
+
+    /**
+     * Kills the h2o spawned by this job. For a resize, that is the new cluster only.
+     */
+    private void deprovision(boolean resize) {
+      if (resize) {
+        h2oProvisioner.abortReplacement(instanceId);
+        return;
+      }
+      try {
+        h2oProvisioner.deprovisionInstance(instanceId);
+      } catch (ServiceBrokerException e) {
+        LOGGER.error("Unable to kill h2o spawned for '" + instanceId + "', its YARN job has to"
+            + " be killed manually", e);
+      }
+    }
+
+    private void onProvisioningFailure(ServiceBrokerException e) {
+      if (cancelled) {
+        LOGGER.info("Cancelled provisioning of '" + instanceId + "' failed: " + e.getMessage());
+        return;
+      }
+      int attempts = state.getAttempts();
+      if (!retryPolicy.canRetry(attempts)) {
+        LOGGER.error("Unable to create h2o instance for '" + instanceId + "' in " + attempts
+            + " attempts", e);
+        updateState(state.failed(e.getMessage()));
+        return;
+      }
+      long delay = retryPolicy.getDelayMillis(attempts);
+      LOGGER.warn("Attempt " + attempts + " to create h2o instance for '" + instanceId
+          + "' failed, retrying in " + delay + " ms", e);
+      long nextAttemptAt = System.currentTimeMillis() + delay;
+      if (updateState(state.retryScheduled(e.getMessage(), nextAttemptAt))) {
+        scheduleRetry(instanceId, state);
+      }
+    }
+
+    /**
+     * Keeps the previous state if the instance was deleted meanwhile, so its claim is released.
+     */
+    private boolean updateState(ProvisioningState newState) {
+      if (!ProvisioningScheduler.this.updateState(instanceId, newState)) {
+        return false;
+      }
+      state = newState;
+      return true;
+    }
+  }
+}
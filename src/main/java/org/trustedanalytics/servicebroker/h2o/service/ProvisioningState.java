@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * State of the provisioning job of a single h2o instance, persisted in zookeeper so that any
+ * broker can answer last_operation polls for it.
+ */
+@Data
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ProvisioningState {
+
+  public enum Status {
+    QUEUED, IN_PROGRESS, RETRY_SCHEDULED, SUCCEEDED, FAILED, SUSPENDED
+  }
+
+  public enum Operation {
+    CREATE, RESIZE
+  }
+
+  private Status status;
+  private Operation operation = Operation.CREATE;
+  private String planId;
+  private Map<String, String> parameters = Collections.emptyMap();
+  private long queuedAt;
+  private long startedAt;
+  private long finishedAt;
+  private String error;
+  private int attempts;
+  private long nextAttemptAt;
+
+  private ProvisioningState(ProvisioningState other) {
+    this.status = other.status;
+    this.operation = other.operation;
+    this.planId = other.planId;
+    this.parameters = other.parameters;
+    this.queuedAt = other.queuedAt;
+    this.startedAt = other.startedAt;
+    this.finishedAt = other.finishedAt;
+    this.error = other.error;
+    this.attempts = other.attempts;
+    this.nextAttemptAt = other.nextAttemptAt;
+  }
+
+  /**
+   * Returns state of a job provisioning h2o of the default plan.
+   */
+  public static ProvisioningState queued() {
+    return queued(null, Collections.emptyMap());
+  }
+
+  /**
+   * Returns state of a job provisioning h2o of given plan, sized by validated instance
+   * parameters.
+   */
+  public static ProvisioningState queued(String planId, Map<String, String> parameters) {
+    ProvisioningState state = new ProvisioningState();
+    state.status = Status.QUEUED;
+    state.planId = planId;
+    state.parameters = parameters;
+    state.queuedAt = System.currentTimeMillis();
+    return state;
+  }
+
+  /**
+   * Returns state of a job replacing h2o of an existing instance by one of given plan and
+   * parameters.
+   */
+  public static ProvisioningState resizing(String planId, Map<String, String> parameters) {
+    ProvisioningState state = queued(planId, parameters);
+    state.operation = Operation.RESIZE;
+    return state;
+  }
+
+  public ProvisioningState inProgress() {
+    ProvisioningState state = new ProvisioningState(this);
+    state.status = Status.IN_PROGRESS;
+    state.startedAt = System.currentTimeMillis();
+    state.attempts = attempts + 1;
+    state.nextAttemptAt = 0;
+    return state;
+  }
+
+  public ProvisioningState retryScheduled(String error, long nextAttemptAt) {
+    ProvisioningState state = new ProvisioningState(this);
+    state.status = Status.RETRY_SCHEDULED;
+    state.nextAttemptAt = nextAttemptAt;
+    state.error = error;
+    return state;
+  }
+
+  public ProvisioningState succeeded() {
+    ProvisioningState state = new ProvisioningState(this);
+    state.status = Status.SUCCEEDED;
+    state.finishedAt = System.currentTimeMillis();
+    state.error = null;
+    return state;
+  }
+
+  /**
+   * Returns state of an instance whose idle cluster was stopped. The instance keeps its plan and
+   * parameters, so an update starts a cluster of the same size again.
+   */
+  public ProvisioningState suspended() {
+    ProvisioningState state = new ProvisioningState(this);
+    state.status = Status.SUSPENDED;
+    state.finishedAt = System.currentTimeMillis();
+    state.error = null;
+    return state;
+  }
+
+  public ProvisioningState failed(String error) {
+    ProvisioningState state = new ProvisioningState(this);
+    state.status = Status.FAILED;
+    state.finishedAt = System.currentTimeMillis();
+    state.error = error;
+    return state;
+  }
+}
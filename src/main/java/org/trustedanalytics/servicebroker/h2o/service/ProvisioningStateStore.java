@@ -0,0 +1,274 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.OperationState;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceLastOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperNodeOperations;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Keeps provisioning job states in zookeeper (one znode per service instance) and mirrors them in
+ * memory. The mirror is refreshed by zookeeper watches, so last_operation polls are served without
+ * touching zookeeper or the provisioner.
+ */
+public class ProvisioningStateStore implements ConnectionStateListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProvisioningStateStore.class);
+
+  private final CuratorFramework zkClient;
+  private final String rootNode;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final ConcurrentMap<String, Entry> states = new ConcurrentHashMap<>();
+
+  private final CuratorWatcher childrenWatcher = this::onChildrenEvent;
+  private final CuratorWatcher dataWatcher = this::onDataEvent;
+
+  public ProvisioningStateStore(CuratorFramework zkClient, String rootNode) {
+    this.zkClient = zkClient;
+    this.rootNode = rootNode;
+  }
+
+  public void start() throws Exception {
+    ZookeeperNodeOperations.createIfNotExists(zkClient, rootNode);
+    refreshChildren();
+    LOGGER.info("Loaded " + states.size() + " provisioning states from '" + rootNode + "'");
+  }
+
+  public void save(String instanceId, ProvisioningState state) throws IOException {
+    String path = ZKPaths.makePath(rootNode, instanceId);
+    try {
+      byte[] data = mapper.writeValueAsBytes(state);
+      try {
+        zkClient.setData().forPath(path, data);
+      } catch (KeeperException.NoNodeException e) {
+        zkClient.create().forPath(path, data);
+      }
+    } catch (Exception e) {
+      throw new IOException("Unable to save provisioning state of '" + instanceId + "'", e);
+    }
+    load(instanceId);
+  }
+
+  /**
+   * Overwrites the state of an existing job only, so a job finishing after its instance was
+   * deleted by any broker replica never brings the state back.
+   *
+   * @return false if the state was removed meanwhile
+   */
+  public boolean update(String instanceId, ProvisioningState state) throws IOException {
+    try {
+      zkClient.setData().forPath(ZKPaths.makePath(rootNode, instanceId),
+          mapper.writeValueAsBytes(state));
+    } catch (KeeperException.NoNodeException e) {
+      states.remove(instanceId);
+      return false;
+    } catch (Exception e) {
+      throw new IOException("Unable to update provisioning state of '" + instanceId + "'", e);
+    }
+    load(instanceId);
+    return true;
+  }
+
+  public void delete(String instanceId) throws IOException {
+    states.remove(instanceId);
+    try {
+      zkClient.delete().forPath(ZKPaths.makePath(rootNode, instanceId));
+    } catch (KeeperException.NoNodeException e) {
+      LOGGER.debug("Provisioning state of '" + instanceId + "' already removed");
+    } catch (Exception e) {
+      throw new IOException("Unable to remove provisioning state of '" + instanceId + "'", e);
+    }
+  }
+
+  /**
+   * Checks zookeeper rather than the mirror, which may lag behind removals made by other broker
+   * replicas.
+   */
+  public boolean exists(String instanceId) throws IOException {
+    try {
+      return zkClient.checkExists().forPath(ZKPaths.makePath(rootNode, instanceId)) != null;
+    } catch (Exception e) {
+      throw new IOException("Unable to check provisioning state of '" + instanceId + "'", e);
+    }
+  }
+
+  public Optional<ProvisioningState> get(String instanceId) {
+    Entry entry = states.get(instanceId);
+    return entry == null ? Optional.empty() : Optional.of(entry.state);
+  }
+
+  /**
+   * Returns a snapshot of all known provisioning states keyed by service instance id.
+   */
+  public Map<String, ProvisioningState> getAll() {
+    Map<String, ProvisioningState> all = new HashMap<>();
+    states.forEach((instanceId, entry) -> all.put(instanceId, entry.state));
+    return all;
+  }
+
+  /**
+   * Returns service instance with its last operation, or null when there is no provisioning state
+   * for it. The instance itself is loaded only once, polls get a copy of it with the precomputed
+   * operation, so concurrent polls never share a returned instance.
+   */
+  public ServiceInstance getServiceInstance(String instanceId,
+      Function<String, ServiceInstance> instanceLoader) {
+    Entry entry = states.get(instanceId);
+    if (entry == null) {
+      return null;
+    }
+    ServiceInstance instance = entry.instance;
+    if (instance == null) {
+      instance = instanceLoader.apply(instanceId);
+      if (instance == null) {
+        return null;
+      }
+      entry.instance = instance;
+    }
+    return copyOf(instance).withLastOperation(entry.lastOperation);
+  }
+
+  public void rememberServiceInstance(String instanceId, ServiceInstance instance) {
+    Entry entry = states.get(instanceId);
+    if (entry != null) {
+      entry.instance = instance;
+    }
+  }
+
+  @Override
+  public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    if (newState == ConnectionState.RECONNECTED) {
+      // the session might have expired in the meantime, taking all watches with it
+      try {
+        refreshChildren();
+        states.keySet().forEach(this::load);
+      } catch (Exception e) {
+        LOGGER.error("Unable to reload provisioning states after reconnection", e);
+      }
+    }
+  }
+
+  private void refreshChildren() throws Exception {
+    List<String> children = zkClient.getChildren().usingWatcher(childrenWatcher).forPath(rootNode);
+    Set<String> current = new HashSet<>(children);
+    states.keySet().retainAll(current);
+    for (String child : children) {
+      if (!states.containsKey(child)) {
+        load(child);
+      }
+    }
+  }
+
+  private void load(String instanceId) {
+    try {
+      byte[] data = zkClient.getData().usingWatcher(dataWatcher)
+          .forPath(ZKPaths.makePath(rootNode, instanceId));
+      ProvisioningState state = mapper.readValue(data, ProvisioningState.class);
+      states.compute(instanceId,
+          (id, old) -> new Entry(state, old == null ? null : old.instance));
+    } catch (KeeperException.NoNodeException e) {
+      states.remove(instanceId);
+    } catch (Exception e) {
+      LOGGER.error("Unable to load provisioning state of '" + instanceId + "'", e);
+    }
+  }
+
+  private void onChildrenEvent(WatchedEvent event) throws Exception {
+    if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged) {
+      refreshChildren();
+    }
+  }
+
+  private void onDataEvent(WatchedEvent event) {
+    String instanceId = ZKPaths.getNodeFromPath(event.getPath());
+    if (event.getType() == Watcher.Event.EventType.NodeDataChanged) {
+      load(instanceId);
+    } else if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+      states.remove(instanceId);
+    }
+  }
+
+  private static ServiceInstance copyOf(ServiceInstance instance) {
+    return new ServiceInstance(new CreateServiceInstanceRequest(
+        instance.getServiceDefinitionId(), instance.getPlanId(), instance.getOrganizationGuid(),
+        instance.getSpaceGuid()).withServiceInstanceId(instance.getServiceInstanceId()))
+        .withDashboardUrl(instance.getDashboardUrl());
+  }
+
+  private static ServiceInstanceLastOperation toLastOperation(ProvisioningState state) {
+    boolean resize = state.getOperation() == ProvisioningState.Operation.RESIZE;
+    switch (state.getStatus()) {
+      case QUEUED:
+        return new ServiceInstanceLastOperation("Waiting for free provisioning worker",
+            OperationState.IN_PROGRESS);
+      case IN_PROGRESS:
+        return new ServiceInstanceLastOperation(
+            resize ? "Provisioning resized h2o on YARN" : "Provisioning h2o on YARN",
+            OperationState.IN_PROGRESS);
+      case RETRY_SCHEDULED:
+        return new ServiceInstanceLastOperation("Attempt " + state.getAttempts()
+            + " to provision h2o failed, retrying: " + state.getError(),
+            OperationState.IN_PROGRESS);
+      case SUCCEEDED:
+        return new ServiceInstanceLastOperation(
+            resize ? "H2o instance resized" : "H2o instance created", OperationState.SUCCEEDED);
+      case SUSPENDED:
+        return new ServiceInstanceLastOperation(
+            "H2o cluster was stopped after being idle, update the instance to start it again",
+            OperationState.SUCCEEDED);
+      default:
+        return new ServiceInstanceLastOperation(
+            (resize ? "Unable to resize h2o instance, it keeps its previous size: "
+                : "Unable to create h2o instance: ") + state.getError(), OperationState.FAILED);
+    }
+  }
+
+  private static class Entry {
+
+    private final ProvisioningState state;
+    private final ServiceInstanceLastOperation lastOperation;
+    private volatile ServiceInstance instance;
+
+    private Entry(ProvisioningState state, ServiceInstance instance) {
+      this.state = state;
+      this.lastOperation = toLastOperation(state);
+      this.instance = instance;
+    }
+  }
+}
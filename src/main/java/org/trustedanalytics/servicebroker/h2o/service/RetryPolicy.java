@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Exponential backoff with jitter. The n-th retry waits a random time between half and the whole
+ * of {@code baseDelay * 2^(n-1)}, capped at {@code maxDelay}, so instances that failed together
+ * during a provisioner outage do not all come back at the same moment.
+ */
+public class RetryPolicy {
+
+  private static final int MAX_EXPONENT = 30;
+
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final DoubleSupplier random;
+
+  public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+    this(maxAttempts, baseDelayMillis, maxDelayMillis,
+        () -> ThreadLocalRandom.current().nextDouble());
+  }
+
+  @VisibleForTesting
+  RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, DoubleSupplier random) {
+    this.maxAttempts = maxAttempts;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.random = random;
+  }
+
+  public boolean canRetry(int attempts) {
+    return attempts < maxAttempts;
+  }
+
+  /**
+   * Returns milliseconds to wait before the attempt following the given number of attempts.
+   */
+  public long getDelayMillis(int attempts) {
+    int exponent = Math.min(Math.max(attempts - 1, 0), MAX_EXPONENT);
+    long ceiling = Math.min(maxDelayMillis, baseDelayMillis << exponent);
+    long floor = ceiling / 2;
+    return floor + (long) (random.getAsDouble() * (ceiling - floor));
+  }
+}
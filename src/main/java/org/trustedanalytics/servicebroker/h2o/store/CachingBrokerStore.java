@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache in front of a zookeeper backed store. Entries are bounded by size and time to
+ * live, and are invalidated as soon as zookeeper reports a change of the underlying znode.
+ *
+ * <p>Every invalidation bumps a generation counter of the key (striped, so keys may share one).
+ * A value read while its generation changed is dropped right after it is cached, because the
+ * invalidation may have run before the value was put.
+ */
+public class CachingBrokerStore<T> implements BrokerStore<T>, ConnectionStateListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CachingBrokerStore.class);
+  private static final int GENERATION_STRIPES = 1024;
+
+  private final BrokerStore<T> delegate;
+  private final CuratorFramework zkClient;
+  private final String rootNode;
+  private final ZnodeLayout layout;
+  private final Cache<String, T> cache;
+  private final LongAdder invalidations = new LongAdder();
+  private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+  private final CuratorWatcher invalidatingWatcher = this::onNodeEvent;
+
+  public CachingBrokerStore(BrokerStore<T> delegate, CuratorFramework zkClient, String rootNode,
+      ZnodeLayout layout, long maxSize, long ttlSeconds) {
+    this.delegate = delegate;
+    this.zkClient = zkClient;
+    this.rootNode = rootNode;
+    this.layout = layout;
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxSize)
+        .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).recordStats()
+        .<String, T>removalListener(notification -> {
+          if (notification.getCause() == RemovalCause.EXPLICIT) {
+            invalidations.increment();
+          }
+        }).build();
+  }
+
+  @Override
+  public Optional<T> getById(Location location) throws IOException {
+    String id = location.getId();
+    T cached = cache.getIfPresent(id);
+    if (cached != null) {
+      return Optional.of(cached);
+    }
+
+    // watch is registered before the read, so a change racing with it cannot be missed
+    long generation = generations.get(stripe(id));
+    boolean watched = watch(location);
+    Optional<T> value = delegate.getById(location);
+    if (watched && value.isPresent()) {
+      cache.put(id, value.get());
+      if (generations.get(stripe(id)) != generation) {
+        // invalidated since the read, possibly before the put
+        cache.invalidate(id);
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public void save(Location location, T t) throws IOException {
+    invalidate(location.getId());
+    delegate.save(location, t);
+  }
+
+  @Override
+  public Optional<T> deleteById(Location location) throws IOException {
+    invalidate(location.getId());
+    return delegate.deleteById(location);
+  }
+
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  public long getInvalidations() {
+    return invalidations.sum();
+  }
+
+  public long getSize() {
+    return cache.size();
+  }
+
+  private boolean watch(Location location) {
+    if (layout.getLegacyPath(rootNode, location) != null) {
+      // the value may still be moved between layouts, the watch would not follow it
+      return false;
+    }
+    try {
+      zkClient.checkExists().usingWatcher(invalidatingWatcher)
+          .forPath(layout.getPath(rootNode, location));
+      return true;
+    } catch (Exception e) {
+      LOGGER.warn("Unable to watch '" + location.getId() + "', value will not be cached", e);
+      return false;
+    }
+  }
+
+  @Override
+  public void stateChanged(CuratorFramework client, ConnectionState newState) {
+    if (newState != ConnectionState.CONNECTED) {
+      // watches may be lost together with the session, so nothing cached can be trusted
+      LOGGER.info("Zookeeper connection " + newState + ", dropping " + cache.size() + " entries");
+      cache.invalidateAll();
+    }
+  }
+
+  private void onNodeEvent(WatchedEvent event) {
+    if (event.getType() != Watcher.Event.EventType.None) {
+      invalidate(ZKPaths.getNodeFromPath(event.getPath()));
+    }
+  }
+
+  private void invalidate(String id) {
+    // bumped first, so a reader either sees the new generation or puts before the invalidation
+    generations.incrementAndGet(stripe(id));
+    cache.invalidate(id);
+  }
+
+  private static int stripe(String id) {
+    return (id.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.common.io.ByteStreams;
+import org.trustedanalytics.cfbroker.store.serialization.JSONSerDeFactory;
+import org.trustedanalytics.cfbroker.store.serialization.RepositoryDeserializer;
+import org.trustedanalytics.cfbroker.store.serialization.RepositorySerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Serializes znode payloads in a compact binary form: a four byte header (magic, schema version,
+ * flags) followed by Smile encoded data, deflated when larger than the compression threshold.
+ * Deserializers recognize the header and read payloads without it as legacy JSON, so znodes
+ * written by older brokers stay readable and no migration is needed.
+ *
+ * <p>With compact writes disabled serializers produce plain JSON, which lets a deployment be
+ * rolled back to a broker that does not know the compact format.
+ */
+public class CompactSerDeFactory {
+
+  static final byte MAGIC_0 = (byte) 0xFE;
+  static final byte MAGIC_1 = 'H';
+  static final byte VERSION = 1;
+  static final byte FLAG_DEFLATED = 1;
+  private static final int HEADER_LENGTH = 4;
+
+  private final boolean compactWrites;
+  private final int compressionThreshold;
+  private final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
+
+  /**
+   * @param compactWrites true to write the compact format, false to write legacy JSON
+   * @param compressionThreshold payload size in bytes above which it is deflated, 0 disables
+   *        compression
+   */
+  public CompactSerDeFactory(boolean compactWrites, int compressionThreshold) {
+    this.compactWrites = compactWrites;
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  public <T> RepositorySerializer<T> getSerializer() {
+    if (!compactWrites) {
+      return JSONSerDeFactory.getInstance().getSerializer();
+    }
+    return new CompactSerializer<>();
+  }
+
+  public <T> RepositoryDeserializer<T> getDeserializer(Class<T> type) {
+    return new CompactDeserializer<>(type,
+        JSONSerDeFactory.getInstance().getDeserializer(type));
+  }
+
+  static boolean isCompact(byte[] data) {
+    return data.length >= HEADER_LENGTH && data[0] == MAGIC_0 && data[1] == MAGIC_1;
+  }
+
+  private class CompactSerializer<T> implements RepositorySerializer<T> {
+
+    @Override
+    public byte[] serialize(T object) throws IOException {
+      byte[] payload = mapper.writeValueAsBytes(object);
+      boolean deflate = compressionThreshold > 0 && payload.length > compressionThreshold;
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + HEADER_LENGTH);
+      out.write(MAGIC_0);
+      out.write(MAGIC_1);
+      out.write(VERSION);
+      out.write(deflate ? FLAG_DEFLATED : 0);
+      if (deflate) {
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+          deflater.write(payload);
+        }
+      } else {
+        out.write(payload);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  private class CompactDeserializer<T> implements RepositoryDeserializer<T> {
+
+    private final Class<T> type;
+    private final RepositoryDeserializer<T> legacyDeserializer;
+
+    private CompactDeserializer(Class<T> type, RepositoryDeserializer<T> legacyDeserializer) {
+      this.type = type;
+      this.legacyDeserializer = legacyDeserializer;
+    }
+
+    @Override
+    public T deserialize(byte[] data) throws IOException {
+      if (!isCompact(data)) {
+        return legacyDeserializer.deserialize(data);
+      }
+      if (data[2] > VERSION) {
+        throw new IOException("Unsupported version " + data[2] + " of compact znode payload");
+      }
+      InputStream payload =
+          new ByteArrayInputStream(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+      if ((data[3] & FLAG_DEFLATED) != 0) {
+        try (InputStream inflater = new InflaterInputStream(payload)) {
+          return mapper.readValue(ByteStreams.toByteArray(inflater), type);
+        }
+      }
+      return mapper.readValue(payload, type);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.trustedanalytics.cfbroker.store.api.Location;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Layout of the broker-store library: all entries are direct children of the root node.
+ */
+public class FlatZnodeLayout implements ZnodeLayout {
+
+  @Override
+  public String getPath(String rootNode, Location location) {
+    return ZKPaths.makePath(rootNode, location.getPath());
+  }
+
+  @Override
+  public Set<String> listIds(CuratorFramework zkClient, String rootNode) throws Exception {
+    return new HashSet<>(zkClient.getChildren().forPath(rootNode));
+  }
+}
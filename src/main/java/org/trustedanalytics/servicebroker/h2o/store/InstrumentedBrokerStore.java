@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2o.metrics.Counter;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2o.metrics.Timer;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Records latency and failures of every operation of the decorated store, labeled with the
+ * store name.
+ */
+public class InstrumentedBrokerStore<T> implements BrokerStore<T> {
+
+  private static final String LATENCY = "h2o_broker_store_operation_seconds";
+  private static final String ERRORS = "h2o_broker_store_operation_errors_total";
+
+  private final BrokerStore<T> delegate;
+  private final Timer getTimer;
+  private final Timer saveTimer;
+  private final Timer deleteTimer;
+  private final Counter getErrors;
+  private final Counter saveErrors;
+  private final Counter deleteErrors;
+
+  public InstrumentedBrokerStore(BrokerStore<T> delegate, MetricsRegistry metricsRegistry,
+      String storeName) {
+    this.delegate = delegate;
+    this.getTimer = timer(metricsRegistry, storeName, "get");
+    this.saveTimer = timer(metricsRegistry, storeName, "save");
+    this.deleteTimer = timer(metricsRegistry, storeName, "delete");
+    this.getErrors = errors(metricsRegistry, storeName, "get");
+    this.saveErrors = errors(metricsRegistry, storeName, "save");
+    this.deleteErrors = errors(metricsRegistry, storeName, "delete");
+  }
+
+  @Override
+  public Optional<T> getById(Location location) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return delegate.getById(location);
+    } catch (IOException e) {
+      getErrors.increment();
+      throw e;
+    } finally {
+      getTimer.recordSince(start);
+    }
+  }
+
+  @Override
+  public void save(Location location, T t) throws IOException {
+    long start = System.nanoTime();
+    try {
+      delegate.save(location, t);
+    } catch (IOException e) {
+      saveErrors.increment();
+      throw e;
+    } finally {
+      saveTimer.recordSince(start);
+    }
+  }
+
+  @Override
+  public Optional<T> deleteById(Location location) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return delegate.deleteById(location);
+    } catch (IOException e) {
+      deleteErrors.increment();
+      throw e;
+    } finally {
+      deleteTimer.recordSince(start);
+    }
+  }
+
+  private static Timer timer(MetricsRegistry metricsRegistry, String store, String operation) {
+    return metricsRegistry.timer(LATENCY, "Latency of broker store operations", "store", store,
+        "operation", operation);
+  }
+
+  private static Counter errors(MetricsRegistry metricsRegistry, String store, String operation) {
+    return metricsRegistry.counter(ERRORS, "Failed broker store operations", "store", store,
+        "operation", operation);
+  }
+}
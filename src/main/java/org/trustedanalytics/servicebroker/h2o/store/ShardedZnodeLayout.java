@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import com.google.common.hash.Hashing;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.trustedanalytics.cfbroker.store.api.Location;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Spreads entries over two levels of 16 buckets named by hex digits of a hash of the top level id,
+ * e.g. {@code /metadata/7/c/<instance id>/<binding id>}. Bindings stay below their instance, every
+ * lookup is still a single read and no znode gets more than a small fraction of all entries as
+ * children.
+ *
+ * <p>Entries not migrated from the flat layout yet are found directly below the root node, until
+ * the {@link ZnodeLayoutMigration} reports there are none left.
+ */
+public class ShardedZnodeLayout implements ZnodeLayout {
+
+  static final int LEVELS = 2;
+
+  private volatile boolean migrated;
+
+  @Override
+  public String getPath(String rootNode, Location location) {
+    return ZKPaths.makePath(getBucketPath(rootNode, getTopId(location)), location.getPath());
+  }
+
+  @Override
+  public String getLegacyPath(String rootNode, Location location) {
+    return migrated ? null : ZKPaths.makePath(rootNode, location.getPath());
+  }
+
+  @Override
+  public String getLegacyTopPath(String rootNode, Location location) {
+    return migrated ? null : ZKPaths.makePath(rootNode, getTopId(location));
+  }
+
+  @Override
+  public Set<String> listIds(CuratorFramework zkClient, String rootNode) throws Exception {
+    Set<String> ids = new HashSet<>();
+    for (String child : zkClient.getChildren().forPath(rootNode)) {
+      if (isBucket(child)) {
+        collect(zkClient, ZKPaths.makePath(rootNode, child), 1, ids);
+      } else {
+        ids.add(child);
+      }
+    }
+    return ids;
+  }
+
+  public String getBucketPath(String rootNode, String id) {
+    String hash = Hashing.murmur3_32().hashString(id, StandardCharsets.UTF_8).toString();
+    String path = rootNode;
+    for (int level = 0; level < LEVELS; level++) {
+      path = ZKPaths.makePath(path, hash.substring(level, level + 1));
+    }
+    return path;
+  }
+
+  public void setMigrated(boolean migrated) {
+    this.migrated = migrated;
+  }
+
+  public boolean isMigrated() {
+    return migrated;
+  }
+
+  static boolean isBucket(String name) {
+    return name.length() == 1 && Character.digit(name.charAt(0), 16) >= 0;
+  }
+
+  private static void collect(CuratorFramework zkClient, String path, int level, Set<String> ids)
+      throws Exception {
+    List<String> children = zkClient.getChildren().forPath(path);
+    if (level == LEVELS) {
+      ids.addAll(children);
+      return;
+    }
+    for (String child : children) {
+      collect(zkClient, ZKPaths.makePath(path, child), level + 1, ids);
+    }
+  }
+
+  private static String getTopId(Location location) {
+    String path = location.getPath();
+    int start = path.startsWith("/") ? 1 : 0;
+    int end = path.indexOf('/', start);
+    return end < 0 ? path.substring(start) : path.substring(start, end);
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.trustedanalytics.cfbroker.store.api.Location;
+
+import java.util.Set;
+
+/**
+ * Maps store locations to znode paths below a root node.
+ */
+public interface ZnodeLayout {
+
+  String getPath(String rootNode, Location location);
+
+  /**
+   * Returns path of the location in the layout being migrated from, or null when there is
+   * nothing left to migrate.
+   */
+  default String getLegacyPath(String rootNode, Location location) {
+    return null;
+  }
+
+  /**
+   * Returns legacy path of the top level entry (e.g. service instance) the location belongs to,
+   * or null when there is nothing left to migrate.
+   */
+  default String getLegacyTopPath(String rootNode, Location location) {
+    return null;
+  }
+
+  /**
+   * Returns ids of all top level entries (e.g. service instances) below the root node.
+   */
+  Set<String> listIds(CuratorFramework zkClient, String rootNode) throws Exception;
+}
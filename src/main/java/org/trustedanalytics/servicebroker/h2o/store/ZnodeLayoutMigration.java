@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.trustedanalytics.servicebroker.h2o.helper.LeaderElection;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperNodeOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves entries of the flat layout into the buckets of the {@link ShardedZnodeLayout} while the
+ * broker keeps serving requests. Every top level entry is moved together with its children in one
+ * transaction, which deletes the old znodes only if they did not change since they were read, so
+ * concurrent writes are never lost. Entries which could not be moved are retried later; once none
+ * is left the layout stops looking for legacy znodes.
+ *
+ * <p>With several broker replicas only the elected leader moves entries; the others just check
+ * whether any are left, so their layouts stop looking for legacy znodes as well.
+ */
+public class ZnodeLayoutMigration implements LeaderElection.Listener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ZnodeLayoutMigration.class);
+
+  private final CuratorFramework zkClient;
+  private final String rootNode;
+  private final ShardedZnodeLayout layout;
+  private final long retrySeconds;
+  private final ScheduledExecutorService executor;
+  private final LongAdder moved = new LongAdder();
+
+  private volatile boolean leader;
+
+  public ZnodeLayoutMigration(CuratorFramework zkClient, String rootNode,
+      ShardedZnodeLayout layout, long retrySeconds) {
+    this.zkClient = zkClient;
+    this.rootNode = rootNode;
+    this.layout = layout;
+    this.retrySeconds = retrySeconds;
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("znode-layout-migration-%d").setDaemon(true).build());
+  }
+
+  public void start() {
+    executor.execute(this::run);
+  }
+
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  public long getMoved() {
+    return moved.sum();
+  }
+
+  @Override
+  public void onElected(int participants) {
+    leader = true;
+  }
+
+  @Override
+  public void onRevoked() {
+    leader = false;
+  }
+
+  private void run() {
+    try {
+      if (migrate() == 0) {
+        return;
+      }
+    } catch (Exception e) {
+      LOGGER.error("Migration of '" + rootNode + "' to sharded layout failed", e);
+    }
+    executor.schedule(this::run, retrySeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Moves all flat entries and returns the number of entries left behind.
+   */
+  @VisibleForTesting
+  int migrate() throws Exception {
+    long start = System.currentTimeMillis();
+    List<String> legacy = new ArrayList<>();
+    for (String child : zkClient.getChildren().forPath(rootNode)) {
+      if (!ShardedZnodeLayout.isBucket(child)) {
+        legacy.add(child);
+      }
+    }
+
+    if (!leader) {
+      if (legacy.isEmpty()) {
+        layout.setMigrated(true);
+      }
+      return legacy.size();
+    }
+
+    int left = 0;
+    for (String id : legacy) {
+      try {
+        move(id);
+        moved.increment();
+      } catch (Exception e) {
+        LOGGER.debug("Unable to move '" + id + "', will be retried", e);
+        left++;
+      }
+    }
+    if (left == 0) {
+      layout.setMigrated(true);
+    }
+    LOGGER.info("Moved " + (legacy.size() - left) + " entries of '" + rootNode
+        + "' to sharded layout in " + (System.currentTimeMillis() - start) + " ms, " + left
+        + " left");
+    return left;
+  }
+
+  private void move(String id) throws Exception {
+    String from = ZKPaths.makePath(rootNode, id);
+    String bucket = layout.getBucketPath(rootNode, id);
+    String to = ZKPaths.makePath(bucket, id);
+    ZookeeperNodeOperations.createIfNotExists(zkClient, bucket);
+
+    List<Node> nodes = new ArrayList<>();
+    read(from, "", nodes);
+
+    CuratorTransaction transaction = zkClient.inTransaction();
+    CuratorTransactionFinal last = null;
+    for (Node node : nodes) {
+      last = transaction.create().forPath(to + node.relativePath, node.data).and();
+      transaction = last;
+    }
+    // children are removed before their parents
+    for (int i = nodes.size() - 1; i >= 0; i--) {
+      Node node = nodes.get(i);
+      last = transaction.delete().withVersion(node.version).forPath(from + node.relativePath)
+          .and();
+      transaction = last;
+    }
+    last.commit();
+  }
+
+  private void read(String base, String relativePath, List<Node> nodes) throws Exception {
+    Stat stat = new Stat();
+    String path = base + relativePath;
+    byte[] data = zkClient.getData().storingStatIn(stat).forPath(path);
+    nodes.add(new Node(relativePath, data, stat.getVersion()));
+    for (String child : zkClient.getChildren().forPath(path)) {
+      read(base, relativePath + "/" + child, nodes);
+    }
+  }
+
+  private static class Node {
+
+    private final String relativePath;
+    private final byte[] data;
+    private final int version;
+
+    private Node(String relativePath, byte[] data, int version) {
+      this.relativePath = relativePath;
+      this.data = data;
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionBridge;
+import org.apache.zookeeper.KeeperException;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.cfbroker.store.serialization.RepositoryDeserializer;
+import org.trustedanalytics.cfbroker.store.serialization.RepositorySerializer;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Zookeeper store using the shared broker session. Znode paths are given by the
+ * {@link ZnodeLayout}, writes go through the {@link ZookeeperWriteBatcher} and writes it has not
+ * committed yet are visible to reads.
+ *
+ * <p>While a layout migration is running, entries are looked up in the new layout first and then
+ * in the legacy one, and an entry is written where its top level entry currently lives, so bindings
+ * of an instance not migrated yet stay next to it. Legacy writes bypass the batcher and commit only
+ * while the legacy top level znode exists, so a write racing with the migration of its entry goes
+ * to the new layout instead of re-creating a flat znode.
+ */
+public class ZookeeperBrokerStore<T> implements BrokerStore<T> {
+
+  private final CuratorFramework zkClient;
+  private final String rootNode;
+  private final ZnodeLayout layout;
+  private final RepositorySerializer<T> serializer;
+  private final RepositoryDeserializer<T> deserializer;
+  private final ZookeeperWriteBatcher writeBatcher;
+
+  public ZookeeperBrokerStore(CuratorFramework zkClient, String rootNode, ZnodeLayout layout,
+      RepositorySerializer<T> serializer, RepositoryDeserializer<T> deserializer,
+      ZookeeperWriteBatcher writeBatcher) {
+    this.zkClient = zkClient;
+    this.rootNode = rootNode;
+    this.layout = layout;
+    this.serializer = serializer;
+    this.deserializer = deserializer;
+    this.writeBatcher = writeBatcher;
+  }
+
+  @Override
+  public Optional<T> getById(Location location) throws IOException {
+    String path = layout.getPath(rootNode, location);
+    Optional<byte[]> data = read(path);
+    String legacyPath = layout.getLegacyPath(rootNode, location);
+    if (!data.isPresent() && legacyPath != null) {
+      data = read(legacyPath);
+    }
+    return data.isPresent() ? Optional.of(deserializer.deserialize(data.get()))
+        : Optional.empty();
+  }
+
+  @Override
+  public void save(Location location, T t) throws IOException {
+    byte[] data = serializer.serialize(t);
+    if (!writeLegacy(location, data)) {
+      writeBatcher.save(layout.getPath(rootNode, location), data);
+    }
+  }
+
+  @Override
+  public Optional<T> deleteById(Location location) throws IOException {
+    Optional<T> removed = getById(location);
+    if (removed.isPresent() && !writeLegacy(location, null)) {
+      writeBatcher.delete(layout.getPath(rootNode, location));
+    }
+    return removed;
+  }
+
+  /**
+   * Saves, or deletes when data is null, an entry whose top level entry was not migrated yet.
+   *
+   * @return false if the top level entry lives in the new layout, also when it was moved just now
+   */
+  private boolean writeLegacy(Location location, byte[] data) throws IOException {
+    String legacyTopPath = layout.getLegacyTopPath(rootNode, location);
+    if (legacyTopPath == null || !exists(legacyTopPath)) {
+      return false;
+    }
+    String path = layout.getLegacyPath(rootNode, location);
+    try {
+      CuratorTransactionBridge write;
+      CuratorTransaction transaction =
+          zkClient.inTransaction().check().forPath(legacyTopPath).and();
+      if (data == null) {
+        write = transaction.delete().forPath(path);
+      } else if (zkClient.checkExists().forPath(path) != null) {
+        write = transaction.setData().forPath(path, data);
+      } else {
+        write = transaction.create().forPath(path, data);
+      }
+      write.and().commit();
+      return true;
+    } catch (KeeperException.NoNodeException e) {
+      return false;
+    } catch (Exception e) {
+      throw new IOException("Unable to write '" + path + "'", e);
+    }
+  }
+
+  private Optional<byte[]> read(String path) throws IOException {
+    ZookeeperWriteBatcher.Write pending = writeBatcher.getPending(path);
+    if (pending != null) {
+      return pending.isDelete() ? Optional.empty() : Optional.of(pending.getData());
+    }
+    try {
+      return Optional.of(zkClient.getData().forPath(path));
+    } catch (KeeperException.NoNodeException e) {
+      return Optional.empty();
+    } catch (Exception e) {
+      throw new IOException("Unable to read '" + path + "'", e);
+    }
+  }
+
+  private boolean exists(String path) throws IOException {
+    ZookeeperWriteBatcher.Write pending = writeBatcher.getPending(path);
+    if (pending != null) {
+      return !pending.isDelete();
+    }
+    try {
+      return zkClient.checkExists().forPath(path) != null;
+    } catch (Exception e) {
+      throw new IOException("Unable to check '" + path + "'", e);
+    }
+  }
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Groups znode writes issued within a short window into zookeeper multi-op transactions, so a
+ * burst of creates and binds costs one round trip per batch instead of one per znode. Writes to
+ * the same znode within a batch are coalesced into the last one. Existence of the written znodes
+ * and their parents is checked by pipelined reads before the transaction is built, so existing
+ * znodes are updated, missing parents are created and deletes of missing znodes are dropped. A
+ * batch still rejected by zookeeper (e.g. because a znode was created meanwhile) is retried write
+ * by write.
+ *
+ * <p>With {@link Ack#COMMIT} a write returns once its transaction is committed. With
+ * {@link Ack#ENQUEUE} it returns immediately, pending values are served to readers of this broker
+ * and a failed write is only logged, so acknowledged writes may be lost when the broker dies.
+ * Zero linger disables batching and every write is committed on its own.
+ */
+public class ZookeeperWriteBatcher {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ZookeeperWriteBatcher.class);
+  private static final long POLL_MILLIS = 100;
+
+  public enum Ack {
+    COMMIT, ENQUEUE
+  }
+
+  private final CuratorFramework zkClient;
+  private final long lingerNanos;
+  private final int maxOps;
+  private final Ack ack;
+  private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+  private final ConcurrentMap<String, Write> pending = new ConcurrentHashMap<>();
+  private final ThreadFactory threadFactory =
+      new ThreadFactoryBuilder().setNameFormat("zookeeper-write-batcher-%d").build();
+
+  private final LongAdder committedBatches = new LongAdder();
+  private final LongAdder committedWrites = new LongAdder();
+  private final LongAdder coalescedWrites = new LongAdder();
+  private final LongAdder fallbacks = new LongAdder();
+  private final LongAdder failedWrites = new LongAdder();
+
+  private volatile boolean running;
+  private Thread flusher;
+
+  public ZookeeperWriteBatcher(CuratorFramework zkClient, long lingerMillis, int maxOps,
+      Ack ack) {
+    this.zkClient = zkClient;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    this.maxOps = maxOps;
+    this.ack = ack;
+  }
+
+  public void start() {
+    if (lingerNanos > 0) {
+      running = true;
+      flusher = threadFactory.newThread(this::flushLoop);
+      flusher.start();
+    }
+  }
+
+  /**
+   * Stops batching after committing writes still in the queue. Writes issued later, e.g. by
+   * provisioning jobs drained on shutdown, are committed one by one.
+   */
+  public void close() throws InterruptedException {
+    running = false;
+    if (flusher != null) {
+      flusher.join();
+    }
+    // writes which raced with stopping the flusher
+    Write write;
+    while ((write = queue.poll()) != null) {
+      commitOneByOne(Collections.singletonList(write));
+    }
+  }
+
+  public void save(String path, byte[] data) throws IOException {
+    submit(new Write(path, data));
+  }
+
+  public void delete(String path) throws IOException {
+    submit(new Write(path, null));
+  }
+
+  /**
+   * Returns the write of the znode not committed yet, or null if there is none.
+   */
+  public Write getPending(String path) {
+    return pending.get(path);
+  }
+
+  public long getCommittedBatches() {
+    return committedBatches.sum();
+  }
+
+  public long getCommittedWrites() {
+    return committedWrites.sum();
+  }
+
+  public long getCoalescedWrites() {
+    return coalescedWrites.sum();
+  }
+
+  public long getFallbacks() {
+    return fallbacks.sum();
+  }
+
+  public long getFailedWrites() {
+    return failedWrites.sum();
+  }
+
+  public int getQueuedWrites() {
+    return queue.size();
+  }
+
+  private void submit(Write write) throws IOException {
+    if (!running) {
+      apply(write.path, write.data);
+      committedWrites.increment();
+      return;
+    }
+    pending.put(write.path, write);
+    queue.add(write);
+    if (ack == Ack.COMMIT) {
+      try {
+        write.done.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for commit of '" + write.path + "'", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Unable to write '" + write.path + "'", e.getCause());
+      }
+    }
+  }
+
+  private void flushLoop() {
+    while (running || !queue.isEmpty()) {
+      try {
+        Write first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        List<Write> batch = new ArrayList<>();
+        batch.add(first);
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < maxOps) {
+          Write next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        commit(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void commit(List<Write> batch) {
+    // the first write of a znode keeps its position, so parents are still created before children
+    Map<String, List<Write>> byPath = new LinkedHashMap<>();
+    for (Write write : batch) {
+      byPath.computeIfAbsent(write.path, path -> new ArrayList<>()).add(write);
+    }
+    coalescedWrites.add(batch.size() - byPath.size());
+
+    try {
+      if (byPath.size() == 1) {
+        Write last = last(byPath.values().iterator().next());
+        apply(last.path, last.data);
+      } else {
+        commitTransaction(byPath);
+      }
+      committedBatches.increment();
+      committedWrites.add(byPath.size());
+      byPath.values().forEach(writes -> writes.forEach(this::complete));
+    } catch (Exception e) {
+      LOGGER.debug("Batch of " + byPath.size() + " znode writes rejected, writing one by one", e);
+      fallbacks.increment();
+      byPath.values().forEach(this::commitOneByOne);
+    }
+  }
+
+  private void commitTransaction(Map<String, List<Write>> byPath) throws Exception {
+    Set<String> paths = new LinkedHashSet<>();
+    for (List<Write> writes : byPath.values()) {
+      Write write = last(writes);
+      if (write.data != null) {
+        paths.addAll(getAncestors(write.path));
+      }
+      paths.add(write.path);
+    }
+    Set<String> existing = getExisting(paths);
+
+    CuratorTransactionFinal transaction = null;
+    for (List<Write> writes : byPath.values()) {
+      Write write = last(writes);
+      if (write.data == null) {
+        if (existing.remove(write.path)) {
+          transaction = next(transaction).delete().forPath(write.path).and();
+        }
+        continue;
+      }
+      if (existing.contains(write.path)) {
+        transaction = next(transaction).setData().forPath(write.path, write.data).and();
+        continue;
+      }
+      for (String parent : getAncestors(write.path)) {
+        if (existing.add(parent)) {
+          transaction = next(transaction).create().forPath(parent, new byte[0]).and();
+        }
+      }
+      transaction = next(transaction).create().forPath(write.path, write.data).and();
+      existing.add(write.path);
+    }
+    if (transaction != null) {
+      transaction.commit();
+    }
+  }
+
+  private CuratorTransaction next(CuratorTransactionFinal transaction) {
+    return transaction == null ? zkClient.inTransaction() : transaction;
+  }
+
+  /**
+   * Returns those of given znodes which exist, checked in background so all checks share one
+   * round trip.
+   */
+  private Set<String> getExisting(Set<String> paths) throws Exception {
+    Set<String> existing = ConcurrentHashMap.newKeySet();
+    Map<String, Integer> errors = new ConcurrentHashMap<>();
+    CountDownLatch checked = new CountDownLatch(paths.size());
+    for (String path : paths) {
+      zkClient.checkExists().inBackground((client, event) -> {
+        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+          existing.add(path);
+        } else if (event.getResultCode() != KeeperException.Code.NONODE.intValue()) {
+          errors.put(path, event.getResultCode());
+        }
+        checked.countDown();
+      }).forPath(path);
+    }
+    if (!checked.await(zkClient.getZookeeperClient().getConnectionTimeoutMs(),
+        TimeUnit.MILLISECONDS)) {
+      throw new IOException("Timed out checking " + paths.size() + " znodes of a batch");
+    }
+    if (!errors.isEmpty()) {
+      throw new IOException("Unable to check znodes of a batch: " + errors);
+    }
+    return new HashSet<>(existing);
+  }
+
+  /**
+   * Returns ancestors of the znode below the root, the topmost first.
+   */
+  private static List<String> getAncestors(String path) {
+    List<String> ancestors = new ArrayList<>();
+    for (int i = path.indexOf('/', 1); i > 0; i = path.indexOf('/', i + 1)) {
+      ancestors.add(path.substring(0, i));
+    }
+    return ancestors;
+  }
+
+  private void commitOneByOne(List<Write> writes) {
+    Write write = last(writes);
+    try {
+      apply(write.path, write.data);
+      committedWrites.increment();
+      writes.forEach(this::complete);
+    } catch (IOException e) {
+      failedWrites.increment();
+      if (ack == Ack.ENQUEUE) {
+        LOGGER.error("Write-behind of '" + write.path + "' lost", e);
+      }
+      writes.forEach(w -> {
+        pending.remove(w.path, w);
+        w.done.completeExceptionally(e);
+      });
+    }
+  }
+
+  private void complete(Write write) {
+    pending.remove(write.path, write);
+    write.done.complete(null);
+  }
+
+  private void apply(String path, byte[] data) throws IOException {
+    try {
+      if (data == null) {
+        zkClient.delete().forPath(path);
+      } else {
+        try {
+          zkClient.create().creatingParentsIfNeeded().forPath(path, data);
+        } catch (KeeperException.NodeExistsException e) {
+          zkClient.setData().forPath(path, data);
+        }
+      }
+    } catch (KeeperException.NoNodeException e) {
+      LOGGER.debug("Znode '" + path + "' already removed");
+    } catch (Exception e) {
+      throw new IOException("Unable to write '" + path + "'", e);
+    }
+  }
+
+  private static Write last(List<Write> writes) {
+    return writes.get(writes.size() - 1);
+  }
+
+  public static class Write {
+
+    private final String path;
+    private final byte[] data;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    private Write(String path, byte[] data) {
+      this.path = path;
+      this.data = data;
+    }
+
+    public boolean isDelete() {
+      return data == null;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessorAdapter;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures time from instantiation to the end of initialization of every bean. Times are
+ * inclusive: a bean creating its dependencies on the way is charged for them as well.
+ */
+class BeanInitTimer extends InstantiationAwareBeanPostProcessorAdapter {
+
+  private final Map<String, Long> startNanos = new ConcurrentHashMap<>();
+  private final Map<String, Long> initMillis = new ConcurrentHashMap<>();
+
+  @Override
+  public Object postProcessBeforeInstantiation(Class<?> beanClass, String beanName)
+      throws BeansException {
+    startNanos.putIfAbsent(beanName, System.nanoTime());
+    return null;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName)
+      throws BeansException {
+    Long start = startNanos.remove(beanName);
+    if (start != null) {
+      initMillis.put(beanName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+    return bean;
+  }
+
+  /**
+   * Returns init times of all beans, the slowest first.
+   */
+  Map<String, Long> getInitMillis() {
+    Map<String, Long> sorted = new LinkedHashMap<>();
+    initMillis.entrySet().stream()
+        .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+        .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+    return sorted;
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+import org.trustedanalytics.servicebroker.h2o.Application;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Broker started with the production zookeeper and kerberos configuration against embedded
+ * zookeeper (see {@link BenchmarkConfig}) and a mocked provisioner, listening on a random port,
+ * so that it can be measured over HTTP.
+ */
+class BenchmarkBroker implements AutoCloseable {
+
+  static final String USER = "admin";
+  static final String PASSWORD = "benchmark";
+
+  private final ConfigurableApplicationContext context;
+  private final RestTemplate restTemplate = new RestTemplate();
+
+  private BenchmarkBroker(ConfigurableApplicationContext context) {
+    this.context = context;
+  }
+
+  static BenchmarkBroker start(
+      ApplicationContextInitializer<ConfigurableApplicationContext> initializer) {
+    SpringApplicationBuilder builder =
+        new SpringApplicationBuilder(Application.class, BenchmarkConfig.class);
+    return new BenchmarkBroker(builder.profiles("benchmark")
+        .properties("server.port=0", "security.user.name=" + USER,
+            "security.user.password=" + PASSWORD)
+        .initializers(initializer)
+        .run());
+  }
+
+  static BenchmarkBroker start() {
+    return start(context -> {
+    });
+  }
+
+  ConfigurableApplicationContext getContext() {
+    return context;
+  }
+
+  String url(String path) {
+    int port = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer().getPort();
+    return "http://localhost:" + port + path;
+  }
+
+  HttpHeaders headers() {
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    headers.set("X-Broker-Api-Version", "2.6");
+    headers.set(HttpHeaders.AUTHORIZATION, "Basic " + Base64.getEncoder()
+        .encodeToString((USER + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8)));
+    return headers;
+  }
+
+  ResponseEntity<String> exchange(HttpMethod method, String path, String body) {
+    return restTemplate.exchange(url(path), method, new HttpEntity<>(body, headers()),
+        String.class);
+  }
+
+  @Override
+  public void close() {
+    context.close();
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import org.apache.curator.test.TestingServer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.trustedanalytics.hadoop.config.ConfigurationHelper;
+import org.trustedanalytics.hadoop.config.PropertyLocator;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oProvisionerRestApi;
+
+import java.util.Optional;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the production {@code ZookeeperConfig} and {@code KerberosConfig} against embedded
+ * zookeeper, so that their startup pipeline steps are part of the measured startup. Only the
+ * h2o-provisioner is mocked.
+ */
+@Configuration
+@Profile("benchmark")
+public class BenchmarkConfig {
+
+  @Bean(destroyMethod = "close")
+  public TestingServer zkServer() throws Exception {
+    return new TestingServer();
+  }
+
+  @Bean
+  public ConfigurationHelper zookeeperConfigurationHelper(TestingServer zkServer)
+      throws Exception {
+    ConfigurationHelper helper = mock(ConfigurationHelper.class);
+    when(helper.getPropertyFromEnv(PropertyLocator.ZOOKEPER_URI))
+        .thenReturn(Optional.of(zkServer.getConnectString()));
+    when(helper.getPropertyFromEnv(PropertyLocator.ZOOKEPER_ZNODE))
+        .thenReturn(Optional.of("/h2o-broker-benchmark"));
+    when(helper.getPropertyFromEnv(PropertyLocator.USER)).thenReturn(Optional.of("user"));
+    when(helper.getPropertyFromEnv(PropertyLocator.PASSWORD)).thenReturn(Optional.of("password"));
+    return helper;
+  }
+
+  @Bean
+  public H2oProvisionerRestApi h2oProvisionerRestApi() {
+    return mock(H2oProvisionerRestApi.class);
+  }
+}
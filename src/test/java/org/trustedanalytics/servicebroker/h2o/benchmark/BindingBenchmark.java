@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceBindingRequest;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.cfbroker.store.impl.ServiceInstanceBindingServiceStore;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2o.service.CfBrokerRequestsFactory;
+import org.trustedanalytics.servicebroker.h2o.service.H2oServiceInstanceBindingService;
+import org.trustedanalytics.servicebroker.h2o.service.InstanceLocks;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningStateStore;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of binding an application to an h2o instance: binding request bookkeeping,
+ * credentials lookup, {@link H2oCredentials#toMap()} and the copy of the binding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindingBenchmark {
+
+  private static final int INSTANCES = 1000;
+
+  private InMemoryBrokerStore<CreateServiceInstanceBindingRequest> bindingStore;
+  private H2oServiceInstanceBindingService bindingService;
+  private H2oCredentials credentials;
+  private CreateServiceInstanceBindingRequest[] requests;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    InMemoryBrokerStore<H2oCredentials> credentialsStore = new InMemoryBrokerStore<>();
+    requests = new CreateServiceInstanceBindingRequest[INSTANCES];
+    for (int i = 0; i < INSTANCES; i++) {
+      String instanceId = "instance-" + i;
+      credentialsStore.save(Location.newInstance(instanceId),
+          new H2oCredentials("10.10.10." + i % 256, "54321", "user" + i, "password" + i));
+      requests[i] = CfBrokerRequestsFactory.getCreateServiceBindingRequest(instanceId,
+          "binding-" + i);
+    }
+    credentials = new H2oCredentials("10.10.10.117", "54321", "user", "password");
+    bindingStore = new InMemoryBrokerStore<>();
+    MetricsRegistry metricsRegistry = new MetricsRegistry();
+    bindingService = new H2oServiceInstanceBindingService(
+        new ServiceInstanceBindingServiceStore(bindingStore), credentialsStore,
+        new ProvisioningStateStore(null, "/state"),
+        new InstanceLocks(64, null, "/locks", "benchmark", false, 1, metricsRegistry),
+        metricsRegistry);
+  }
+
+  @Benchmark
+  public ServiceInstanceBinding createServiceInstanceBinding() throws Exception {
+    CreateServiceInstanceBindingRequest request = requests[next];
+    next = (next + 1) % INSTANCES;
+    ServiceInstanceBinding binding = bindingService.createServiceInstanceBinding(request);
+    // binding ids are reused, stored request is dropped to avoid binding exists errors
+    bindingStore.deleteById(Location.newInstance(request.getBindingId()));
+    return binding;
+  }
+
+  @Benchmark
+  public Map<String, Object> credentialsToMap() {
+    return credentials.toMap();
+  }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.CacheStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestClientException;
+import org.trustedanalytics.servicebroker.h2o.config.ExternalConfiguration;
+import org.trustedanalytics.servicebroker.h2o.service.ProvisioningExecutor;
+import org.trustedanalytics.servicebroker.h2o.store.CachingBrokerStore;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oProvisionerRestApi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * Simulates Cloud Controller traffic against the broker HTTP endpoints. Every virtual user
+ * repeats: catalog requests, provision, last_operation polling until provisioned, binds,
+ * unbinds and deprovision. Zookeeper is embedded, the h2o provisioner is a stub answering after
+ * a configured latency. Throughput, latency percentiles and error rates are reported per
+ * endpoint. Excluded from the default test run, runs as a short smoke test with
+ * mvn -Pbenchmark test -Dtest=BrokerLoadTest, for real numbers e.g.:
+ * mvn -Pbenchmark test -Dtest=BrokerLoadTest -Dload.users=64 -Dload.duration=60
+ *   -Dh2o.provisioner.workers=64 -Dh2o.provisioner.queueCapacity=1000
+ */
+public class BrokerLoadTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BrokerLoadTest.class);
+
+  private static final int USERS = Integer.getInteger("load.users", 4);
+  private static final long DURATION_SECONDS = Long.getLong("load.duration", 3);
+  private static final int CATALOG_REQUESTS_PER_CYCLE = Integer.getInteger("load.catalogs", 2);
+  private static final int BINDINGS_PER_INSTANCE = Integer.getInteger("load.bindings", 2);
+  private static final long PROVISIONER_LATENCY_MILLIS =
+      Long.getLong("load.provisionerLatency", 10);
+  private static final long POLL_INTERVAL_MILLIS = Long.getLong("load.pollInterval", 10);
+  private static final double MAX_ERROR_RATE =
+      Double.parseDouble(System.getProperty("load.maxErrorRate", "0.01"));
+
+  private static final H2oCredentials CREDENTIALS =
+      new H2oCredentials("10.10.10.117", "54321", "user", "password");
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private BenchmarkBroker broker;
+  private String serviceId;
+  private String planId;
+
+  @Before
+  public void setUp() throws Exception {
+    broker = BenchmarkBroker.start();
+    ExternalConfiguration config = broker.getContext().getBean(ExternalConfiguration.class);
+    serviceId = config.getCfServiceId();
+    planId = config.getCfBaseId() + "-shared-plan";
+
+    H2oProvisionerRestApi provisioner = broker.getContext().getBean(H2oProvisionerRestApi.class);
+    when(provisioner.createH2oInstance(anyString(), anyString(), anyString(), anyBoolean(), any()))
+        .thenAnswer(invocation -> {
+          Thread.sleep(PROVISIONER_LATENCY_MILLIS);
+          return new ResponseEntity<>(CREDENTIALS, HttpStatus.OK);
+        });
+    when(provisioner.deleteH2oInstance(anyString(), any())).thenAnswer(invocation -> {
+      Thread.sleep(PROVISIONER_LATENCY_MILLIS);
+      return new ResponseEntity<>("job-id", HttpStatus.OK);
+    });
+  }
+
+  @After
+  public void tearDown() {
+    broker.close();
+  }
+
+  @Test
+  public void load_cloudControllerTraffic_errorRateWithinLimit() throws Exception {
+    // arrange
+    ExecutorService users = Executors.newFixedThreadPool(USERS);
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+
+    // act
+    List<Future<Map<String, EndpointStats>>> results = new ArrayList<>();
+    for (int i = 0; i < USERS; i++) {
+      int user = i;
+      results.add(users.submit(() -> runUser(user, deadline)));
+    }
+    Map<String, EndpointStats> total = new TreeMap<>();
+    for (Future<Map<String, EndpointStats>> result : results) {
+      result.get().forEach((endpoint, stats) ->
+          total.computeIfAbsent(endpoint, e -> new EndpointStats()).merge(stats));
+    }
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    users.shutdown();
+    report(total, elapsedMillis);
+
+    // assert
+    for (EndpointStats stats : total.values()) {
+      assertThat(stats.getErrorRate(), lessThanOrEqualTo(MAX_ERROR_RATE));
+    }
+  }
+
+  private Map<String, EndpointStats> runUser(int user, long deadline) throws Exception {
+    Map<String, EndpointStats> stats = new TreeMap<>();
+    for (int cycle = 0; System.nanoTime() < deadline; cycle++) {
+      for (int i = 0; i < CATALOG_REQUESTS_PER_CYCLE; i++) {
+        call(stats, "catalog", HttpMethod.GET, "/v2/catalog", null);
+      }
+
+      String instancePath = "/v2/service_instances/load-" + user + "-" + cycle;
+      String provisionBody = "{\"service_id\":\"" + serviceId + "\",\"plan_id\":\"" + planId
+          + "\",\"organization_guid\":\"org\",\"space_guid\":\"space\"}";
+      if (call(stats, "provision", HttpMethod.PUT, instancePath + "?accepts_incomplete=true",
+          provisionBody) == null) {
+        continue;
+      }
+      awaitProvisioned(stats, instancePath, deadline);
+
+      String bindingBody = "{\"service_id\":\"" + serviceId + "\",\"plan_id\":\"" + planId
+          + "\",\"app_guid\":\"app-" + user + "\"}";
+      String query = "?service_id=" + serviceId + "&plan_id=" + planId;
+      for (int i = 0; i < BINDINGS_PER_INSTANCE; i++) {
+        call(stats, "bind", HttpMethod.PUT, instancePath + "/service_bindings/binding-" + i,
+            bindingBody);
+      }
+      for (int i = 0; i < BINDINGS_PER_INSTANCE; i++) {
+        call(stats, "unbind", HttpMethod.DELETE,
+            instancePath + "/service_bindings/binding-" + i + query, null);
+      }
+      call(stats, "deprovision", HttpMethod.DELETE, instancePath + query, null);
+    }
+    return stats;
+  }
+
+  private void awaitProvisioned(Map<String, EndpointStats> stats, String instancePath,
+      long deadline) throws Exception {
+    while (System.nanoTime() < deadline) {
+      ResponseEntity<String> response = call(stats, "last_operation", HttpMethod.GET,
+          instancePath + "/last_operation", null);
+      if (response == null
+          || !"in progress".equals(mapper.readTree(response.getBody()).path("state").asText())) {
+        return;
+      }
+      Thread.sleep(POLL_INTERVAL_MILLIS);
+    }
+  }
+
+  private ResponseEntity<String> call(Map<String, EndpointStats> stats, String endpoint,
+      HttpMethod method, String path, String body) {
+    long start = System.nanoTime();
+    ResponseEntity<String> response;
+    try {
+      response = broker.exchange(method, path, body);
+    } catch (RestClientException e) {
+      response = null;
+    }
+    long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    boolean success = response != null && response.getStatusCode().is2xxSuccessful();
+    stats.computeIfAbsent(endpoint, e -> new EndpointStats()).record(latencyMicros, success);
+    return success ? response : null;
+  }
+
+  private void report(Map<String, EndpointStats> total, long elapsedMillis) {
+    StringBuilder sb = new StringBuilder(String.format(
+        "Load test: %d users, %d ms, provisioner latency %d ms%n", USERS, elapsedMillis,
+        PROVISIONER_LATENCY_MILLIS));
+    sb.append(String.format("  %-15s %8s %9s %9s %9s %9s %8s%n", "endpoint", "requests",
+        "req/s", "p50 [ms]", "p99 [ms]", "p999 [ms]", "errors"));
+    total.forEach((endpoint, stats) -> sb.append(String.format(
+        "  %-15s %8d %9.1f %9.2f %9.2f %9.2f %7.2f%%%n", endpoint, stats.getRequests(),
+        stats.getRequests() * 1000.0 / elapsedMillis, stats.percentile(0.5) / 1000.0,
+        stats.percentile(0.99) / 1000.0, stats.percentile(0.999) / 1000.0,
+        stats.getErrorRate() * 100)));
+
+    ProvisioningExecutor executor = broker.getContext().getBean(ProvisioningExecutor.class);
+    long completed = Math.max(executor.getCompletedJobs(), 1);
+    sb.append(String.format(
+        "  provisioning jobs: %d submitted, %d rejected, avg queue wait %d ms, avg run %d ms%n",
+        executor.getSubmittedJobs(), executor.getRejectedJobs(),
+        executor.getTotalQueueWaitMillis() / completed, executor.getTotalRunMillis() / completed));
+    CacheStats cacheStats =
+        ((CachingBrokerStore<?>) broker.getContext().getBean("credentialsStore")).getStats();
+    sb.append(String.format("  credentials cache: hit ratio %.2f, %d misses%n",
+        cacheStats.hitRate(), cacheStats.missCount()));
+    LOGGER.info(sb.toString());
+  }
+}
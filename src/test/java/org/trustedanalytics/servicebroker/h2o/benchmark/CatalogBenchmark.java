@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cloudfoundry.community.servicebroker.model.Catalog;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.trustedanalytics.servicebroker.h2o.config.CatalogConfig;
+import org.trustedanalytics.servicebroker.h2o.config.ExternalConfiguration;
+import org.trustedanalytics.servicebroker.h2o.config.PlansConfiguration;
+import org.trustedanalytics.servicebroker.h2o.service.H2oPlans;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the catalog from configuration and rendering it to JSON, as returned by
+ * GET /v2/catalog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBenchmark {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private CatalogConfig catalogConfig;
+  private H2oPlans h2oPlans;
+  private Catalog catalog;
+
+  @Setup
+  public void setUp() {
+    ExternalConfiguration configuration = new ExternalConfiguration();
+    configuration.setCfServiceId("h2o");
+    configuration.setCfServiceName("h2o");
+    configuration.setCfBaseId("f1c3a7b0-5f2e-4c7e-9d0a-3b6f2a1e8c44");
+    configuration.setImageUrl("data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAA");
+    configuration.setH2oMapperMemory("512m");
+    configuration.setH2oMapperNodes("1");
+    configuration.setH2oYarnQueue("");
+    PlansConfiguration plansConfiguration = new PlansConfiguration();
+    PlansConfiguration.Plan plan = new PlansConfiguration.Plan();
+    plan.setName("shared");
+    plansConfiguration.setPlans(Arrays.asList(plan));
+    catalogConfig = new CatalogConfig();
+    ReflectionTestUtils.setField(catalogConfig, "configuration", configuration);
+    ReflectionTestUtils.setField(catalogConfig, "plansConfiguration", plansConfiguration);
+    h2oPlans = catalogConfig.h2oPlans();
+    catalog = catalogConfig.catalog(h2oPlans);
+  }
+
+  @Benchmark
+  public Catalog buildCatalog() {
+    return catalogConfig.catalog(h2oPlans);
+  }
+
+  @Benchmark
+  public String renderCatalog() throws JsonProcessingException {
+    return mapper.writeValueAsString(catalog);
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Latencies and errors of one endpoint, recorded by a single load generating thread and merged
+ * afterwards, so that recording does not add contention to the measured code.
+ */
+class EndpointStats {
+
+  private long[] latenciesMicros = new long[1024];
+  private int requests;
+  private long errors;
+
+  void record(long latencyMicros, boolean success) {
+    if (requests == latenciesMicros.length) {
+      latenciesMicros = Arrays.copyOf(latenciesMicros, requests * 2);
+    }
+    latenciesMicros[requests++] = latencyMicros;
+    if (!success) {
+      errors++;
+    }
+  }
+
+  void merge(EndpointStats other) {
+    for (int i = 0; i < other.requests; i++) {
+      record(other.latenciesMicros[i], true);
+    }
+    errors += other.errors;
+  }
+
+  int getRequests() {
+    return requests;
+  }
+
+  long getErrors() {
+    return errors;
+  }
+
+  double getErrorRate() {
+    return requests == 0 ? 0 : (double) errors / requests;
+  }
+
+  /**
+   * Returns latency below which given fraction of requests finished, in microseconds.
+   */
+  long percentile(double fraction) {
+    if (requests == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(latenciesMicros, requests);
+    Arrays.sort(sorted);
+    return sorted[Math.min(requests - 1, (int) Math.ceil(fraction * requests) - 1)];
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stand-in for zookeeper stores, so that benchmarks measure the broker code only.
+ */
+class InMemoryBrokerStore<T> implements BrokerStore<T> {
+
+  private final Map<String, T> entries = new ConcurrentHashMap<>();
+
+  @Override
+  public Optional<T> getById(Location location) {
+    return Optional.ofNullable(entries.get(location.getId()));
+  }
+
+  @Override
+  public void save(Location location, T t) {
+    entries.put(location.getId(), t);
+  }
+
+  @Override
+  public Optional<T> deleteById(Location location) {
+    return Optional.ofNullable(entries.remove(location.getId()));
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceBindingRequest;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.trustedanalytics.cfbroker.store.serialization.RepositoryDeserializer;
+import org.trustedanalytics.cfbroker.store.serialization.RepositorySerializer;
+import org.trustedanalytics.servicebroker.h2o.service.CfBrokerRequestsFactory;
+import org.trustedanalytics.servicebroker.h2o.store.CompactSerDeFactory;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializers and deserializers used by the zookeeper stores, wired the same way as in
+ * BrokerStoreConfig and CredentialsStoreConfig. The format parameter compares legacy JSON with the
+ * compact format, plain and deflated; payload sizes of each format are printed on setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerDeBenchmark {
+
+  @Param({"json", "compact", "deflated"})
+  private String format;
+
+  private RepositorySerializer<ServiceInstance> instanceSerializer;
+  private RepositoryDeserializer<ServiceInstance> instanceDeserializer;
+  private RepositorySerializer<CreateServiceInstanceBindingRequest> bindingSerializer;
+  private RepositoryDeserializer<CreateServiceInstanceBindingRequest> bindingDeserializer;
+  private RepositorySerializer<H2oCredentials> credentialsSerializer;
+  private RepositoryDeserializer<H2oCredentials> credentialsDeserializer;
+
+  private ServiceInstance instance;
+  private CreateServiceInstanceBindingRequest binding;
+  private H2oCredentials credentials;
+  private byte[] serializedInstance;
+  private byte[] serializedBinding;
+  private byte[] serializedCredentials;
+
+  @Setup
+  public void setUp() throws IOException {
+    CompactSerDeFactory serDeFactory =
+        new CompactSerDeFactory(!"json".equals(format), "deflated".equals(format) ? 1 : 0);
+    instanceSerializer = serDeFactory.getSerializer();
+    instanceDeserializer = serDeFactory.getDeserializer(ServiceInstance.class);
+    bindingSerializer = serDeFactory.getSerializer();
+    bindingDeserializer = serDeFactory.getDeserializer(CreateServiceInstanceBindingRequest.class);
+    credentialsSerializer = serDeFactory.getSerializer();
+    credentialsDeserializer = serDeFactory.getDeserializer(H2oCredentials.class);
+
+    instance = new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest("instance"));
+    binding = CfBrokerRequestsFactory.getCreateServiceBindingRequest("instance", "binding");
+    credentials = new H2oCredentials("10.10.10.117", "54321", "user", "password");
+    serializedInstance = instanceSerializer.serialize(instance);
+    serializedBinding = bindingSerializer.serialize(binding);
+    serializedCredentials = credentialsSerializer.serialize(credentials);
+    System.out.println(format + " payload bytes: instance " + serializedInstance.length
+        + ", binding " + serializedBinding.length + ", credentials "
+        + serializedCredentials.length);
+  }
+
+  @Benchmark
+  public byte[] serializeInstance() throws IOException {
+    return instanceSerializer.serialize(instance);
+  }
+
+  @Benchmark
+  public ServiceInstance deserializeInstance() throws IOException {
+    return instanceDeserializer.deserialize(serializedInstance);
+  }
+
+  @Benchmark
+  public byte[] serializeBinding() throws IOException {
+    return bindingSerializer.serialize(binding);
+  }
+
+  @Benchmark
+  public CreateServiceInstanceBindingRequest deserializeBinding() throws IOException {
+    return bindingDeserializer.deserialize(serializedBinding);
+  }
+
+  @Benchmark
+  public byte[] serializeCredentials() throws IOException {
+    return credentialsSerializer.serialize(credentials);
+  }
+
+  @Benchmark
+  public H2oCredentials deserializeCredentials() throws IOException {
+    return credentialsDeserializer.deserialize(serializedCredentials);
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.benchmark;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.trustedanalytics.servicebroker.h2o.helper.StartupPipeline;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Starts the whole broker against embedded zookeeper and reports startup pipeline steps (including
+ * zookeeper connection and node creation), per-bean and per-configuration init times, time to
+ * the first served request and heap used after startup. Fails when -Dbenchmark.startup.budget
+ * (ms) or -Dbenchmark.startup.heapBudget (MB) is exceeded. Numbers are only meaningful for a
+ * cold JVM, so it is excluded from the default test run. Run it alone:
+ * mvn -Pbenchmark test -Dtest=StartupBenchmarkTest
+ */
+public class StartupBenchmarkTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StartupBenchmarkTest.class);
+
+  private static final long STARTUP_BUDGET_MILLIS = Long.getLong("benchmark.startup.budget", 30000);
+  private static final long HEAP_BUDGET_MB = Long.getLong("benchmark.startup.heapBudget", 512);
+  private static final int REPORTED_BEANS = 15;
+
+  @Test
+  public void startup_embeddedZookeeper_withinBudget() throws Exception {
+    // arrange
+    BeanInitTimer timer = new BeanInitTimer();
+    long start = System.nanoTime();
+
+    // act
+    try (BenchmarkBroker broker =
+        BenchmarkBroker.start(context -> context.getBeanFactory().addBeanPostProcessor(timer))) {
+      long readyMillis = elapsedMillis(start);
+      HttpStatus status = broker.exchange(HttpMethod.GET, "/v2/catalog", null).getStatusCode();
+      long firstRequestMillis = elapsedMillis(start);
+
+      System.gc();
+      long heapMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20;
+
+      report(broker, timer.getInitMillis(), readyMillis, firstRequestMillis, heapMb);
+
+      // assert
+      assertThat(status, equalTo(HttpStatus.OK));
+      assertThat(firstRequestMillis, lessThanOrEqualTo(STARTUP_BUDGET_MILLIS));
+      assertThat(heapMb, lessThanOrEqualTo(HEAP_BUDGET_MB));
+    }
+  }
+
+  private void report(BenchmarkBroker broker, Map<String, Long> beanMillis, long readyMillis,
+      long firstRequestMillis, long heapMb) {
+    ConfigurableListableBeanFactory beanFactory = broker.getContext().getBeanFactory();
+    Map<String, Long> configurationMillis = new TreeMap<>();
+    beanMillis.forEach((name, millis) -> {
+      if (beanFactory.containsBeanDefinition(name)) {
+        BeanDefinition definition = beanFactory.getBeanDefinition(name);
+        if (definition.getFactoryBeanName() != null) {
+          configurationMillis.merge(definition.getFactoryBeanName(), millis, Long::sum);
+        }
+      }
+    });
+
+    StringBuilder sb = new StringBuilder("Startup benchmark:\n");
+    sb.append(String.format("  context ready      %6d ms%n", readyMillis));
+    sb.append(String.format("  first request      %6d ms (budget %d ms)%n", firstRequestMillis,
+        STARTUP_BUDGET_MILLIS));
+    sb.append(String.format("  heap after startup %6d MB (budget %d MB)%n", heapMb,
+        HEAP_BUDGET_MB));
+    sb.append("  startup steps:\n");
+    broker.getContext().getBean(StartupPipeline.class).getStepMillis()
+        .forEach((step, millis) -> sb.append(String.format("    %-40s %6d ms%n", step, millis)));
+    sb.append("  beans by configuration (inclusive):\n");
+    configurationMillis.forEach(
+        (config, millis) -> sb.append(String.format("    %-40s %6d ms%n", config, millis)));
+    sb.append("  slowest beans (inclusive):\n");
+    beanMillis.entrySet().stream().limit(REPORTED_BEANS).forEach(e -> sb
+        .append(String.format("    %-40s %6d ms%n", e.getKey(), e.getValue())));
+    LOGGER.info(sb.toString());
+  }
+
+  private static long elapsedMillis(long sinceNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sinceNanos);
+  }
+}
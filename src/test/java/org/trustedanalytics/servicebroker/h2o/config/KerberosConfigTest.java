@@ -16,7 +16,9 @@ package org.trustedanalytics.servicebroker.h2o.config;
 
 import org.trustedanalytics.hadoop.config.ConfigurationHelper;
 import org.trustedanalytics.hadoop.config.PropertyLocator;
+import org.trustedanalytics.servicebroker.h2o.helper.StartupPipeline;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -25,8 +27,10 @@ import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.IOException;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.hasKey;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.when;
 
@@ -36,50 +40,117 @@ public class KerberosConfigTest {
   @Mock
   private ConfigurationHelper configurationHelper;
 
+  private StartupPipeline startupPipeline;
+
   private KerberosConfig kerberosConfig;
 
   @Before
   public void setup() {
-    kerberosConfig = new KerberosConfig(configurationHelper);
+    startupPipeline = new StartupPipeline(1);
+    kerberosConfig = new KerberosConfig(configurationHelper, startupPipeline);
+  }
+
+  @After
+  public void tearDown() {
+    startupPipeline.close();
   }
 
   @Test
-  public void isKerberosEnabled_allPropertiesSet_returnsTrue() throws Exception {
+  public void isKerberosEnabled_allPropertiesSet_detectedByStartupStep() throws Exception {
+    // arrange
     arrangeTestEnvironment("kdc", "realm", "user", "password");
+    kerberosConfig.postConstruct();
+
+    // act
     boolean kerberosEnabled = kerberosConfig.isKerberosEnabled();
+
+    // assert
     assertThat(kerberosEnabled, is(true));
+    assertThat(startupPipeline.getStepMillis(), hasKey("kerberos detection"));
   }
 
   @Test
-  public void isKerberosEnabled_kdcEmpty_returnsFalse() throws Exception {
+  public void isKerberosEnabled_kdcEmpty_detectedByStartupStep() throws Exception {
+    // arrange
     arrangeTestEnvironment("", "realm", "user", "password");
+    kerberosConfig.postConstruct();
+
+    // act
     boolean kerberosEnabled = kerberosConfig.isKerberosEnabled();
+
+    // assert
+    assertThat(kerberosEnabled, is(false));
+  }
+
+  @Test(timeout = 900, expected = IllegalStateException.class)
+  public void isKerberosEnabled_otherStartupStepFailed_failsWithoutWaitingForDeadline()
+      throws Exception {
+    // arrange
+    CountDownLatch environmentBlocked = new CountDownLatch(1);
+    when(configurationHelper.getPropertyFromEnv(PropertyLocator.KRB_KDC)).thenAnswer(invocation -> {
+      environmentBlocked.await();
+      return Optional.of("kdc");
+    });
+    kerberosConfig.postConstruct();
+    startupPipeline.submit("zookeeper connection", () -> {
+      throw new IllegalArgumentException("ZOOKEPER_URI not found in VCAP_SERVICES");
+    });
+
+    // act
+    kerberosConfig.isKerberosEnabled();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void isKerberosEnabled_detectionExceedsDeadline_exceptionThrown() throws Exception {
+    // arrange
+    CountDownLatch environmentBlocked = new CountDownLatch(1);
+    when(configurationHelper.getPropertyFromEnv(PropertyLocator.KRB_KDC)).thenAnswer(invocation -> {
+      environmentBlocked.await();
+      return Optional.of("kdc");
+    });
+    kerberosConfig.postConstruct();
+
+    // act
+    kerberosConfig.isKerberosEnabled();
+  }
+
+  @Test
+  public void detectKerberos_allPropertiesSet_returnsTrue() throws Exception {
+    arrangeTestEnvironment("kdc", "realm", "user", "password");
+    boolean kerberosEnabled = kerberosConfig.detectKerberos();
+    assertThat(kerberosEnabled, is(true));
+  }
+
+  @Test
+  public void detectKerberos_kdcEmpty_returnsFalse() throws Exception {
+    arrangeTestEnvironment("", "realm", "user", "password");
+    boolean kerberosEnabled = kerberosConfig.detectKerberos();
     assertThat(kerberosEnabled, is(false));
   }
 
   @Test
-  public void isKerberosEnabled_realmEmpty_returnsFalse() throws Exception {
+  public void detectKerberos_realmEmpty_returnsFalse() throws Exception {
     arrangeTestEnvironment("kdc", "", "user", "password");
-    boolean kerberosEnabled = kerberosConfig.isKerberosEnabled();
+    boolean kerberosEnabled = kerberosConfig.detectKerberos();
     assertThat(kerberosEnabled, is(false));
   }
 
   @Test
-  public void isKerberosEnabled_userEmpty_returnsFalse() throws Exception {
+  public void detectKerberos_userEmpty_returnsFalse() throws Exception {
     arrangeTestEnvironment("kdc", "realm", "", "password");
-    boolean kerberosEnabled = kerberosConfig.isKerberosEnabled();
+    boolean kerberosEnabled = kerberosConfig.detectKerberos();
     assertThat(kerberosEnabled, is(false));
   }
 
   @Test
-  public void isKerberosEnabled_passwordEmpty_returnsFalse() throws Exception {
+  public void detectKerberos_passwordEmpty_returnsFalse() throws Exception {
     arrangeTestEnvironment("kdc", "realm", "user", "");
-    boolean kerberosEnabled = kerberosConfig.isKerberosEnabled();
+    boolean kerberosEnabled = kerberosConfig.detectKerberos();
     assertThat(kerberosEnabled, is(false));
   }
 
   @Test
-  public void isKerberosEnabled_allPropertiesAreEmptyOptionals_returnsFalse() throws Exception {
+  public void detectKerberos_allPropertiesAreEmptyOptionals_returnsFalse() throws Exception {
     when(configurationHelper.getPropertyFromEnv(PropertyLocator.KRB_KDC))
         .thenReturn(Optional.empty());
     when(configurationHelper.getPropertyFromEnv(PropertyLocator.KRB_REALM))
@@ -87,12 +158,12 @@ public class KerberosConfigTest {
     when(configurationHelper.getPropertyFromEnv(PropertyLocator.USER)).thenReturn(Optional.empty());
     when(configurationHelper.getPropertyFromEnv(PropertyLocator.PASSWORD))
         .thenReturn(Optional.empty());
-    boolean kerberosEnabled = kerberosConfig.isKerberosEnabled();
+    boolean kerberosEnabled = kerberosConfig.detectKerberos();
     assertThat(kerberosEnabled, is(false));
   }
 
   @Test
-  public void isKerberosEnabled_allPropertiesReadThrowException_returnsFalse() throws Exception {
+  public void detectKerberos_allPropertiesReadThrowException_returnsFalse() throws Exception {
     when(configurationHelper.getPropertyFromEnv(PropertyLocator.KRB_KDC))
         .thenThrow(new IOException());
     when(configurationHelper.getPropertyFromEnv(PropertyLocator.KRB_REALM))
@@ -100,7 +171,7 @@ public class KerberosConfigTest {
     when(configurationHelper.getPropertyFromEnv(PropertyLocator.USER)).thenThrow(new IOException());
     when(configurationHelper.getPropertyFromEnv(PropertyLocator.PASSWORD))
         .thenThrow(new IOException());
-    boolean kerberosEnabled = kerberosConfig.isKerberosEnabled();
+    boolean kerberosEnabled = kerberosConfig.detectKerberos();
     assertThat(kerberosEnabled, is(false));
   }
 
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.helper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class LeaderElectionTest {
+
+  private static final String LEADER_NODE = "/leader";
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private CuratorFramework otherZkClient;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient = newClient();
+    otherZkClient = newClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    zkClient.close();
+    otherZkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void start_twoReplicas_firstOneLeads() throws Exception {
+    // arrange
+    LeaderElection first = new LeaderElection(zkClient, LEADER_NODE, "first");
+    LeaderElection second = new LeaderElection(otherZkClient, LEADER_NODE, "second");
+
+    // act
+    first.start();
+    await().atMost(1, TimeUnit.SECONDS).until(first::isLeader);
+    second.start();
+
+    // assert
+    await().atMost(1, TimeUnit.SECONDS).until(second::getParticipants, equalTo(2));
+    assertThat(first.isLeader(), equalTo(true));
+    assertThat(second.isLeader(), equalTo(false));
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void close_leaderGone_otherReplicaElected() throws Exception {
+    // arrange
+    LeaderElection first = new LeaderElection(zkClient, LEADER_NODE, "first");
+    LeaderElection second = new LeaderElection(otherZkClient, LEADER_NODE, "second");
+    AtomicInteger elections = new AtomicInteger();
+    second.addListener(new CountingListener(elections));
+    first.start();
+    await().atMost(1, TimeUnit.SECONDS).until(first::isLeader);
+    second.start();
+    await().atMost(1, TimeUnit.SECONDS).until(second::getParticipants, equalTo(2));
+
+    // act
+    first.close();
+
+    // assert
+    await().atMost(2, TimeUnit.SECONDS).until(second::isLeader);
+    assertThat(elections.get(), equalTo(1));
+    second.close();
+  }
+
+  @Test
+  public void addListener_alreadyLeader_listenerNotified() throws Exception {
+    // arrange
+    LeaderElection sut = new LeaderElection(zkClient, LEADER_NODE, "first");
+    AtomicInteger elections = new AtomicInteger();
+    sut.start();
+    await().atMost(1, TimeUnit.SECONDS).until(sut::isLeader);
+
+    // act
+    sut.addListener(new CountingListener(elections));
+
+    // assert
+    await().atMost(1, TimeUnit.SECONDS).until(elections::get, equalTo(1));
+    sut.close();
+  }
+
+  @Test
+  public void close_leader_listenerRevoked() throws Exception {
+    // arrange
+    LeaderElection sut = new LeaderElection(zkClient, LEADER_NODE, "first");
+    AtomicInteger elections = new AtomicInteger();
+    sut.addListener(new CountingListener(elections));
+    sut.start();
+    await().atMost(1, TimeUnit.SECONDS).until(elections::get, equalTo(1));
+
+    // act
+    sut.close();
+
+    // assert
+    await().atMost(1, TimeUnit.SECONDS).until(elections::get, equalTo(0));
+    await().atMost(1, TimeUnit.SECONDS)
+        .until(() -> zkClient.getChildren().forPath(LEADER_NODE).isEmpty());
+  }
+
+  private CuratorFramework newClient() {
+    CuratorFramework client =
+        CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    client.start();
+    return client;
+  }
+
+  private static class CountingListener implements LeaderElection.Listener {
+
+    private final AtomicInteger elections;
+
+    private CountingListener(AtomicInteger elections) {
+      this.elections = elections;
+    }
+
+    @Override
+    public void onElected(int participants) {
+      elections.incrementAndGet();
+    }
+
+    @Override
+    public void onRevoked() {
+      elections.decrementAndGet();
+    }
+  }
+}
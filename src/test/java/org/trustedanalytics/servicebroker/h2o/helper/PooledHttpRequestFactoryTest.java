@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.helper;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PooledHttpRequestFactoryTest {
+
+  private HttpServer server;
+  private PooledHttpRequestFactory requestFactory;
+  private RestTemplate restTemplate;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/fast", exchange -> {
+      byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.createContext("/hanging", exchange -> sleep(TimeUnit.SECONDS.toMillis(10)));
+    server.createContext("/trickling", exchange -> {
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream out = exchange.getResponseBody();
+      for (int i = 0; i < 100; i++) {
+        out.write('.');
+        out.flush();
+        sleep(100);
+      }
+      exchange.close();
+    });
+    server.start();
+    requestFactory = new PooledHttpRequestFactory(2, 2, 500, 500, 500, 1000);
+    restTemplate = new RestTemplate(requestFactory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    requestFactory.destroy();
+    server.stop(0);
+  }
+
+  @Test
+  public void request_serverResponds_connectionReturnedToPool() throws Exception {
+    // act
+    String first = restTemplate.getForObject(url("/fast"), String.class);
+    String second = restTemplate.getForObject(url("/fast"), String.class);
+
+    // assert
+    assertThat(first, equalTo("ok"));
+    assertThat(second, equalTo("ok"));
+    assertThat(requestFactory.getPoolStats().getLeased(), equalTo(0));
+    assertThat(requestFactory.getPoolStats().getAvailable(), equalTo(1));
+  }
+
+  @Test
+  public void request_serverResponds_deadlineCancelled() throws Exception {
+    // act
+    restTemplate.getForObject(url("/fast"), String.class);
+
+    // assert
+    assertThat(requestFactory.getPendingDeadlines(), equalTo(0));
+  }
+
+  @Test(timeout = 5000, expected = ResourceAccessException.class)
+  public void request_serverHangs_readTimeoutExceeded() throws Exception {
+    // act
+    restTemplate.getForObject(url("/hanging"), String.class);
+  }
+
+  @Test(timeout = 5000, expected = ResourceAccessException.class)
+  public void request_serverTrickles_requestAbortedAfterDeadline() throws Exception {
+    // act
+    restTemplate.getForObject(url("/trickling"), String.class);
+  }
+
+  private String url(String path) {
+    return "http://localhost:" + server.getAddress().getPort() + path;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.helper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.junit.Assert.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StartupPipelineTest {
+
+  private StartupPipeline sut;
+
+  @Before
+  public void setUp() {
+    sut = new StartupPipeline(1);
+  }
+
+  @After
+  public void tearDown() {
+    sut.close();
+  }
+
+  @Test
+  public void submit_independentSteps_stepsRunConcurrently() throws Exception {
+    // arrange
+    CountDownLatch bothStarted = new CountDownLatch(2);
+
+    // act
+    StartupPipeline.Step<Boolean> first = sut.submit("first", () -> {
+      bothStarted.countDown();
+      return bothStarted.await(1, TimeUnit.SECONDS);
+    });
+    StartupPipeline.Step<Boolean> second = sut.submit("second", () -> {
+      bothStarted.countDown();
+      return bothStarted.await(1, TimeUnit.SECONDS);
+    });
+    sut.finish();
+
+    // assert
+    assertThat(first.get(), equalTo(true));
+    assertThat(second.get(), equalTo(true));
+    assertThat(sut.getStepMillis(), hasKey("first"));
+    assertThat(sut.getStepMillis(), hasKey("second"));
+  }
+
+  @Test
+  public void submit_dependentStep_getsResultOfOtherStep() throws Exception {
+    // arrange
+    StartupPipeline.Step<String> connection = sut.submit("connection", () -> "connected");
+
+    // act
+    StartupPipeline.Step<String> client = sut.submit("client", () -> connection.get() + " client");
+
+    // assert
+    assertThat(client.get(), equalTo("connected client"));
+  }
+
+  @Test(timeout = 900, expected = IllegalStateException.class)
+  public void get_otherStepFailed_failsWithoutWaitingForDeadline() throws Exception {
+    // arrange
+    StartupPipeline.Step<Object> hanging = sut.submit("hanging", () -> {
+      Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      return null;
+    });
+    sut.submit("broken", () -> {
+      throw new IllegalArgumentException("no VCAP_SERVICES");
+    });
+
+    // act
+    hanging.get();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void get_deadlineExceeded_exceptionThrown() throws Exception {
+    // arrange
+    StartupPipeline.Step<Object> hanging = sut.submit("hanging", () -> {
+      Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+      return null;
+    });
+
+    // act
+    hanging.get();
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.helper;
+
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ZookeeperConnectionManagerTest {
+
+  private TestingServer zkServer;
+  private ZookeeperConnectionManager sut;
+
+  @Before
+  public void setUp() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    sut = new ZookeeperConnectionManager(zkServer.getConnectString(), null, null, 100, 3, 10);
+    sut.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    sut.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void getClient_baseNode_pathsRelativeToBaseNode() throws Exception {
+    // act
+    sut.getClient("/base/").create().creatingParentsIfNeeded().forPath("/node");
+
+    // assert
+    assertThat(sut.getClient().checkExists().forPath("/base/node"), notNullValue());
+  }
+
+  @Test
+  public void getClient_credentialsConfigured_nodesAccessibleToCreatorOnly() throws Exception {
+    // arrange
+    ZookeeperConnectionManager authenticated = new ZookeeperConnectionManager(
+        zkServer.getConnectString(), "broker", "secret", 100, 3, 10);
+    authenticated.start();
+
+    try {
+      // act
+      authenticated.getClient("/secured").create().creatingParentsIfNeeded()
+          .forPath("/credentials", new byte[] {1});
+
+      // assert
+      List<ACL> acl = authenticated.getClient().getACL().forPath("/secured/credentials");
+      assertThat(acl, hasSize(1));
+      assertThat(acl.get(0).getId().getScheme(), equalTo("digest"));
+      assertThat(acl.get(0).getPerms(), equalTo(ZooDefs.Perms.ALL));
+      try {
+        sut.getClient().getData().forPath("/secured/credentials");
+        fail("NoAuthException expected");
+      } catch (KeeperException.NoAuthException e) {
+        // unauthenticated clients can not read it
+      }
+    } finally {
+      authenticated.close();
+    }
+  }
+
+  @Test
+  public void addListener_serverRestarted_listenerNotifiedAboutReconnection() throws Exception {
+    // arrange
+    List<ConnectionState> states = new CopyOnWriteArrayList<>();
+    sut.addListener((client, state) -> states.add(state));
+
+    // act
+    zkServer.restart();
+
+    // assert
+    await().atMost(10, TimeUnit.SECONDS).until(() -> states.contains(ConnectionState.RECONNECTED));
+    assertThat(states, hasItem(ConnectionState.SUSPENDED));
+  }
+}
@@ -15,6 +15,8 @@
 package org.trustedanalytics.servicebroker.h2o.helper;
 
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
 import org.apache.curator.test.TestingServer;
 import org.apache.zookeeper.data.Stat;
 import org.junit.After;
@@ -34,59 +36,55 @@ import static org.junit.Assert.assertThat;
 public class ZookeeperNodeOperationsTest {
 
   private TestingServer zkServer;
-  private String zkConnectionString;
+  private CuratorFramework zkClient;
 
   @Before
   public void initEmbeddedZKServer() throws Exception {
     zkServer = new TestingServer();
     zkServer.start();
-    zkConnectionString = zkServer.getConnectString();
+    zkClient = CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    zkClient.start();
   }
 
   @After
   public void closeZKServer() throws IOException {
+    zkClient.close();
     zkServer.close();
   }
 
   @Test
   public void createDir_correctPath_znodeCreated() throws Exception {
     // act
-    ZookeeperNodeOperations.createNode(zkConnectionString, "/node");
+    ZookeeperNodeOperations.createNode(zkClient, "/node");
 
     // assert
-    CuratorFramework tempClient = ZookeeperNodeOperations.getNewTempClient(zkConnectionString);
-    Stat stat = tempClient.checkExists().forPath("/node");
-    tempClient.close();
+    Stat stat = zkClient.checkExists().forPath("/node");
     assertThat(stat, is(notNullValue()));
   }
 
   @Test
   public void createDir_correctComplexPath_znodesCreated() throws Exception {
     // act
-    ZookeeperNodeOperations.createNode(zkConnectionString, "/node/nodeLevel2");
+    ZookeeperNodeOperations.createNode(zkClient, "/node/nodeLevel2");
 
     // assert
-    CuratorFramework tempClient = ZookeeperNodeOperations.getNewTempClient(zkConnectionString);
-    Stat stat = tempClient.checkExists().forPath("/node/nodeLevel2");
-    tempClient.close();
+    Stat stat = zkClient.checkExists().forPath("/node/nodeLevel2");
     assertThat(stat, is(notNullValue()));
   }
 
   @Test(expected = IllegalArgumentException.class)
   public void createDir_incorrectPath_exceptionThrown() throws Exception {
     // act
-    ZookeeperNodeOperations.createNode(zkConnectionString, "node");
+    ZookeeperNodeOperations.createNode(zkClient, "node");
   }
 
   @Test
   public void checkExists_dirExists_returnsTrue() throws Exception {
     // arrange
-    CuratorFramework tempClient = ZookeeperNodeOperations.getNewTempClient(zkConnectionString);
-    tempClient.create().forPath("/newnode");
-    tempClient.close();
+    zkClient.create().forPath("/newnode");
 
     // act
-    boolean exists = ZookeeperNodeOperations.checkExists(zkConnectionString, "/newnode");
+    boolean exists = ZookeeperNodeOperations.checkExists(zkClient, "/newnode");
 
     // assert
     assertThat(exists, equalTo(true));
@@ -95,15 +93,27 @@ public class ZookeeperNodeOperationsTest {
   @Test
   public void checkExists_dirNotExist_returnsFalse() throws Exception {
     // act
-    boolean exists = ZookeeperNodeOperations.checkExists(zkConnectionString, "/newnode2");
+    boolean exists = ZookeeperNodeOperations.checkExists(zkClient, "/newnode2");
 
     // assert
     assertThat(exists, equalTo(false));
   }
 
+  @Test
+  public void createIfNotExists_dirExists_nothingHappens() throws Exception {
+    // arrange
+    zkClient.create().forPath("/existing", new byte[] {1});
+
+    // act
+    ZookeeperNodeOperations.createIfNotExists(zkClient, "/existing");
+
+    // assert
+    assertThat(zkClient.getData().forPath("/existing"), equalTo(new byte[] {1}));
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void checkExists_incorrectPath_exceptionThrown() throws Exception {
     // act
-    ZookeeperNodeOperations.checkExists(zkConnectionString, "newnode3");
+    ZookeeperNodeOperations.checkExists(zkClient, "newnode3");
   }
 }
@@ -19,6 +19,7 @@ import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceBindi
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.model.DeleteServiceInstanceBindingRequest;
 import org.cloudfoundry.community.servicebroker.model.DeleteServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.OperationState;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstanceBinding;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceBindingService;
@@ -190,6 +191,26 @@ public class H2oBrokerIntegrationTest {
     assertThat(removedBinding.getId(), equalTo(BINDING_ID));
   }
 
+  @Test
+  public void testCreateServiceInstance_asyncClient_shouldReportSucceededLastOperation()
+      throws Exception {
+    // arrange
+    final String INSTANCE_ID = "instanceId4";
+    when(h2oProvisionerRestApi.createH2oInstance(INSTANCE_ID, conf.getH2oMapperNodes(),
+        conf.getH2oMapperMemory(), true, yarnConfig))
+            .thenReturn(new ResponseEntity<>(CREDENTIALS, HttpStatus.OK));
+
+    // act
+    CreateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID).withAsyncClient(true);
+    ServiceInstance createdInstance = instanceService.createServiceInstance(request);
+
+    // assert
+    assertThat(createdInstance.isAsync(), equalTo(true));
+    freeze().until(() -> instanceService.getServiceInstance(INSTANCE_ID)
+        .getServiceInstanceLastOperation().getState(), equalTo(OperationState.SUCCEEDED));
+  }
+
   private static ConditionFactory freeze() {
     return with().pollInterval(30, MILLISECONDS).await().atMost(200, MILLISECONDS);
   }
@@ -14,18 +14,16 @@
 
 package org.trustedanalytics.servicebroker.h2o.integration;
 
+import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.test.TestingServer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
-import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClient;
-import org.trustedanalytics.cfbroker.store.zookeeper.service.ZookeeperClientBuilder;
 import org.trustedanalytics.servicebroker.h2o.config.ExternalConfiguration;
+import org.trustedanalytics.servicebroker.h2o.helper.ZookeeperConnectionManager;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oProvisionerRestApi;
 
-import java.io.IOException;
-
 import static org.mockito.Mockito.mock;
 
 @Configuration
@@ -38,19 +36,16 @@ public class TestConfig {
   @Autowired
   private TestingServer zkServer;
 
-  @Bean(initMethod = "init", destroyMethod = "destroy")
-  public ZookeeperClient brokerZKClient() throws Exception {
-    return getZookeeperClient(zkServer.getConnectString(), config.getZookeeperMetadataNode());
-  }
-
-  @Bean(initMethod = "init", destroyMethod = "destroy")
-  public ZookeeperClient credentialsZKClient() throws Exception {
-    return getZookeeperClient(zkServer.getConnectString(), config.getZookeeperCredentialsNode());
+  @Bean(initMethod = "start", destroyMethod = "close")
+  public ZookeeperConnectionManager zookeeperConnectionManager() {
+    return new ZookeeperConnectionManager(zkServer.getConnectString(), "user", "password",
+        config.getZookeeperRetryBaseSleepTime(), config.getZookeeperRetryMaxRetries(),
+        config.getZookeeperConnectionTimeout());
   }
 
-  private ZookeeperClient getZookeeperClient(String connectionString, String rootNode)
-      throws IOException {
-    return new ZookeeperClientBuilder(connectionString, "user", "password", rootNode).build();
+  @Bean
+  public CuratorFramework curatorClient(ZookeeperConnectionManager zookeeperConnectionManager) {
+    return zookeeperConnectionManager.getClient();
   }
 
   @Bean
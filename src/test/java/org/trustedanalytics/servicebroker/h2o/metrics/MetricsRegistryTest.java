@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.metrics;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MetricsRegistryTest {
+
+  private MetricsRegistry sut = new MetricsRegistry();
+
+  @Test
+  public void counter_sameNameAndLabels_sameCounterReturned() throws Exception {
+    // act
+    Counter first = sut.counter("requests_total", "Requests", "status", "200");
+    Counter second = sut.counter("requests_total", "Requests", "status", "200");
+
+    // assert
+    assertThat(first, sameInstance(second));
+  }
+
+  @Test
+  public void write_counterWithLabels_prometheusTextRendered() throws Exception {
+    // arrange
+    sut.counter("requests_total", "Requests", "status", "200").increment();
+    sut.counter("requests_total", "Requests", "status", "say \"hi\"").increment();
+
+    // act
+    String text = render();
+
+    // assert
+    assertThat(text, containsString("# HELP requests_total Requests\n"));
+    assertThat(text, containsString("# TYPE requests_total counter\n"));
+    assertThat(text, containsString("requests_total{status=\"200\"} 1\n"));
+    assertThat(text, containsString("requests_total{status=\"say \\\"hi\\\"\"} 1\n"));
+  }
+
+  @Test
+  public void write_timer_cumulativeBucketsRendered() throws Exception {
+    // arrange
+    Timer timer = sut.timer("latency_seconds", "Latency", "store", "credentials");
+    timer.record(TimeUnit.MICROSECONDS.toNanos(500));
+    timer.record(TimeUnit.MILLISECONDS.toNanos(3));
+    timer.record(TimeUnit.SECONDS.toNanos(400));
+
+    // act
+    String text = render();
+
+    // assert
+    assertThat(text, containsString("# TYPE latency_seconds histogram\n"));
+    String bucket = "latency_seconds_bucket{store=\"credentials\",";
+    assertThat(text, containsString(bucket + "le=\"0.001\"} 1\n"));
+    assertThat(text, containsString(bucket + "le=\"0.005\"} 2\n"));
+    assertThat(text, containsString(bucket + "le=\"300.0\"} 2\n"));
+    assertThat(text, containsString(bucket + "le=\"+Inf\"} 3\n"));
+    assertThat(text, containsString("latency_seconds_count{store=\"credentials\"} 3\n"));
+  }
+
+  @Test
+  public void write_gauge_currentValueRendered() throws Exception {
+    // arrange
+    sut.gauge("jobs", "Jobs in flight", () -> 7);
+
+    // act
+    String text = render();
+
+    // assert
+    assertThat(text, containsString("jobs 7\n"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void timer_nameRegisteredAsCounter_exceptionThrown() throws Exception {
+    // arrange
+    sut.counter("requests_total", "Requests");
+
+    // act
+    sut.timer("requests_total", "Requests");
+  }
+
+  private String render() throws Exception {
+    StringWriter writer = new StringWriter();
+    sut.write(writer);
+    return writer.toString();
+  }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableMap;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BatchingH2oProvisionerTest {
+
+  private static final H2oCredentials CREDENTIALS_1 = new H2oCredentials("a", "b", "c", "d");
+  private static final H2oCredentials CREDENTIALS_2 = new H2oCredentials("e", "f", "g", "h");
+  private static final H2oPlan PLAN = new H2oPlan("planId", "shared", "", "512m", "1", "", 0);
+
+  @Mock
+  private H2oProvisioner delegateMock;
+
+  private final ExecutorService callers = Executors.newFixedThreadPool(4);
+
+  @Before
+  public void setup() {
+    when(delegateMock.provisionInstances(anyMapOf(String.class, H2oPlan.class),
+        any(Executor.class)))
+        .thenAnswer(invocation -> {
+          Map<?, ?> instances = (Map<?, ?>) invocation.getArguments()[0];
+          CompletableFuture<H2oCredentials> failed = new CompletableFuture<>();
+          failed.completeExceptionally(new ServiceBrokerException("failed"));
+          ImmutableMap<String, CompletableFuture<H2oCredentials>> results = ImmutableMap.of(
+              "instance1", CompletableFuture.completedFuture(CREDENTIALS_1),
+              "instance2", CompletableFuture.completedFuture(CREDENTIALS_2),
+              "failing", failed);
+          assertThat(results.keySet().containsAll(instances.keySet()), equalTo(true));
+          return results;
+        });
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void provisionInstance_concurrentCallsWithinLinger_oneBatchSubmitted() throws Exception {
+    // arrange
+    H2oProvisioner provisioner = new BatchingH2oProvisioner(delegateMock, 60_000, 2, callers);
+
+    // act
+    Future<H2oCredentials> first =
+        callers.submit(() -> provisioner.provisionInstance("instance1", PLAN));
+    Future<H2oCredentials> second =
+        callers.submit(() -> provisioner.provisionInstance("instance2", PLAN));
+
+    // assert
+    assertThat(first.get(), equalTo(CREDENTIALS_1));
+    assertThat(second.get(), equalTo(CREDENTIALS_2));
+    ArgumentCaptor<Map> batch = ArgumentCaptor.forClass(Map.class);
+    verify(delegateMock, times(1)).provisionInstances(batch.capture(), any(Executor.class));
+    assertThat(((Map<String, H2oPlan>) batch.getValue()).keySet(),
+        containsInAnyOrder("instance1", "instance2"));
+  }
+
+  @Test
+  public void provisionInstance_lingerPassed_batchSubmittedWithoutWaitingForMore()
+      throws Exception {
+    // arrange
+    H2oProvisioner provisioner = new BatchingH2oProvisioner(delegateMock, 10, 20, callers);
+
+    // act
+    H2oCredentials credentials = provisioner.provisionInstance("instance1", PLAN);
+
+    // assert
+    assertThat(credentials, equalTo(CREDENTIALS_1));
+    verify(delegateMock, times(1)).provisionInstances(eq(ImmutableMap.of("instance1", PLAN)),
+        any(Executor.class));
+  }
+
+  @Test
+  public void provisionInstance_oneInstanceInBatchFails_onlyItsCallerGetsException()
+      throws Exception {
+    // arrange
+    H2oProvisioner provisioner = new BatchingH2oProvisioner(delegateMock, 60_000, 2, callers);
+
+    // act
+    Future<H2oCredentials> ok =
+        callers.submit(() -> provisioner.provisionInstance("instance1", PLAN));
+    Future<H2oCredentials> failing =
+        callers.submit(() -> provisioner.provisionInstance("failing", PLAN));
+
+    // assert
+    assertThat(ok.get(), equalTo(CREDENTIALS_1));
+    try {
+      failing.get();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(ServiceBrokerException.class));
+      return;
+    }
+    throw new AssertionError("ServiceBrokerException expected");
+  }
+
+  @Test
+  public void provisionInstance_batchOfTwo_membersProvisionedConcurrently() throws Exception {
+    // arrange
+    CyclicBarrier bothProvisioning = new CyclicBarrier(2);
+    H2oProvisioner delegate = new H2oProvisioner() {
+      @Override
+      public H2oCredentials provisionInstance(String serviceInstanceId, H2oPlan plan)
+          throws ServiceBrokerException {
+        try {
+          // fails unless the other member is provisioned at the same time
+          bothProvisioning.await(5, SECONDS);
+        } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+          throw new ServiceBrokerException("Not provisioned concurrently", e);
+        }
+        return "instance1".equals(serviceInstanceId) ? CREDENTIALS_1 : CREDENTIALS_2;
+      }
+
+      @Override
+      public String deprovisionInstance(String serviceInstanceId) {
+        return serviceInstanceId;
+      }
+    };
+    H2oProvisioner provisioner = new BatchingH2oProvisioner(delegate, 60_000, 2, callers);
+
+    // act
+    Future<H2oCredentials> first =
+        callers.submit(() -> provisioner.provisionInstance("instance1", PLAN));
+    Future<H2oCredentials> second =
+        callers.submit(() -> provisioner.provisionInstance("instance2", PLAN));
+
+    // assert
+    assertThat(first.get(), equalTo(CREDENTIALS_1));
+    assertThat(second.get(), equalTo(CREDENTIALS_2));
+  }
+
+  @Test
+  public void provisionInstance_leaderInterrupted_batchFailedAndInterruptKept() throws Exception {
+    // arrange
+    H2oProvisioner provisioner = new BatchingH2oProvisioner(delegateMock, 60_000, 20, callers);
+    AtomicReference<Exception> error = new AtomicReference<>();
+    AtomicBoolean interrupted = new AtomicBoolean();
+    Thread leader = new Thread(() -> {
+      try {
+        provisioner.provisionInstance("instance1", PLAN);
+      } catch (ServiceBrokerException e) {
+        error.set(e);
+      }
+      interrupted.set(Thread.currentThread().isInterrupted());
+    });
+    leader.start();
+
+    // act
+    leader.interrupt();
+    leader.join(5000);
+
+    // assert
+    assertThat(error.get(), instanceOf(ServiceBrokerException.class));
+    assertThat(interrupted.get(), equalTo(true));
+    verify(delegateMock, never()).provisionInstances(anyMapOf(String.class, H2oPlan.class),
+        any(Executor.class));
+  }
+}
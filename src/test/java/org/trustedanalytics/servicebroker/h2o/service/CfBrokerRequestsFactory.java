@@ -16,6 +16,9 @@ package org.trustedanalytics.servicebroker.h2o.service;
 
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceBindingRequest;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.UpdateServiceInstanceRequest;
+
+import java.util.Map;
 
 public class CfBrokerRequestsFactory {
   public static CreateServiceInstanceRequest getCreateInstanceRequest(String serviceInstanceId) {
@@ -23,6 +26,18 @@ public class CfBrokerRequestsFactory {
         "spaceGuid").withServiceInstanceId(serviceInstanceId);
   }
 
+  public static CreateServiceInstanceRequest getCreateInstanceRequest(String serviceInstanceId,
+      Map<String, Object> parameters) {
+    return new CreateServiceInstanceRequest("serviceDefinitionId", "planId", "organizationGuid",
+        "spaceGuid", parameters).withServiceInstanceId(serviceInstanceId);
+  }
+
+  public static UpdateServiceInstanceRequest getUpdateInstanceRequest(String serviceInstanceId,
+      Map<String, Object> parameters) {
+    return new UpdateServiceInstanceRequest("planId", parameters)
+        .withInstanceId(serviceInstanceId);
+  }
+
   public static CreateServiceInstanceBindingRequest getCreateServiceBindingRequest(
       String instanceId, String bindingId) {
 
@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CircuitBreakerTest {
+
+  private static final int FAILURE_THRESHOLD = 3;
+  private static final long OPEN_SECONDS = 10;
+
+  private long now;
+  private CircuitBreaker sut;
+
+  @Before
+  public void setUp() {
+    sut = new CircuitBreaker("test", FAILURE_THRESHOLD, OPEN_SECONDS, () -> now);
+  }
+
+  @Test
+  public void onFailure_thresholdReached_circuitOpenedAndCallsRejected() throws Exception {
+    // act
+    fail(FAILURE_THRESHOLD);
+
+    // assert
+    assertThat(sut.getState(), equalTo(CircuitBreaker.State.OPEN));
+    assertThat(sut.tryAcquire(), equalTo(false));
+  }
+
+  @Test
+  public void onSuccess_betweenFailures_failuresCountedFromScratch() throws Exception {
+    // arrange
+    fail(FAILURE_THRESHOLD - 1);
+    sut.tryAcquire();
+    sut.onSuccess();
+
+    // act
+    fail(FAILURE_THRESHOLD - 1);
+
+    // assert
+    assertThat(sut.getState(), equalTo(CircuitBreaker.State.CLOSED));
+  }
+
+  @Test
+  public void tryAcquire_openTimePassed_singleProbeLetThrough() throws Exception {
+    // arrange
+    fail(FAILURE_THRESHOLD);
+    now += TimeUnit.SECONDS.toNanos(OPEN_SECONDS);
+
+    // act
+    boolean probe = sut.tryAcquire();
+    boolean secondCall = sut.tryAcquire();
+
+    // assert
+    assertThat(probe, equalTo(true));
+    assertThat(secondCall, equalTo(false));
+    assertThat(sut.getState(), equalTo(CircuitBreaker.State.HALF_OPEN));
+  }
+
+  @Test
+  public void onSuccess_probeSucceeded_circuitClosed() throws Exception {
+    // arrange
+    fail(FAILURE_THRESHOLD);
+    now += TimeUnit.SECONDS.toNanos(OPEN_SECONDS);
+    sut.tryAcquire();
+
+    // act
+    sut.onSuccess();
+
+    // assert
+    assertThat(sut.getState(), equalTo(CircuitBreaker.State.CLOSED));
+    assertThat(sut.getTransitions(CircuitBreaker.State.CLOSED), equalTo(1L));
+  }
+
+  @Test
+  public void onFailure_probeFailed_circuitOpenedAgain() throws Exception {
+    // arrange
+    fail(FAILURE_THRESHOLD);
+    now += TimeUnit.SECONDS.toNanos(OPEN_SECONDS);
+    sut.tryAcquire();
+
+    // act
+    sut.onFailure();
+
+    // assert
+    assertThat(sut.getState(), equalTo(CircuitBreaker.State.OPEN));
+    assertThat(sut.tryAcquire(), equalTo(false));
+    assertThat(sut.getTransitions(CircuitBreaker.State.OPEN), equalTo(2L));
+  }
+
+  private void fail(int times) {
+    for (int i = 0; i < times; i++) {
+      sut.tryAcquire();
+      sut.onFailure();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GuardedH2oProvisionerTest {
+
+  private static final String INSTANCE_ID = "instanceId";
+  private static final H2oPlan PLAN = new H2oPlan("planId", "shared", "", "512m", "1", "", 0);
+  private static final H2oCredentials CREDENTIALS = new H2oCredentials("a", "b", "c", "d");
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  @Mock
+  private H2oProvisioner delegateMock;
+
+  private MetricsRegistry metricsRegistry = new MetricsRegistry();
+  private AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 4, 1000);
+  private GuardedH2oProvisioner sut;
+
+  @Before
+  public void setUp() {
+    sut = new GuardedH2oProvisioner(delegateMock, new CircuitBreaker("test", 2, 60), limiter,
+        metricsRegistry);
+  }
+
+  @Test
+  public void provisionInstance_provisionerWorks_credentialsReturnedAndLimitIncreased()
+      throws Exception {
+    // arrange
+    when(delegateMock.provisionInstance(INSTANCE_ID, PLAN)).thenReturn(CREDENTIALS);
+
+    // act
+    H2oCredentials credentials = sut.provisionInstance(INSTANCE_ID, PLAN);
+
+    // assert
+    assertThat(credentials, equalTo(CREDENTIALS));
+    assertThat(limiter.getLimit(), equalTo(2));
+    assertThat(limiter.getInFlight(), equalTo(0));
+  }
+
+  @Test
+  public void provisionInstance_circuitOpen_failsWithoutCallingProvisioner() throws Exception {
+    // arrange
+    when(delegateMock.deprovisionInstance(INSTANCE_ID))
+        .thenThrow(new ServiceBrokerException("provisioner down"));
+    deprovisionIgnoringErrors(2);
+    expectedException.expect(ServiceBrokerException.class);
+    expectedException.expectMessage("calls are suspended");
+
+    // act
+    try {
+      sut.provisionInstance(INSTANCE_ID, PLAN);
+    } finally {
+      // assert
+      verify(delegateMock, never()).provisionInstance(INSTANCE_ID, PLAN);
+      verify(delegateMock, times(2)).deprovisionInstance(INSTANCE_ID);
+      assertThat(metricsRegistry.counter("h2o_broker_provisioner_rejections_total", "",
+          "reason", "circuit_open").get(), equalTo(1L));
+    }
+  }
+
+  @Test
+  public void provisionInstance_limitReached_failsWithoutCallingProvisioner() throws Exception {
+    // arrange
+    CountDownLatch called = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    when(delegateMock.provisionInstance("slow", PLAN)).thenAnswer(invocation -> {
+      called.countDown();
+      release.await();
+      return CREDENTIALS;
+    });
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.submit(() -> sut.provisionInstance("slow", PLAN));
+    called.await(1, TimeUnit.SECONDS);
+    expectedException.expect(ServiceBrokerException.class);
+    expectedException.expectMessage("overloaded");
+
+    // act
+    try {
+      sut.provisionInstance(INSTANCE_ID, PLAN);
+    } finally {
+      release.countDown();
+      executor.shutdown();
+      verify(delegateMock, never()).provisionInstance(INSTANCE_ID, PLAN);
+    }
+  }
+
+  @Test
+  public void deprovisionInstance_provisionerFails_limitDecreased() throws Exception {
+    // arrange
+    limiter = new AdaptiveConcurrencyLimiter(4, 1, 4, 1000);
+    sut = new GuardedH2oProvisioner(delegateMock, new CircuitBreaker("test", 2, 60), limiter,
+        new MetricsRegistry());
+    when(delegateMock.deprovisionInstance(INSTANCE_ID))
+        .thenThrow(new ServiceBrokerException("provisioner down"));
+
+    // act
+    deprovisionIgnoringErrors(1);
+
+    // assert
+    assertThat(limiter.getLimit(), lessThan(4));
+  }
+
+  private void deprovisionIgnoringErrors(int times) {
+    for (int i = 0; i < times; i++) {
+      try {
+        sut.deprovisionInstance(INSTANCE_ID);
+      } catch (ServiceBrokerException e) {
+        // expected, provisioner is down
+      }
+    }
+  }
+}
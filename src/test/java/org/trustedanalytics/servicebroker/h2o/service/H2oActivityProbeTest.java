@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.web.client.RestTemplate;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(MockitoJUnitRunner.class)
+public class H2oActivityProbeTest {
+
+  private HttpServer server;
+  private String jobs;
+  private String authorization;
+  private H2oActivityProbe sut;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/3/Jobs", exchange -> {
+      authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      byte[] body = jobs.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    sut = new H2oActivityProbe(new RestTemplate());
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void getLastActivity_finishedJobs_endOfLatestJobReturned() throws Exception {
+    // arrange
+    jobs = "{\"jobs\":[{\"status\":\"DONE\",\"start_time\":1000,\"msec\":500},"
+        + "{\"status\":\"FAILED\",\"start_time\":1200,\"msec\":100}]}";
+
+    // act
+    long lastActivity = sut.getLastActivity(credentials("user", "password"));
+
+    // assert
+    assertThat(lastActivity, equalTo(1500L));
+    assertThat(authorization, equalTo("Basic dXNlcjpwYXNzd29yZA=="));
+  }
+
+  @Test
+  public void getLastActivity_runningJob_currentTimeReturned() throws Exception {
+    // arrange
+    jobs = "{\"jobs\":[{\"status\":\"DONE\",\"start_time\":1000,\"msec\":500},"
+        + "{\"status\":\"RUNNING\",\"start_time\":1200,\"msec\":100}]}";
+    long start = System.currentTimeMillis();
+
+    // act
+    long lastActivity = sut.getLastActivity(credentials("user", "password"));
+
+    // assert
+    assertThat(lastActivity, greaterThanOrEqualTo(start));
+  }
+
+  @Test
+  public void getLastActivity_noJobsWithoutAuthentication_zeroReturned() throws Exception {
+    // arrange
+    jobs = "{\"jobs\":[]}";
+
+    // act
+    long lastActivity = sut.getLastActivity(credentials(null, null));
+
+    // assert
+    assertThat(lastActivity, equalTo(0L));
+    assertThat(authorization, nullValue());
+  }
+
+  private H2oCredentials credentials(String username, String password) {
+    return new H2oCredentials("localhost", String.valueOf(server.getAddress().getPort()),
+        username, password);
+  }
+}
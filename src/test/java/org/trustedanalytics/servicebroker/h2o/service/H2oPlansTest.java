@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class H2oPlansTest {
+
+  private static final H2oPlan SMALL = new H2oPlan("small-id", "small", "", "1g", "1", "", 0);
+  private static final H2oPlan LARGE =
+      new H2oPlan("large-id", "large", "", "8g", "4", "analytics", 0);
+
+  @Test
+  public void get_knownPlan_planReturned() {
+    // arrange
+    H2oPlans sut = new H2oPlans(Arrays.asList(SMALL, LARGE));
+
+    // act
+    H2oPlan plan = sut.get("large-id");
+
+    // assert
+    assertThat(plan, equalTo(LARGE));
+  }
+
+  @Test
+  public void get_unknownPlan_defaultPlanReturned() {
+    // arrange
+    H2oPlans sut = new H2oPlans(Arrays.asList(SMALL, LARGE));
+
+    // act
+    H2oPlan plan = sut.get("removed-id");
+
+    // assert
+    assertThat(plan, equalTo(SMALL));
+  }
+
+  @Test
+  public void get_noPlanId_defaultPlanReturned() {
+    // arrange
+    H2oPlans sut = new H2oPlans(Arrays.asList(SMALL, LARGE));
+
+    // act
+    H2oPlan plan = sut.get(null);
+
+    // assert
+    assertThat(plan, equalTo(SMALL));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_noPlans_exceptionThrown() {
+    new H2oPlans(Collections.emptyList());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_duplicatedPlanIds_exceptionThrown() {
+    new H2oPlans(Arrays.asList(SMALL, SMALL));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_memoryWithoutUnit_exceptionThrown() {
+    new H2oPlans(Arrays.asList(new H2oPlan("small-id", "small", "", "1024", "1", "", 0)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_nodesNotNumber_exceptionThrown() {
+    new H2oPlans(Arrays.asList(new H2oPlan("small-id", "small", "", "1g", "one", "", 0)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_maxMemoryBelowMemory_exceptionThrown() {
+    new H2oPlans(Arrays.asList(new H2oPlan("small-id", "small", "", "4g", "1", "", 0, "2048m",
+        "1", ImmutableSet.of())));
+  }
+}
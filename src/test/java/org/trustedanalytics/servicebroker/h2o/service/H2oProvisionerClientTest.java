@@ -26,6 +26,7 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestClientException;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oProvisionerRestApi;
 
@@ -44,16 +45,19 @@ public class H2oProvisionerClientTest {
   private static final String INSTANCE_ID = "instanceId";
   private static final Map<String, String> YARN_CONF =
       ImmutableMap.of("key1", "value1", "key2", "value2");
+  private static final H2oPlan PLAN =
+      new H2oPlan("planId", "shared", "", H2O_MEMORY, H2O_NODES, "", 0);
 
   private H2oProvisioner h2oProvisioner;
 
+  private MetricsRegistry metricsRegistry = new MetricsRegistry();
+
   @Mock
   private H2oProvisionerRestApi h2oRestMock;
 
   @Before
   public void setup() {
-    h2oProvisioner =
-        new H2oProvisionerClient(H2O_MEMORY, H2O_NODES, KERBEROS, YARN_CONF, h2oRestMock);
+    h2oProvisioner = new H2oProvisionerClient(KERBEROS, YARN_CONF, h2oRestMock, metricsRegistry);
   }
 
   @Rule
@@ -69,7 +73,27 @@ public class H2oProvisionerClientTest {
         .thenReturn(new ResponseEntity<>(expectedCredentials, HttpStatus.OK));
 
     // act
-    H2oCredentials actualCredentials = h2oProvisioner.provisionInstance(INSTANCE_ID);
+    H2oCredentials actualCredentials = h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN);
+
+    // assert
+    assertThat(actualCredentials, equalTo(expectedCredentials));
+    assertThat(metricsRegistry.counter("h2o_broker_provisioner_responses_total", "",
+        "operation", "create", "status", "200").get(), equalTo(1L));
+  }
+
+  @Test
+  public void provisionInstance_planWithQueue_queueAddedToYarnConf() throws Exception {
+
+    // arrange
+    H2oPlan plan = new H2oPlan("planId", "large", "", H2O_MEMORY, H2O_NODES, "analytics", 0);
+    Map<String, String> expectedConf = ImmutableMap.of("key1", "value1", "key2", "value2",
+        H2oProvisionerClient.QUEUE_PROPERTY, "analytics");
+    H2oCredentials expectedCredentials = new H2oCredentials("a", "b", "c", "d");
+    when(h2oRestMock.createH2oInstance(INSTANCE_ID, H2O_NODES, H2O_MEMORY, KERBEROS, expectedConf))
+        .thenReturn(new ResponseEntity<>(expectedCredentials, HttpStatus.OK));
+
+    // act
+    H2oCredentials actualCredentials = h2oProvisioner.provisionInstance(INSTANCE_ID, plan);
 
     // assert
     assertThat(actualCredentials, equalTo(expectedCredentials));
@@ -84,7 +108,7 @@ public class H2oProvisionerClientTest {
         .thenReturn(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
 
     // act
-    h2oProvisioner.provisionInstance(INSTANCE_ID);
+    h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN);
   }
 
   @Test
@@ -96,7 +120,7 @@ public class H2oProvisionerClientTest {
         .thenThrow(new RestClientException(""));
 
     // act
-    h2oProvisioner.provisionInstance(INSTANCE_ID);
+    h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN);
   }
 
   @Test
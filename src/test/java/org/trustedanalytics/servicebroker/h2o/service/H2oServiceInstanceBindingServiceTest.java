@@ -27,6 +27,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.trustedanalytics.cfbroker.store.api.BrokerStore;
 import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 
 import java.io.IOException;
@@ -34,6 +35,9 @@ import java.util.Optional;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -52,9 +56,16 @@ public class H2oServiceInstanceBindingServiceTest {
   @Mock
   private BrokerStore<H2oCredentials> credentialsStoreMock;
 
+  @Mock
+  private ProvisioningStateStore stateStoreMock;
+
   @Before
   public void setup() {
-    bindingService = new H2oServiceInstanceBindingService(delegateMock, credentialsStoreMock);
+    MetricsRegistry metricsRegistry = new MetricsRegistry();
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.empty());
+    bindingService = new H2oServiceInstanceBindingService(delegateMock, credentialsStoreMock,
+        stateStoreMock, new InstanceLocks(16, null, "/locks", "test", false, 1, metricsRegistry),
+        metricsRegistry);
   }
 
   @Rule
@@ -104,6 +115,28 @@ public class H2oServiceInstanceBindingServiceTest {
     bindingService.createServiceInstanceBinding(request);
   }
 
+  @Test
+  public void createServiceInstanceBinding_clusterStoppedForBeingIdle_bindingNotStored()
+      throws Exception {
+    // arrange
+    CreateServiceInstanceBindingRequest request =
+        CfBrokerRequestsFactory.getCreateServiceBindingRequest(INSTANCE_ID, BINDING_ID);
+    when(credentialsStoreMock.getById(Location.newInstance(INSTANCE_ID)))
+        .thenReturn(Optional.empty());
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(
+        ProvisioningState.queued().inProgress().succeeded().suspended()));
+    expectedException.expect(ServiceBrokerException.class);
+    expectedException.expectMessage("cf update-service");
+
+    // act
+    try {
+      bindingService.createServiceInstanceBinding(request);
+    } finally {
+      // assert
+      verify(delegateMock, never()).createServiceInstanceBinding(any());
+    }
+  }
+
   @Test
   public void createServiceInstanceBinding_credentialsStoreError_exceptionThrown()
       throws Exception {
@@ -14,24 +14,44 @@
 
 package org.trustedanalytics.servicebroker.h2o.service;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
 import org.cloudfoundry.community.servicebroker.model.CreateServiceInstanceRequest;
+import org.cloudfoundry.community.servicebroker.model.DeleteServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.UpdateServiceInstanceRequest;
 import org.cloudfoundry.community.servicebroker.service.ServiceInstanceService;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.trustedanalytics.cfbroker.store.api.BrokerStore;
 import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
 import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
 
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasProperty;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -41,22 +61,36 @@ import static org.springframework.test.util.MatcherAssertionErrors.assertThat;
 public class H2oServiceInstanceServiceTest {
 
   private static final String INSTANCE_ID = "instanceId0";
+  private static final H2oPlan PLAN = new H2oPlan("planId", "shared", "", "512m", "1", "", 0,
+      "8g", "4", ImmutableSet.of());
+  private static final ProvisioningState CREATED =
+      ProvisioningState.queued("planId", ImmutableMap.of()).inProgress().succeeded();
 
   private H2oServiceInstanceService instanceService;
 
+  private ProvisioningScheduler provisioningScheduler;
+
   @Mock
   private ServiceInstanceService delegateMock;
 
   @Mock
-  private H2oProvisioner h2oProvisioner;
+  private PooledH2oProvisioner h2oProvisioner;
 
   @Mock
   private BrokerStore<H2oCredentials> credentialsStoreMock;
 
+  @Mock
+  private ProvisioningExecutor provisioningExecutorMock;
+
+  @Mock
+  private ProvisioningStateStore stateStoreMock;
+
+  @Mock
+  private ProvisioningClaims claimsMock;
+
   @Before
-  public void setup() {
-    instanceService =
-        new H2oServiceInstanceService(delegateMock, h2oProvisioner, credentialsStoreMock);
+  public void setup() throws Exception {
+    instanceService = createService(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(1, 1, 1));
   }
 
   @Test
@@ -68,7 +102,7 @@ public class H2oServiceInstanceServiceTest {
     H2oCredentials expectedCredentials = new H2oCredentials("a", "b", "c", "d");
 
     when(delegateMock.createServiceInstance(request)).thenReturn(expectedInstance);
-    when(h2oProvisioner.provisionInstance(INSTANCE_ID)).thenReturn(expectedCredentials);
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN)).thenReturn(expectedCredentials);
     doNothing().when(credentialsStoreMock).save(Location.newInstance(INSTANCE_ID),
         expectedCredentials);
 
@@ -78,11 +112,50 @@ public class H2oServiceInstanceServiceTest {
     // assert
     assertThat(createdInstance, equalTo(expectedInstance));
     verify(delegateMock, timeout(200)).createServiceInstance(request);
-    verify(h2oProvisioner, timeout(200)).provisionInstance(INSTANCE_ID);
+    verify(h2oProvisioner, timeout(200)).provisionInstance(INSTANCE_ID, PLAN);
     verify(credentialsStoreMock, timeout(200)).save(Location.newInstance(INSTANCE_ID),
         expectedCredentials);
   }
 
+  @Test
+  public void createServiceInstance_parametersWithinPlanLimits_clusterSizedByParameters()
+      throws Exception {
+    // arrange
+    CreateServiceInstanceRequest request = CfBrokerRequestsFactory.getCreateInstanceRequest(
+        INSTANCE_ID, ImmutableMap.of("memory", "4g", "nodes", 2));
+    when(delegateMock.createServiceInstance(request)).thenReturn(new ServiceInstance(request));
+
+    // act
+    instanceService.createServiceInstance(request);
+
+    // assert
+    ArgumentCaptor<H2oPlan> plan = ArgumentCaptor.forClass(H2oPlan.class);
+    verify(h2oProvisioner, timeout(200)).provisionInstance(eq(INSTANCE_ID), plan.capture());
+    assertThat(plan.getValue().getMemory(), equalTo("4g"));
+    assertThat(plan.getValue().getNodes(), equalTo("2"));
+    verify(stateStoreMock).save(eq(INSTANCE_ID), argThat(allOf(
+        hasProperty("status", equalTo(ProvisioningState.Status.QUEUED)),
+        hasProperty("parameters", equalTo(ImmutableMap.of("memory", "4g", "nodes", "2"))))));
+  }
+
+  @Test
+  public void createServiceInstance_parametersAbovePlanLimits_nothingCreatedAndExceptionThrown()
+      throws Exception {
+    // arrange
+    CreateServiceInstanceRequest request = CfBrokerRequestsFactory.getCreateInstanceRequest(
+        INSTANCE_ID, ImmutableMap.of("memory", "16g"));
+
+    // act
+    try {
+      instanceService.createServiceInstance(request);
+      fail("ServiceBrokerException expected");
+    } catch (ServiceBrokerException e) {
+      // assert
+      verify(delegateMock, never()).createServiceInstance(any());
+      verify(h2oProvisioner, never()).provisionInstance(anyString(), any());
+    }
+  }
+
   @Test
   public void createServiceInstance_provisionerFails_instanceCreated() throws Exception {
     // arrange
@@ -91,7 +164,8 @@ public class H2oServiceInstanceServiceTest {
     ServiceInstance expectedInstance = new ServiceInstance(request);
 
     when(delegateMock.createServiceInstance(request)).thenReturn(expectedInstance);
-    when(h2oProvisioner.provisionInstance(INSTANCE_ID)).thenThrow(new ServiceBrokerException(""));
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenThrow(new ServiceBrokerException(""));
 
     // act
     ServiceInstance createdInstance = instanceService.createServiceInstance(request);
@@ -99,7 +173,7 @@ public class H2oServiceInstanceServiceTest {
     // assert
     assertThat(createdInstance, equalTo(expectedInstance));
     verify(delegateMock, timeout(200)).createServiceInstance(request);
-    verify(h2oProvisioner, timeout(200)).provisionInstance(INSTANCE_ID);
+    verify(h2oProvisioner, timeout(200)).provisionInstance(INSTANCE_ID, PLAN);
   }
 
   @Test
@@ -111,7 +185,7 @@ public class H2oServiceInstanceServiceTest {
     H2oCredentials expectedCredentials = new H2oCredentials("a", "b", "c", "d");
 
     when(delegateMock.createServiceInstance(request)).thenReturn(expectedInstance);
-    when(h2oProvisioner.provisionInstance(INSTANCE_ID)).thenReturn(expectedCredentials);
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN)).thenReturn(expectedCredentials);
     doThrow(new IOException()).when(credentialsStoreMock).save(Location.newInstance(INSTANCE_ID),
         expectedCredentials);
 
@@ -121,8 +195,463 @@ public class H2oServiceInstanceServiceTest {
     // assert
     assertThat(createdInstance, equalTo(expectedInstance));
     verify(delegateMock, timeout(200)).createServiceInstance(request);
-    verify(h2oProvisioner, timeout(200)).provisionInstance(INSTANCE_ID);
+    verify(h2oProvisioner, timeout(200)).provisionInstance(INSTANCE_ID, PLAN);
     verify(credentialsStoreMock, timeout(200)).save(Location.newInstance(INSTANCE_ID),
         expectedCredentials);
   }
+
+  @Test
+  public void createServiceInstance_provisioningQueueFull_instanceRemovedAndExceptionThrown()
+      throws Exception {
+    // arrange
+    CreateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID);
+    ServiceInstance expectedInstance = new ServiceInstance(request);
+    instanceService = createService(provisioningExecutorMock, new RetryPolicy(1, 1, 1));
+
+    when(delegateMock.createServiceInstance(request)).thenReturn(expectedInstance);
+    doThrow(new ServiceBrokerException("busy")).when(provisioningExecutorMock)
+        .submit(eq(INSTANCE_ID), any(Runnable.class));
+
+    // act
+    try {
+      instanceService.createServiceInstance(request);
+      fail("ServiceBrokerException expected");
+    } catch (ServiceBrokerException e) {
+      // assert
+      verify(delegateMock).deleteServiceInstance(any(DeleteServiceInstanceRequest.class));
+      verify(stateStoreMock).delete(INSTANCE_ID);
+      verify(h2oProvisioner, never()).provisionInstance(INSTANCE_ID, PLAN);
+    }
+  }
+
+  @Test
+  public void createServiceInstance_asyncClient_asyncInstanceReturnedAndStatesSaved()
+      throws Exception {
+    // arrange
+    CreateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID).withAsyncClient(true);
+    H2oCredentials expectedCredentials = new H2oCredentials("a", "b", "c", "d");
+
+    when(delegateMock.createServiceInstance(request)).thenReturn(new ServiceInstance(request));
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN)).thenReturn(expectedCredentials);
+
+    // act
+    ServiceInstance createdInstance = instanceService.createServiceInstance(request);
+
+    // assert
+    assertThat(createdInstance.isAsync(), equalTo(true));
+    verify(stateStoreMock, timeout(200)).save(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.QUEUED))));
+    verify(stateStoreMock, timeout(200)).update(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.IN_PROGRESS))));
+    verify(stateStoreMock, timeout(200)).update(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.SUCCEEDED))));
+  }
+
+  @Test
+  public void createServiceInstance_provisionerFails_failedStateSaved() throws Exception {
+    // arrange
+    CreateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID);
+
+    when(delegateMock.createServiceInstance(request)).thenReturn(new ServiceInstance(request));
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenThrow(new ServiceBrokerException("YARN is down"));
+
+    // act
+    instanceService.createServiceInstance(request);
+
+    // assert
+    verify(stateStoreMock, timeout(200)).update(eq(INSTANCE_ID),
+        argThat(hasProperty("error", equalTo("YARN is down"))));
+  }
+
+  @Test
+  public void createServiceInstance_provisionerFailsOnce_instanceCreatedOnRetry()
+      throws Exception {
+    // arrange
+    CreateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID);
+    H2oCredentials expectedCredentials = new H2oCredentials("a", "b", "c", "d");
+    instanceService = createService(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+
+    when(delegateMock.createServiceInstance(request)).thenReturn(new ServiceInstance(request));
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenThrow(new ServiceBrokerException("YARN is down")).thenReturn(expectedCredentials);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(
+        Optional.of(ProvisioningState.queued().inProgress().retryScheduled("YARN is down", 0)));
+
+    // act
+    instanceService.createServiceInstance(request);
+
+    // assert
+    verify(stateStoreMock, timeout(500)).update(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.RETRY_SCHEDULED))));
+    verify(h2oProvisioner, timeout(500).times(2)).provisionInstance(INSTANCE_ID, PLAN);
+    verify(credentialsStoreMock, timeout(500)).save(Location.newInstance(INSTANCE_ID),
+        expectedCredentials);
+  }
+
+  @Test
+  public void deleteServiceInstance_retryScheduled_retryCancelled() throws Exception {
+    // arrange
+    CreateServiceInstanceRequest createRequest =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID);
+    ServiceInstance instance = new ServiceInstance(createRequest);
+    instanceService =
+        createService(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 60000, 60000));
+
+    when(delegateMock.createServiceInstance(createRequest)).thenReturn(instance);
+    when(delegateMock.deleteServiceInstance(any(DeleteServiceInstanceRequest.class)))
+        .thenReturn(instance);
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenThrow(new ServiceBrokerException("YARN is down"));
+    instanceService.createServiceInstance(createRequest);
+    await().atMost(1, SECONDS).until(provisioningScheduler::getScheduledRetries, equalTo(1));
+
+    // act
+    instanceService.deleteServiceInstance(new DeleteServiceInstanceRequest(INSTANCE_ID,
+        instance.getServiceDefinitionId(), instance.getPlanId()));
+
+    // assert
+    assertThat(provisioningScheduler.getScheduledRetries(), equalTo(0));
+    verify(credentialsStoreMock).deleteById(Location.newInstance(INSTANCE_ID));
+    verify(stateStoreMock).delete(INSTANCE_ID);
+  }
+
+  @Test
+  public void deleteServiceInstance_provisioningInProgress_provisioningCancelled()
+      throws Exception {
+    // arrange
+    CreateServiceInstanceRequest createRequest =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID);
+    ServiceInstance instance = new ServiceInstance(createRequest);
+    CountDownLatch release = new CountDownLatch(1);
+
+    when(delegateMock.createServiceInstance(createRequest)).thenReturn(instance);
+    when(delegateMock.deleteServiceInstance(any(DeleteServiceInstanceRequest.class)))
+        .thenReturn(instance);
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN)).thenAnswer(invocation -> {
+      release.await(5, SECONDS);
+      return new H2oCredentials("a", "b", "c", "d");
+    });
+    instanceService.createServiceInstance(createRequest);
+    verify(h2oProvisioner, timeout(500)).provisionInstance(INSTANCE_ID, PLAN);
+
+    // act
+    instanceService.deleteServiceInstance(new DeleteServiceInstanceRequest(INSTANCE_ID,
+        instance.getServiceDefinitionId(), instance.getPlanId()));
+
+    // assert
+    verify(h2oProvisioner, never()).deprovisionInstance(INSTANCE_ID);
+    release.countDown();
+    verify(h2oProvisioner, timeout(500)).deprovisionInstance(INSTANCE_ID);
+    verify(credentialsStoreMock, never()).save(any(), any());
+  }
+
+  @Test
+  public void createServiceInstance_clusterInPool_credentialsSavedAtOnce() throws Exception {
+    // arrange
+    CreateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID);
+    ServiceInstance expectedInstance = new ServiceInstance(request);
+    H2oCredentials pooledCredentials = new H2oCredentials("a", "b", "c", "d");
+
+    when(delegateMock.createServiceInstance(request)).thenReturn(expectedInstance);
+    when(h2oProvisioner.provisionFromPool(INSTANCE_ID, PLAN))
+        .thenReturn(Optional.of(pooledCredentials));
+
+    // act
+    instanceService.createServiceInstance(request);
+
+    // assert
+    verify(credentialsStoreMock).save(Location.newInstance(INSTANCE_ID), pooledCredentials);
+    verify(stateStoreMock).save(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.SUCCEEDED))));
+    verify(h2oProvisioner, after(200).never()).provisionInstance(anyString(), any());
+  }
+
+  @Test
+  public void createServiceInstance_savingPooledCredentialsFails_clusterReleased()
+      throws Exception {
+    // arrange
+    CreateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID);
+    ServiceInstance instance = new ServiceInstance(request);
+    H2oCredentials pooledCredentials = new H2oCredentials("a", "b", "c", "d");
+
+    when(delegateMock.createServiceInstance(request)).thenReturn(instance);
+    when(h2oProvisioner.provisionFromPool(INSTANCE_ID, PLAN))
+        .thenReturn(Optional.of(pooledCredentials));
+    doThrow(new IOException("zookeeper is down")).when(credentialsStoreMock)
+        .save(Location.newInstance(INSTANCE_ID), pooledCredentials);
+
+    // act
+    try {
+      instanceService.createServiceInstance(request);
+      fail("ServiceBrokerException expected");
+    } catch (ServiceBrokerException e) {
+      // expected
+    }
+
+    // assert
+    verify(h2oProvisioner).deprovisionInstance(INSTANCE_ID);
+    verify(delegateMock).deleteServiceInstance(any(DeleteServiceInstanceRequest.class));
+  }
+
+  @Test
+  public void updateServiceInstance_instanceCreated_clusterReplacedBySizeOfRequest()
+      throws Exception {
+    // arrange
+    UpdateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getUpdateInstanceRequest(INSTANCE_ID, ImmutableMap.of("nodes", 3));
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    H2oCredentials newCredentials = new H2oCredentials("e", "f", "g", "h");
+
+    when(delegateMock.getServiceInstance(INSTANCE_ID)).thenReturn(instance);
+    when(delegateMock.updateServiceInstance(request)).thenReturn(instance);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(CREATED));
+    when(h2oProvisioner.provisionReplacement(eq(INSTANCE_ID), any())).thenReturn(newCredentials);
+    when(credentialsStoreMock.getById(Location.newInstance(INSTANCE_ID)))
+        .thenReturn(Optional.of(new H2oCredentials("a", "b", "c", "d")));
+
+    // act
+    instanceService.updateServiceInstance(request);
+
+    // assert
+    verify(stateStoreMock).save(eq(INSTANCE_ID), argThat(allOf(
+        hasProperty("operation", equalTo(ProvisioningState.Operation.RESIZE)),
+        hasProperty("status", equalTo(ProvisioningState.Status.QUEUED)))));
+    ArgumentCaptor<H2oPlan> plan = ArgumentCaptor.forClass(H2oPlan.class);
+    verify(h2oProvisioner, timeout(500)).provisionReplacement(eq(INSTANCE_ID), plan.capture());
+    assertThat(plan.getValue().getNodes(), equalTo("3"));
+    verify(credentialsStoreMock, timeout(500)).save(Location.newInstance(INSTANCE_ID),
+        newCredentials);
+    verify(h2oProvisioner, timeout(500)).commitReplacement(INSTANCE_ID);
+  }
+
+  @Test
+  public void updateServiceInstance_sizeUnchanged_clusterKept() throws Exception {
+    // arrange
+    UpdateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getUpdateInstanceRequest(INSTANCE_ID, ImmutableMap.of());
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+
+    when(delegateMock.getServiceInstance(INSTANCE_ID)).thenReturn(instance);
+    when(delegateMock.updateServiceInstance(request)).thenReturn(instance);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(CREATED));
+
+    // act
+    instanceService.updateServiceInstance(request);
+
+    // assert
+    verify(delegateMock).updateServiceInstance(request);
+    verify(stateStoreMock, never()).save(anyString(), any());
+    verify(h2oProvisioner, after(200).never()).provisionReplacement(anyString(), any());
+  }
+
+  @Test
+  public void updateServiceInstance_provisioningInProgress_exceptionThrown() throws Exception {
+    // arrange
+    UpdateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getUpdateInstanceRequest(INSTANCE_ID, ImmutableMap.of("nodes", 3));
+
+    when(delegateMock.getServiceInstance(INSTANCE_ID)).thenReturn(
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID)));
+    when(stateStoreMock.get(INSTANCE_ID))
+        .thenReturn(Optional.of(ProvisioningState.queued().inProgress()));
+
+    // act
+    try {
+      instanceService.updateServiceInstance(request);
+      fail("ServiceBrokerException expected");
+    } catch (ServiceBrokerException e) {
+      // assert
+      verify(delegateMock, never()).updateServiceInstance(any());
+      verify(h2oProvisioner, never()).provisionReplacement(anyString(), any());
+    }
+  }
+
+  @Test
+  public void deleteServiceInstance_resizeInProgress_newAndOldClusterKilled() throws Exception {
+    // arrange
+    UpdateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getUpdateInstanceRequest(INSTANCE_ID, ImmutableMap.of("nodes", 3));
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    CountDownLatch release = new CountDownLatch(1);
+
+    when(delegateMock.getServiceInstance(INSTANCE_ID)).thenReturn(instance);
+    when(delegateMock.updateServiceInstance(request)).thenReturn(instance);
+    when(delegateMock.deleteServiceInstance(any(DeleteServiceInstanceRequest.class)))
+        .thenReturn(instance);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(CREATED));
+    when(h2oProvisioner.provisionReplacement(eq(INSTANCE_ID), any())).thenAnswer(invocation -> {
+      release.await(5, SECONDS);
+      return new H2oCredentials("e", "f", "g", "h");
+    });
+    instanceService.updateServiceInstance(request);
+    verify(h2oProvisioner, timeout(500)).provisionReplacement(eq(INSTANCE_ID), any());
+    when(stateStoreMock.get(INSTANCE_ID))
+        .thenReturn(Optional.of(ProvisioningState.resizing("planId", ImmutableMap.of())));
+
+    // act
+    instanceService.deleteServiceInstance(new DeleteServiceInstanceRequest(INSTANCE_ID,
+        instance.getServiceDefinitionId(), instance.getPlanId()));
+
+    // assert
+    verify(h2oProvisioner).deprovisionInstance(INSTANCE_ID);
+    release.countDown();
+    verify(h2oProvisioner, timeout(500)).abortReplacement(INSTANCE_ID);
+    verify(h2oProvisioner, never()).commitReplacement(INSTANCE_ID);
+  }
+
+  @Test
+  public void updateServiceInstance_instanceSuspended_clusterStartedAgain() throws Exception {
+    // arrange
+    UpdateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getUpdateInstanceRequest(INSTANCE_ID, ImmutableMap.of());
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    H2oCredentials newCredentials = new H2oCredentials("e", "f", "g", "h");
+
+    when(delegateMock.getServiceInstance(INSTANCE_ID)).thenReturn(instance);
+    when(delegateMock.updateServiceInstance(request)).thenReturn(instance);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(CREATED.suspended()));
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN)).thenReturn(newCredentials);
+
+    // act
+    instanceService.updateServiceInstance(request);
+
+    // assert
+    verify(stateStoreMock).save(eq(INSTANCE_ID), argThat(allOf(
+        hasProperty("operation", equalTo(ProvisioningState.Operation.CREATE)),
+        hasProperty("status", equalTo(ProvisioningState.Status.QUEUED)))));
+    verify(h2oProvisioner, timeout(500)).provisionInstance(INSTANCE_ID, PLAN);
+    verify(credentialsStoreMock, timeout(500)).save(Location.newInstance(INSTANCE_ID),
+        newCredentials);
+    verify(h2oProvisioner, never()).provisionReplacement(anyString(), any());
+  }
+
+  @Test
+  public void updateServiceInstance_instanceSuspendedAndClusterPooled_pooledClusterAssigned()
+      throws Exception {
+    // arrange
+    UpdateServiceInstanceRequest request =
+        CfBrokerRequestsFactory.getUpdateInstanceRequest(INSTANCE_ID, ImmutableMap.of());
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    H2oCredentials pooledCredentials = new H2oCredentials("e", "f", "g", "h");
+
+    when(delegateMock.getServiceInstance(INSTANCE_ID)).thenReturn(instance);
+    when(delegateMock.updateServiceInstance(request)).thenReturn(instance);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(CREATED.suspended()));
+    when(h2oProvisioner.provisionFromPool(eq(INSTANCE_ID), any()))
+        .thenReturn(Optional.of(pooledCredentials));
+
+    // act
+    instanceService.updateServiceInstance(request);
+
+    // assert
+    verify(credentialsStoreMock).save(Location.newInstance(INSTANCE_ID), pooledCredentials);
+    verify(stateStoreMock).save(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.SUCCEEDED))));
+    verify(h2oProvisioner, after(200).never()).provisionInstance(anyString(), any());
+  }
+
+  @Test
+  public void deleteServiceInstance_instanceSuspended_noClusterKilled() throws Exception {
+    // arrange
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    when(delegateMock.deleteServiceInstance(any(DeleteServiceInstanceRequest.class)))
+        .thenReturn(instance);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(CREATED.suspended()));
+
+    // act
+    instanceService.deleteServiceInstance(new DeleteServiceInstanceRequest(INSTANCE_ID,
+        instance.getServiceDefinitionId(), instance.getPlanId()));
+
+    // assert
+    verify(h2oProvisioner, never()).deprovisionInstance(anyString());
+    verify(credentialsStoreMock).deleteById(Location.newInstance(INSTANCE_ID));
+    verify(stateStoreMock).delete(INSTANCE_ID);
+  }
+
+  @Test
+  public void deleteServiceInstance_createFailed_noClusterKilled() throws Exception {
+    // arrange
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    when(delegateMock.deleteServiceInstance(any(DeleteServiceInstanceRequest.class)))
+        .thenReturn(instance);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(
+        ProvisioningState.queued("planId", ImmutableMap.of()).inProgress().failed("YARN is down")));
+
+    // act
+    instanceService.deleteServiceInstance(new DeleteServiceInstanceRequest(INSTANCE_ID,
+        instance.getServiceDefinitionId(), instance.getPlanId()));
+
+    // assert
+    verify(h2oProvisioner, never()).deprovisionInstance(anyString());
+    verify(credentialsStoreMock).deleteById(Location.newInstance(INSTANCE_ID));
+    verify(stateStoreMock).delete(INSTANCE_ID);
+  }
+
+  @Test
+  public void deleteServiceInstance_provisioningClaimedByOtherReplica_noClusterKilled()
+      throws Exception {
+    // arrange
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    when(delegateMock.deleteServiceInstance(any(DeleteServiceInstanceRequest.class)))
+        .thenReturn(instance);
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(
+        ProvisioningState.queued("planId", ImmutableMap.of()).inProgress()));
+    when(claimsMock.isClaimedByOther(INSTANCE_ID)).thenReturn(true);
+
+    // act
+    instanceService.deleteServiceInstance(new DeleteServiceInstanceRequest(INSTANCE_ID,
+        instance.getServiceDefinitionId(), instance.getPlanId()));
+
+    // assert
+    verify(h2oProvisioner, never()).deprovisionInstance(anyString());
+    verify(credentialsStoreMock).deleteById(Location.newInstance(INSTANCE_ID));
+    verify(stateStoreMock).delete(INSTANCE_ID);
+  }
+
+  @Test
+  public void getServiceInstance_stateKnown_instanceServedFromStateStore() throws Exception {
+    // arrange
+    ServiceInstance expectedInstance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    when(stateStoreMock.getServiceInstance(eq(INSTANCE_ID), any()))
+        .thenReturn(expectedInstance);
+
+    // act
+    ServiceInstance instance = instanceService.getServiceInstance(INSTANCE_ID);
+
+    // assert
+    assertThat(instance, equalTo(expectedInstance));
+    verify(delegateMock, never()).getServiceInstance(INSTANCE_ID);
+  }
+
+  private H2oServiceInstanceService createService(ProvisioningExecutor executor,
+      RetryPolicy retryPolicy) throws IOException {
+    when(claimsMock.claim(anyString())).thenReturn(true);
+    when(stateStoreMock.exists(anyString())).thenReturn(true);
+    when(stateStoreMock.update(anyString(), any())).thenReturn(true);
+    when(h2oProvisioner.provisionFromPool(anyString(), any())).thenReturn(Optional.empty());
+    when(stateStoreMock.get(anyString())).thenReturn(Optional.empty());
+    InstanceLocks instanceLocks =
+        new InstanceLocks(16, null, "/locks", "test", false, 1, new MetricsRegistry());
+    H2oPlans plans = new H2oPlans(Arrays.asList(PLAN));
+    provisioningScheduler = new ProvisioningScheduler(h2oProvisioner, plans, credentialsStoreMock,
+        executor, stateStoreMock, claimsMock, instanceLocks, retryPolicy);
+    return new H2oServiceInstanceService(delegateMock, h2oProvisioner, plans,
+        credentialsStoreMock, provisioningScheduler, stateStoreMock, instanceLocks);
+  }
 }
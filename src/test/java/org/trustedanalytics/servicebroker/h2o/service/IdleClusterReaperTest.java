@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.web.client.ResourceAccessException;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasProperty;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class IdleClusterReaperTest {
+
+  private static final String INSTANCE_ID = "instanceId0";
+  private static final long IDLE_TIMEOUT_MINUTES = 30;
+  private static final long START = 1_000_000_000L;
+  private static final long AFTER_TIMEOUT =
+      START + TimeUnit.MINUTES.toMillis(IDLE_TIMEOUT_MINUTES + 1);
+  private static final ProvisioningState CREATED =
+      ProvisioningState.queued("planId", ImmutableMap.of()).inProgress().succeeded();
+  private static final H2oCredentials CREDENTIALS =
+      new H2oCredentials("10.10.10.117", "54321", "user", "password");
+
+  private IdleClusterReaper sut;
+
+  @Mock
+  private ProvisioningStateStore stateStoreMock;
+
+  @Mock
+  private BrokerStore<H2oCredentials> credentialsStoreMock;
+
+  @Mock
+  private H2oProvisioner h2oProvisioner;
+
+  @Mock
+  private H2oActivityProbe activityProbeMock;
+
+  @Before
+  public void setup() throws Exception {
+    sut = createReaper(IDLE_TIMEOUT_MINUTES);
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of(INSTANCE_ID, CREATED));
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(CREATED));
+    when(credentialsStoreMock.getById(Location.newInstance(INSTANCE_ID)))
+        .thenReturn(Optional.of(CREDENTIALS));
+  }
+
+  @After
+  public void tearDown() {
+    sut.shutdown();
+  }
+
+  @Test
+  public void sweep_noJobSinceTimeout_clusterStoppedAndInstanceSuspended() throws Exception {
+    // arrange
+    when(activityProbeMock.getLastActivity(CREDENTIALS)).thenReturn(0L);
+    sut.sweep(START);
+
+    // act
+    int stopped = sut.sweep(AFTER_TIMEOUT);
+
+    // assert
+    assertThat(stopped, equalTo(1));
+    verify(h2oProvisioner).deprovisionInstance(INSTANCE_ID);
+    verify(credentialsStoreMock).deleteById(Location.newInstance(INSTANCE_ID));
+    verify(stateStoreMock).save(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.SUSPENDED))));
+    assertThat(sut.getStoppedClusters(), equalTo(1L));
+  }
+
+  @Test
+  public void sweep_instanceSeenFirstTime_clusterKept() throws Exception {
+    // arrange
+    when(activityProbeMock.getLastActivity(CREDENTIALS)).thenReturn(0L);
+
+    // act
+    int stopped = sut.sweep(AFTER_TIMEOUT);
+
+    // assert
+    assertThat(stopped, equalTo(0));
+    verify(h2oProvisioner, never()).deprovisionInstance(anyString());
+    assertThat(sut.getProbes(IdleClusterReaper.Result.ACTIVE), equalTo(1L));
+  }
+
+  @Test
+  public void sweep_jobFinishedWithinTimeout_clusterKept() throws Exception {
+    // arrange
+    when(activityProbeMock.getLastActivity(CREDENTIALS))
+        .thenReturn(AFTER_TIMEOUT - TimeUnit.MINUTES.toMillis(1));
+    sut.sweep(START);
+
+    // act
+    int stopped = sut.sweep(AFTER_TIMEOUT);
+
+    // assert
+    assertThat(stopped, equalTo(0));
+    verify(h2oProvisioner, never()).deprovisionInstance(anyString());
+  }
+
+  @Test
+  public void sweep_clusterUnreachable_clusterKept() throws Exception {
+    // arrange
+    when(activityProbeMock.getLastActivity(CREDENTIALS))
+        .thenThrow(new ResourceAccessException("Read timed out"));
+    sut.sweep(START);
+
+    // act
+    int stopped = sut.sweep(AFTER_TIMEOUT);
+
+    // assert
+    assertThat(stopped, equalTo(0));
+    verify(h2oProvisioner, never()).deprovisionInstance(anyString());
+    assertThat(sut.getProbes(IdleClusterReaper.Result.FAILED), equalTo(2L));
+  }
+
+  @Test
+  public void sweep_instanceUpdatedSinceProbe_clusterKept() throws Exception {
+    // arrange
+    when(activityProbeMock.getLastActivity(CREDENTIALS)).thenReturn(0L);
+    sut.sweep(START);
+    when(stateStoreMock.get(INSTANCE_ID))
+        .thenReturn(Optional.of(ProvisioningState.resizing("planId", ImmutableMap.of())));
+
+    // act
+    int stopped = sut.sweep(AFTER_TIMEOUT);
+
+    // assert
+    assertThat(stopped, equalTo(0));
+    verify(h2oProvisioner, never()).deprovisionInstance(anyString());
+    verify(stateStoreMock, never()).save(anyString(), any());
+  }
+
+  @Test
+  public void sweep_instanceNotCreatedYet_clusterNotProbed() throws Exception {
+    // arrange
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of(INSTANCE_ID,
+        ProvisioningState.queued("planId", ImmutableMap.of()).inProgress()));
+
+    // act
+    sut.sweep(START);
+
+    // assert
+    verify(activityProbeMock, never()).getLastActivity(any());
+  }
+
+  @Test
+  public void sweep_planWithoutIdleTimeout_clusterNotProbed() throws Exception {
+    // arrange
+    sut.shutdown();
+    sut = createReaper(0);
+
+    // act
+    sut.sweep(START);
+    sut.sweep(AFTER_TIMEOUT);
+
+    // assert
+    verify(activityProbeMock, never()).getLastActivity(any());
+  }
+
+  private IdleClusterReaper createReaper(long idleTimeoutMinutes) {
+    H2oPlans h2oPlans = new H2oPlans(ImmutableList.of(new H2oPlan("planId", "shared", "",
+        "512m", "1", "", 0, "512m", "1", ImmutableSet.of(), idleTimeoutMinutes)));
+    InstanceLocks instanceLocks =
+        new InstanceLocks(16, null, "/locks", "test", false, 1, new MetricsRegistry());
+    return new IdleClusterReaper(h2oPlans, stateStoreMock, credentialsStoreMock, h2oProvisioner,
+        instanceLocks, activityProbeMock, 2, 0);
+  }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+
+import java.io.StringWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class InstanceLocksTest {
+
+  private static final String LOCKS_NODE = "/locks";
+  private static final String INSTANCE_ID = "instanceId0";
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private CuratorFramework otherZkClient;
+  private MetricsRegistry metricsRegistry;
+  private InstanceLocks sut;
+  private InstanceLocks otherReplica;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient = newClient();
+    otherZkClient = newClient();
+    metricsRegistry = new MetricsRegistry();
+    sut = new InstanceLocks(4, zkClient, LOCKS_NODE, "first", true, 1, metricsRegistry);
+    sut.start();
+    otherReplica = new InstanceLocks(4, otherZkClient, LOCKS_NODE, "second", true, 1,
+        new MetricsRegistry());
+    otherReplica.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    zkClient.close();
+    otherZkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void lock_heldByOtherThread_waitsForRelease() throws Exception {
+    // arrange
+    InstanceLocks.Handle held = sut.lock(INSTANCE_ID, "delete");
+    CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> {
+      try (InstanceLocks.Handle lock = sut.lock(INSTANCE_ID, "create")) {
+        assertThat(lock != null, equalTo(true));
+      } catch (ServiceBrokerException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    // act
+    Thread.sleep(100);
+    boolean doneBeforeRelease = waiting.isDone();
+    held.close();
+
+    // assert
+    waiting.get(1, TimeUnit.SECONDS);
+    assertThat(doneBeforeRelease, equalTo(false));
+  }
+
+  @Test
+  public void lock_heldByOtherReplica_exceptionThrownAfterTimeout() throws Exception {
+    // arrange
+    otherReplica.lock(INSTANCE_ID, "delete");
+    thrown.expect(ServiceBrokerException.class);
+    thrown.expectMessage("busy");
+
+    // act
+    sut.lock(INSTANCE_ID, "create");
+  }
+
+  @Test
+  public void lock_releasedByOtherReplica_lockAcquired() throws Exception {
+    // arrange
+    InstanceLocks.Handle held = otherReplica.lock(INSTANCE_ID, "delete");
+    CompletableFuture.runAsync(() -> {
+      sleep(100);
+      held.close();
+    });
+
+    // act
+    sut.lock(INSTANCE_ID, "create").close();
+
+    // assert
+    assertThat(zkClient.checkExists().forPath(LOCKS_NODE + "/" + INSTANCE_ID), nullValue());
+  }
+
+  @Test
+  public void lock_differentInstances_lockedIndependently() throws Exception {
+    // arrange
+    otherReplica.lock(INSTANCE_ID, "delete");
+
+    // act
+    sut.lock("instanceId1", "create").close();
+
+    // assert
+    StringWriter metrics = new StringWriter();
+    metricsRegistry.write(metrics);
+    assertThat(metrics.toString(), containsString(
+        "h2o_broker_instance_lock_wait_seconds_count{operation=\"create\"} 1"));
+  }
+
+  private CuratorFramework newClient() {
+    CuratorFramework client =
+        CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    client.start();
+    return client;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class InstanceParametersTest {
+
+  private static final H2oPlan PLAN = new H2oPlan("planId", "shared", "", "512m", "1", "", 0,
+      "8g", "4", ImmutableSet.of("analytics"));
+
+  @Test
+  public void validate_noParameters_emptyReturned() throws Exception {
+    // act
+    Map<String, String> parameters = InstanceParameters.validate(null, PLAN);
+
+    // assert
+    assertThat(parameters, equalTo(ImmutableMap.of()));
+  }
+
+  @Test
+  public void validate_parametersWithinLimits_parametersReturnedAsStrings() throws Exception {
+    // act
+    Map<String, String> parameters = InstanceParameters.validate(
+        ImmutableMap.of("memory", "8G", "nodes", 4, "queue", "analytics"), PLAN);
+
+    // assert
+    assertThat(parameters,
+        equalTo(ImmutableMap.of("memory", "8G", "nodes", "4", "queue", "analytics")));
+  }
+
+  @Test
+  public void withParameters_validatedParameters_planResized() throws Exception {
+    // arrange
+    Map<String, String> parameters =
+        InstanceParameters.validate(ImmutableMap.of("memory", "2048m", "nodes", "3"), PLAN);
+
+    // act
+    H2oPlan plan = PLAN.withParameters(parameters);
+
+    // assert
+    assertThat(plan.getProfile(), equalTo("3x2048m"));
+    assertThat(plan.getId(), equalTo(PLAN.getId()));
+  }
+
+  @Test(expected = ServiceBrokerException.class)
+  public void validate_unknownParameter_exceptionThrown() throws Exception {
+    InstanceParameters.validate(ImmutableMap.of("cores", 16), PLAN);
+  }
+
+  @Test(expected = ServiceBrokerException.class)
+  public void validate_memoryAboveLimit_exceptionThrown() throws Exception {
+    InstanceParameters.validate(ImmutableMap.of("memory", "8193m"), PLAN);
+  }
+
+  @Test(expected = ServiceBrokerException.class)
+  public void validate_memoryWithoutUnit_exceptionThrown() throws Exception {
+    InstanceParameters.validate(ImmutableMap.of("memory", "1024"), PLAN);
+  }
+
+  @Test(expected = ServiceBrokerException.class)
+  public void validate_nodesAboveLimit_exceptionThrown() throws Exception {
+    InstanceParameters.validate(ImmutableMap.of("nodes", 5), PLAN);
+  }
+
+  @Test(expected = ServiceBrokerException.class)
+  public void validate_nodesNotPositive_exceptionThrown() throws Exception {
+    InstanceParameters.validate(ImmutableMap.of("nodes", 0), PLAN);
+  }
+
+  @Test(expected = ServiceBrokerException.class)
+  public void validate_queueNotAllowedByPlan_exceptionThrown() throws Exception {
+    InstanceParameters.validate(ImmutableMap.of("queue", "production"), PLAN);
+  }
+}
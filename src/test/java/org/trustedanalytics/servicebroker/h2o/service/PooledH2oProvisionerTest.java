@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PooledH2oProvisionerTest {
+
+  private static final String POOL_NODE = "/pool";
+  private static final String IDLE_NODE = "/pool/idle/1x512m";
+  private static final String SPAWNING_NODE = "/pool/spawning/1x512m";
+  private static final String INSTANCE_ID = "instanceId0";
+  private static final String CLUSTER_ID = "pool-cluster0";
+  private static final String REPLACING_NODE = "/pool/replacing/" + INSTANCE_ID;
+  private static final String CLAIMS_NODE = "/claims";
+
+  @Mock
+  private H2oProvisioner delegateMock;
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private ProvisioningClaims claims;
+  private PooledH2oProvisioner sut;
+  private H2oPlan plan;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient = CuratorFrameworkFactory.newClient(zkServer.getConnectString(),
+        new RetryOneTime(100));
+    zkClient.start();
+    claims = new ProvisioningClaims(zkClient, CLAIMS_NODE, "replica0");
+    claims.start();
+    sut = createProvisioner(2);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    sut.shutdown();
+    zkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void provisionFromPool_clusterIdle_clusterAssigned() throws Exception {
+    // arrange
+    addIdleCluster(CLUSTER_ID, new H2oCredentials("host", "54321", "user", "password"));
+
+    // act
+    Optional<H2oCredentials> credentials = sut.provisionFromPool(INSTANCE_ID, plan);
+
+    // assert
+    assertThat(credentials.get().getHostname(), equalTo("host"));
+    assertThat(zkClient.getChildren().forPath(IDLE_NODE), empty());
+    assertThat(new String(zkClient.getData().forPath("/pool/assigned/" + INSTANCE_ID),
+        StandardCharsets.UTF_8), equalTo(CLUSTER_ID));
+    assertThat(sut.getHits(), equalTo(1L));
+  }
+
+  @Test
+  public void provisionFromPool_poolEmpty_emptyReturned() throws Exception {
+    // act
+    Optional<H2oCredentials> credentials = sut.provisionFromPool(INSTANCE_ID, plan);
+
+    // assert
+    assertThat(credentials.isPresent(), equalTo(false));
+    assertThat(sut.getMisses(), equalTo(1L));
+  }
+
+  @Test
+  public void provisionInstance_poolEmpty_newClusterProvisioned() throws Exception {
+    // arrange
+    H2oCredentials expectedCredentials = new H2oCredentials("a", "b", "c", "d");
+    when(delegateMock.provisionInstance(INSTANCE_ID, plan)).thenReturn(expectedCredentials);
+
+    // act
+    H2oCredentials credentials = sut.provisionInstance(INSTANCE_ID, plan);
+
+    // assert
+    assertThat(credentials, equalTo(expectedCredentials));
+  }
+
+  @Test
+  public void deprovisionInstance_pooledClusterAssigned_pooledClusterKilled() throws Exception {
+    // arrange
+    addIdleCluster(CLUSTER_ID, new H2oCredentials("a", "b", "c", "d"));
+    sut.provisionFromPool(INSTANCE_ID, plan);
+
+    // act
+    sut.deprovisionInstance(INSTANCE_ID);
+
+    // assert
+    verify(delegateMock).deprovisionInstance(CLUSTER_ID);
+    verify(delegateMock, never()).deprovisionInstance(INSTANCE_ID);
+    assertThat(zkClient.getChildren().forPath("/pool/assigned"), empty());
+  }
+
+  @Test
+  public void deprovisionInstance_clusterNotPooled_instanceKilled() throws Exception {
+    // act
+    sut.deprovisionInstance(INSTANCE_ID);
+
+    // assert
+    verify(delegateMock).deprovisionInstance(INSTANCE_ID);
+  }
+
+  @Test
+  public void commitReplacement_instanceWithOwnCluster_switchedAndOldClusterKilled()
+      throws Exception {
+    // arrange
+    when(delegateMock.provisionInstance(anyString(), eq(plan)))
+        .thenReturn(new H2oCredentials("a", "b", "c", "d"));
+    sut.provisionReplacement(INSTANCE_ID, plan);
+    String replacement = new String(zkClient.getData().forPath(REPLACING_NODE),
+        StandardCharsets.UTF_8);
+
+    // act
+    sut.commitReplacement(INSTANCE_ID);
+
+    // assert
+    verify(delegateMock).deprovisionInstance(INSTANCE_ID);
+    assertThat(new String(zkClient.getData().forPath("/pool/assigned/" + INSTANCE_ID),
+        StandardCharsets.UTF_8), equalTo(replacement));
+    assertThat(zkClient.checkExists().forPath(REPLACING_NODE), nullValue());
+  }
+
+  @Test
+  public void commitReplacement_pooledClusterAssigned_replacedPooledClusterKilled()
+      throws Exception {
+    // arrange
+    addIdleCluster(CLUSTER_ID, new H2oCredentials("a", "b", "c", "d"));
+    sut.provisionFromPool(INSTANCE_ID, plan);
+    addIdleCluster("pool-cluster1", new H2oCredentials("e", "f", "g", "h"));
+    H2oCredentials credentials = sut.provisionReplacement(INSTANCE_ID, plan);
+
+    // act
+    sut.commitReplacement(INSTANCE_ID);
+
+    // assert
+    assertThat(credentials.getHostname(), equalTo("e"));
+    verify(delegateMock).deprovisionInstance(CLUSTER_ID);
+    verify(delegateMock, never()).provisionInstance(anyString(), any());
+    assertThat(new String(zkClient.getData().forPath("/pool/assigned/" + INSTANCE_ID),
+        StandardCharsets.UTF_8), equalTo("pool-cluster1"));
+  }
+
+  @Test
+  public void abortReplacement_replacementStarted_onlyNewClusterKilled() throws Exception {
+    // arrange
+    when(delegateMock.provisionInstance(anyString(), eq(plan)))
+        .thenReturn(new H2oCredentials("a", "b", "c", "d"));
+    sut.provisionReplacement(INSTANCE_ID, plan);
+    String replacement = new String(zkClient.getData().forPath(REPLACING_NODE),
+        StandardCharsets.UTF_8);
+
+    // act
+    sut.abortReplacement(INSTANCE_ID);
+
+    // assert
+    verify(delegateMock).deprovisionInstance(replacement);
+    verify(delegateMock, never()).deprovisionInstance(INSTANCE_ID);
+    assertThat(zkClient.checkExists().forPath(REPLACING_NODE), nullValue());
+  }
+
+  @Test
+  public void onElected_poolEmpty_poolFilled() throws Exception {
+    // arrange
+    when(delegateMock.provisionInstance(anyString(), any()))
+        .thenReturn(new H2oCredentials("a", "b", "c", "d"));
+
+    // act
+    sut.onElected(1);
+
+    // assert
+    await().atMost(2, TimeUnit.SECONDS)
+        .until(() -> zkClient.getChildren().forPath(IDLE_NODE), hasSize(2));
+    assertThat(zkClient.getChildren().forPath(IDLE_NODE).get(0), startsWith("pool-"));
+    assertThat(zkClient.getChildren().forPath(SPAWNING_NODE), empty());
+  }
+
+  @Test
+  public void onElected_clusterTakenFromPool_clusterReplaced() throws Exception {
+    // arrange
+    when(delegateMock.provisionInstance(anyString(), any()))
+        .thenReturn(new H2oCredentials("a", "b", "c", "d"));
+    sut.onElected(1);
+    await().atMost(2, TimeUnit.SECONDS)
+        .until(() -> zkClient.getChildren().forPath(IDLE_NODE), hasSize(2));
+
+    // act
+    sut.provisionFromPool(INSTANCE_ID, plan);
+
+    // assert
+    verify(delegateMock, timeout(1000).times(3)).provisionInstance(anyString(), any());
+  }
+
+  @Test
+  public void onElected_clusterAbandonedWhileStarting_clusterKilled() throws Exception {
+    // arrange
+    zkClient.create().creatingParentsIfNeeded().forPath(SPAWNING_NODE + "/" + CLUSTER_ID);
+    sut = createProvisioner(0);
+
+    // act
+    sut.onElected(1);
+
+    // assert
+    verify(delegateMock, timeout(1000)).deprovisionInstance(CLUSTER_ID);
+    await().atMost(1, TimeUnit.SECONDS)
+        .until(() -> zkClient.getChildren().forPath(SPAWNING_NODE), empty());
+  }
+
+  @Test
+  public void onElected_clusterStartedByPreviousLeaderStillAlive_clusterKept() throws Exception {
+    // arrange
+    zkClient.create().creatingParentsIfNeeded().forPath(SPAWNING_NODE + "/" + CLUSTER_ID);
+    new ProvisioningClaims(zkClient, CLAIMS_NODE, "replica1").claim(CLUSTER_ID);
+    sut = createProvisioner(0);
+
+    // act
+    sut.onElected(2);
+
+    // assert
+    verify(delegateMock, after(200).never()).deprovisionInstance(CLUSTER_ID);
+    assertThat(zkClient.getChildren().forPath(SPAWNING_NODE), contains(CLUSTER_ID));
+  }
+
+  @Test
+  public void onElected_poolAboveSize_excessClusterKilled() throws Exception {
+    // arrange
+    addIdleCluster(CLUSTER_ID, new H2oCredentials("a", "b", "c", "d"));
+    sut = createProvisioner(0);
+
+    // act
+    sut.onElected(1);
+
+    // assert
+    verify(delegateMock, timeout(1000)).deprovisionInstance(CLUSTER_ID);
+    assertThat(zkClient.getChildren().forPath(IDLE_NODE), empty());
+  }
+
+  @Test
+  public void onElected_profileOfNoPlan_idleClusterKilled() throws Exception {
+    // arrange
+    zkClient.create().creatingParentsIfNeeded().forPath("/pool/idle/4x8g/" + CLUSTER_ID,
+        new ObjectMapper().writeValueAsBytes(new H2oCredentials("a", "b", "c", "d")));
+    sut = createProvisioner(0);
+
+    // act
+    sut.onElected(1);
+
+    // assert
+    verify(delegateMock, timeout(1000)).deprovisionInstance(CLUSTER_ID);
+    assertThat(zkClient.getChildren().forPath("/pool/idle/4x8g"), empty());
+  }
+
+  private PooledH2oProvisioner createProvisioner(int size) throws Exception {
+    if (sut != null) {
+      sut.shutdown();
+    }
+    plan = new H2oPlan("planId", "shared", "", "512m", "1", "", size);
+    PooledH2oProvisioner provisioner = new PooledH2oProvisioner(delegateMock, zkClient, claims,
+        POOL_NODE, new H2oPlans(Arrays.asList(plan)), 60);
+    provisioner.start();
+    return provisioner;
+  }
+
+  private void addIdleCluster(String cluster, H2oCredentials credentials) throws Exception {
+    zkClient.create().creatingParentsIfNeeded().forPath(IDLE_NODE + "/" + cluster,
+        new ObjectMapper().writeValueAsBytes(credentials));
+  }
+}
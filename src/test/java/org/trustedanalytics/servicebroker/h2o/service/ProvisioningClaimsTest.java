@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class ProvisioningClaimsTest {
+
+  private static final String CLAIMS_NODE = "/claims";
+  private static final String INSTANCE_ID = "instanceId0";
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private CuratorFramework otherZkClient;
+  private ProvisioningClaims sut;
+  private ProvisioningClaims otherReplica;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient = newClient();
+    otherZkClient = newClient();
+    sut = new ProvisioningClaims(zkClient, CLAIMS_NODE, "first");
+    sut.start();
+    otherReplica = new ProvisioningClaims(otherZkClient, CLAIMS_NODE, "second");
+    otherReplica.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    zkClient.close();
+    otherZkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void claim_claimedByOtherReplica_falseReturned() throws Exception {
+    // arrange
+    otherReplica.claim(INSTANCE_ID);
+
+    // act
+    boolean claimed = sut.claim(INSTANCE_ID);
+
+    // assert
+    assertThat(claimed, equalTo(false));
+    assertThat(sut.getHeld(), equalTo(0));
+  }
+
+  @Test
+  public void claim_claimedBySameReplica_trueReturned() throws Exception {
+    // arrange
+    sut.claim(INSTANCE_ID);
+
+    // act
+    boolean claimed = sut.claim(INSTANCE_ID);
+
+    // assert
+    assertThat(claimed, equalTo(true));
+    assertThat(sut.getClaimed(), contains(INSTANCE_ID));
+  }
+
+  @Test
+  public void release_claimHeld_otherReplicaCanClaim() throws Exception {
+    // arrange
+    sut.claim(INSTANCE_ID);
+
+    // act
+    sut.release(INSTANCE_ID);
+
+    // assert
+    assertThat(otherReplica.claim(INSTANCE_ID), equalTo(true));
+  }
+
+  @Test
+  public void release_claimedByOtherReplica_claimKept() throws Exception {
+    // arrange
+    otherReplica.claim(INSTANCE_ID);
+
+    // act
+    sut.release(INSTANCE_ID);
+
+    // assert
+    assertThat(sut.getClaimed(), contains(INSTANCE_ID));
+  }
+
+  @Test
+  public void isClaimedByOther_claimedByOtherReplica_trueReturned() throws Exception {
+    // arrange
+    otherReplica.claim(INSTANCE_ID);
+
+    // act
+    boolean claimedByOther = sut.isClaimedByOther(INSTANCE_ID);
+
+    // assert
+    assertThat(claimedByOther, equalTo(true));
+    assertThat(otherReplica.isClaimedByOther(INSTANCE_ID), equalTo(false));
+  }
+
+  @Test
+  public void isClaimedByOther_notClaimed_falseReturned() throws Exception {
+    // act
+    boolean claimedByOther = sut.isClaimedByOther(INSTANCE_ID);
+
+    // assert
+    assertThat(claimedByOther, equalTo(false));
+  }
+
+  @Test
+  public void getClaimed_replicaSessionClosed_claimExpired() throws Exception {
+    // arrange
+    otherReplica.claim(INSTANCE_ID);
+
+    // act
+    otherZkClient.close();
+
+    // assert
+    assertThat(sut.getClaimed(), empty());
+    assertThat(sut.claim(INSTANCE_ID), equalTo(true));
+  }
+
+  private CuratorFramework newClient() {
+    CuratorFramework client =
+        CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    client.start();
+    return client;
+  }
+}
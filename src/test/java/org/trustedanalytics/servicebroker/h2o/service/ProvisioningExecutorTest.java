@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ProvisioningExecutorTest {
+
+  private ProvisioningExecutor executor;
+
+  private CountDownLatch release;
+
+  @Rule
+  public ExpectedException expectedException = ExpectedException.none();
+
+  @Before
+  public void setup() {
+    executor = new ProvisioningExecutor(1, 1, 5);
+    release = new CountDownLatch(1);
+  }
+
+  @Test
+  public void submit_workerAndQueueFull_exceptionThrown() throws Exception {
+    // arrange
+    expectedException.expect(ServiceBrokerException.class);
+    expectedException.expectMessage("please retry later");
+    CountDownLatch started = new CountDownLatch(1);
+    executor.submit("running", () -> {
+      started.countDown();
+      awaitRelease();
+    });
+    started.await(1, TimeUnit.SECONDS);
+    executor.submit("queued", this::awaitRelease);
+
+    // act
+    try {
+      executor.submit("rejected", this::awaitRelease);
+    } finally {
+      assertThat(executor.getRejectedJobs(), equalTo(1L));
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void shutdown_jobsQueued_queuedJobsDrained() throws Exception {
+    // arrange
+    AtomicBoolean queuedJobRan = new AtomicBoolean();
+    executor.submit("running", this::awaitRelease);
+    executor.submit("queued", () -> queuedJobRan.set(true));
+
+    // act
+    release.countDown();
+    executor.shutdown();
+
+    // assert
+    assertThat(queuedJobRan.get(), equalTo(true));
+    assertThat(executor.getCompletedJobs(), equalTo(2L));
+    assertThat(executor.getSubmittedJobs(), equalTo(2L));
+  }
+
+  @Test
+  public void cancel_jobQueued_jobRemoved() throws Exception {
+    // arrange
+    AtomicBoolean queuedJobRan = new AtomicBoolean();
+    CountDownLatch started = new CountDownLatch(1);
+    executor.submit("running", () -> {
+      started.countDown();
+      awaitRelease();
+    });
+    started.await(1, TimeUnit.SECONDS);
+    executor.submit("queued", () -> queuedJobRan.set(true));
+
+    // act
+    boolean cancelled = executor.cancel("queued");
+    release.countDown();
+    executor.shutdown();
+
+    // assert
+    assertThat(cancelled, equalTo(true));
+    assertThat(queuedJobRan.get(), equalTo(false));
+    assertThat(executor.getCancelledJobs(), equalTo(1L));
+  }
+
+  @Test
+  public void cancel_jobRunning_falseReturned() throws Exception {
+    // arrange
+    CountDownLatch started = new CountDownLatch(1);
+    executor.submit("running", () -> {
+      started.countDown();
+      awaitRelease();
+    });
+    started.await(1, TimeUnit.SECONDS);
+
+    // act
+    boolean cancelled = executor.cancel("running");
+
+    // assert
+    release.countDown();
+    assertThat(cancelled, equalTo(false));
+    assertThat(executor.getCancelledJobs(), equalTo(0L));
+  }
+
+  private void awaitRelease() {
+    try {
+      release.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2o.store.FlatZnodeLayout;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasProperty;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ProvisioningReconcilerTest {
+
+  private static final String METADATA_NODE = "/metadata";
+  private static final String CREDENTIALS_NODE = "/credentials";
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private ProvisioningReconciler sut;
+
+  @Mock
+  private H2oProvisioner h2oProvisioner;
+
+  @Mock
+  private BrokerStore<H2oCredentials> credentialsStoreMock;
+
+  @Mock
+  private ProvisioningScheduler schedulerMock;
+
+  @Mock
+  private ProvisioningStateStore stateStoreMock;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient =
+        CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    zkClient.start();
+    zkClient.create().forPath(METADATA_NODE);
+    zkClient.create().forPath(CREDENTIALS_NODE);
+    sut = new ProvisioningReconciler(zkClient, METADATA_NODE, new FlatZnodeLayout(),
+        CREDENTIALS_NODE, new FlatZnodeLayout(), h2oProvisioner, credentialsStoreMock,
+        schedulerMock, stateStoreMock, 2, 0);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    sut.shutdown();
+    zkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void onElected_instanceWithoutCredentialsAndState_provisioningSubmitted()
+      throws Exception {
+    // arrange
+    createInstance("instance0", false);
+    createInstance("instance1", true);
+
+    // act
+    sut.onElected(1);
+
+    // assert
+    verify(schedulerMock, timeout(500)).submit(eq("instance0"),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.QUEUED))));
+    verify(schedulerMock, never()).submit(eq("instance1"), any());
+  }
+
+  @Test
+  public void onElected_credentialsWithoutInstance_instanceDeprovisioned() throws Exception {
+    // arrange
+    zkClient.create().forPath(CREDENTIALS_NODE + "/instance0");
+
+    // act
+    sut.onElected(1);
+
+    // assert
+    verify(h2oProvisioner, timeout(500)).deprovisionInstance("instance0");
+    verify(credentialsStoreMock, timeout(500)).deleteById(Location.newInstance("instance0"));
+  }
+
+  @Test
+  public void onElected_jobStillPending_provisioningNotSubmitted() throws Exception {
+    // arrange
+    createInstance("instance0", false);
+    when(stateStoreMock.getAll())
+        .thenReturn(ImmutableMap.of("instance0", ProvisioningState.queued().inProgress()));
+    when(schedulerMock.isPending("instance0")).thenReturn(true);
+
+    // act
+    sut.onElected(1);
+
+    // assert
+    verify(schedulerMock, after(200).never()).submit(anyString(), any());
+  }
+
+  @Test
+  public void onElected_otherReplicasRunning_repairPostponedToNextRun() throws Exception {
+    // arrange
+    createInstance("instance0", false);
+
+    // act
+    sut.onElected(2);
+
+    // assert
+    await().atMost(1, TimeUnit.SECONDS).until(sut::getRuns, equalTo(1L));
+    verify(schedulerMock, never()).submit(anyString(), any());
+  }
+
+  @Test
+  public void reconcile_jobClaimedByOtherReplica_provisioningNotSubmitted() throws Exception {
+    // arrange
+    createInstance("instance0", false);
+    when(stateStoreMock.getAll())
+        .thenReturn(ImmutableMap.of("instance0", ProvisioningState.queued().inProgress()));
+    when(schedulerMock.getClaimedJobs()).thenReturn(ImmutableSet.of("instance0"));
+
+    // act
+    sut.reconcile();
+    int repaired = sut.reconcile();
+
+    // assert
+    assertThat(repaired, equalTo(0));
+    verify(schedulerMock, never()).submit(anyString(), any());
+  }
+
+  @Test
+  public void reconcile_retryOfGoneReplica_retryResumed() throws Exception {
+    // arrange
+    createInstance("instance0", false);
+    ProvisioningState state = ProvisioningState.queued().inProgress().retryScheduled("error", 0);
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of("instance0", state));
+    when(schedulerMock.resume("instance0", state)).thenReturn(true);
+
+    // act
+    sut.reconcile();
+    int repaired = sut.reconcile();
+
+    // assert
+    assertThat(repaired, equalTo(1));
+    verify(schedulerMock).resume("instance0", state);
+    verify(schedulerMock, never()).submit(anyString(), any());
+  }
+
+  @Test
+  public void reconcile_inconsistencySeenOnce_repairPostponedToNextRun() throws Exception {
+    // arrange
+    createInstance("instance0", false);
+
+    // act
+    int firstRun = sut.reconcile();
+    int secondRun = sut.reconcile();
+
+    // assert
+    assertThat(firstRun, equalTo(0));
+    assertThat(secondRun, equalTo(1));
+    verify(schedulerMock).submit(eq("instance0"), any());
+  }
+
+  @Test
+  public void reconcile_stateOfRemovedInstance_stateRemoved() throws Exception {
+    // arrange
+    when(stateStoreMock.getAll())
+        .thenReturn(ImmutableMap.of("instance0", ProvisioningState.queued().inProgress()));
+
+    // act
+    sut.reconcile();
+    sut.reconcile();
+
+    // assert
+    verify(stateStoreMock).delete("instance0");
+    assertThat(sut.getRepairs(ProvisioningReconciler.Action.REMOVE_STATE), equalTo(1L));
+  }
+
+  private void createInstance(String instanceId, boolean withCredentials) throws Exception {
+    zkClient.create().forPath(METADATA_NODE + "/" + instanceId);
+    if (withCredentials) {
+      zkClient.create().forPath(CREDENTIALS_NODE + "/" + instanceId);
+    }
+  }
+}
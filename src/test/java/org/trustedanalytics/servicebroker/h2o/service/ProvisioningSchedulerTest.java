@@ -0,0 +1,433 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import com.google.common.collect.ImmutableMap;
+import org.cloudfoundry.community.servicebroker.exception.ServiceBrokerException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2o.metrics.MetricsRegistry;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasProperty;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ProvisioningSchedulerTest {
+
+  private static final String INSTANCE_ID = "instanceId0";
+  private static final String OTHER_INSTANCE_ID = "instanceId1";
+  private static final H2oPlan PLAN = new H2oPlan("planId", "shared", "", "512m", "1", "", 0);
+
+  @Mock
+  private PooledH2oProvisioner h2oProvisioner;
+
+  @Mock
+  private BrokerStore<H2oCredentials> credentialsStoreMock;
+
+  @Mock
+  private ProvisioningExecutor provisioningExecutorMock;
+
+  @Mock
+  private ProvisioningStateStore stateStoreMock;
+
+  @Mock
+  private ProvisioningClaims claimsMock;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private ProvisioningScheduler sut;
+
+  @After
+  public void tearDown() {
+    if (sut != null) {
+      sut.shutdown();
+    }
+  }
+
+  @Test
+  public void start_retryPersistedByPreviousRun_retryResumed() throws Exception {
+    // arrange
+    ProvisioningState pending = ProvisioningState.queued().inProgress()
+        .retryScheduled("YARN is down", System.currentTimeMillis());
+    H2oCredentials credentials = new H2oCredentials("a", "b", "c", "d");
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of(INSTANCE_ID, pending,
+        OTHER_INSTANCE_ID, ProvisioningState.queued().inProgress().succeeded()));
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(pending));
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN)).thenReturn(credentials);
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+
+    // act
+    sut.start();
+
+    // assert
+    verify(credentialsStoreMock, timeout(500)).save(Location.newInstance(INSTANCE_ID),
+        credentials);
+    verify(stateStoreMock, timeout(500)).update(eq(INSTANCE_ID), argThat(
+        hasProperty("attempts", equalTo(2))));
+    verify(h2oProvisioner, never()).provisionInstance(OTHER_INSTANCE_ID, PLAN);
+  }
+
+  @Test
+  public void start_instanceRemovedBeforeRetry_retrySkipped() throws Exception {
+    // arrange
+    ProvisioningState pending = ProvisioningState.queued().inProgress()
+        .retryScheduled("YARN is down", System.currentTimeMillis());
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of(INSTANCE_ID, pending));
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.empty());
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+
+    // act
+    sut.start();
+
+    // assert
+    verify(h2oProvisioner, after(200).never()).provisionInstance(anyString(), any());
+  }
+
+  @Test
+  public void submit_allAttemptsFailed_failedStateSaved() throws Exception {
+    // arrange
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(
+        Optional.of(ProvisioningState.queued().inProgress().retryScheduled("YARN is down", 0)));
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenThrow(new ServiceBrokerException("YARN is down"));
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(2, 10, 10));
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+
+    // assert
+    verify(stateStoreMock, timeout(500)).update(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.FAILED))));
+    verify(h2oProvisioner, after(100).times(2)).provisionInstance(INSTANCE_ID, PLAN);
+  }
+
+  @Test
+  public void start_provisioningQueueFull_retryPostponed() throws Exception {
+    // arrange
+    ProvisioningState pending = ProvisioningState.queued().inProgress()
+        .retryScheduled("YARN is down", System.currentTimeMillis());
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of(INSTANCE_ID, pending));
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(pending));
+    doThrow(new ServiceBrokerException("busy", new RejectedExecutionException()))
+        .when(provisioningExecutorMock)
+        .submit(eq(INSTANCE_ID), any(Runnable.class));
+    sut = createScheduler(provisioningExecutorMock, new RetryPolicy(3, 10, 10));
+
+    // act
+    sut.start();
+
+    // assert
+    verify(stateStoreMock, timeout(500)).update(eq(INSTANCE_ID), argThat(
+        hasProperty("status", equalTo(ProvisioningState.Status.RETRY_SCHEDULED))));
+    verify(provisioningExecutorMock, timeout(500).atLeast(2))
+        .submit(eq(INSTANCE_ID), any(Runnable.class));
+  }
+
+  @Test
+  public void start_retryClaimedByOtherReplica_retryNotResumed() throws Exception {
+    // arrange
+    ProvisioningState pending = ProvisioningState.queued().inProgress()
+        .retryScheduled("YARN is down", System.currentTimeMillis());
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of(INSTANCE_ID, pending));
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(pending));
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+    when(claimsMock.claim(INSTANCE_ID)).thenReturn(false);
+
+    // act
+    sut.start();
+
+    // assert
+    assertThat(sut.getScheduledRetries(), equalTo(0));
+    verify(h2oProvisioner, after(200).never()).provisionInstance(anyString(), any());
+  }
+
+  @Test
+  public void start_retryClaimedByOtherReplicaWhenDue_stateLeftAlone() throws Exception {
+    // arrange
+    ProvisioningState pending = ProvisioningState.queued().inProgress()
+        .retryScheduled("YARN is down", System.currentTimeMillis());
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of(INSTANCE_ID, pending));
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(pending));
+    sut = createScheduler(provisioningExecutorMock, new RetryPolicy(3, 10, 10));
+    when(claimsMock.claim(INSTANCE_ID)).thenReturn(true).thenReturn(false);
+
+    // act
+    sut.start();
+
+    // assert
+    verify(claimsMock, timeout(500).times(2)).claim(INSTANCE_ID);
+    verify(stateStoreMock, after(200).never()).update(anyString(), any());
+    verify(provisioningExecutorMock, never()).submit(anyString(), any(Runnable.class));
+    assertThat(sut.getScheduledRetries(), equalTo(0));
+  }
+
+  @Test
+  public void start_claimFailsWhenRetryDue_retryRescheduledWithoutSavingState()
+      throws Exception {
+    // arrange
+    ProvisioningState pending = ProvisioningState.queued().inProgress()
+        .retryScheduled("YARN is down", System.currentTimeMillis());
+    when(stateStoreMock.getAll()).thenReturn(ImmutableMap.of(INSTANCE_ID, pending));
+    when(stateStoreMock.get(INSTANCE_ID)).thenReturn(Optional.of(pending));
+    sut = createScheduler(provisioningExecutorMock, new RetryPolicy(3, 10, 10));
+    when(claimsMock.claim(INSTANCE_ID)).thenReturn(true)
+        .thenThrow(new IOException("connection loss")).thenReturn(true);
+
+    // act
+    sut.start();
+
+    // assert
+    verify(provisioningExecutorMock, timeout(500)).submit(eq(INSTANCE_ID), any(Runnable.class));
+    verify(stateStoreMock, never()).update(anyString(), any());
+  }
+
+  @Test
+  public void submit_jobClaimedByOtherReplica_exceptionThrown() throws Exception {
+    // arrange
+    sut = createScheduler(provisioningExecutorMock, new RetryPolicy(3, 10, 10));
+    when(claimsMock.claim(INSTANCE_ID)).thenReturn(false);
+    thrown.expect(ServiceBrokerException.class);
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+  }
+
+  @Test
+  public void submit_jobSucceeded_claimReleased() throws Exception {
+    // arrange
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenReturn(new H2oCredentials("a", "b", "c", "d"));
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+
+    // assert
+    verify(claimsMock, timeout(500)).release(INSTANCE_ID);
+  }
+
+  @Test
+  public void submit_attemptFailed_claimKeptForRetry() throws Exception {
+    // arrange
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenThrow(new ServiceBrokerException("YARN is down"));
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10000, 10000));
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+
+    // assert
+    await().atMost(1, TimeUnit.SECONDS).until(sut::getScheduledRetries, equalTo(1));
+    verify(claimsMock, never()).release(anyString());
+  }
+
+  @Test
+  public void submit_instanceDeletedWhileProvisioning_h2oKilled() throws Exception {
+    // arrange
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenReturn(new H2oCredentials("a", "b", "c", "d"));
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+    when(stateStoreMock.exists(INSTANCE_ID)).thenReturn(true, false);
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+
+    // assert
+    verify(h2oProvisioner, timeout(500)).deprovisionInstance(INSTANCE_ID);
+    verify(credentialsStoreMock, never()).save(any(), any());
+  }
+
+  @Test
+  public void submit_instanceDeletedBeforeJobStarted_provisioningSkipped() throws Exception {
+    // arrange
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+    when(stateStoreMock.exists(INSTANCE_ID)).thenReturn(false);
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+
+    // assert
+    verify(claimsMock, timeout(500)).release(INSTANCE_ID);
+    verify(h2oProvisioner, never()).provisionInstance(anyString(), any());
+  }
+
+  @Test
+  public void submit_instanceDeletedWhileProvisioningFailed_noRetryScheduled() throws Exception {
+    // arrange
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenThrow(new ServiceBrokerException("YARN is down"));
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+    when(stateStoreMock.update(eq(INSTANCE_ID), any())).thenReturn(true, false);
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+
+    // assert
+    verify(claimsMock, timeout(500)).release(INSTANCE_ID);
+    verify(stateStoreMock, never()).save(anyString(), any());
+    assertThat(sut.getScheduledRetries(), equalTo(0));
+    verify(h2oProvisioner, after(200).times(1)).provisionInstance(INSTANCE_ID, PLAN);
+  }
+
+  @Test
+  public void cancel_jobQueued_provisionerNotCalled() throws Exception {
+    // arrange
+    CountDownLatch release = new CountDownLatch(1);
+    when(h2oProvisioner.provisionInstance(OTHER_INSTANCE_ID, PLAN)).thenAnswer(invocation -> {
+      release.await(5, TimeUnit.SECONDS);
+      return new H2oCredentials("a", "b", "c", "d");
+    });
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+    sut.submit(OTHER_INSTANCE_ID, ProvisioningState.queued());
+    verify(h2oProvisioner, timeout(500)).provisionInstance(OTHER_INSTANCE_ID, PLAN);
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+
+    // act
+    boolean cancelled = sut.cancel(INSTANCE_ID);
+    release.countDown();
+
+    // assert
+    assertThat(cancelled, equalTo(true));
+    assertThat(sut.isPending(INSTANCE_ID), equalTo(false));
+    verify(claimsMock).release(INSTANCE_ID);
+    verify(h2oProvisioner, after(200).never()).provisionInstance(INSTANCE_ID, PLAN);
+  }
+
+  @Test
+  public void cancel_jobRunning_h2oKilledOnceSpawned() throws Exception {
+    // arrange
+    CountDownLatch release = new CountDownLatch(1);
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN)).thenAnswer(invocation -> {
+      release.await(5, TimeUnit.SECONDS);
+      return new H2oCredentials("a", "b", "c", "d");
+    });
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+    verify(h2oProvisioner, timeout(500)).provisionInstance(INSTANCE_ID, PLAN);
+
+    // act
+    boolean cancelled = sut.cancel(INSTANCE_ID);
+    release.countDown();
+
+    // assert
+    assertThat(cancelled, equalTo(true));
+    verify(h2oProvisioner, timeout(500)).deprovisionInstance(INSTANCE_ID);
+    verify(credentialsStoreMock, never()).save(any(), any());
+    assertThat(sut.getAbandonedJobs(), equalTo(1L));
+  }
+
+  @Test
+  public void cancel_jobFinished_falseReturned() throws Exception {
+    // arrange
+    when(h2oProvisioner.provisionInstance(INSTANCE_ID, PLAN))
+        .thenReturn(new H2oCredentials("a", "b", "c", "d"));
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+    sut.submit(INSTANCE_ID, ProvisioningState.queued());
+    verify(claimsMock, timeout(500)).release(INSTANCE_ID);
+
+    // act
+    boolean cancelled = sut.cancel(INSTANCE_ID);
+
+    // assert
+    assertThat(cancelled, equalTo(false));
+  }
+
+  @Test
+  public void submit_resize_credentialsSwappedBeforeOldClusterKilled() throws Exception {
+    // arrange
+    H2oCredentials oldCredentials = new H2oCredentials("a", "b", "c", "d");
+    H2oCredentials newCredentials = new H2oCredentials("e", "f", "g", "h");
+    when(credentialsStoreMock.getById(Location.newInstance(INSTANCE_ID)))
+        .thenReturn(Optional.of(oldCredentials));
+    when(h2oProvisioner.provisionReplacement(INSTANCE_ID, PLAN)).thenReturn(newCredentials);
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(3, 10, 10));
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.resizing("planId", ImmutableMap.of()));
+
+    // assert
+    verify(stateStoreMock, timeout(500)).update(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.SUCCEEDED))));
+    InOrder inOrder = inOrder(credentialsStoreMock, h2oProvisioner);
+    inOrder.verify(credentialsStoreMock).save(Location.newInstance(INSTANCE_ID), newCredentials);
+    inOrder.verify(h2oProvisioner).commitReplacement(INSTANCE_ID);
+    verify(h2oProvisioner, never()).provisionInstance(anyString(), any());
+  }
+
+  @Test
+  public void submit_resizeNotCommitted_oldCredentialsRestoredAndNewClusterKilled()
+      throws Exception {
+    // arrange
+    H2oCredentials oldCredentials = new H2oCredentials("a", "b", "c", "d");
+    H2oCredentials newCredentials = new H2oCredentials("e", "f", "g", "h");
+    when(credentialsStoreMock.getById(Location.newInstance(INSTANCE_ID)))
+        .thenReturn(Optional.of(oldCredentials));
+    when(h2oProvisioner.provisionReplacement(INSTANCE_ID, PLAN)).thenReturn(newCredentials);
+    doThrow(new ServiceBrokerException("zookeeper is down")).when(h2oProvisioner)
+        .commitReplacement(INSTANCE_ID);
+    sut = createScheduler(new ProvisioningExecutor(1, 1, 1), new RetryPolicy(1, 10, 10));
+
+    // act
+    sut.submit(INSTANCE_ID, ProvisioningState.resizing("planId", ImmutableMap.of()));
+
+    // assert
+    verify(stateStoreMock, timeout(500)).update(eq(INSTANCE_ID),
+        argThat(hasProperty("status", equalTo(ProvisioningState.Status.FAILED))));
+    verify(credentialsStoreMock).save(Location.newInstance(INSTANCE_ID), oldCredentials);
+    verify(h2oProvisioner).abortReplacement(INSTANCE_ID);
+    verify(h2oProvisioner, never()).deprovisionInstance(INSTANCE_ID);
+  }
+
+  private ProvisioningScheduler createScheduler(ProvisioningExecutor executor,
+      RetryPolicy retryPolicy) throws IOException {
+    when(claimsMock.claim(anyString())).thenReturn(true);
+    when(stateStoreMock.exists(anyString())).thenReturn(true);
+    when(stateStoreMock.update(anyString(), any())).thenReturn(true);
+    return new ProvisioningScheduler(h2oProvisioner, new H2oPlans(Arrays.asList(PLAN)),
+        credentialsStoreMock, executor, stateStoreMock, claimsMock,
+        new InstanceLocks(16, null, "/locks", "test", false, 1, new MetricsRegistry()),
+        retryPolicy);
+  }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.cloudfoundry.community.servicebroker.model.OperationState;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstanceLastOperation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class ProvisioningStateStoreTest {
+
+  private static final String ROOT_NODE = "/jobs";
+  private static final String INSTANCE_ID = "instanceId";
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private ProvisioningStateStore stateStore;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient = CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    zkClient.start();
+    stateStore = new ProvisioningStateStore(zkClient, ROOT_NODE);
+    stateStore.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    zkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void save_newState_stateAvailableFromCache() throws Exception {
+    // act
+    stateStore.save(INSTANCE_ID, ProvisioningState.queued());
+
+    // assert
+    assertThat(stateStore.get(INSTANCE_ID).get().getStatus(),
+        equalTo(ProvisioningState.Status.QUEUED));
+  }
+
+  @Test
+  public void save_stateChangedByOtherBroker_cacheRefreshedByWatch() throws Exception {
+    // arrange
+    ProvisioningState state = ProvisioningState.queued();
+    stateStore.save(INSTANCE_ID, state);
+    ProvisioningStateStore otherBroker = new ProvisioningStateStore(zkClient, ROOT_NODE);
+    otherBroker.start();
+
+    // act
+    otherBroker.save(INSTANCE_ID, state.inProgress().failed("error"));
+
+    // assert
+    await().atMost(5, SECONDS).until(() -> stateStore.get(INSTANCE_ID).get().getStatus(),
+        equalTo(ProvisioningState.Status.FAILED));
+  }
+
+  @Test
+  public void start_statesSavedBefore_statesLoaded() throws Exception {
+    // arrange
+    stateStore.save(INSTANCE_ID, ProvisioningState.queued().inProgress());
+
+    // act
+    ProvisioningStateStore restartedBroker = new ProvisioningStateStore(zkClient, ROOT_NODE);
+    restartedBroker.start();
+
+    // assert
+    assertThat(restartedBroker.get(INSTANCE_ID).get().getStatus(),
+        equalTo(ProvisioningState.Status.IN_PROGRESS));
+  }
+
+  @Test
+  public void update_stateDeletedByOtherBroker_stateNotRecreated() throws Exception {
+    // arrange
+    stateStore.save(INSTANCE_ID, ProvisioningState.queued());
+    ProvisioningStateStore otherBroker = new ProvisioningStateStore(zkClient, ROOT_NODE);
+    otherBroker.start();
+    otherBroker.delete(INSTANCE_ID);
+
+    // act
+    boolean updated = stateStore.update(INSTANCE_ID, ProvisioningState.queued().inProgress());
+
+    // assert
+    assertThat(updated, equalTo(false));
+    assertThat(stateStore.exists(INSTANCE_ID), equalTo(false));
+    assertThat(stateStore.get(INSTANCE_ID), equalTo(Optional.empty()));
+  }
+
+  @Test
+  public void delete_stateDeletedByOtherBroker_stateRemovedFromCache() throws Exception {
+    // arrange
+    stateStore.save(INSTANCE_ID, ProvisioningState.queued());
+    ProvisioningStateStore otherBroker = new ProvisioningStateStore(zkClient, ROOT_NODE);
+    otherBroker.start();
+
+    // act
+    otherBroker.delete(INSTANCE_ID);
+
+    // assert
+    await().atMost(5, SECONDS).until(() -> stateStore.get(INSTANCE_ID), equalTo(Optional.empty()));
+  }
+
+  @Test
+  public void getServiceInstance_polledManyTimes_instanceLoadedOnce() throws Exception {
+    // arrange
+    AtomicInteger loads = new AtomicInteger();
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    stateStore.save(INSTANCE_ID, ProvisioningState.queued().inProgress().succeeded());
+
+    // act
+    ServiceInstance polled = null;
+    for (int i = 0; i < 10; i++) {
+      polled = stateStore.getServiceInstance(INSTANCE_ID, id -> {
+        loads.incrementAndGet();
+        return instance;
+      });
+    }
+
+    // assert
+    assertThat(loads.get(), equalTo(1));
+    assertThat(polled.getServiceInstanceId(), equalTo(INSTANCE_ID));
+    assertThat(polled.getPlanId(), equalTo(instance.getPlanId()));
+    assertThat(polled.getServiceInstanceLastOperation().getState(),
+        equalTo(OperationState.SUCCEEDED));
+  }
+
+  @Test
+  public void getServiceInstance_polled_rememberedInstanceNotModified() throws Exception {
+    // arrange
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest(INSTANCE_ID));
+    ServiceInstanceLastOperation lastOperation = instance.getServiceInstanceLastOperation();
+    stateStore.save(INSTANCE_ID, ProvisioningState.queued().inProgress().succeeded());
+
+    // act
+    ServiceInstance first = stateStore.getServiceInstance(INSTANCE_ID, id -> instance);
+    ServiceInstance second = stateStore.getServiceInstance(INSTANCE_ID, id -> instance);
+
+    // assert
+    assertThat(first, not(sameInstance(instance)));
+    assertThat(second, not(sameInstance(first)));
+    assertThat(instance.getServiceInstanceLastOperation(), sameInstance(lastOperation));
+  }
+
+  @Test
+  public void getServiceInstance_noState_nullReturned() throws Exception {
+    // act
+    ServiceInstance instance = stateStore.getServiceInstance("unknown", id -> null);
+
+    // assert
+    assertThat(instance, nullValue());
+  }
+}
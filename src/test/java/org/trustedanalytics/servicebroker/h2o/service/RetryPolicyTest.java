@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.service;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class RetryPolicyTest {
+
+  @Test
+  public void getDelayMillis_consecutiveAttempts_delayDoubled() throws Exception {
+    // arrange
+    RetryPolicy sut = new RetryPolicy(10, 100, 100000, () -> 1.0);
+
+    // act
+    long first = sut.getDelayMillis(1);
+    long second = sut.getDelayMillis(2);
+    long third = sut.getDelayMillis(3);
+
+    // assert
+    assertThat(first, equalTo(100L));
+    assertThat(second, equalTo(200L));
+    assertThat(third, equalTo(400L));
+  }
+
+  @Test
+  public void getDelayMillis_manyAttempts_delayCappedAtMaxDelay() throws Exception {
+    // arrange
+    RetryPolicy sut = new RetryPolicy(100, 100, 1000, () -> 1.0);
+
+    // act
+    long delay = sut.getDelayMillis(80);
+
+    // assert
+    assertThat(delay, equalTo(1000L));
+  }
+
+  @Test
+  public void getDelayMillis_lowestJitter_halfOfBackoffWaited() throws Exception {
+    // arrange
+    RetryPolicy sut = new RetryPolicy(10, 100, 100000, () -> 0.0);
+
+    // act
+    long delay = sut.getDelayMillis(3);
+
+    // assert
+    assertThat(delay, equalTo(200L));
+  }
+
+  @Test
+  public void canRetry_maxAttemptsReached_false() throws Exception {
+    // arrange
+    RetryPolicy sut = new RetryPolicy(3, 100, 1000);
+
+    // act
+    boolean canRetry = sut.canRetry(3);
+
+    // assert
+    assertThat(canRetry, equalTo(false));
+  }
+}
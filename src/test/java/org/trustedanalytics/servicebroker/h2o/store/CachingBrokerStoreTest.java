@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.trustedanalytics.cfbroker.store.api.BrokerStore;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachingBrokerStoreTest {
+
+  private static final String ROOT_NODE = "/credentials";
+  private static final String INSTANCE_ID = "instanceId";
+  private static final Location LOCATION = Location.newInstance(INSTANCE_ID);
+  private static final H2oCredentials CREDENTIALS = new H2oCredentials("a", "b", "c", "d");
+
+  @Mock
+  private BrokerStore<H2oCredentials> delegateMock;
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private CachingBrokerStore<H2oCredentials> store;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient = CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    zkClient.start();
+    zkClient.create().creatingParentsIfNeeded().forPath(ROOT_NODE + "/" + INSTANCE_ID);
+    store = new CachingBrokerStore<>(delegateMock, zkClient, ROOT_NODE, new FlatZnodeLayout(),
+        10, 60);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    zkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void getById_readTwice_secondReadServedFromCache() throws Exception {
+    // arrange
+    when(delegateMock.getById(LOCATION)).thenReturn(Optional.of(CREDENTIALS));
+
+    // act
+    store.getById(LOCATION);
+    Optional<H2oCredentials> credentials = store.getById(LOCATION);
+
+    // assert
+    assertThat(credentials.get(), equalTo(CREDENTIALS));
+    verify(delegateMock, times(1)).getById(LOCATION);
+    assertThat(store.getStats().hitCount(), equalTo(1L));
+    assertThat(store.getStats().missCount(), equalTo(1L));
+  }
+
+  @Test
+  public void getById_credentialsMissing_absenceNotCached() throws Exception {
+    // arrange
+    when(delegateMock.getById(LOCATION)).thenReturn(Optional.empty());
+
+    // act
+    store.getById(LOCATION);
+    store.getById(LOCATION);
+
+    // assert
+    verify(delegateMock, times(2)).getById(LOCATION);
+  }
+
+  @Test
+  public void getById_znodeChangedByOtherBroker_entryInvalidated() throws Exception {
+    // arrange
+    when(delegateMock.getById(LOCATION)).thenReturn(Optional.of(CREDENTIALS));
+    store.getById(LOCATION);
+
+    // act
+    zkClient.setData().forPath(ROOT_NODE + "/" + INSTANCE_ID, new byte[] {1});
+
+    // assert
+    await().atMost(5, SECONDS).until(() -> store.getInvalidations(), equalTo(1L));
+    store.getById(LOCATION);
+    verify(delegateMock, times(2)).getById(LOCATION);
+  }
+
+  @Test
+  public void getById_znodeChangedDuringRead_staleValueNotCached() throws Exception {
+    // arrange
+    H2oCredentials newCredentials = new H2oCredentials("e", "f", "g", "h");
+    when(delegateMock.getById(LOCATION)).thenAnswer(invocation -> {
+      zkClient.setData().forPath(ROOT_NODE + "/" + INSTANCE_ID, new byte[] {1});
+      // lets the watch invalidate the key before the value read here is put
+      Thread.sleep(500);
+      return Optional.of(CREDENTIALS);
+    }).thenReturn(Optional.of(newCredentials));
+
+    // act
+    store.getById(LOCATION);
+    Optional<H2oCredentials> credentials = store.getById(LOCATION);
+
+    // assert
+    assertThat(credentials.get(), equalTo(newCredentials));
+    verify(delegateMock, times(2)).getById(LOCATION);
+  }
+
+  @Test
+  public void save_entryCached_entryInvalidated() throws Exception {
+    // arrange
+    when(delegateMock.getById(LOCATION)).thenReturn(Optional.of(CREDENTIALS));
+    store.getById(LOCATION);
+
+    // act
+    store.save(LOCATION, CREDENTIALS);
+    store.getById(LOCATION);
+
+    // assert
+    verify(delegateMock).save(LOCATION, CREDENTIALS);
+    verify(delegateMock, times(2)).getById(LOCATION);
+  }
+
+  @Test
+  public void getById_cacheFull_entryEvicted() throws Exception {
+    // arrange
+    store = new CachingBrokerStore<>(delegateMock, zkClient, ROOT_NODE, new FlatZnodeLayout(),
+        1, 60);
+    Location otherLocation = Location.newInstance("otherInstanceId");
+    when(delegateMock.getById(LOCATION)).thenReturn(Optional.of(CREDENTIALS));
+    when(delegateMock.getById(otherLocation)).thenReturn(Optional.of(CREDENTIALS));
+
+    // act
+    store.getById(LOCATION);
+    store.getById(otherLocation);
+
+    // assert
+    assertThat(store.getStats().evictionCount(), equalTo(1L));
+    assertThat(store.getSize(), equalTo(1L));
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import com.google.common.base.Strings;
+import org.cloudfoundry.community.servicebroker.model.ServiceInstance;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.trustedanalytics.cfbroker.store.serialization.JSONSerDeFactory;
+import org.trustedanalytics.cfbroker.store.serialization.RepositoryDeserializer;
+import org.trustedanalytics.cfbroker.store.serialization.RepositorySerializer;
+import org.trustedanalytics.servicebroker.h2o.service.CfBrokerRequestsFactory;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class CompactSerDeFactoryTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final H2oCredentials credentials =
+      new H2oCredentials("10.10.10.117", "54321", "user", "password");
+
+  @Test
+  public void deserialize_compactPayload_objectRestored() throws Exception {
+    // arrange
+    CompactSerDeFactory sut = new CompactSerDeFactory(true, 0);
+    byte[] data = sut.<H2oCredentials>getSerializer().serialize(credentials);
+
+    // act
+    H2oCredentials restored = sut.getDeserializer(H2oCredentials.class).deserialize(data);
+
+    // assert
+    assertThat(CompactSerDeFactory.isCompact(data), equalTo(true));
+    assertThat(restored.getHostname(), equalTo(credentials.getHostname()));
+    assertThat(restored.getPort(), equalTo(credentials.getPort()));
+  }
+
+  @Test
+  public void deserialize_legacyJsonPayload_objectRestored() throws Exception {
+    // arrange
+    ServiceInstance instance =
+        new ServiceInstance(CfBrokerRequestsFactory.getCreateInstanceRequest("instance"));
+    RepositorySerializer<ServiceInstance> jsonSerializer =
+        JSONSerDeFactory.getInstance().getSerializer();
+    byte[] legacy = jsonSerializer.serialize(instance);
+    CompactSerDeFactory sut = new CompactSerDeFactory(true, 0);
+
+    // act
+    ServiceInstance restored = sut.getDeserializer(ServiceInstance.class).deserialize(legacy);
+
+    // assert
+    assertThat(restored.getServiceInstanceId(), equalTo("instance"));
+    assertThat(restored.getPlanId(), equalTo(instance.getPlanId()));
+  }
+
+  @Test
+  public void serialize_compactWritesDisabled_jsonWritten() throws Exception {
+    // arrange
+    CompactSerDeFactory sut = new CompactSerDeFactory(false, 0);
+
+    // act
+    byte[] data = sut.<H2oCredentials>getSerializer().serialize(credentials);
+
+    // assert
+    assertThat(CompactSerDeFactory.isCompact(data), equalTo(false));
+    assertThat(data[0], equalTo((byte) '{'));
+  }
+
+  @Test
+  public void serialize_payloadAboveThreshold_payloadDeflated() throws Exception {
+    // arrange
+    H2oCredentials large = new H2oCredentials(Strings.repeat("h2o.example.com.", 100),
+        "54321", "user", "password");
+    RepositorySerializer<H2oCredentials> plain =
+        new CompactSerDeFactory(true, 0).getSerializer();
+    CompactSerDeFactory sut = new CompactSerDeFactory(true, 128);
+    RepositoryDeserializer<H2oCredentials> deserializer =
+        sut.getDeserializer(H2oCredentials.class);
+
+    // act
+    byte[] data = sut.<H2oCredentials>getSerializer().serialize(large);
+
+    // assert
+    assertThat(data[3], equalTo(CompactSerDeFactory.FLAG_DEFLATED));
+    assertThat(data.length, lessThan(plain.serialize(large).length));
+    assertThat(deserializer.deserialize(data).getHostname(), equalTo(large.getHostname()));
+  }
+
+  @Test
+  public void deserialize_newerSchemaVersion_exceptionThrown() throws Exception {
+    // arrange
+    CompactSerDeFactory sut = new CompactSerDeFactory(true, 0);
+    byte[] data = sut.<H2oCredentials>getSerializer().serialize(credentials);
+    data[2] = CompactSerDeFactory.VERSION + 1;
+
+    // assert
+    thrown.expect(IOException.class);
+
+    // act
+    sut.getDeserializer(H2oCredentials.class).deserialize(data);
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.junit.Test;
+import org.trustedanalytics.cfbroker.store.api.Location;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ShardedZnodeLayoutTest {
+
+  private static final String ROOT_NODE = "/metadata";
+
+  private final ShardedZnodeLayout sut = new ShardedZnodeLayout();
+
+  @Test
+  public void getPath_instanceLocation_pathInTwoLevelBucket() {
+    // act
+    String path = sut.getPath(ROOT_NODE, Location.newInstance("instanceId"));
+
+    // assert
+    assertThat(path.matches("/metadata/[0-9a-f]/[0-9a-f]/instanceId"), equalTo(true));
+    assertThat(path, equalTo(sut.getBucketPath(ROOT_NODE, "instanceId") + "/instanceId"));
+  }
+
+  @Test
+  public void getPath_bindingLocation_bindingInBucketOfInstance() {
+    // act
+    String path = sut.getPath(ROOT_NODE, Location.newInstance("bindingId", "instanceId"));
+
+    // assert
+    assertThat(path,
+        equalTo(sut.getBucketPath(ROOT_NODE, "instanceId") + "/instanceId/bindingId"));
+  }
+
+  @Test
+  public void getLegacyPath_notMigrated_flatPathReturned() {
+    // act
+    String path = sut.getLegacyPath(ROOT_NODE, Location.newInstance("bindingId", "instanceId"));
+
+    // assert
+    assertThat(path, equalTo("/metadata/instanceId/bindingId"));
+  }
+
+  @Test
+  public void getLegacyPath_migrated_nullReturned() {
+    // arrange
+    sut.setMigrated(true);
+
+    // act
+    String path = sut.getLegacyPath(ROOT_NODE, Location.newInstance("instanceId"));
+
+    // assert
+    assertThat(path, nullValue());
+  }
+
+  @Test
+  public void isBucket_names_onlySingleHexDigitsAreBuckets() {
+    // assert
+    assertThat(ShardedZnodeLayout.isBucket("a"), equalTo(true));
+    assertThat(ShardedZnodeLayout.isBucket("7"), equalTo(true));
+    assertThat(ShardedZnodeLayout.isBucket("g"), equalTo(false));
+    assertThat(ShardedZnodeLayout.isBucket("instanceId"), equalTo(false));
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ZnodeLayoutMigrationTest {
+
+  private static final String ROOT_NODE = "/metadata";
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private ShardedZnodeLayout layout;
+  private ZnodeLayoutMigration sut;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient =
+        CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    zkClient.start();
+    zkClient.create().forPath(ROOT_NODE);
+    layout = new ShardedZnodeLayout();
+    sut = new ZnodeLayoutMigration(zkClient, ROOT_NODE, layout, 1);
+    sut.onElected(1);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    sut.close();
+    zkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void migrate_flatEntries_entriesWithChildrenMovedToBuckets() throws Exception {
+    // arrange
+    zkClient.create().creatingParentsIfNeeded()
+        .forPath(ROOT_NODE + "/instance1/binding1", "binding".getBytes());
+    zkClient.setData().forPath(ROOT_NODE + "/instance1", "instance".getBytes());
+    zkClient.create().forPath(ROOT_NODE + "/instance2", "other".getBytes());
+
+    // act
+    int left = sut.migrate();
+
+    // assert
+    String moved = layout.getBucketPath(ROOT_NODE, "instance1") + "/instance1";
+    assertThat(left, equalTo(0));
+    assertThat(sut.getMoved(), equalTo(2L));
+    assertThat(layout.isMigrated(), equalTo(true));
+    assertThat(new String(zkClient.getData().forPath(moved)), equalTo("instance"));
+    assertThat(new String(zkClient.getData().forPath(moved + "/binding1")), equalTo("binding"));
+    assertThat(zkClient.checkExists().forPath(ROOT_NODE + "/instance1"), nullValue());
+    assertThat(layout.listIds(zkClient, ROOT_NODE), containsInAnyOrder("instance1", "instance2"));
+  }
+
+  @Test
+  public void migrate_entryAlreadyInBucket_entryLeftForRetry() throws Exception {
+    // arrange
+    String bucketPath = layout.getBucketPath(ROOT_NODE, "instance1") + "/instance1";
+    zkClient.create().creatingParentsIfNeeded().forPath(bucketPath, "new".getBytes());
+    zkClient.create().forPath(ROOT_NODE + "/instance1", "old".getBytes());
+
+    // act
+    int left = sut.migrate();
+
+    // assert
+    assertThat(left, equalTo(1));
+    assertThat(layout.isMigrated(), equalTo(false));
+    assertThat(new String(zkClient.getData().forPath(ROOT_NODE + "/instance1")), equalTo("old"));
+    assertThat(layout.listIds(zkClient, ROOT_NODE), containsInAnyOrder("instance1"));
+  }
+
+  @Test
+  public void start_entryBlockedOnce_migrationRetried() throws Exception {
+    // arrange
+    String bucketPath = layout.getBucketPath(ROOT_NODE, "instance1") + "/instance1";
+    zkClient.create().creatingParentsIfNeeded().forPath(bucketPath);
+    zkClient.create().forPath(ROOT_NODE + "/instance1", "old".getBytes());
+
+    // act
+    sut.start();
+    zkClient.delete().forPath(bucketPath);
+
+    // assert
+    await().atMost(5, TimeUnit.SECONDS).until(layout::isMigrated);
+    assertThat(new String(zkClient.getData().forPath(bucketPath)), equalTo("old"));
+  }
+
+  @Test
+  public void migrate_notLeader_entriesLeftInPlace() throws Exception {
+    // arrange
+    sut.onRevoked();
+    zkClient.create().forPath(ROOT_NODE + "/instance1", "old".getBytes());
+
+    // act
+    int left = sut.migrate();
+
+    // assert
+    assertThat(left, equalTo(1));
+    assertThat(sut.getMoved(), equalTo(0L));
+    assertThat(layout.isMigrated(), equalTo(false));
+  }
+
+  @Test
+  public void migrate_notLeaderNothingLeft_layoutMigrated() throws Exception {
+    // arrange
+    sut.onRevoked();
+
+    // act
+    int left = sut.migrate();
+
+    // assert
+    assertThat(left, equalTo(0));
+    assertThat(layout.isMigrated(), equalTo(true));
+  }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.trustedanalytics.cfbroker.store.api.Location;
+import org.trustedanalytics.servicebroker.h2oprovisioner.rest.api.H2oCredentials;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ZookeeperBrokerStoreTest {
+
+  private static final String ROOT_NODE = "/credentials";
+  private static final Location LOCATION = Location.newInstance("instanceId");
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private ZookeeperWriteBatcher writeBatcher;
+  private ZookeeperBrokerStore<H2oCredentials> sut;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient =
+        CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    zkClient.start();
+    zkClient.create().forPath(ROOT_NODE);
+    writeBatcher = new ZookeeperWriteBatcher(zkClient, 0, 100, ZookeeperWriteBatcher.Ack.COMMIT);
+    sut = createStore(new FlatZnodeLayout());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    writeBatcher.close();
+    zkClient.close();
+    zkServer.close();
+  }
+
+  private void moveToBucket(ShardedZnodeLayout layout, String id) {
+    try {
+      String from = ROOT_NODE + "/" + id;
+      zkClient.create().creatingParentsIfNeeded().forPath(
+          layout.getBucketPath(ROOT_NODE, id) + "/" + id, zkClient.getData().forPath(from));
+      zkClient.delete().forPath(from);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private ZookeeperBrokerStore<H2oCredentials> createStore(ZnodeLayout layout) {
+    CompactSerDeFactory serDeFactory = new CompactSerDeFactory(true, 0);
+    return new ZookeeperBrokerStore<>(zkClient, ROOT_NODE, layout, serDeFactory.getSerializer(),
+        serDeFactory.getDeserializer(H2oCredentials.class), writeBatcher);
+  }
+
+  @Test
+  public void getById_valueSaved_valueReturned() throws Exception {
+    // arrange
+    sut.save(LOCATION, new H2oCredentials("host", "54321", "user", "password"));
+
+    // act
+    Optional<H2oCredentials> credentials = sut.getById(LOCATION);
+
+    // assert
+    assertThat(credentials.get().getHostname(), equalTo("host"));
+    assertThat(zkClient.checkExists().forPath(ROOT_NODE + "/instanceId"), notNullValue());
+  }
+
+  @Test
+  public void save_valueExists_valueOverwritten() throws Exception {
+    // arrange
+    sut.save(LOCATION, new H2oCredentials("host", "54321", "user", "password"));
+
+    // act
+    sut.save(LOCATION, new H2oCredentials("other-host", "54321", "user", "password"));
+
+    // assert
+    assertThat(sut.getById(LOCATION).get().getHostname(), equalTo("other-host"));
+  }
+
+  @Test
+  public void deleteById_valueSaved_valueRemovedAndReturned() throws Exception {
+    // arrange
+    sut.save(LOCATION, new H2oCredentials("host", "54321", "user", "password"));
+
+    // act
+    Optional<H2oCredentials> removed = sut.deleteById(LOCATION);
+
+    // assert
+    assertThat(removed.get().getHostname(), equalTo("host"));
+    assertThat(sut.getById(LOCATION).isPresent(), equalTo(false));
+  }
+
+  @Test
+  public void save_shardedLayout_valueWrittenToBucket() throws Exception {
+    // arrange
+    ShardedZnodeLayout layout = new ShardedZnodeLayout();
+    sut = createStore(layout);
+
+    // act
+    sut.save(LOCATION, new H2oCredentials("host", "54321", "user", "password"));
+
+    // assert
+    String path = layout.getBucketPath(ROOT_NODE, "instanceId") + "/instanceId";
+    assertThat(zkClient.checkExists().forPath(path), notNullValue());
+    assertThat(zkClient.checkExists().forPath(ROOT_NODE + "/instanceId"), nullValue());
+    assertThat(sut.getById(LOCATION).get().getHostname(), equalTo("host"));
+  }
+
+  @Test
+  public void save_shardedLayoutValueNotMigrated_legacyValueOverwritten() throws Exception {
+    // arrange
+    sut.save(LOCATION, new H2oCredentials("host", "54321", "user", "password"));
+    ZookeeperBrokerStore<H2oCredentials> sharded = createStore(new ShardedZnodeLayout());
+
+    // act
+    sharded.save(LOCATION, new H2oCredentials("other-host", "54321", "user", "password"));
+
+    // assert
+    assertThat(sut.getById(LOCATION).get().getHostname(), equalTo("other-host"));
+    assertThat(sharded.getById(LOCATION).get().getHostname(), equalTo("other-host"));
+  }
+
+  @Test
+  public void save_entryMigratedWhileSaving_valueWrittenToBucket() throws Exception {
+    // arrange
+    sut.save(LOCATION, new H2oCredentials("host", "54321", "user", "password"));
+    AtomicBoolean migrated = new AtomicBoolean();
+    ShardedZnodeLayout layout = new ShardedZnodeLayout() {
+      @Override
+      public String getLegacyPath(String rootNode, Location location) {
+        // the migration moves the entry right after the store found it in the legacy layout
+        if (migrated.compareAndSet(false, true)) {
+          moveToBucket(this, "instanceId");
+        }
+        return super.getLegacyPath(rootNode, location);
+      }
+    };
+    ZookeeperBrokerStore<H2oCredentials> sharded = createStore(layout);
+
+    // act
+    sharded.save(LOCATION, new H2oCredentials("other-host", "54321", "user", "password"));
+
+    // assert
+    assertThat(zkClient.checkExists().forPath(ROOT_NODE + "/instanceId"), nullValue());
+    assertThat(sharded.getById(LOCATION).get().getHostname(), equalTo("other-host"));
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2015 Intel Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.trustedanalytics.servicebroker.h2o.store;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+public class ZookeeperWriteBatcherTest {
+
+  private static final String ROOT_NODE = "/metadata";
+
+  private TestingServer zkServer;
+  private CuratorFramework zkClient;
+  private ZookeeperWriteBatcher sut;
+
+  @Before
+  public void setup() throws Exception {
+    zkServer = new TestingServer();
+    zkServer.start();
+    zkClient =
+        CuratorFrameworkFactory.newClient(zkServer.getConnectString(), new RetryOneTime(100));
+    zkClient.start();
+    zkClient.create().forPath(ROOT_NODE);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (sut != null) {
+      sut.close();
+    }
+    zkClient.close();
+    zkServer.close();
+  }
+
+  @Test
+  public void save_concurrentWrites_writesCommittedInOneBatch() throws Exception {
+    // arrange
+    sut = new ZookeeperWriteBatcher(zkClient, 200, 100, ZookeeperWriteBatcher.Ack.COMMIT);
+    sut.start();
+    ExecutorService writers = Executors.newFixedThreadPool(5);
+
+    // act
+    List<Future<?>> results = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      String path = ROOT_NODE + "/instance" + i;
+      results.add(writers.submit(() -> {
+        sut.save(path, new byte[] {1});
+        return null;
+      }));
+    }
+    for (Future<?> result : results) {
+      result.get();
+    }
+    writers.shutdown();
+
+    // assert
+    assertThat(sut.getCommittedBatches(), equalTo(1L));
+    assertThat(sut.getCommittedWrites(), equalTo(5L));
+    assertThat(zkClient.getChildren().forPath(ROOT_NODE).size(), equalTo(5));
+  }
+
+  @Test
+  public void save_nodeAlreadyExists_nodeUpdatedInBatch() throws Exception {
+    // arrange
+    zkClient.create().forPath(ROOT_NODE + "/instance0", new byte[] {0});
+    sut = new ZookeeperWriteBatcher(zkClient, 100, 100, ZookeeperWriteBatcher.Ack.ENQUEUE);
+    sut.start();
+
+    // act
+    sut.save(ROOT_NODE + "/instance0", new byte[] {1});
+    sut.save(ROOT_NODE + "/instance1", new byte[] {1});
+
+    // assert
+    await().atMost(2, SECONDS).until(sut::getCommittedWrites, equalTo(2L));
+    assertThat(sut.getCommittedBatches(), equalTo(1L));
+    assertThat(sut.getFallbacks(), equalTo(0L));
+    assertThat(zkClient.getData().forPath(ROOT_NODE + "/instance0"), equalTo(new byte[] {1}));
+  }
+
+  @Test
+  public void save_parentMissing_parentCreatedInBatch() throws Exception {
+    // arrange
+    sut = new ZookeeperWriteBatcher(zkClient, 100, 100, ZookeeperWriteBatcher.Ack.ENQUEUE);
+    sut.start();
+
+    // act
+    sut.save(ROOT_NODE + "/instance0/binding0", new byte[] {1});
+    sut.save(ROOT_NODE + "/instance0/binding1", new byte[] {2});
+    sut.delete(ROOT_NODE + "/instance1");
+
+    // assert
+    await().atMost(2, SECONDS).until(sut::getCommittedWrites, equalTo(3L));
+    assertThat(sut.getFallbacks(), equalTo(0L));
+    assertThat(zkClient.getData().forPath(ROOT_NODE + "/instance0/binding1"),
+        equalTo(new byte[] {2}));
+  }
+
+  @Test
+  public void delete_nodeHasChildren_batchWrittenOneByOne() throws Exception {
+    // arrange
+    zkClient.create().creatingParentsIfNeeded().forPath(ROOT_NODE + "/instance0/binding0");
+    sut = new ZookeeperWriteBatcher(zkClient, 100, 100, ZookeeperWriteBatcher.Ack.ENQUEUE);
+    sut.start();
+
+    // act
+    sut.delete(ROOT_NODE + "/instance0");
+    sut.save(ROOT_NODE + "/instance1", new byte[] {1});
+
+    // assert
+    await().atMost(2, SECONDS).until(sut::getFailedWrites, equalTo(1L));
+    assertThat(sut.getFallbacks(), equalTo(1L));
+    assertThat(zkClient.getData().forPath(ROOT_NODE + "/instance1"), equalTo(new byte[] {1}));
+  }
+
+  @Test
+  public void save_sameNodeWrittenTwice_writesCoalesced() throws Exception {
+    // arrange
+    sut = new ZookeeperWriteBatcher(zkClient, 100, 100, ZookeeperWriteBatcher.Ack.ENQUEUE);
+    sut.start();
+
+    // act
+    sut.save(ROOT_NODE + "/instance0", new byte[] {1});
+    sut.save(ROOT_NODE + "/instance0", new byte[] {2});
+
+    // assert
+    assertThat(sut.getPending(ROOT_NODE + "/instance0"), notNullValue());
+    await().atMost(2, SECONDS).until(sut::getCommittedWrites, equalTo(1L));
+    assertThat(sut.getCoalescedWrites(), equalTo(1L));
+    assertThat(zkClient.getData().forPath(ROOT_NODE + "/instance0"), equalTo(new byte[] {2}));
+  }
+
+  @Test(expected = IOException.class)
+  public void save_invalidPath_exceptionThrown() throws Exception {
+    // arrange
+    sut = new ZookeeperWriteBatcher(zkClient, 10, 100, ZookeeperWriteBatcher.Ack.COMMIT);
+    sut.start();
+
+    // act
+    sut.save(ROOT_NODE + "//instance0", new byte[] {1});
+  }
+
+  @Test
+  public void close_writesQueued_writesCommitted() throws Exception {
+    // arrange
+    sut = new ZookeeperWriteBatcher(zkClient, 1000, 100, ZookeeperWriteBatcher.Ack.ENQUEUE);
+    sut.start();
+    sut.save(ROOT_NODE + "/instance0", new byte[] {1});
+
+    // act
+    sut.close();
+
+    // assert
+    assertThat(zkClient.checkExists().forPath(ROOT_NODE + "/instance0"), notNullValue());
+  }
+}